@@ -173,6 +173,29 @@ public class FileUtils {
         }
     }
 
+    /**
+     * Replace a file with another one in the same directory, for instance
+     * with a new version written to a temporary file. Where renaming over an
+     * existing file is not supported, the destination is deleted first.
+     *
+     * @param source
+     *        the new file
+     * @param destination
+     *        the file to replace
+     * @throws IOException
+     *         if the source could not be renamed
+     */
+    public static void replace(File source, File destination)
+            throws IOException {
+        if (!source.renameTo(destination)) {
+            destination.delete();
+            if (!source.renameTo(destination)) {
+                throw new IOException("Unable to rename " + source + " to "
+                        + destination);
+            }
+        }
+    }
+
     /**
      * Load properties from the given file.
      */
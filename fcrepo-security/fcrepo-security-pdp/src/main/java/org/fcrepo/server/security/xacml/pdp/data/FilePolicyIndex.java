@@ -19,8 +19,10 @@ package org.fcrepo.server.security.xacml.pdp.data;
 import java.io.File;
 import java.io.FileInputStream;
 
+import java.net.URISyntaxException;
+
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.Set;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
@@ -40,12 +42,14 @@ import org.fcrepo.common.MalformedPIDException;
 import org.fcrepo.common.PID;
 
 import org.fcrepo.server.security.xacml.pdp.MelcoePDP;
+import org.fcrepo.server.security.xacml.util.AttributeBean;
 import org.fcrepo.server.security.xacml.util.DataFileUtils;
 
 /**
  * Implements PolicyIndex for a filesystem policy index, cached in memory
  *
- * FIXME: there is no indexing; all policies will be returned by getPolicies()
+ * The policies are indexed in memory on their targets, see
+ * {@link PolicyTargetIndex}.
  *
  * @author nishen@melcoe.mq.edu.au
  */
@@ -61,8 +65,8 @@ implements PolicyIndex {
 
     private DocumentBuilderFactory dbFactory = null;
 
-    // contains the cached policies.  one and only one of these
-    private static Map<String, byte[]> policies = null;
+    // contains the cached policies and their target index.  one and only one of these
+    private static PolicyTargetIndex policies = null;
     // protects concurrent access to the policies (particularly the files in the cache directory)
     private static final ReentrantReadWriteLock rwl = new ReentrantReadWriteLock();
     public static final Lock readLock = rwl.readLock();
@@ -71,7 +75,6 @@ implements PolicyIndex {
     protected FilePolicyIndex()
     throws PolicyIndexException {
         super();
-        indexed = false; // this implementation returns all policies when queried - no indexing/filtering
 
         logger.info("Starting FilePolicyIndex");
 
@@ -91,11 +94,17 @@ implements PolicyIndex {
     @Override
     public Map<String, byte[]> getPolicies(EvaluationCtx eval)
     throws PolicyIndexException {
-        // no indexing, return everything
-        // return a copy, otherwise the map could change during evaluation if policies are added, deleted etc
+        Map<String, Set<AttributeBean>> attributeMap;
+        try {
+            attributeMap = getAttributeMap(eval);
+        } catch (URISyntaxException e) {
+            logger.error("Error getting attribute map " + e.getMessage(), e);
+            throw new PolicyIndexException("Error getting attribute map " + e.getMessage(), e);
+        }
+        // the candidates are a copy, so they don't change during evaluation if policies are added, deleted etc
         readLock.lock();
         try {
-            return new ConcurrentHashMap<String, byte[]>(policies);
+            return policies.getPolicies(attributeMap);
         } finally {
             readLock.unlock();
         }
@@ -203,7 +212,7 @@ implements PolicyIndex {
     private String doAdd(String name, String document) throws PolicyIndexException {
         String filename = nameToFile(name).getAbsolutePath();
 
-        if (policies.put(name, document.getBytes()) != null) {
+        if (policies.getPolicies().containsKey(name)) {
             throw new PolicyIndexException("Attempting to add policy " + name + " but it already exists");
         }
 
@@ -213,13 +222,14 @@ implements PolicyIndex {
         } catch (Exception e) {
             throw new PolicyIndexException("Failed to save policy file " + filename);
         }
+        policies.put(name, document.getBytes());
 
         return name;
     }
 
 
     private boolean doDelete(String name) throws PolicyIndexException {
-        if (policies.remove(name) == null) {
+        if (!policies.remove(name)) {
             throw new PolicyIndexException("Attempting to delete non-existent policy " + name);
         }
 
@@ -251,8 +261,9 @@ implements PolicyIndex {
         readLock.lock();
         try {
             logger.debug("Getting policy named: " + name);
-            if (policies.containsKey(name)) {
-                return policies.get(name);
+            byte[] policy = policies.getPolicies().get(name);
+            if (policy != null) {
+                return policy;
             } else {
                 throw new PolicyIndexException("Attempting to get non-existent policy " + name);
             }
@@ -265,7 +276,7 @@ implements PolicyIndex {
     public boolean contains(String name) throws PolicyIndexException {
         readLock.lock();
         try {
-            return policies.containsKey(name);
+            return policies.getPolicies().containsKey(name);
         } finally {
             readLock.unlock();
         }
@@ -287,7 +298,7 @@ implements PolicyIndex {
                 }
             }
             // clear the cache
-            policies = new ConcurrentHashMap<String, byte[]>();
+            policies.clear();
 
             return true;
         } finally {
@@ -374,7 +385,7 @@ implements PolicyIndex {
 
                 logger.info("Populating FeSL File policy index cache");
 
-                policies = new ConcurrentHashMap<String, byte[]>();
+                PolicyTargetIndex loaded = new PolicyTargetIndex(indexMap, dbFactory);
 
                 File policyHome = new File(policyDir);
                 if (!policyHome.exists()) {
@@ -395,12 +406,13 @@ implements PolicyIndex {
 
                         String policyName = fileToName(f);
                         logger.debug("Adding policy file to cache, policy name: " + policyName);
-                        policies.put(policyName, doc);
+                        loaded.put(policyName, doc);
                     } catch (Exception e) {
                         logger.error("Error loading document: " + f.getName(), e);
                         throw new PolicyIndexException("Error loading document: " + f.getName(),e);
                     }
                 }
+                policies = loaded;
                 logger.info("Populated cache with " + pf.length + " files");
             }
         } finally {
@@ -0,0 +1,334 @@
+/* The contents of this file are subject to the license and copyright terms
+ * detailed in the license directory at the root of the source tree (also
+ * available online at http://fedora-commons.org/license/).
+ */
+package org.fcrepo.server.security.xacml.pdp.data;
+
+import java.io.ByteArrayInputStream;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.fcrepo.server.security.xacml.util.AttributeBean;
+
+/**
+ * An in-memory index over the top-level targets of a set of policies.
+ *
+ * Each policy is indexed on one target category (resource, action, subject or
+ * environment, in that order of preference) for which every alternative
+ * (every &lt;Resource&gt; in &lt;Resources&gt; etc) requires an attribute
+ * from the index configuration to equal a literal value. A request can then
+ * only match the policy if it has one of those attribute values, so the
+ * policy is found by looking up the request's attribute values. Policies
+ * which can't be indexed this way (no target, "any" targets, regular
+ * expression or other non-equality matches, attributes not in the index
+ * configuration etc) are returned for every request.
+ *
+ * The index only narrows down the policies to match; the PDP still matches
+ * each candidate policy against the request.
+ *
+ * Policies are indexed one at a time as they are put, so changing a policy
+ * costs the same however many there are. The index is not thread safe;
+ * FilePolicyIndex reads it under its read lock and changes it under its
+ * write lock.
+ */
+class PolicyTargetIndex {
+
+    private static final Logger logger =
+        LoggerFactory.getLogger(PolicyTargetIndex.class.getName());
+
+    private static final String SUBJECT_CATEGORY_DEFAULT =
+        "urn:oasis:names:tc:xacml:1.0:subject-category:access-subject";
+
+    private static final Set<String> EQUALITY_FUNCTIONS = new HashSet<String>();
+    static {
+        EQUALITY_FUNCTIONS.add("urn:oasis:names:tc:xacml:1.0:function:string-equal");
+        EQUALITY_FUNCTIONS.add("urn:oasis:names:tc:xacml:1.0:function:anyURI-equal");
+    }
+
+    // target categories in order of preference for indexing:
+    // index map key, target section element, and the element prefix used for
+    // the alternatives, matches and designators within the section
+    private static final String[][] CATEGORIES = {
+        {"resourceAttributes", "Resources", "Resource"},
+        {"actionAttributes", "Actions", "Action"},
+        {"subjectAttributes", "Subjects", "Subject"},
+        {"environmentAttributes", "Environments", "Environment"}};
+
+    private static final String[] NO_KEYS = new String[0];
+
+    private final Map<String, Map<String, String>> indexMap;
+
+    private final DocumentBuilder docBuilder;
+
+    // all policies, by name
+    private final Map<String, byte[]> policies = new HashMap<String, byte[]>();
+
+    // the index keys of each policy; NO_KEYS if the policy is not indexed
+    private final Map<String, String[]> keysByPolicy =
+        new HashMap<String, String[]>();
+
+    // policy names by index key
+    private final Map<String, Set<String>> policiesByKey =
+        new HashMap<String, Set<String>>();
+
+    // policies that could apply to any request
+    private final Set<String> unindexed = new HashSet<String>();
+
+    /**
+     * Creates an empty index.
+     *
+     * @param indexMap the attributes to index, by category
+     * @param dbFactory a namespace aware document builder factory
+     */
+    PolicyTargetIndex(Map<String, Map<String, String>> indexMap,
+                      DocumentBuilderFactory dbFactory)
+    throws PolicyIndexException {
+        this.indexMap = indexMap;
+        try {
+            docBuilder = dbFactory.newDocumentBuilder();
+        } catch (Exception e) {
+            throw new PolicyIndexException("Error creating document builder", e);
+        }
+    }
+
+    /**
+     * Adds the policy to the index, replacing any policy of the same name.
+     *
+     * @param name the name of the policy
+     * @param policy the policy document, not to be modified afterwards
+     */
+    void put(String name, byte[] policy) {
+        remove(name);
+        String[] keys = getKeys(indexMap, docBuilder, name, policy);
+        policies.put(name, policy);
+        keysByPolicy.put(name, keys);
+        if (keys.length == 0) {
+            unindexed.add(name);
+        }
+        for (String key : keys) {
+            Set<String> names = policiesByKey.get(key);
+            if (names == null) {
+                names = new HashSet<String>(2);
+                policiesByKey.put(key, names);
+            }
+            names.add(name);
+        }
+    }
+
+    /**
+     * Removes the policy from the index.
+     *
+     * @return false if there was no such policy
+     */
+    boolean remove(String name) {
+        if (policies.remove(name) == null) {
+            return false;
+        }
+        String[] keys = keysByPolicy.remove(name);
+        if (keys.length == 0) {
+            unindexed.remove(name);
+        }
+        for (String key : keys) {
+            Set<String> names = policiesByKey.get(key);
+            names.remove(name);
+            if (names.isEmpty()) {
+                policiesByKey.remove(key);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Removes all policies from the index.
+     */
+    void clear() {
+        policies.clear();
+        keysByPolicy.clear();
+        policiesByKey.clear();
+        unindexed.clear();
+    }
+
+    /**
+     * @return all the policies in the index, as a read-only view
+     */
+    Map<String, byte[]> getPolicies() {
+        return Collections.unmodifiableMap(policies);
+    }
+
+    /**
+     * Gets the policies whose targets could match a request.
+     *
+     * @param attributeMap the request attributes from the index configuration,
+     *        by category
+     * @return the candidate policies, by name
+     */
+    Map<String, byte[]> getPolicies(Map<String, Set<AttributeBean>> attributeMap) {
+        Map<String, byte[]> candidates = new HashMap<String, byte[]>();
+        for (String name : unindexed) {
+            candidates.put(name, policies.get(name));
+        }
+        for (String[] category : CATEGORIES) {
+            Set<AttributeBean> attributes = attributeMap.get(category[0]);
+            if (attributes == null) {
+                continue;
+            }
+            for (AttributeBean attribute : attributes) {
+                for (String value : attribute.getValues()) {
+                    Set<String> names =
+                        policiesByKey.get(key(category[0], attribute.getId(), value));
+                    if (names != null) {
+                        for (String name : names) {
+                            candidates.put(name, policies.get(name));
+                        }
+                    }
+                }
+            }
+        }
+        return candidates;
+    }
+
+    /**
+     * @return the number of policies which could apply to any request
+     */
+    int getUnindexedCount() {
+        return unindexed.size();
+    }
+
+    private static String[] getKeys(Map<String, Map<String, String>> indexMap,
+                                    DocumentBuilder docBuilder,
+                                    String name,
+                                    byte[] policy) {
+        Element root;
+        try {
+            root = docBuilder.parse(new ByteArrayInputStream(policy))
+                    .getDocumentElement();
+        } catch (Exception e) {
+            // leave it to the PDP to report the error
+            logger.warn("Error parsing policy " + name
+                        + ", it will not be indexed: " + e.getMessage());
+            return NO_KEYS;
+        }
+
+        Element target = getChild(root, "Target");
+        if (target == null) {
+            return NO_KEYS;
+        }
+        for (String[] category : CATEGORIES) {
+            Set<String> keys =
+                getKeys(indexMap.get(category[0]), category, getChild(target, category[1]));
+            if (keys != null) {
+                return keys.toArray(new String[keys.size()]);
+            }
+        }
+        return NO_KEYS;
+    }
+
+    /**
+     * Gets the index keys for one section of a target, null if the section
+     * can't be indexed.
+     */
+    private static Set<String> getKeys(Map<String, String> indexedAttributes,
+                                       String[] category,
+                                       Element section) {
+        if (section == null || indexedAttributes == null
+                || indexedAttributes.isEmpty()) {
+            return null;
+        }
+
+        Set<String> keys = new HashSet<String>();
+        for (Node n = section.getFirstChild(); n != null; n = n.getNextSibling()) {
+            if (n.getNodeType() != Node.ELEMENT_NODE) {
+                continue;
+            }
+            // an AnyResource etc (XACML 1.x) or anything unexpected
+            if (!category[2].equals(n.getLocalName())) {
+                return null;
+            }
+            // the alternative matches if all of its matches do, so it is
+            // enough to index one of them
+            String key = null;
+            for (Node m = n.getFirstChild(); m != null && key == null; m = m.getNextSibling()) {
+                if (m.getNodeType() == Node.ELEMENT_NODE
+                        && (category[2] + "Match").equals(m.getLocalName())) {
+                    key = getKey(indexedAttributes, category, (Element) m);
+                }
+            }
+            if (key == null) {
+                return null;
+            }
+            keys.add(key);
+        }
+        return keys.isEmpty() ? null : keys;
+    }
+
+    /**
+     * Gets the index key for a match, null if the match can't be indexed.
+     */
+    private static String getKey(Map<String, String> indexedAttributes,
+                                 String[] category,
+                                 Element match) {
+        if (!EQUALITY_FUNCTIONS.contains(match.getAttribute("MatchId"))) {
+            return null;
+        }
+        Element value = getChild(match, "AttributeValue");
+        Element designator = getChild(match, category[2] + "AttributeDesignator");
+        if (value == null || designator == null) {
+            return null;
+        }
+
+        // the request attributes are looked up with the type from the index
+        // configuration, so the policy must use the same type
+        String attributeId = designator.getAttribute("AttributeId");
+        String type = indexedAttributes.get(attributeId);
+        if (type == null || !type.equals(designator.getAttribute("DataType"))) {
+            return null;
+        }
+        // a missing attribute would make the target indeterminate rather
+        // than not match
+        if ("true".equals(designator.getAttribute("MustBePresent"))) {
+            return null;
+        }
+        // request subject attributes are looked up in the default category
+        String subjectCategory = designator.getAttribute("SubjectCategory");
+        if (!subjectCategory.equals("")
+                && !subjectCategory.equals(SUBJECT_CATEGORY_DEFAULT)) {
+            return null;
+        }
+        // hierarchical resource-ids are split into components in the
+        // request attributes, so can't be looked up
+        String literal = value.getTextContent();
+        if (attributeId.equals(PolicyIndex.XACML_RESOURCE_ID)
+                && literal.startsWith("/")) {
+            return null;
+        }
+
+        return key(category[0], attributeId, literal);
+    }
+
+    private static Element getChild(Element parent, String localName) {
+        for (Node n = parent.getFirstChild(); n != null; n = n.getNextSibling()) {
+            if (n.getNodeType() == Node.ELEMENT_NODE
+                    && localName.equals(n.getLocalName())) {
+                return (Element) n;
+            }
+        }
+        return null;
+    }
+
+    private static String key(String category, String attributeId, String value) {
+        return category + '\u0000' + attributeId + '\u0000' + value;
+    }
+}
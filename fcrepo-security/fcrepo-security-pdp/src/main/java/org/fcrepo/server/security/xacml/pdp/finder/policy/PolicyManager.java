@@ -49,6 +49,8 @@ import org.fcrepo.server.security.xacml.pdp.data.PolicyConfigException;
 import org.fcrepo.server.security.xacml.pdp.data.PolicyIndex;
 import org.fcrepo.server.security.xacml.pdp.data.PolicyIndexException;
 import org.fcrepo.server.security.xacml.pdp.data.PolicyIndexFactory;
+import org.fcrepo.server.utilities.MD5Utility;
+import org.fcrepo.server.utilities.StripedLruCache;
 
 /**
  * This class interacts with the policy cache on behalf of the PolicyFinder
@@ -70,6 +72,15 @@ public class PolicyManager {
 
     private PolicyReader policyReader = null;
 
+    private static final int MAX_PARSED_POLICIES = 1024;
+
+    // parsed policies by the digest of their document, so a changed policy
+    // is parsed again and deleted ones fall out of the cache when unused
+    private final StripedLruCache<AbstractPolicy> parsedPolicies =
+            new StripedLruCache<AbstractPolicy>(MAX_PARSED_POLICIES,
+                                                Long.MAX_VALUE,
+                                                false);
+
     // the policy identifier for any policy sets we dynamically create
     private static final String PARENT_POLICY_ID =
             "urn:com:sun:xacml:support:finder:dynamic-policy-set";
@@ -180,8 +191,7 @@ public class PolicyManager {
         for (String policyId : policyList.keySet()) {
             try {
                 byte[] pol = policyList.get(policyId);
-                AbstractPolicy policy =
-                        policyReader.readPolicy(new ByteArrayInputStream(pol));
+                AbstractPolicy policy = getParsedPolicy(pol);
 
                 MatchResult match = policy.match(eval);
 
@@ -232,4 +242,24 @@ public class PolicyManager {
                                              .values()));
         }
     }
+
+    /**
+     * Returns the parsed form of a policy document, parsing it only if a
+     * document with the same content is not in the cache.
+     *
+     * @param pol
+     *        the policy document
+     * @return the parsed policy
+     * @throws ParsingException
+     */
+    private AbstractPolicy getParsedPolicy(byte[] pol)
+            throws ParsingException {
+        String digest = MD5Utility.getBase16Hash(pol);
+        AbstractPolicy policy = parsedPolicies.get(digest);
+        if (policy == null) {
+            policy = policyReader.readPolicy(new ByteArrayInputStream(pol));
+            parsedPolicies.put(digest, policy);
+        }
+        return policy;
+    }
 }
@@ -0,0 +1,220 @@
+/* The contents of this file are subject to the license and copyright terms
+ * detailed in the license directory at the root of the source tree (also
+ * available online at http://fedora-commons.org/license/).
+ */
+package org.fcrepo.server.security.xacml.pdp.data;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.fcrepo.server.security.xacml.util.AttributeBean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class PolicyTargetIndexTest {
+
+    private static final Logger logger =
+            LoggerFactory.getLogger(PolicyTargetIndexTest.class);
+
+    private static final String PID_ATTRIBUTE =
+            "urn:fedora:names:fedora:2.1:resource:object:pid";
+
+    private static final String STRING_TYPE =
+            "http://www.w3.org/2001/XMLSchema#string";
+
+    private static final String STRING_EQUAL =
+            "urn:oasis:names:tc:xacml:1.0:function:string-equal";
+
+    private static final String REGEXP_MATCH =
+            "urn:oasis:names:tc:xacml:1.0:function:regexp-string-match";
+
+    private Map<String, Map<String, String>> indexMap;
+
+    private DocumentBuilderFactory dbFactory;
+
+    @Before
+    public void setUp() {
+        indexMap = new HashMap<String, Map<String, String>>();
+        for (String category : new String[] {"subjectAttributes",
+                "resourceAttributes", "actionAttributes",
+                "environmentAttributes"}) {
+            indexMap.put(category, new HashMap<String, String>());
+        }
+        indexMap.get("resourceAttributes").put(PID_ATTRIBUTE, STRING_TYPE);
+        dbFactory = DocumentBuilderFactory.newInstance();
+        dbFactory.setNamespaceAware(true);
+    }
+
+    @Test
+    public void testObjectPolicyIsOnlyReturnedForItsObject() throws Exception {
+        Map<String, byte[]> policies = new HashMap<String, byte[]>();
+        policies.put("demo:policy1", objectPolicy(STRING_EQUAL, "demo:1"));
+        policies.put("demo:policy2", objectPolicy(STRING_EQUAL, "demo:2"));
+
+        PolicyTargetIndex index = newIndex(policies);
+
+        assertEquals(Collections.singleton("demo:policy1"),
+                     index.getPolicies(request("demo:1")).keySet());
+        assertEquals(Collections.singleton("demo:policy2"),
+                     index.getPolicies(request("demo:2")).keySet());
+        assertTrue(index.getPolicies(request("demo:3")).isEmpty());
+        assertEquals(0, index.getUnindexedCount());
+    }
+
+    @Test
+    public void testPoliciesThatCannotBeIndexedAreAlwaysReturned() throws Exception {
+        Map<String, byte[]> policies = new HashMap<String, byte[]>();
+        policies.put("demo:noTarget", policy(""));
+        policies.put("demo:anyResource",
+                     policy("<Target><Resources><AnyResource/></Resources></Target>"));
+        policies.put("demo:regexp", objectPolicy(REGEXP_MATCH, "demo:.*"));
+        policies.put("demo:notIndexed",
+                     policy("<Target><Resources><Resource>"
+                            + match("Resource", STRING_EQUAL,
+                                    "urn:fedora:names:fedora:2.1:resource:datastream:id",
+                                    "DC")
+                            + "</Resource></Resources></Target>"));
+        policies.put("demo:invalid", "<Policy".getBytes());
+        policies.put("demo:policy1", objectPolicy(STRING_EQUAL, "demo:1"));
+
+        PolicyTargetIndex index = newIndex(policies);
+
+        assertEquals(5, index.getUnindexedCount());
+        assertEquals(6, index.getPolicies(request("demo:1")).size());
+        assertEquals(5, index.getPolicies(request("demo:2")).size());
+    }
+
+    @Test
+    public void testPolicyWithAlternativesIsIndexedOnEach() throws Exception {
+        String pidMatch = "<Resource>%s</Resource>";
+        Map<String, byte[]> policies = new HashMap<String, byte[]>();
+        policies.put("demo:policy",
+                     policy("<Target><Resources>"
+                            + String.format(pidMatch, match("Resource", STRING_EQUAL, PID_ATTRIBUTE, "demo:1"))
+                            + String.format(pidMatch, match("Resource", STRING_EQUAL, PID_ATTRIBUTE, "demo:2"))
+                            + "</Resources></Target>"));
+
+        PolicyTargetIndex index = newIndex(policies);
+
+        assertEquals(1, index.getPolicies(request("demo:1")).size());
+        assertEquals(1, index.getPolicies(request("demo:2")).size());
+        assertEquals(0, index.getPolicies(request("demo:3")).size());
+    }
+
+    @Test
+    public void testUpdatedIndexReflectsChanges() throws Exception {
+        Map<String, byte[]> policies = new HashMap<String, byte[]>();
+        policies.put("demo:policy1", objectPolicy(STRING_EQUAL, "demo:1"));
+        policies.put("demo:policy2", objectPolicy(STRING_EQUAL, "demo:2"));
+        policies.put("demo:global", policy(""));
+        PolicyTargetIndex index = newIndex(policies);
+
+        byte[] policy2 = objectPolicy(STRING_EQUAL, "demo:3");
+        assertTrue(index.remove("demo:policy1"));
+        assertFalse(index.remove("demo:policy1"));
+        index.put("demo:policy2", policy2);
+        index.put("demo:policy4", objectPolicy(STRING_EQUAL, "demo:4"));
+
+        assertEquals(1, index.getPolicies(request("demo:1")).size());
+        assertEquals(1, index.getPolicies(request("demo:2")).size());
+        assertSame(policy2,
+                   index.getPolicies(request("demo:3")).get("demo:policy2"));
+        assertEquals(2, index.getPolicies(request("demo:4")).size());
+        assertEquals(3, index.getPolicies().size());
+
+        assertTrue(index.remove("demo:global"));
+        assertEquals(0, index.getUnindexedCount());
+        assertTrue(index.getPolicies(request("demo:1")).isEmpty());
+        index.clear();
+        assertTrue(index.getPolicies(request("demo:4")).isEmpty());
+        assertTrue(index.getPolicies().isEmpty());
+    }
+
+    /**
+     * The number of candidate policies, and so the time to match them, does
+     * not grow with the number of object policies.
+     */
+    @Test
+    public void testCandidatesDoNotGrowWithPolicyCount() throws Exception {
+        int lookups = 10000;
+        for (int count = 100; count <= 10000; count *= 10) {
+            Map<String, byte[]> policies = new HashMap<String, byte[]>();
+            policies.put("demo:global", policy(""));
+            for (int i = 0; i < count; i++) {
+                policies.put("demo:policy" + i, objectPolicy(STRING_EQUAL, "demo:" + i));
+            }
+
+            long start = System.nanoTime();
+            PolicyTargetIndex index = newIndex(policies);
+            long indexTime = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int i = 0; i < lookups; i++) {
+                Map<String, byte[]> candidates =
+                        index.getPolicies(request("demo:" + (i % count)));
+                assertEquals(2, candidates.size());
+            }
+            long lookupTime = System.nanoTime() - start;
+
+            logger.info(count + " policies: indexed in "
+                        + indexTime / 1000000 + "ms, "
+                        + lookupTime / lookups + "ns per lookup");
+        }
+    }
+
+    private PolicyTargetIndex newIndex(Map<String, byte[]> policies)
+            throws PolicyIndexException {
+        PolicyTargetIndex index = new PolicyTargetIndex(indexMap, dbFactory);
+        for (Map.Entry<String, byte[]> policy : policies.entrySet()) {
+            index.put(policy.getKey(), policy.getValue());
+        }
+        return index;
+    }
+
+    private static Map<String, Set<AttributeBean>> request(String pid) {
+        Map<String, Set<AttributeBean>> attributeMap =
+                new HashMap<String, Set<AttributeBean>>();
+        attributeMap.put("resourceAttributes", Collections.singleton(
+                new AttributeBean(PID_ATTRIBUTE, STRING_TYPE,
+                                  new HashSet<String>(Collections.singleton(pid)))));
+        return attributeMap;
+    }
+
+    private static byte[] objectPolicy(String matchId, String pid) {
+        return policy("<Target><Resources><Resource>"
+                      + match("Resource", matchId, PID_ATTRIBUTE, pid)
+                      + "</Resource></Resources></Target>");
+    }
+
+    private static String match(String category, String matchId,
+                                String attributeId, String value) {
+        return "<" + category + "Match MatchId=\"" + matchId + "\">"
+                + "<AttributeValue DataType=\"" + STRING_TYPE + "\">" + value
+                + "</AttributeValue>"
+                + "<" + category + "AttributeDesignator AttributeId=\""
+                + attributeId + "\" DataType=\"" + STRING_TYPE + "\"/>"
+                + "</" + category + "Match>";
+    }
+
+    private static byte[] policy(String target) {
+        return ("<Policy xmlns=\"" + PolicyIndex.XACML20_POLICY_NS + "\""
+                + " PolicyId=\"test\" RuleCombiningAlgId="
+                + "\"urn:oasis:names:tc:xacml:1.0:rule-combining-algorithm:first-applicable\">"
+                + target
+                + "<Rule RuleId=\"deny\" Effect=\"Deny\"/></Policy>").getBytes();
+    }
+}
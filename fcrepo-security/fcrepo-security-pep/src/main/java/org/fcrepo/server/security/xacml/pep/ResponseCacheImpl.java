@@ -18,12 +18,11 @@
 
 package org.fcrepo.server.security.xacml.pep;
 
+import java.lang.ref.WeakReference;
+
 import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
 
@@ -38,12 +37,27 @@ import org.fcrepo.server.security.xacml.MelcoeXacmlException;
 import org.fcrepo.server.security.xacml.util.AttributeComparator;
 import org.fcrepo.server.security.xacml.util.ContextUtil;
 import org.fcrepo.server.security.xacml.util.SubjectComparator;
+import org.fcrepo.server.utilities.JMXUtility;
+import org.fcrepo.server.utilities.StripedLruCache;
 
 /**
+ * A size and time bounded cache of PDP responses.
+ * <p>
+ * Requests are cached by a hash of their attributes, in canonical order, so
+ * requests that only differ in the order of their attributes share an entry.
+ * Each thread has its own digest, and the hash of the last request looked up
+ * by a thread is reused when the response to it is added.
+ * <p>
+ * The responses are kept in a {@link StripedLruCache} by hash, and expire the
+ * TTL after they were added, however often they are hit.
+ * <p>
+ * Hit, miss and eviction counters are available over JMX as
+ * <code>org.fcrepo.server.security.xacml.pep:type=ResponseCache</code>.
+ *
  * @author nishen@melcoe.mq.edu.au
  */
 public class ResponseCacheImpl
-        implements ResponseCache {
+        implements ResponseCache, ResponseCacheImplMBean {
 
     private static final Logger logger =
             LoggerFactory.getLogger(ResponseCacheImpl.class);
@@ -58,13 +72,29 @@ public class ResponseCacheImpl
 
     private long TTL;
 
-    private Map<String, String> requestCache = null;
+    private final StripedLruCache<String> responses;
 
-    private Map<String, Long> requestCacheTimeTracker = null;
+    // MessageDigest is not thread-safe, so each thread has its own
+    private final ThreadLocal<MessageDigest> digest =
+            new ThreadLocal<MessageDigest>() {
 
-    private List<String> requestCacheUsageTracker = null;
+                @Override
+                protected MessageDigest initialValue() {
+                    try {
+                        return MessageDigest.getInstance("MD5");
+                    } catch (NoSuchAlgorithmException e) {
+                        // checked in the constructor
+                        throw new IllegalStateException(e);
+                    }
+                }
+            };
 
-    private MessageDigest digest = null;
+    // the last request hashed by each thread. a response is added for the
+    // request string that was just looked up and not found, so the request
+    // is compared by identity, and only weakly referenced so that idle
+    // pooled threads do not hold on to it
+    private final ThreadLocal<HashedRequest> lastRequest =
+            new ThreadLocal<HashedRequest>();
 
     /**
      * The default constructor that initialises the cache with default values.
@@ -98,16 +128,16 @@ public class ResponseCacheImpl
 
         CACHE_SIZE = size.intValue();
 
-        // Note - HashMap, ArrayList are not thread-safe
-        requestCache = new HashMap<String, String>(CACHE_SIZE);
-        requestCacheTimeTracker = new HashMap<String, Long>(CACHE_SIZE);
-        requestCacheUsageTracker = new ArrayList<String>(CACHE_SIZE);
+        responses = new StripedLruCache<String>(CACHE_SIZE, TTL, false);
 
         try {
-            digest = MessageDigest.getInstance("MD5");
+            MessageDigest.getInstance("MD5");
         } catch (Exception e) {
             throw new PEPException("Could not initialize the ResponseCache", e);
         }
+
+        JMXUtility.registerMBean(this,
+                                 "org.fcrepo.server.security.xacml.pep:type=ResponseCache");
     }
 
     /*
@@ -121,28 +151,10 @@ public class ResponseCacheImpl
         try {
             hash = makeHash(request);
 
-            // thread-safety on cache operations
-            synchronized (requestCache) {
-
-                // if we have a maxxed cache, remove least used item
-                if (requestCache.size() >= CACHE_SIZE) {
-                    String key = requestCacheUsageTracker.remove(0);
-                    requestCache.remove(key);
-                    if (logger.isDebugEnabled()) {
-                        logger.debug("Purging cache element");
-                    }
-                }
-
-                requestCache.put(hash, response);
-                requestCacheUsageTracker.add(hash);
-                requestCacheTimeTracker.put(hash, new Long(System
-                                                           .currentTimeMillis()));
-            }
+            responses.put(hash, response);
 
             if (logger.isDebugEnabled()) {
-                logger.debug("Adding Cache Item (" + requestCache.size() + "/"
-                             + requestCacheUsageTracker.size() + "/"
-                             + requestCacheTimeTracker.size() + "): " + hash);
+                logger.debug("Adding Cache Item (" + getSize() + "): " + hash);
             }
         } catch (Exception e) {
             logger.warn("Error adding cache item: " + e.getMessage(), e);
@@ -155,53 +167,21 @@ public class ResponseCacheImpl
      */
     public String getCacheItem(String request) {
         String hash = null;
-        String response = null;
 
         try {
             hash = makeHash(request);
 
-            // thread-safety on cache operations
-            synchronized (requestCache) {
-
-                if (logger.isDebugEnabled()) {
-                    logger.debug("Getting Cache Item (" + requestCache.size() + "/"
-                                 + requestCacheUsageTracker.size() + "/"
-                                 + requestCacheTimeTracker.size() + "): " + hash);
-                }
-
-                response = requestCache.get(hash);
-
-                if (response == null) {
-                    return null;
-                }
-
-                // if this item is older than CACHE_ITEM_TTL then we can't use it
-                long usedLast =
-                    System.currentTimeMillis()
-                    - requestCacheTimeTracker.get(hash).longValue();
-                if (usedLast > TTL) {
-                    requestCache.remove(hash);
-                    requestCacheUsageTracker.remove(hash);
-                    requestCacheTimeTracker.remove(hash);
-
-                    if (logger.isDebugEnabled()) {
-                        logger.debug("CACHE_ITEM_TTL exceeded: " + hash);
-                    }
-
-                    return null;
-                }
-
-                // we just used this item, move it to the end of the list (items at
-                // beginning get removed...)
-                requestCacheUsageTracker.add(requestCacheUsageTracker
-                                             .remove(requestCacheUsageTracker.indexOf(hash)));
+            if (logger.isDebugEnabled()) {
+                logger.debug("Getting Cache Item: " + hash);
             }
+
+            // expired responses are not returned
+            return responses.get(hash);
         } catch (Exception e) {
             logger.warn("Error getting cache item: " + e.getMessage(), e);
-            response = null;
         }
 
-        return response;
+        return null;
     }
 
     /*
@@ -209,12 +189,41 @@ public class ResponseCacheImpl
      * @see org.fcrepo.server.security.xacml.pep.ResponseCache#invalidate()
      */
     public void invalidate() {
-        // thread-safety on cache operations
-        synchronized (requestCache) {
-            requestCache = new HashMap<String, String>(CACHE_SIZE);
-            requestCacheTimeTracker = new HashMap<String, Long>(CACHE_SIZE);
-            requestCacheUsageTracker = new ArrayList<String>(CACHE_SIZE);
-        }
+        responses.clear();
+    }
+
+    public int getSize() {
+        return responses.size();
+    }
+
+    public int getMaxSize() {
+        return CACHE_SIZE;
+    }
+
+    public long getTTL() {
+        return TTL;
+    }
+
+    public long getHits() {
+        return responses.getHits();
+    }
+
+    public long getMisses() {
+        return responses.getMisses();
+    }
+
+    public double getHitRatio() {
+        long h = responses.getHits();
+        long total = h + responses.getMisses();
+        return total == 0 ? 0.0 : (double) h / total;
+    }
+
+    public long getEvictions() {
+        return responses.getEvictions();
+    }
+
+    public long getExpirations() {
+        return responses.getExpirations();
     }
 
     /**
@@ -225,54 +234,58 @@ public class ResponseCacheImpl
      * @return the hash
      * @throws CacheException
      */
-    @SuppressWarnings("unchecked")
     private String makeHash(String request) throws CacheException {
+        HashedRequest last = lastRequest.get();
+        if (last != null && last.request.get() == request) {
+            return last.hash;
+        }
+        String hash = makeHash(request, digest.get());
+        lastRequest.set(new HashedRequest(request, hash));
+        return hash;
+    }
+
+    @SuppressWarnings("unchecked")
+    private String makeHash(String request, MessageDigest digest)
+            throws CacheException {
         RequestCtx reqCtx = null;
         try {
             reqCtx = contextUtil.makeRequestCtx(request);
         } catch (MelcoeXacmlException pe) {
             throw new CacheException("Error converting request", pe);
         }
-        byte[] hash = null;
-        // ensure thread safety, don't want concurrent invocations of this method all modifying digest at once
-        // (alternative is to construct a new digest for each(
-        synchronized(digest) {
-            digest.reset();
-
-            Set<Attribute> attributes = null;
-
-            Set<Subject> subjects = new TreeSet(new SubjectComparator());
-            subjects.addAll(reqCtx.getSubjects());
-            for (Subject s : subjects) {
-                attributes = new TreeSet(new AttributeComparator());
-                attributes.addAll(s.getAttributes());
-                for (Attribute a : attributes) {
-                    hashAttribute(a, digest);
-                }
-            }
+        digest.reset();
 
-            attributes = new TreeSet(new AttributeComparator());
-            attributes.addAll(reqCtx.getResource());
-            for (Attribute a : attributes) {
-                hashAttribute(a, digest);
-            }
+        Set<Attribute> attributes = null;
 
+        Set<Subject> subjects = new TreeSet(new SubjectComparator());
+        subjects.addAll(reqCtx.getSubjects());
+        for (Subject s : subjects) {
             attributes = new TreeSet(new AttributeComparator());
-            attributes.addAll(reqCtx.getAction());
+            attributes.addAll(s.getAttributes());
             for (Attribute a : attributes) {
                 hashAttribute(a, digest);
             }
+        }
 
-            attributes = new TreeSet(new AttributeComparator());
-            attributes.addAll(reqCtx.getEnvironmentAttributes());
-            for (Attribute a : attributes) {
-                hashAttribute(a, digest);
-            }
+        attributes = new TreeSet(new AttributeComparator());
+        attributes.addAll(reqCtx.getResource());
+        for (Attribute a : attributes) {
+            hashAttribute(a, digest);
+        }
 
-            hash = digest.digest();
+        attributes = new TreeSet(new AttributeComparator());
+        attributes.addAll(reqCtx.getAction());
+        for (Attribute a : attributes) {
+            hashAttribute(a, digest);
         }
 
-        return byte2hex(hash);
+        attributes = new TreeSet(new AttributeComparator());
+        attributes.addAll(reqCtx.getEnvironmentAttributes());
+        for (Attribute a : attributes) {
+            hashAttribute(a, digest);
+        }
+
+        return byte2hex(digest.digest());
     }
 
     /**
@@ -300,7 +313,7 @@ public class ResponseCacheImpl
      *        the byte array to convert
      * @return the hexadecimal string representation
      */
-    private String byte2hex(byte[] bytes) {
+    private static String byte2hex(byte[] bytes) {
         char[] hexChars =
                 {'0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a', 'b',
                         'c', 'd', 'e', 'f'};
@@ -313,4 +326,16 @@ public class ResponseCacheImpl
 
         return new String(sb);
     }
+
+    private static class HashedRequest {
+
+        final WeakReference<String> request;
+
+        final String hash;
+
+        HashedRequest(String request, String hash) {
+            this.request = new WeakReference<String>(request);
+            this.hash = hash;
+        }
+    }
 }
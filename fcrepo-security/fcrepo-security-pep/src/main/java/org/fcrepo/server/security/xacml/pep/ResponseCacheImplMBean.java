@@ -0,0 +1,25 @@
+package org.fcrepo.server.security.xacml.pep;
+
+/**
+ * JMX view of the {@link ResponseCacheImpl}.
+ */
+public interface ResponseCacheImplMBean {
+
+    int getSize();
+
+    int getMaxSize();
+
+    long getTTL();
+
+    long getHits();
+
+    long getMisses();
+
+    double getHitRatio();
+
+    long getEvictions();
+
+    long getExpirations();
+
+    void invalidate();
+}
@@ -86,6 +86,16 @@ import org.apache.lucene.index.TieredMergePolicy;
  * no guarantees of the correctness of queries involving dates or the
  * internal representation of dates.
  * </p>
+ * <p>
+ * Upgrading: PIDs are read from DocValues, which documents indexed by
+ * earlier versions do not have, and which cannot be added to them in place.
+ * Such documents are still found, but their PIDs are read from stored
+ * fields, which is much slower. An existing index must therefore be rebuilt
+ * after upgrading, by reindexing all objects with fedora-rebuild ("Rebuild
+ * SQL database", which also updates this index), or by removing the index
+ * directory and rebuilding. The number of documents still to be reindexed is
+ * logged as a warning on startup.
+ * </p>
  */
 public final class FieldSearchLucene extends Module implements FieldSearch
 {
@@ -104,7 +114,17 @@ public final class FieldSearchLucene extends Module implements FieldSearch
     private File writeAheadLogDir = null;
     private int writeAheadLogCommitSize;
     private boolean writeAheadLogKeepFileOpen = true;
-    private int writeAheadLogNumConcurrentTLogs;
+    private long writeAheadLogCommitIntervalMS = 0;
+
+    private LuceneFieldIndex.RefreshMode searcherRefreshMode = LuceneFieldIndex.RefreshMode.BLOCKING;
+    private long searcherMaxStaleMS = 1000;
+    private long searcherMinStaleMS = 25;
+
+    private boolean searchCursorPaging = false;
+
+    /** False positive rate of the PID filter, when it holds the expected number of PIDs */
+    private static final double PID_FILTER_FALSE_POSITIVE_RATE = 0.01;
+    private long pidFilterExpectedPids = 1000000;
 
     /**
      * Constructor for initializing the FieldSearch module. The server will
@@ -156,6 +176,20 @@ public final class FieldSearchLucene extends Module implements FieldSearch
         this.resultLifeTimeInSeconds = Integer.parseInt( resultLifetime );
         log.debug( "resultLifeTimeInSeconds = {}", resultLifetime );
 
+        long resultCacheMaxEntries = getLongParameter( "resultCacheMaxEntries", FieldSearchResultCache.DEFAULT_MAX_ENTRIES );
+        long resultCacheMaxBytes = getLongParameter( "resultCacheMaxBytes", FieldSearchResultCache.DEFAULT_MAX_BYTES );
+        if( resultCacheMaxEntries <= 0 || resultCacheMaxEntries > Integer.MAX_VALUE || resultCacheMaxBytes <= 0 )
+        {
+            String error = String.format( "FATAL: resultCacheMaxEntries (%d) and resultCacheMaxBytes (%d) must be positive",
+                    resultCacheMaxEntries, resultCacheMaxBytes );
+            log.error( error );
+            throw new ModuleInitializationException( error, getRole() );
+        }
+        log.info( "Using resultCacheMaxEntries: {}, resultCacheMaxBytes: {}", resultCacheMaxEntries, resultCacheMaxBytes );
+
+        pidFilterExpectedPids = getLongParameter( "pidFilterExpectedPids", pidFilterExpectedPids );
+        log.info( "Using pidFilterExpectedPids: {}", pidFilterExpectedPids );
+
         // luceneWriteLockTimeout
         String writeLockTimeout = getParameter( "writeLockTimeout" );
         if ( writeLockTimeout.equals( "" ) )
@@ -205,6 +239,9 @@ public final class FieldSearchLucene extends Module implements FieldSearch
         // Write Ahead Log
         initializeWriteAheadLogSettings();
 
+        // Searcher refresh
+        initializeSearcherRefreshSettings();
+
         // luceneindexer
         Analyzer analyzer = new WhitespaceAnalyzer( Version.LUCENE_41 );
 
@@ -213,10 +250,22 @@ public final class FieldSearchLucene extends Module implements FieldSearch
         {
             IndexWriter writer = createIndexWriter( luceneWriteLockTimeout, luceneMaxThreadStates, analyzer, directory, new TieredMergePolicy() );
 
-            WriteAheadLog wal = ( writeAheadLogDir == null) ? null : new WriteAheadLog( writer, writeAheadLogDir, writeAheadLogCommitSize, writeAheadLogKeepFileOpen, writeAheadLogNumConcurrentTLogs);
+            WriteAheadLog wal = ( writeAheadLogDir == null) ? null : new WriteAheadLog( writer, writeAheadLogDir, writeAheadLogCommitSize, writeAheadLogKeepFileOpen, writeAheadLogCommitIntervalMS );
 
             this.luceneindexer = new LuceneFieldIndex( writer, mergePolicy,
-                    pidCollectorMaxInMemory, pidCollectorTmpDir, wal);
+                    pidCollectorMaxInMemory, pidCollectorTmpDir, wal,
+                    searcherRefreshMode, searcherMaxStaleMS, searcherMinStaleMS );
+            this.luceneindexer.setCursorPaging( searchCursorPaging );
+            if ( pidFilterExpectedPids > 0 )
+            {
+                this.luceneindexer.enablePidFilter( pidFilterExpectedPids, PID_FILTER_FALSE_POSITIVE_RATE );
+            }
+            long withoutDocValues = this.luceneindexer.countDocumentsWithoutPidDocValues();
+            if ( withoutDocValues > 0 )
+            {
+                log.warn( "{} documents in the index were indexed without PID DocValues, and their PIDs are read "
+                        + "from stored fields. Rebuild the index with fedora-rebuild to upgrade them", withoutDocValues );
+            }
             log.trace( "Constructed LuceneIndex instance" );
         }
         catch( IOException ex )
@@ -227,7 +276,7 @@ public final class FieldSearchLucene extends Module implements FieldSearch
         }
 
         fsl = new FieldSearchLuceneImpl( luceneindexer );
-        cache = new FieldSearchResultCache( resultLifeTimeInSeconds );
+        cache = new FieldSearchResultCache( resultLifeTimeInSeconds, (int) resultCacheMaxEntries, resultCacheMaxBytes );
         cache.start();
     }
 
@@ -377,7 +426,9 @@ public final class FieldSearchLucene extends Module implements FieldSearch
     {
         log.trace( "Entering resumingFindObjects with token {}", token );
 
-        FieldSearchResultLucene cachedFsr = cache.getCachedResult( token );
+        // The result is taken out of the cache while it is stepped, so it
+        // can't be evicted or expire meanwhile
+        FieldSearchResultLucene cachedFsr = cache.removeCachedResult( token );
         if( null == cachedFsr )
         {
             String error = String.format( "Session is for token '%s' expired or never existed.", token );
@@ -392,11 +443,10 @@ public final class FieldSearchLucene extends Module implements FieldSearch
         }
         catch( IOException e )
         {
+            cachedFsr.dispose();
             throw new GeneralException( "Unable to create FieldSearchResult", e );
         }
 
-        cache.removeCachedResult( token );
-
         String currentToken = fsr.getToken();
 
         if( null != currentToken ) //no more search results
@@ -409,6 +459,33 @@ public final class FieldSearchLucene extends Module implements FieldSearch
         return fsr;
     }
 
+    /**
+     * Finds a page of objects ordered by mDate and pid, starting after the
+     * given position. The page is searched in the index on every call, so
+     * nothing is cached, and paging costs the same on every page.
+     */
+    @Override
+    public FieldSearchResult findObjectsAfter( final String[] returnFields, final int maxResults, final FieldSearchQuery fsq, final Date afterMDate, final String afterPID ) throws ServerException
+    {
+        String[] validReturnFields = FieldSearchLuceneImpl.getValidatedReturnFields( returnFields );
+
+        if( 0 == validReturnFields.length )
+        {
+            String error = "No valid return fields provided";
+            log.error( error );
+            throw new InvalidStateException( error );
+        }
+
+        try
+        {
+            return new FieldSearchResultLucene( this.luceneindexer, this.doManager, validReturnFields, fsq, maxResults, afterMDate, afterPID );
+        }
+        catch( IOException e )
+        {
+            throw new GeneralException( "Unable to create FieldSearchResult", e );
+        }
+    }
+
     @Override
     public int findHighestID(String namespace) throws ServerException {
         try {
@@ -419,6 +496,37 @@ public final class FieldSearchLucene extends Module implements FieldSearch
         }
     }
 
+    /**
+     * Looks the pid up in the index, waiting for preceding updates to become
+     * searchable. Pids that were never indexed are answered from a filter
+     * without searching, see the pidFilterExpectedPids parameter.
+     */
+    @Override
+    public boolean objectExists( String pid ) throws ServerException
+    {
+        try
+        {
+            return luceneindexer.pidExists( pid, true );
+        }
+        catch( IOException ex )
+        {
+            throw new GeneralException( "Unable to look up pid " + pid, ex );
+        }
+    }
+
+    @Override
+    public long getObjectCount() throws ServerException
+    {
+        try
+        {
+            return luceneindexer.getNumDocs( false );
+        }
+        catch( IOException ex )
+        {
+            throw new GeneralException( "Unable to count the objects in the index", ex );
+        }
+    }
+
     /**
      * Closes the underlying lucene indexer.
      *
@@ -629,28 +737,74 @@ public final class FieldSearchLucene extends Module implements FieldSearch
             log.info( "Using writeAheadLogKeepFileOpen: {}", writeAheadLogKeepFileOpen );
             
             String writeAheadLogNumConcurrentTLogsParam = getParameter( "writeAheadLogNumConcurrentTLogs" );
-            if( writeAheadLogNumConcurrentTLogsParam == null || writeAheadLogNumConcurrentTLogsParam.equals( "" ) )
+            if( writeAheadLogNumConcurrentTLogsParam != null && !writeAheadLogNumConcurrentTLogsParam.equals( "" ) )
             {
-                String errMsg = "FATAL: writeAheadLogNumConcurrentTLogs parameter must be set";
-                log.error( errMsg );
-                throw new ModuleInitializationException( errMsg, getRole() );
+                log.warn( "Ignoring writeAheadLogNumConcurrentTLogs: concurrent updates are group committed to a single log file. Remove the parameter from the configuration" );
             }
-            else
+
+            writeAheadLogCommitIntervalMS = getLongParameter( "writeAheadLogCommitIntervalMS", writeAheadLogCommitIntervalMS );
+            log.info( "Using writeAheadLogCommitIntervalMS: {}", writeAheadLogCommitIntervalMS );
+        }
+
+    }
+
+
+    private void initializeSearcherRefreshSettings() throws ModuleInitializationException
+    {
+        String searcherRefreshModeParam = getParameter( "searcherRefreshMode" );
+        if( searcherRefreshModeParam != null && !searcherRefreshModeParam.equals( "" ) )
+        {
+            try
             {
-                try
-                {
-                    writeAheadLogNumConcurrentTLogs = Integer.parseInt( writeAheadLogNumConcurrentTLogsParam );
-                }
-                catch( NumberFormatException e )
-                {
-                    String errMsg = String.format( "FATAL: writeAheadLogNumConcurrentTLogs parameter '%s' is not a valid integer",
-                            writeAheadLogCommitSizeParam );
-                    log.error( errMsg );
-                    throw new ModuleInitializationException( errMsg, getRole(), e );
-                }
+                searcherRefreshMode = LuceneFieldIndex.RefreshMode.valueOf( searcherRefreshModeParam.trim().toUpperCase() );
             }
+            catch( IllegalArgumentException e )
+            {
+                String errMsg = String.format( "FATAL: searcherRefreshMode parameter '%s' must be either 'blocking' or 'background'",
+                        searcherRefreshModeParam );
+                log.error( errMsg );
+                throw new ModuleInitializationException( errMsg, getRole(), e );
+            }
+        }
+        log.info( "Using searcherRefreshMode: {}", searcherRefreshMode );
+
+        searcherMaxStaleMS = getLongParameter( "searcherMaxStaleMS", searcherMaxStaleMS );
+        searcherMinStaleMS = getLongParameter( "searcherMinStaleMS", searcherMinStaleMS );
+        if( searcherMinStaleMS <= 0 || searcherMaxStaleMS < searcherMinStaleMS )
+        {
+            String errMsg = String.format( "FATAL: searcherMinStaleMS (%d) must be positive and no larger than searcherMaxStaleMS (%d)",
+                    searcherMinStaleMS, searcherMaxStaleMS );
+            log.error( errMsg );
+            throw new ModuleInitializationException( errMsg, getRole() );
         }
+        log.info( "Using searcherMaxStaleMS: {}, searcherMinStaleMS: {}", searcherMaxStaleMS, searcherMinStaleMS );
 
+        String searchCursorPagingParam = getParameter( "searchCursorPaging" );
+        if( searchCursorPagingParam != null && !searchCursorPagingParam.equals( "" ) )
+        {
+            searchCursorPaging = Boolean.parseBoolean( searchCursorPagingParam.trim() );
+        }
+        log.info( "Using searchCursorPaging: {}", searchCursorPaging );
+    }
+
+
+    private long getLongParameter( String name, long defaultValue ) throws ModuleInitializationException
+    {
+        String param = getParameter( name );
+        if( param == null || param.equals( "" ) )
+        {
+            return defaultValue;
+        }
+        try
+        {
+            return Long.parseLong( param );
+        }
+        catch( NumberFormatException e )
+        {
+            String errMsg = String.format( "FATAL: %s parameter '%s' is not a valid integer", name, param );
+            log.error( errMsg );
+            throw new ModuleInitializationException( errMsg, getRole(), e );
+        }
     }
 
 
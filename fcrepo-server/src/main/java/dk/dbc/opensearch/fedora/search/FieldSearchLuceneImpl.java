@@ -55,9 +55,10 @@ import java.util.TimeZone;
 //
 // Please notice:
 // Only methods for creating, updating and deleting indexes have been
-// refactored. The search method, findObjects, rely heavily on fedora
-// since results from the search are not taken from the indexes but
-// rather from the actual fedora documents.
+// refactored. The search method, findObjects, still relies on fedora
+// for the result fields that are not stored in the index (relPredObj
+// and relSysPredObj) and for objects indexed before result fields
+// were stored.
 //
 // (JDA)
 //
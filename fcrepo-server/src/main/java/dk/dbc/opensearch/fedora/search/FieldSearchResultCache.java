@@ -24,12 +24,18 @@ along with opensearch.  If not, see <http://www.gnu.org/licenses/>.
 
 package dk.dbc.opensearch.fedora.search;
 
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.management.ObjectName;
+import org.fcrepo.server.utilities.JMXUtility;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -37,25 +43,81 @@ import org.slf4j.LoggerFactory;
  * Class that handles the caching of search results between calls to 'resumeFindObject'
  * If search results are not retrieved before a configured time limit, they are expired,
  * removed from the cache and disposed
+ * <p>
+ * The cache is bounded by a maximum number of results and a maximum weight:
+ * the estimated bytes of the PIDs the results hold in memory plus the bytes
+ * of their temporary PID files. When a result is added beyond either bound,
+ * the least recently used results are evicted and disposed. The result just
+ * added is never evicted.
+ * <p>
+ * A result expires when it has not been resumed for the lifetime, since each
+ * resume sets a new expiration date on it. Expired results are removed when
+ * looked up, and by a background sweep.
  */
 class FieldSearchResultCache
 {
     private static final Logger log = LoggerFactory.getLogger( FieldSearchResultCache.class );
 
+    /** Default maximum number of cached results */
+    static final int DEFAULT_MAX_ENTRIES = 10000;
+
+    /** Default maximum weight of cached results in bytes */
+    static final long DEFAULT_MAX_BYTES = 512L * 1024 * 1024;
+
+    /** Estimated heap usage of a PID held in memory, with its list entry */
+    static final int BYTES_PER_PID_IN_MEMORY = 64;
+
     private final int resultLifeTimeInSeconds;
-    private final ConcurrentHashMap<String, FieldSearchResultLucene> cachedResult;
+    private final int maxEntries;
+    private final long maxBytes;
+
+    /** Cached results in access order, guarded by itself */
+    private final LinkedHashMap<String, CachedResult> cachedResult;
+    private long bytesHeld = 0;
+
     private final ScheduledExecutorService cacheSurveillance;
 
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong expirations = new AtomicLong();
+
+    private ObjectName jmxObjectName;
+
+    private static final class CachedResult
+    {
+        final FieldSearchResultLucene result;
+        final long bytes;
+
+        CachedResult( FieldSearchResultLucene result, long bytes )
+        {
+            this.result = result;
+            this.bytes = bytes;
+        }
+    }
+
 
     /**
-     * Constructor for the cache.
+     * Constructor for the cache, with the default bounds.
      * @param resultLifeTimeInSeconds Life time to keep search results alive in the cache
      */
     FieldSearchResultCache( int resultLifeTimeInSeconds )
+    {
+        this( resultLifeTimeInSeconds, DEFAULT_MAX_ENTRIES, DEFAULT_MAX_BYTES );
+    }
+
+
+    /**
+     * Constructor for the cache.
+     * @param resultLifeTimeInSeconds Life time to keep search results alive in the cache
+     * @param maxEntries Maximum number of search results in the cache
+     * @param maxBytes Maximum weight in bytes of the search results in the cache
+     */
+    FieldSearchResultCache( int resultLifeTimeInSeconds, int maxEntries, long maxBytes )
     {
         this.resultLifeTimeInSeconds = resultLifeTimeInSeconds;
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
 
-        this.cachedResult = new ConcurrentHashMap<String, FieldSearchResultLucene>();
+        this.cachedResult = new LinkedHashMap<String, CachedResult>( 16, 0.75f, true );
         this.cacheSurveillance = Executors.newSingleThreadScheduledExecutor();
     }
 
@@ -67,6 +129,7 @@ class FieldSearchResultCache
         log.debug( "Starting cache invalidation thread with interval set to {} seconds", resultLifeTimeInSeconds );
         this.cacheSurveillance.scheduleAtFixedRate( new CacheInvalidationThread(), 0L,
                                                     resultLifeTimeInSeconds, TimeUnit.SECONDS );
+        jmxObjectName = JMXUtility.registerMBean( new ResultCacheMonitor(), "FieldSearchLucene:name=ResultCache" );
     }
 
     /**
@@ -74,36 +137,77 @@ class FieldSearchResultCache
      */
     void shutdown()
     {
-        log.info( "Shutting down and removing {} cached search result", cachedResult.size() );
         this.cacheSurveillance.shutdown();
 
-        for ( Map.Entry<String, FieldSearchResultLucene> result : cachedResult.entrySet() )
+        List<Map.Entry<String, CachedResult>> removed;
+        synchronized( cachedResult )
+        {
+            log.info( "Shutting down and removing {} cached search result", cachedResult.size() );
+            removed = new ArrayList<Map.Entry<String, CachedResult>>( cachedResult.entrySet() );
+            cachedResult.clear();
+            bytesHeld = 0;
+        }
+        for ( Map.Entry<String, CachedResult> result : removed )
         {
             log.info( "Removing search result with token {}, Size {}", result.getKey(),
-                    result.getValue().getCompleteListSize() );
-
-            cachedResult.remove( result.getKey() );
-            result.getValue().dispose();
+                    result.getValue().result.getCompleteListSize() );
+            result.getValue().result.dispose();
         }
+
+        JMXUtility.unregisterMBean( jmxObjectName );
+        jmxObjectName = null;
     }
 
     void putCachedResult( String token, FieldSearchResultLucene result )
     {
-        FieldSearchResultLucene previousValue = cachedResult.put( token, result );
-        if( null != previousValue )
+        long bytes = (long) result.getPidsInMemory() * BYTES_PER_PID_IN_MEMORY + result.getBytesInFile();
+        List<Map.Entry<String, CachedResult>> evicted = new ArrayList<Map.Entry<String, CachedResult>>();
+        CachedResult previousValue;
+        synchronized( cachedResult )
+        {
+            previousValue = cachedResult.put( token, new CachedResult( result, bytes ) );
+            if( null != previousValue )
+            {
+                bytesHeld -= previousValue.bytes;
+            }
+            bytesHeld += bytes;
+
+            // evict from the least recently used end, never the new result
+            Iterator<Map.Entry<String, CachedResult>> it = cachedResult.entrySet().iterator();
+            while( ( cachedResult.size() > maxEntries || bytesHeld > maxBytes ) && cachedResult.size() > 1 )
+            {
+                Map.Entry<String, CachedResult> eldest = it.next();
+                it.remove();
+                bytesHeld -= eldest.getValue().bytes;
+                evicted.add( eldest );
+            }
+        }
+
+        if( null == previousValue )
         {
             log.debug( "Added search result to cache with token {}, size {}", token, result.getCompleteListSize() );
         }
         else
         {
             log.debug( "Replaced search result to cache with token {}, size {}", token, result.getCompleteListSize() );
+            if( previousValue.result != result )
+            {
+                previousValue.result.dispose();
+            }
         }
 
+        for( Map.Entry<String, CachedResult> eldest : evicted )
+        {
+            evictions.incrementAndGet();
+            log.info( "Evicting search result with token {}, Size {}", eldest.getKey(),
+                    eldest.getValue().result.getCompleteListSize() );
+            eldest.getValue().result.dispose();
+        }
     }
 
     FieldSearchResultLucene getCachedResult( String token )
     {
-        FieldSearchResultLucene result = cachedResult.get( token );
+        FieldSearchResultLucene result = lookup( token, false );
         if ( result == null )
         {
             log.debug( "No cached result found for token {}", token);
@@ -117,19 +221,57 @@ class FieldSearchResultCache
 
     FieldSearchResultLucene removeCachedResult( String token )
     {
-        FieldSearchResultLucene result = cachedResult.remove( token );
+        FieldSearchResultLucene result = lookup( token, true );
         if ( result == null )
         {
             log.debug( "No cached result removed for token {}", token);
         }
         else
         {
-            log.debug( "Removed cached result for token {}, with size", token, result.getCompleteListSize() );
+            log.debug( "Removed cached result for token {}, with size {}", token, result.getCompleteListSize() );
 
         }
         return result;
     }
 
+    /**
+     * Gets, and optionally removes, the result for a token. An expired
+     * result is removed and disposed, and not returned.
+     */
+    private FieldSearchResultLucene lookup( String token, boolean remove )
+    {
+        CachedResult cached;
+        boolean expired;
+        synchronized( cachedResult )
+        {
+            cached = cachedResult.get( token );
+            if( cached == null )
+            {
+                return null;
+            }
+            expired = isExpired( cached.result.getExpirationDate(), new Date() );
+            if( remove || expired )
+            {
+                cachedResult.remove( token );
+                bytesHeld -= cached.bytes;
+            }
+        }
+        if( expired )
+        {
+            expirations.incrementAndGet();
+            log.info( "Removing expired search result with token {}, Size {}", token,
+                    cached.result.getCompleteListSize() );
+            cached.result.dispose();
+            return null;
+        }
+        return cached.result;
+    }
+
+    private static boolean isExpired( Date expirationDate, Date now )
+    {
+        return expirationDate != null && now.after( expirationDate );
+    }
+
     /**
      * the {@code CacheInvalidationThread} checks the {@code cacheResult} map on
      * a specified interval and removes entries that are expired.
@@ -139,22 +281,97 @@ class FieldSearchResultCache
         @Override
         public void run()
         {
-            log.debug( "Running cleanup task. {} results in cache", cachedResult.size() );
             Date now = new Date();
-            for ( Map.Entry<String, FieldSearchResultLucene> result : cachedResult.entrySet() )
+            List<Map.Entry<String, CachedResult>> expired = new ArrayList<Map.Entry<String, CachedResult>>();
+            synchronized( cachedResult )
             {
-                Date expirationDate = result.getValue().getExpirationDate();
-                log.trace( "Checking cached result. Token {}, Size {}, Timestamps: Now [{}], Expiration [{}]",
-                        new Object[] { result.getKey(), result.getValue().getCompleteListSize(), now, expirationDate } );
-                if ( now.after( expirationDate ) )
+                log.debug( "Running cleanup task. {} results in cache", cachedResult.size() );
+                Iterator<Map.Entry<String, CachedResult>> it = cachedResult.entrySet().iterator();
+                while( it.hasNext() )
                 {
-                    log.info( "Removing expired search result with token {}, Size {}", result.getKey(),
-                            result.getValue().getCompleteListSize() );
-
-                    cachedResult.remove( result.getKey() );
-                    result.getValue().dispose();
+                    Map.Entry<String, CachedResult> result = it.next();
+                    Date expirationDate = result.getValue().result.getExpirationDate();
+                    log.trace( "Checking cached result. Token {}, Size {}, Timestamps: Now [{}], Expiration [{}]",
+                            new Object[] { result.getKey(), result.getValue().result.getCompleteListSize(), now, expirationDate } );
+                    if ( isExpired( expirationDate, now ) )
+                    {
+                        it.remove();
+                        bytesHeld -= result.getValue().bytes;
+                        expired.add( result );
+                    }
                 }
             }
+            for ( Map.Entry<String, CachedResult> result : expired )
+            {
+                expirations.incrementAndGet();
+                log.info( "Removing expired search result with token {}, Size {}", result.getKey(),
+                        result.getValue().result.getCompleteListSize() );
+                result.getValue().result.dispose();
+            }
+        }
+    }
+
+    public static interface ResultCacheMonitorMBean
+    {
+        int getLiveTokens();
+        int getMaxEntries();
+        long getBytesHeld();
+        long getMaxBytes();
+        long getEvictions();
+        long getExpirations();
+
+        void resetCounters();
+    }
+
+    public class ResultCacheMonitor implements ResultCacheMonitorMBean
+    {
+        @Override
+        public int getLiveTokens()
+        {
+            synchronized( cachedResult )
+            {
+                return cachedResult.size();
+            }
+        }
+
+        @Override
+        public int getMaxEntries()
+        {
+            return maxEntries;
+        }
+
+        @Override
+        public long getBytesHeld()
+        {
+            synchronized( cachedResult )
+            {
+                return bytesHeld;
+            }
+        }
+
+        @Override
+        public long getMaxBytes()
+        {
+            return maxBytes;
+        }
+
+        @Override
+        public long getEvictions()
+        {
+            return evictions.get();
+        }
+
+        @Override
+        public long getExpirations()
+        {
+            return expirations.get();
+        }
+
+        @Override
+        public void resetCounters()
+        {
+            evictions.set( 0 );
+            expirations.set( 0 );
         }
     }
 }
@@ -38,9 +38,12 @@ import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
+import java.util.EnumSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import org.fcrepo.server.storage.RDFRelationshipReader;
 
@@ -48,6 +51,11 @@ import org.fcrepo.server.storage.RDFRelationshipReader;
 /**
  * Implementation of the FieldSearchResult interface. This class represents the
  * search results obtained from the underlying lucene indicies.
+ *
+ * The result fields of each page are read from the values stored in the
+ * index. Objects are only read from the object store for the relationship
+ * fields that are not indexed, or if they were indexed before result fields
+ * were stored.
  * @author stm
  */
 class FieldSearchResultLucene implements FieldSearchResult
@@ -59,6 +67,14 @@ class FieldSearchResultLucene implements FieldSearchResult
     private final String[] resultFields;
     private final IPidList searchResultList;
 
+    /** The requested fields that can be read from the index. */
+    private final Set<FedoraFieldName> indexedResultFields;
+    /** Whether relPredObj and relSysPredObj, which are not indexed, are requested. */
+    private final boolean addRelPredObjToResult;
+    private final boolean addRelSysPredObjToResult;
+    /** Whether this is a single, uncached page of results ordered by mDate and PID. */
+    private final boolean ordered;
+
     /** Will hold the current view of results for the client to consume (through the objectFieldsList() method ). */
     private List<ObjectFields> currentResultList;
 
@@ -83,6 +99,43 @@ class FieldSearchResultLucene implements FieldSearchResult
                                        final FieldSearchQuery query,
                                        final int maximumResults,
                                        final int resultTimeout ) throws InvalidStateException, IOException
+    {
+        this( indexController, repositoryReader, resultFieldsList, query, maximumResults, resultTimeout, false, null, null );
+    }
+
+
+    /**
+     * Creates a single page of results ordered by mDate and PID, starting
+     * after the given position. The result is never cached, so it has no
+     * token; its complete list size is the number of results from the
+     * position on, including the page.
+     *
+     * @param afterMDate the mDate of the last result of the previous page,
+     *        null for the first page
+     * @param afterPid the PID of the last result of the previous page, null
+     *        for the first page
+     */
+    protected FieldSearchResultLucene( final LuceneFieldIndex indexController,
+                                       final RepositoryReader repositoryReader,
+                                       final String[] resultFieldsList,
+                                       final FieldSearchQuery query,
+                                       final int maximumResults,
+                                       final Date afterMDate,
+                                       final String afterPid ) throws InvalidStateException, IOException
+    {
+        this( indexController, repositoryReader, resultFieldsList, query, maximumResults, 0, true, afterMDate, afterPid );
+    }
+
+
+    private FieldSearchResultLucene( final LuceneFieldIndex indexController,
+                                     final RepositoryReader repositoryReader,
+                                     final String[] resultFieldsList,
+                                     final FieldSearchQuery query,
+                                     final int maximumResults,
+                                     final int resultTimeout,
+                                     final boolean ordered,
+                                     final Date afterMDate,
+                                     final String afterPid ) throws InvalidStateException, IOException
     {
         this.indexSearcher = indexController;
         this.repoReader = repositoryReader;
@@ -91,9 +144,48 @@ class FieldSearchResultLucene implements FieldSearchResult
         this.nextCursor = 0;
         this.maxResults = maximumResults;
         this.timeout = resultTimeout;
-        this.searchResultList = searchIndex( query );
+
+        this.indexedResultFields = EnumSet.noneOf( FedoraFieldName.class );
+        boolean relPredObj = false;
+        boolean relSysPredObj = false;
+        for( String resultFieldName : resultFieldsList )
+        {
+            FedoraFieldName fieldName = getFieldName( resultFieldName );
+            if( fieldName == FedoraFieldName.RELPREDOBJ )
+            {
+                relPredObj = true;
+            }
+            else if( fieldName == FedoraFieldName.RELSYSPREDOBJ )
+            {
+                relSysPredObj = true;
+            }
+            else if( fieldName != null )
+            {
+                indexedResultFields.add( fieldName );
+            }
+        }
+        this.addRelPredObjToResult = relPredObj;
+        this.addRelSysPredObjToResult = relSysPredObj;
+
+        this.ordered = ordered;
+        if( ordered )
+        {
+            this.searchResultList = searchIndexAfter( query, afterMDate, afterPid );
+        }
+        else
+        {
+            this.searchResultList = searchIndex( query );
+        }
         log.trace( "Opening and caching search result" );
-        stepAndCacheResult();
+        try
+        {
+            stepAndCacheResult();
+        }
+        catch( IOException ex )
+        {
+            dispose();
+            throw ex;
+        }
     }
 
 
@@ -135,14 +227,34 @@ class FieldSearchResultLucene implements FieldSearchResult
 
         log.debug( "Got {} elements", pids.size() );
 
+        // Objects indexed with result fields are built from the index, only
+        // fields that are not indexed are read from the object store
+        Map<String, ObjectFields> indexedFields = indexSearcher.getResultFields( pids, indexedResultFields );
+        if( indexedFields == null )
+        {
+            indexedFields = Collections.emptyMap();
+        }
+        log.debug( "Got {} of {} elements from the index", indexedFields.size(), pids.size() );
+
         for( String pid : pids )
         {
             log.debug( "Retrieving element {}", localResultCounter );
 
             try
             {
-                log.trace( "Retrieving object fields from object with pid: {}", pid );
-                currentResultList.add( getObjectFields( pid ) );
+                ObjectFields fields = indexedFields.get( pid );
+                if( fields == null )
+                {
+                    log.trace( "Retrieving object fields from object with pid: {}", pid );
+                    fields = getObjectFields( pid );
+                }
+                else if( addRelPredObjToResult || addRelSysPredObjToResult )
+                {
+                    log.trace( "Retrieving relationships from object with pid: {}", pid );
+                    DOReader objectReader = this.repoReader.getReader( Server.USE_DEFINITIVE_STORE, ReadOnlyContext.EMPTY, pid );
+                    addRelationships( objectReader, fields, false, addRelPredObjToResult, addRelSysPredObjToResult );
+                }
+                currentResultList.add( fields );
             }
             catch( ServerException ex )
             {
@@ -160,11 +272,13 @@ class FieldSearchResultLucene implements FieldSearchResult
 
         log.debug( "Result set counter points to element at pos {}", localResultCounter );
 
-        if( localResultCounter == size || pids.size() < maxResults)
+        if( ordered || localResultCounter == size || pids.size() < maxResults)
         {
             log.debug( "Result set exhausted, null'ing token, resetting nextCursor" );
             token = null;
             nextCursor = 0;
+            // the result is not cached, so this is the last use of the list
+            dispose();
         }
         else
         {
@@ -250,6 +364,22 @@ class FieldSearchResultLucene implements FieldSearchResult
         return this.expirationDate;
     }
 
+    /**
+     * @return the number of PIDs of the search result held in memory
+     */
+    int getPidsInMemory()
+    {
+        return searchResultList.getPidsInMemory();
+    }
+
+    /**
+     * @return the number of bytes of the search result held in temporary files
+     */
+    long getBytesInFile()
+    {
+        return searchResultList.getBytesInFile();
+    }
+
     /**
      * Close underlying pid list resources. E.g. when search set expires
      */
@@ -356,6 +486,21 @@ class FieldSearchResultLucene implements FieldSearchResult
             }
         }
 
+        addRelationships( objectReader, fields, addRelObjToResult, addRelPredObjToResult, addRelSysPredObjToResult );
+
+        log.trace( "Returning ObjectFields from getObjectFields" );
+        return fields;
+    }
+
+    /**
+     * Adds the requested relationship fields of an object to its ObjectFields.
+     */
+    private static void addRelationships( final DOReader objectReader,
+                                          final ObjectFields fields,
+                                          final boolean addRelObjToResult,
+                                          final boolean addRelPredObjToResult,
+                                          final boolean addRelSysPredObjToResult ) throws ServerException
+    {
         if( addRelObjToResult || addRelPredObjToResult ) {
             log.trace( "Retrieving relationships for search result" );
 
@@ -401,9 +546,26 @@ class FieldSearchResultLucene implements FieldSearchResult
                 fields.relSysPredObjs().add( new DCField( String.format( "%s|%s", predicate, object ) ) );
             }
         }
+    }
 
-        log.trace( "Returning ObjectFields from getObjectFields" );
-        return fields;
+    /**
+     * @return the field named by a requested result field, null if it is not
+     *         a field
+     */
+    private static FedoraFieldName getFieldName( final String resultFieldName )
+    {
+        if( resultFieldName == null )
+        {
+            return null;
+        }
+        try
+        {
+            return FedoraFieldName.valueOf( resultFieldName.toUpperCase() );
+        }
+        catch( IllegalArgumentException ex )
+        {
+            return null;
+        }
     }
 
     /**
@@ -431,4 +593,29 @@ class FieldSearchResultLucene implements FieldSearchResult
         return searchResult;
     }
 
+    /**
+     * Conducts the search for a page ordered by mDate and PID.
+     */
+    private IPidList searchIndexAfter( final FieldSearchQuery query, final Date afterMDate, final String afterPid ) throws InvalidStateException
+    {
+        log.trace( "Entering searchIndexAfter" );
+        Pair<IPidList, Integer> searchResult;
+        try
+        {
+            searchResult = this.indexSearcher.searchAfter( query, afterMDate, afterPid, maxResults, false );
+        }
+        catch( IOException ex )
+        {
+            throw new InvalidStateException( "", "", new String[]{""}, new String[]{""}, ex );
+        }
+        catch( ParseException ex )
+        {
+            throw new InvalidStateException( "", "", new String[]{""}, new String[]{""}, ex );
+        }
+        this.completeResultSize = searchResult.getSecond();
+
+        log.trace( "Returning search result" );
+        return searchResult.getFirst();
+    }
+
 }
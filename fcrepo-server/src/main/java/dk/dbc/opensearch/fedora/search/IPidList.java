@@ -54,6 +54,20 @@ public interface IPidList
      */
     int size();
 
+    /**
+     * Gets the number of PIDs the list holds in memory
+     *
+     * @return number of PIDs in memory
+     */
+    int getPidsInMemory();
+
+    /**
+     * Gets the number of bytes the list holds in temporary files
+     *
+     * @return number of bytes in files
+     */
+    long getBytesInFile();
+
     /**
      * Commit the search result to the file, flushing any open resources
      */
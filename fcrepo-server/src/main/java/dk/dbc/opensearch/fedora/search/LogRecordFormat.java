@@ -0,0 +1,436 @@
+/*
+ * This file is part of opensearch.
+ * Copyright (c) 2012, Dansk Bibliotekscenter a/s,
+ * Tempovej 7-11, DK-2750 Ballerup, Denmark. CVR: 15149043
+ *
+ * opensearch is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * opensearch is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with opensearch. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package dk.dbc.opensearch.fedora.search;
+
+import com.esotericsoftware.kryo.KryoException;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+import com.esotericsoftware.kryo.io.OutputChunked;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field.Store;
+import org.apache.lucene.document.IntDocValuesField;
+import org.apache.lucene.document.IntField;
+import org.apache.lucene.document.LongField;
+import org.apache.lucene.document.StoredField;
+import org.apache.lucene.document.StraightBytesDocValuesField;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.IndexableField;
+import org.apache.lucene.util.BytesRef;
+
+import dk.dbc.opensearch.fedora.search.WriteAheadLog.DocumentData;
+
+/**
+ * LogRecordFormat
+ * <p>
+ * The binary format of the records in the {@link WriteAheadLog}. A record is
+ * a version byte, the entry id, a flags byte, the PID and, unless the record
+ * is a delete, the fields of the document, with all lengths and most numbers
+ * written as varints.
+ * <p>
+ * Each field is a type byte, a reference to its name and its value. The
+ * names of the fields {@link LuceneFieldIndex} creates are referred to by
+ * their number in a fixed dictionary. Other names are written the first time
+ * they occur in a record and referred to by number afterwards. The fields of
+ * large documents are deflated.
+ * <p>
+ * Records written before the format had a version are Kryo serialized
+ * documents starting with a zigzag encoded entry id, whose first byte is
+ * always even. The version byte is odd, so the formats can be told apart
+ * when replaying old log files.
+ */
+final class LogRecordFormat
+{
+    static final byte VERSION_1 = 1;
+
+    private static final byte FLAG_DOCUMENT = 1;
+    private static final byte FLAG_DEFLATED = 2;
+
+    /** Field types. STORED is added to the types of indexed fields. */
+    private static final byte STRING_FIELD = 1;
+    private static final byte TEXT_FIELD = 2;
+    private static final byte LONG_FIELD = 3;
+    private static final byte INT_FIELD = 4;
+    private static final byte STORED_STRING = 5;
+    private static final byte STORED_INT = 6;
+    private static final byte STORED_LONG = 7;
+    private static final byte BYTES_DOC_VALUES = 8;
+    private static final byte INT_DOC_VALUES = 9;
+    private static final byte STORED = 0x10;
+
+    /**
+     * Field names of version 1 records. Names may only be added at the end
+     * without changing the version.
+     */
+    private static final String[] FIELD_NAMES = {
+        "pid", "pid_eq", "pid_identifier", "pid_namespace", "pid_int", "result_version", "dateraw", "dateraw_eq",
+        "label", "label_eq", "result_label", "state", "state_eq", "result_state",
+        "ownerid", "ownerid_eq", "result_ownerid", "cdate", "cdate_eq", "result_cdate",
+        "mdate", "mdate_eq", "result_mdate", "title", "title_eq", "result_title",
+        "creator", "creator_eq", "result_creator", "subject", "subject_eq", "result_subject",
+        "description", "description_eq", "result_description", "publisher", "publisher_eq", "result_publisher",
+        "contributor", "contributor_eq", "result_contributor", "date", "date_eq", "result_date",
+        "type", "type_eq", "result_type", "format", "format_eq", "result_format",
+        "identifier", "identifier_eq", "result_identifier", "source", "source_eq", "result_source",
+        "language", "language_eq", "result_language", "relation", "relation_eq", "result_relation",
+        "coverage", "coverage_eq", "result_coverage", "rights", "rights_eq", "result_rights",
+        "dcmdate", "dcm_date_eq", "result_dcmdate", "relobj", "relobj_eq", "result_relobj",
+        "relpredobj", "relpredobj_eq", "result_relpredobj", "relsyspredobj", "relsyspredobj_eq", "result_relsyspredobj" };
+
+    private static final Map<String, Integer> FIELD_NAME_REFS = new HashMap<String, Integer>();
+
+    static
+    {
+        for ( String name : FIELD_NAMES )
+        {
+            FIELD_NAME_REFS.put( name, FIELD_NAME_REFS.size() + 1 );
+        }
+    }
+
+    /** Fields shorter than this are not worth deflating */
+    static final int DEFLATE_THRESHOLD = 1024;
+
+    private static final ThreadLocal<Output> threadOutput = new ThreadLocal<Output>()
+    {
+        @Override
+        protected Output initialValue()
+        {
+            return new Output( 4096, -1 );
+        }
+    };
+
+    private static final ThreadLocal<Output> threadFieldOutput = new ThreadLocal<Output>()
+    {
+        @Override
+        protected Output initialValue()
+        {
+            return new Output( 4096, -1 );
+        }
+    };
+
+    private static final ThreadLocal<Deflater> threadDeflater = new ThreadLocal<Deflater>()
+    {
+        @Override
+        protected Deflater initialValue()
+        {
+            return new Deflater( Deflater.BEST_SPEED );
+        }
+    };
+
+    private static final ThreadLocal<Inflater> threadInflater = new ThreadLocal<Inflater>()
+    {
+        @Override
+        protected Inflater initialValue()
+        {
+            return new Inflater();
+        }
+    };
+
+    private LogRecordFormat()
+    {
+    }
+
+    /**
+     * @param firstByte the first byte of a record
+     * @return true if the record has a version byte, false if it is a Kryo
+     *         serialized record
+     */
+    static boolean isVersioned( byte firstByte )
+    {
+        return ( firstByte & 1 ) == 1;
+    }
+
+    /**
+     * Encodes everything in a record except its version and entry id, which
+     * is not known until the record is queued for the log.
+     */
+    static byte[] createRecordBody( String pid, Document docOrNull ) throws IOException
+    {
+        Output output = threadOutput.get();
+        output.clear();
+        if ( docOrNull == null )
+        {
+            output.writeByte( 0 );
+            output.writeString( pid );
+            return output.toBytes();
+        }
+
+        Output fields = threadFieldOutput.get();
+        fields.clear();
+        writeFields( fields, docOrNull );
+        int length = fields.position();
+        byte[] deflated = length >= DEFLATE_THRESHOLD ? deflate( fields.getBuffer(), length ) : null;
+
+        output.writeByte( deflated == null ? FLAG_DOCUMENT : FLAG_DOCUMENT | FLAG_DEFLATED );
+        output.writeString( pid );
+        output.writeInt( length, true );
+        if ( deflated == null )
+        {
+            output.writeBytes( fields.getBuffer(), 0, length );
+        }
+        else
+        {
+            output.writeInt( deflated.length, true );
+            output.writeBytes( deflated );
+        }
+        return output.toBytes();
+    }
+
+    static void writeRecord( OutputStream os, int logEntryId, byte[] recordBody )
+    {
+        OutputChunked output = new OutputChunked( os );
+        output.writeByte( VERSION_1 );
+        output.writeInt( logEntryId, true );
+        output.writeBytes( recordBody );
+        output.endChunks();
+        output.flush();
+    }
+
+    /**
+     * @param record a record starting with its version byte
+     * @throws KryoException if the record is truncated or not valid
+     */
+    static DocumentData readRecord( byte[] record ) throws KryoException
+    {
+        Input input = new Input( record );
+        byte version = input.readByte();
+        if ( version != VERSION_1 )
+        {
+            throw new KryoException( "Unknown log record version " + version );
+        }
+        int logEntryId = input.readInt( true );
+        byte flags = input.readByte();
+        String pid = input.readString();
+        if ( ( flags & FLAG_DOCUMENT ) == 0 )
+        {
+            return new DocumentData( logEntryId, pid, null );
+        }
+
+        int length = input.readInt( true );
+        byte[] fields;
+        if ( ( flags & FLAG_DEFLATED ) == 0 )
+        {
+            fields = input.readBytes( length );
+        }
+        else
+        {
+            fields = inflate( input.readBytes( input.readInt( true ) ), length );
+        }
+        return new DocumentData( logEntryId, pid, readFields( new Input( fields ) ) );
+    }
+
+    private static void writeFields( Output output, Document doc ) throws IOException
+    {
+        List<IndexableField> fields = doc.getFields();
+        Map<String, Integer> names = new HashMap<String, Integer>( FIELD_NAME_REFS );
+        output.writeInt( fields.size(), true );
+        for ( IndexableField field : fields )
+        {
+            Class<?> type = field.getClass();
+            byte stored = field.fieldType().stored() ? STORED : 0;
+            if ( type == StringField.class )
+            {
+                writeFieldHeader( output, names, STRING_FIELD | stored, field );
+                output.writeString( field.stringValue() );
+            }
+            else if ( type == TextField.class && field.stringValue() != null )
+            {
+                writeFieldHeader( output, names, TEXT_FIELD | stored, field );
+                output.writeString( field.stringValue() );
+            }
+            else if ( type == LongField.class )
+            {
+                writeFieldHeader( output, names, LONG_FIELD | stored, field );
+                output.writeLong( field.numericValue().longValue(), false );
+            }
+            else if ( type == IntField.class )
+            {
+                writeFieldHeader( output, names, INT_FIELD | stored, field );
+                output.writeInt( field.numericValue().intValue(), false );
+            }
+            else if ( type == StoredField.class && field.numericValue() instanceof Integer )
+            {
+                writeFieldHeader( output, names, STORED_INT, field );
+                output.writeInt( field.numericValue().intValue(), false );
+            }
+            else if ( type == StoredField.class && field.numericValue() instanceof Long )
+            {
+                writeFieldHeader( output, names, STORED_LONG, field );
+                output.writeLong( field.numericValue().longValue(), false );
+            }
+            else if ( type == StoredField.class && field.numericValue() == null && field.stringValue() != null )
+            {
+                writeFieldHeader( output, names, STORED_STRING, field );
+                output.writeString( field.stringValue() );
+            }
+            else if ( type == StraightBytesDocValuesField.class )
+            {
+                BytesRef value = field.binaryValue();
+                writeFieldHeader( output, names, BYTES_DOC_VALUES, field );
+                output.writeInt( value.length, true );
+                output.writeBytes( value.bytes, value.offset, value.length );
+            }
+            else if ( type == IntDocValuesField.class )
+            {
+                writeFieldHeader( output, names, INT_DOC_VALUES, field );
+                output.writeInt( field.numericValue().intValue(), false );
+            }
+            else
+            {
+                throw new IOException( "Unsupported field " + field.name() + " of type " + type.getName() );
+            }
+        }
+    }
+
+    private static void writeFieldHeader( Output output, Map<String, Integer> names, int type, IndexableField field )
+    {
+        output.writeByte( type );
+        Integer nameRef = names.get( field.name() );
+        if ( nameRef == null )
+        {
+            output.writeInt( 0, true );
+            output.writeString( field.name() );
+            names.put( field.name(), names.size() + 1 );
+        }
+        else
+        {
+            output.writeInt( nameRef, true );
+        }
+    }
+
+    private static Document readFields( Input input ) throws KryoException
+    {
+        Document doc = new Document();
+        List<String> names = new ArrayList<String>( Arrays.asList( FIELD_NAMES ) );
+        int count = input.readInt( true );
+        for ( int i = 0; i < count; i++ )
+        {
+            byte type = input.readByte();
+            int nameRef = input.readInt( true );
+            String name;
+            if ( nameRef == 0 )
+            {
+                name = input.readString();
+                names.add( name );
+            }
+            else if ( nameRef <= names.size() )
+            {
+                name = names.get( nameRef - 1 );
+            }
+            else
+            {
+                throw new KryoException( "Unknown field name reference " + nameRef );
+            }
+
+            Store store = ( type & STORED ) != 0 ? Store.YES : Store.NO;
+            switch ( type & ~STORED )
+            {
+                case STRING_FIELD:
+                    doc.add( new StringField( name, input.readString(), store ) );
+                    break;
+                case TEXT_FIELD:
+                    doc.add( new TextField( name, input.readString(), store ) );
+                    break;
+                case LONG_FIELD:
+                    doc.add( new LongField( name, input.readLong( false ), store ) );
+                    break;
+                case INT_FIELD:
+                    doc.add( new IntField( name, input.readInt( false ), store ) );
+                    break;
+                case STORED_STRING:
+                    doc.add( new StoredField( name, input.readString() ) );
+                    break;
+                case STORED_INT:
+                    doc.add( new StoredField( name, input.readInt( false ) ) );
+                    break;
+                case STORED_LONG:
+                    doc.add( new StoredField( name, input.readLong( false ) ) );
+                    break;
+                case BYTES_DOC_VALUES:
+                    doc.add( new StraightBytesDocValuesField( name, new BytesRef( input.readBytes( input.readInt( true ) ) ), false ) );
+                    break;
+                case INT_DOC_VALUES:
+                    doc.add( new IntDocValuesField( name, input.readInt( false ) ) );
+                    break;
+                default:
+                    throw new KryoException( "Unknown type " + type + " of field " + name );
+            }
+        }
+        return doc;
+    }
+
+    /**
+     * @return the deflated bytes, or null if they are not smaller
+     */
+    private static byte[] deflate( byte[] bytes, int length )
+    {
+        Deflater deflater = threadDeflater.get();
+        deflater.reset();
+        deflater.setInput( bytes, 0, length );
+        deflater.finish();
+        byte[] deflated = new byte[length];
+        int deflatedLength = 0;
+        while ( !deflater.finished() && deflatedLength < length )
+        {
+            deflatedLength += deflater.deflate( deflated, deflatedLength, length - deflatedLength );
+        }
+        if ( !deflater.finished() || deflatedLength == length )
+        {
+            return null;
+        }
+        return Arrays.copyOf( deflated, deflatedLength );
+    }
+
+    private static byte[] inflate( byte[] bytes, int length ) throws KryoException
+    {
+        Inflater inflater = threadInflater.get();
+        inflater.reset();
+        inflater.setInput( bytes );
+        byte[] inflated = new byte[length];
+        try
+        {
+            int inflatedLength = 0;
+            while ( inflatedLength < length && !inflater.finished() && !inflater.needsInput() )
+            {
+                inflatedLength += inflater.inflate( inflated, inflatedLength, length - inflatedLength );
+            }
+            if ( inflatedLength != length )
+            {
+                throw new KryoException( "Deflated fields are truncated" );
+            }
+        }
+        catch ( DataFormatException ex )
+        {
+            throw new KryoException( "Deflated fields are not valid", ex );
+        }
+        return inflated;
+    }
+}
@@ -25,20 +25,30 @@ import org.apache.lucene.document.Field.Store;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.Term;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
 import org.apache.lucene.index.TieredMergePolicy;
 import org.apache.lucene.queryparser.classic.ParseException;
 import org.apache.lucene.search.BooleanClause.Occur;
 import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.FieldCache;
+import org.apache.lucene.search.FieldDoc;
 import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.MatchAllDocsQuery;
 import org.apache.lucene.search.NumericRangeQuery;
 import org.apache.lucene.search.PhraseQuery;
 import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
 import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TermRangeQuery;
 import org.apache.lucene.search.WildcardQuery;
 import org.apache.lucene.store.AlreadyClosedException;
 import org.fcrepo.server.search.Condition;
 import org.fcrepo.server.search.FieldSearchQuery;
+import org.fcrepo.server.search.ObjectFields;
 import org.fcrepo.server.search.Operator;
+import org.fcrepo.server.utilities.DCField;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -49,22 +59,38 @@ import java.io.File;
 import java.io.IOException;
 import java.lang.management.ManagementFactory;
 import java.text.SimpleDateFormat;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.TimeZone;
 import java.util.concurrent.atomic.AtomicLong;
+import org.apache.lucene.document.IntDocValuesField;
 import org.apache.lucene.document.IntField;
 import org.apache.lucene.document.LongField;
+import org.apache.lucene.document.StoredField;
+import org.apache.lucene.document.StraightBytesDocValuesField;
 import org.apache.lucene.document.StringField;
 import org.apache.lucene.document.TextField;
 import org.apache.lucene.index.AtomicReader;
 import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.DocValues;
+import org.apache.lucene.index.DocsEnum;
 import org.apache.lucene.index.IndexableField;
-import org.apache.lucene.search.SearcherManager;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.index.ReaderUtil;
+import org.apache.lucene.search.NRTManager;
+import org.apache.lucene.search.NRTManager.TrackingIndexWriter;
+import org.apache.lucene.search.NRTManagerReopenThread;
 import org.apache.lucene.search.Sort;
 import org.apache.lucene.search.SortField;
 import org.apache.lucene.search.TopFieldDocs;
 import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
 
 /**
  * This class ensures that the underlying lucene index can be manipulated in
@@ -83,12 +109,27 @@ public final class LuceneFieldIndex
      */
     private static final Logger log = LoggerFactory.getLogger( LuceneFieldIndex.class );
     private final IndexWriter writer;
+    private final TrackingIndexWriter trackingWriter;
 
-    private final SearcherManager searchManager;
+    private final NRTManager searchManager;
+    private final RefreshMode refreshMode;
+    private final NRTManagerReopenThread reopenThread;
 
     private final int pidCollectorMaxInMemory;
     private final File pidCollectorTmpDir;
 
+    /**
+     * If true, searches return a {@link PidListCursor} reading the PIDs page
+     * by page from a pinned searcher, instead of collecting all PIDs.
+     */
+    private volatile boolean cursorPaging = false;
+
+    /**
+     * Filter over all PIDs ever indexed, answering existence checks of new
+     * PIDs without a search. Null if disabled.
+     */
+    private volatile PidBloomFilter pidFilter = null;
+
     /** Searches on dates cannot precede Sat Jan 01 2000 00:00:00 GMT+0100 (CET). */
     private static final long earliest_date_searchable = 946681200L;
     /** Searches on dates cannot succeed Wed Jan 01 2050 00:00:00 GMT+0100 (CET). */
@@ -102,6 +143,19 @@ public final class LuceneFieldIndex
     private final static String DATE_RAW = "dateraw";
     private final static String DATE_RAW_EQ = "dateraw_eq";
 
+    /**
+     * Prefix of the stored-only fields holding the original, not lowercased,
+     * values of the text fields, so search results can be built from the
+     * index.
+     */
+    private final static String RESULT_PREFIX = "result_";
+    /**
+     * Stored in documents that have result fields, to tell them apart from
+     * documents indexed before result fields were stored.
+     */
+    private final static String RESULT_VERSION = RESULT_PREFIX + "version";
+    private final static int CURRENT_RESULT_VERSION = 1;
+
     /**
      * Lucene, up until 2.9.1, does not have a way to specify a search starting
      * from the beginning of a field and ending at the end of a field. The
@@ -119,6 +173,24 @@ public final class LuceneFieldIndex
     private final static char FIELDEND = '$';
     private final WriteAheadLog wal;
 
+    /**
+     * Determines how searchers are kept up to date with changes to the index.
+     */
+    enum RefreshMode
+    {
+        /**
+         * The searcher is reopened, if needed, before every search. Searches
+         * always see all changes, but block while the searcher is reopened.
+         */
+        BLOCKING,
+        /**
+         * The searcher is reopened by a background thread within a target
+         * maximum staleness. Searches never wait for a reopen unless they
+         * explicitly require the latest changes.
+         */
+        BACKGROUND
+    }
+
     private ObjectName indexMonitorObjectName;
     private ObjectName fieldIndexObjectName;
     private ObjectName mergePolicyObjectName;
@@ -127,6 +199,10 @@ public final class LuceneFieldIndex
     {
         int getNumDocs() throws IOException;
         int getMaxDoc();
+        String getRefreshMode();
+        boolean isCursorPaging();
+        long getSearchingGeneration();
+        long getIndexingGeneration();
 
         void forceMerge() throws IOException, IllegalArgumentException;
     }
@@ -150,6 +226,26 @@ public final class LuceneFieldIndex
         {
             return writer.maxDoc();
         }
+
+        public String getRefreshMode()
+        {
+            return refreshMode.name();
+        }
+
+        public boolean isCursorPaging()
+        {
+            return cursorPaging;
+        }
+
+        public long getSearchingGeneration()
+        {
+            return searchManager.getCurrentSearchingGen();
+        }
+
+        public long getIndexingGeneration()
+        {
+            return trackingWriter.getGeneration();
+        }
     }
 
     public static interface LuceneFieldIndexMonitorMBean
@@ -162,6 +258,9 @@ public final class LuceneFieldIndex
         long getAverageSearchTimeMS();
         long getLastIndexTimeMS();
         long getAverageIndexTimeMS();
+        long getStoredFieldPidLookups();
+        long getExistenceChecks();
+        long getExistenceChecksAnsweredByFilter();
 
         void resetCounters();
     }
@@ -214,12 +313,33 @@ public final class LuceneFieldIndex
             return (count == 0 ) ? 0 : totalIndexTimeMS.get() / count;
         }
 
+        @Override
+        public long getStoredFieldPidLookups()
+        {
+            return storedFieldPidLookups.get();
+        }
+
+        @Override
+        public long getExistenceChecks()
+        {
+            return existenceChecks.get();
+        }
+
+        @Override
+        public long getExistenceChecksAnsweredByFilter()
+        {
+            return existenceChecksAnsweredByFilter.get();
+        }
+
         @Override
         public void resetCounters()
         {
             documentsIndexed.set( 0 );
             documentsDeleted.set( 0 );
             searchesPerformed.set( 0 );
+            storedFieldPidLookups.set( 0 );
+            existenceChecks.set( 0 );
+            existenceChecksAnsweredByFilter.set( 0 );
             lastSearchTimeMS = 0;
         }
     }
@@ -357,15 +477,42 @@ public final class LuceneFieldIndex
     private volatile long lastSearchTimeMS = 0;
     private final AtomicLong totalIndexTimeMS = new AtomicLong();
     private volatile long lastIndexTimeMS = 0;
+    /**
+     * Number of PIDs read from stored fields because the document predates
+     * the pid DocValues. Documents only gain DocValues when they are
+     * reindexed, so an index built before the DocValues were added must be
+     * rebuilt to stop these lookups; see
+     * {@link #countDocumentsWithoutPidDocValues()}.
+     */
+    private final AtomicLong storedFieldPidLookups = new AtomicLong();
+    private final AtomicLong existenceChecks = new AtomicLong();
+    private final AtomicLong existenceChecksAnsweredByFilter = new AtomicLong();
 
     LuceneFieldIndex( IndexWriter writer, TieredMergePolicy mergePolicy,
             int pidCollectorMaxInMemory, File pidCollectorTmpDir,
             WriteAheadLog wal) throws IOException
+    {
+        this( writer, mergePolicy, pidCollectorMaxInMemory, pidCollectorTmpDir, wal, RefreshMode.BLOCKING, 0, 0 );
+    }
+
+    /**
+     * @param refreshMode how searchers are kept up to date with index changes
+     * @param refreshMaxStaleMS with {@link RefreshMode#BACKGROUND}, the maximum time
+     *        in milliseconds before changes become visible to ordinary searches
+     * @param refreshMinStaleMS with {@link RefreshMode#BACKGROUND}, the minimum time
+     *        in milliseconds between reopens when a search waits for the latest changes
+     */
+    LuceneFieldIndex( IndexWriter writer, TieredMergePolicy mergePolicy,
+            int pidCollectorMaxInMemory, File pidCollectorTmpDir,
+            WriteAheadLog wal, RefreshMode refreshMode,
+            long refreshMaxStaleMS, long refreshMinStaleMS ) throws IOException
     {
         this.writer = writer;
         this.wal = wal;
         this.pidCollectorMaxInMemory = pidCollectorMaxInMemory;
         this.pidCollectorTmpDir = pidCollectorTmpDir;
+        this.refreshMode = refreshMode;
+        this.trackingWriter = ( wal == null ) ? new TrackingIndexWriter( writer ) : wal.getTrackingIndexWriter();
 
         // Register the JMX monitoring bean
         try
@@ -383,12 +530,25 @@ public final class LuceneFieldIndex
         {
             log.error( "Unable to register monitor. JMX Monitoring will be unavailable", ex);
         }
-        searchManager = new SearcherManager( this.writer, true, null );
+        searchManager = new NRTManager( trackingWriter, null, true );
 
         if ( this.wal != null )
         {
             wal.initialize();
         }
+
+        if ( refreshMode == RefreshMode.BACKGROUND )
+        {
+            log.info( "Refreshing searchers in background with max staleness {} ms and min staleness {} ms", refreshMaxStaleMS, refreshMinStaleMS );
+            reopenThread = new NRTManagerReopenThread( searchManager, refreshMaxStaleMS / 1000.0, refreshMinStaleMS / 1000.0 );
+            reopenThread.setName( "LuceneFieldIndex NRT reopen" );
+            reopenThread.setDaemon( true );
+            reopenThread.start();
+        }
+        else
+        {
+            reopenThread = null;
+        }
     }
 
     void indexFields( final List<Pair<FedoraFieldName, String>> fieldList, long extractTimeNs ) throws IOException
@@ -416,6 +576,7 @@ public final class LuceneFieldIndex
                 {
                 case PID:
                     doc.add( new StringField( fieldName.toString(), fieldValue, Store.YES ) );
+                    doc.add( new StraightBytesDocValuesField( fieldName.toString(), new BytesRef( fieldValue ), false ) );
                     log.trace( "Added { {}: {} } to index document", fieldName.toString(), fieldValue );
                     pid = fieldValue;
 
@@ -427,6 +588,7 @@ public final class LuceneFieldIndex
                     try {
                         int id = Integer.parseInt(identifier);
                         doc.add( new IntField( PID_INT, id, Store.YES ) );
+                        doc.add( new IntDocValuesField( PID_INT, id ) );
 
                     }
                     catch ( NumberFormatException ex ) {
@@ -443,6 +605,7 @@ public final class LuceneFieldIndex
                     doc.add( new TextField( DATE_RAW, fieldLower, Store.NO ));
                     doc.add( new TextField( DATE_RAW, fieldLower, Store.NO ));
                     doc.add( new TextField( DATE_RAW_EQ, FIELDSTART + fieldLower + FIELDEND, Store.NO ));
+                    doc.add( new StoredField( RESULT_PREFIX + fieldName.toString(), fieldValue ) );
                     // Fall through to next case, so it is also parsed as timestamp if possible:
                 case CDATE:
                 case MDATE:
@@ -471,8 +634,9 @@ public final class LuceneFieldIndex
 
                     break;
                 default:
+                    doc.add( new StoredField( RESULT_PREFIX + fieldName.toString(), fieldValue ) );
                     fieldValue = fieldValue.toLowerCase();
-                    doc.add( new TextField( fieldName.toString(), fieldValue, Store.YES ) );
+                    doc.add( new TextField( fieldName.toString(), fieldValue, Store.NO ) );
                     doc.add( new StringField( fieldName.equalsFieldName(), FIELDSTART + fieldValue + FIELDEND, Store.NO ) );
                     log.trace( "Added { {}: {} } to index document", fieldName.toString(), fieldValue );
                 }
@@ -485,6 +649,7 @@ public final class LuceneFieldIndex
         }
         else
         {
+            doc.add( new StoredField( RESULT_VERSION, CURRENT_RESULT_VERSION ) );
             long count = documentsIndexed.incrementAndGet();
             if( null == this.writer )
             {
@@ -492,10 +657,17 @@ public final class LuceneFieldIndex
             }
             log.trace( "Adding document {}", doc );
 
+            // The PID must be in the filter before the document can be found
+            PidBloomFilter filter = pidFilter;
+            if ( filter != null && !pid.isEmpty() )
+            {
+                filter.add( pid );
+            }
+
             if ( this.wal == null )
             {
                 Term term = new Term( "pid", pid );
-                this.writer.updateDocument( term, doc );
+                this.trackingWriter.updateDocument( term, doc );
                 // numRamDocs and numDocs are synchronized, so avoid calling them if possible
                 if ( log.isTraceEnabled() )
                 {
@@ -547,7 +719,7 @@ public final class LuceneFieldIndex
         {
             Term term = new Term( "pid", uid );
             log.trace( "Deleting doc with term {}", term );
-            this.writer.deleteDocuments( term );
+            this.trackingWriter.deleteDocuments( term );
             log.trace( "Commiting {} docs", this.writer.numRamDocs() );
             this.writer.commit();
         }
@@ -564,6 +736,180 @@ public final class LuceneFieldIndex
     }
 
 
+    /**
+     * Sets whether searches return a cursor over a pinned searcher, which
+     * reads the PIDs of each page as it is requested, instead of collecting
+     * all PIDs before the first page. A cursor keeps the searcher, and the
+     * index segments it uses, open until it is disposed.
+     *
+     * @param cursorPaging true to page with cursors
+     */
+    void setCursorPaging( boolean cursorPaging )
+    {
+        log.info( "Cursor paging {}", cursorPaging ? "enabled" : "disabled" );
+        this.cursorPaging = cursorPaging;
+    }
+
+
+    /**
+     * Enables the filter answering existence checks of PIDs that have never
+     * been indexed, and fills it with the PIDs in the index. Must be called
+     * before the index is updated, as PIDs indexed while the filter is filled
+     * may be missed.
+     *
+     * @param expectedPids the number of PIDs the filter is sized for
+     * @param falsePositiveRate the rate of existence checks of new PIDs that
+     *        must still search the index, once the expected number of PIDs
+     *        are indexed
+     * @throws IOException if the PIDs could not be read from the index
+     */
+    void enablePidFilter( long expectedPids, double falsePositiveRate ) throws IOException
+    {
+        long startTime = System.currentTimeMillis();
+        PidBloomFilter filter = new PidBloomFilter( expectedPids, falsePositiveRate );
+        IndexSearcher localSearcher = acquireSearcher( true );
+        try
+        {
+            // Terms of deleted documents are included, they are just false positives
+            Terms terms = MultiFields.getTerms( localSearcher.getIndexReader(), FedoraFieldName.PID.toString() );
+            if ( terms != null )
+            {
+                TermsEnum termsEnum = terms.iterator( null );
+                BytesRef term;
+                while( ( term = termsEnum.next() ) != null )
+                {
+                    filter.add( term );
+                }
+            }
+        }
+        finally
+        {
+            searchManager.release( localSearcher );
+        }
+        pidFilter = filter;
+        log.info( "Filled PID filter of {} bytes with {} PIDs in {} ms", new Object[] {
+                filter.getSizeInBytes(), filter.getAdded(), System.currentTimeMillis() - startTime } );
+        if ( filter.getAdded() > expectedPids )
+        {
+            log.warn( "The index holds more PIDs than the PID filter is sized for ({}), "
+                    + "the filter will answer fewer existence checks", expectedPids );
+        }
+    }
+
+
+    /**
+     * Counts the live documents without a value in the pid DocValues, that
+     * is the documents indexed before the pid DocValues were added, whose
+     * PIDs are read from stored fields. Lucene cannot add DocValues to
+     * indexed documents, so the count only drops as the documents are
+     * reindexed.
+     *
+     * @return the number of documents without pid DocValues
+     * @throws IOException if the index could not be read
+     */
+    long countDocumentsWithoutPidDocValues() throws IOException
+    {
+        long count = 0;
+        BytesRef scratch = new BytesRef();
+        IndexSearcher localSearcher = acquireSearcher( true );
+        try
+        {
+            for ( AtomicReaderContext leaf : localSearcher.getIndexReader().leaves() )
+            {
+                AtomicReader reader = leaf.reader();
+                DocValues pidValues = reader.docValues( FedoraFieldName.PID.toString() );
+                if ( pidValues == null )
+                {
+                    count += reader.numDocs();
+                    continue;
+                }
+                // a segment merged from documents with and without the
+                // DocValues has empty values for the latter
+                DocValues.Source source = pidValues.getSource();
+                Bits liveDocs = reader.getLiveDocs();
+                for ( int docId = 0; docId < reader.maxDoc(); docId++ )
+                {
+                    if ( liveDocs == null || liveDocs.get( docId ) )
+                    {
+                        source.getBytes( docId, scratch );
+                        if ( scratch.length == 0 )
+                        {
+                            count++;
+                        }
+                    }
+                }
+            }
+        }
+        finally
+        {
+            searchManager.release( localSearcher );
+        }
+        return count;
+    }
+
+
+    /**
+     * Tells whether a live document with the PID is in the index, with a
+     * single term lookup instead of a search.
+     *
+     * @param pid the PID to look for
+     * @param requireLatest whether to wait for all preceding updates to be
+     *        searchable, see {@link #acquireSearcher(boolean)}
+     * @return true if the PID is in the index
+     * @throws IOException if the index can't be read
+     */
+    boolean pidExists( final String pid, final boolean requireLatest ) throws IOException
+    {
+        existenceChecks.incrementAndGet();
+        PidBloomFilter filter = pidFilter;
+        if ( filter != null && !filter.mightContain( pid ) )
+        {
+            existenceChecksAnsweredByFilter.incrementAndGet();
+            log.trace( "PID {} was never indexed", pid );
+            return false;
+        }
+
+        IndexSearcher localSearcher = acquireSearcher( requireLatest );
+        try
+        {
+            Term term = new Term( FedoraFieldName.PID.toString(), pid );
+            for( AtomicReaderContext leaf : localSearcher.getIndexReader().leaves() )
+            {
+                DocsEnum docs = leaf.reader().termDocsEnum( term );
+                if( docs != null && docs.nextDoc() != DocIdSetIterator.NO_MORE_DOCS )
+                {
+                    return true;
+                }
+            }
+            return false;
+        }
+        finally
+        {
+            searchManager.release( localSearcher );
+        }
+    }
+
+
+    /**
+     * @param requireLatest whether to wait for all preceding updates to be
+     *        searchable, see {@link #acquireSearcher(boolean)}
+     * @return the number of live documents in the index
+     * @throws IOException if the index can't be read
+     */
+    int getNumDocs( final boolean requireLatest ) throws IOException
+    {
+        IndexSearcher localSearcher = acquireSearcher( requireLatest );
+        try
+        {
+            return localSearcher.getIndexReader().numDocs();
+        }
+        finally
+        {
+            searchManager.release( localSearcher );
+        }
+    }
+
+
     /**
      * This method takes a {@link FieldSearchQuery} consisting of {@link Pair}s
      * of {@link FedoraFieldName}s and {@link String}s and executes the
@@ -580,6 +926,19 @@ public final class LuceneFieldIndex
      * @return all PIDs in result set as IPidList object
      */
     IPidList search( final FieldSearchQuery fsq ) throws IOException, ParseException
+    {
+        return search( fsq, false );
+    }
+
+    /**
+     * Executes a search as {@link #search(FieldSearchQuery)}.
+     *
+     * @param fsq a FieldSearchQuery object containing the query
+     * @param requireLatest if true, the search waits until all changes made
+     *        to the index before the call are visible
+     * @return all PIDs in result set as IPidList object
+     */
+    IPidList search( final FieldSearchQuery fsq, final boolean requireLatest ) throws IOException, ParseException
     {
         long time = System.currentTimeMillis();
 
@@ -587,21 +946,31 @@ public final class LuceneFieldIndex
 
         IPidList results = null;
 
-        if( luceneQuery instanceof AllFieldsQuery )
+        if( cursorPaging )
+        {
+            if( luceneQuery instanceof AllFieldsQuery )
+            {
+                luceneQuery = new MatchAllDocsQuery();
+            }
+            log.debug( "Query: {}", luceneQuery.toString() );
+            // the cursor releases the searcher when it is disposed
+            results = new PidListCursor( searchManager, acquireSearcher( requireLatest ), luceneQuery, storedFieldPidLookups );
+        }
+        else if( luceneQuery instanceof AllFieldsQuery )
         {
             log.info( "AllFieldsQuery detected, returning all documents from index" );
-            results = getAll();
+            results = getAll( requireLatest );
         }
         else
         {
-            searchManager.maybeRefreshBlocking();
-            IndexSearcher localSearcher = searchManager.acquire();
+            IndexSearcher localSearcher = acquireSearcher( requireLatest );
             try
             {
                 final PidCollector pidCollector = new PidCollector( pidCollectorMaxInMemory, pidCollectorTmpDir );
                 log.debug( "Query: {}", luceneQuery.toString() );
                 localSearcher.search( luceneQuery, pidCollector );
                 results = pidCollector.getResults();
+                storedFieldPidLookups.addAndGet( pidCollector.getStoredFieldLookups() );
             }
             finally
             {
@@ -636,21 +1005,110 @@ public final class LuceneFieldIndex
         return results;
     }
 
+    /**
+     * Executes a search as {@link #search(FieldSearchQuery, boolean)}, but
+     * returns the PIDs in order of mDate and then PID, starting after the
+     * given position, and collects only a page of them. A page costs the
+     * same wherever it starts, and no state is kept between pages.
+     * <p>
+     * Documents without an indexed mDate sort first, as if modified at the
+     * epoch, and in order of PID among themselves. To page on after one of
+     * them, pass the epoch (or any date not after it) as
+     * <code>afterMDate</code>.
+     *
+     * @param fsq a FieldSearchQuery object containing the query
+     * @param afterMDate the mDate of the last PID of the previous page, the
+     *        epoch if it has none, or null for the first page
+     * @param afterPid the last PID of the previous page, null for the first
+     *        page
+     * @param wanted the number of PIDs in the page
+     * @param requireLatest if true, the search waits until all changes made
+     *        to the index before the call are visible
+     * @return the PIDs of the page, and the number of documents matching the
+     *         query from the position on, including the page
+     */
+    Pair<IPidList, Integer> searchAfter( final FieldSearchQuery fsq, final Date afterMDate, final String afterPid, final int wanted, final boolean requireLatest ) throws IOException, ParseException
+    {
+        long time = System.currentTimeMillis();
+
+        Query luceneQuery = constructQuery( fsq );
+        if( luceneQuery instanceof AllFieldsQuery )
+        {
+            luceneQuery = new MatchAllDocsQuery();
+        }
+        if( afterMDate != null && afterPid != null )
+        {
+            String mDateField = FedoraFieldName.MDATE.toString();
+            long mDate = afterMDate.getTime();
+
+            // mDate > afterMDate OR ( mDate = afterMDate AND pid > afterPid )
+            BooleanQuery samePosition = new BooleanQuery();
+            if( mDate > 0 )
+            {
+                samePosition.add( NumericRangeQuery.newLongRange( mDateField, mDate, mDate, true, true ), Occur.MUST );
+            }
+            else
+            {
+                // only positive mDates are indexed, so the position is among the documents without one
+                samePosition.add( new MatchAllDocsQuery(), Occur.MUST );
+                samePosition.add( NumericRangeQuery.newLongRange( mDateField, null, null, true, true ), Occur.MUST_NOT );
+                mDate = 0;
+            }
+            samePosition.add( TermRangeQuery.newStringRange( FedoraFieldName.PID.toString(), afterPid, null, false, true ), Occur.MUST );
+            BooleanQuery position = new BooleanQuery();
+            position.add( NumericRangeQuery.newLongRange( mDateField, mDate, null, false, true ), Occur.SHOULD );
+            position.add( samePosition, Occur.SHOULD );
+
+            BooleanQuery query = new BooleanQuery();
+            query.add( luceneQuery, Occur.MUST );
+            query.add( position, Occur.MUST );
+            luceneQuery = query;
+        }
+        Sort order = new Sort( new SortField( FedoraFieldName.MDATE.toString(), FieldCache.NUMERIC_UTILS_LONG_PARSER ),
+                               new SortField( FedoraFieldName.PID.toString(), SortField.Type.STRING ) );
+
+        IPidList page = new PidListInMemory();
+        int totalHits;
+        IndexSearcher localSearcher = acquireSearcher( requireLatest );
+        try
+        {
+            log.debug( "Query: {}", luceneQuery.toString() );
+            TopFieldDocs hits = localSearcher.search( luceneQuery, Math.max( wanted, 1 ), order );
+            totalHits = hits.totalHits;
+            for( ScoreDoc hit : hits.scoreDocs )
+            {
+                if( page.size() == wanted )
+                {
+                    break;
+                }
+                // the PID is the value of the second sort field
+                BytesRef pid = (BytesRef) ( (FieldDoc) hit ).fields[1];
+                page.addPid( pid.utf8ToString() );
+            }
+        }
+        finally
+        {
+            searchManager.release( localSearcher );
+        }
+
+        time = System.currentTimeMillis() - time;
+        lastSearchTimeMS = time;
+        totalSearchTimeMS.addAndGet( time );
+        searchesPerformed.incrementAndGet();
+
+        log.trace( "Page of {} of {} results, time {} ms", new Object[] { page.size(), totalHits, time } );
+        return new Pair<IPidList, Integer>( page, totalHits );
+    }
+
     public int findHighestId(String namespace) throws IOException {
         TermQuery luceneQuery = new TermQuery(new Term(PID_NAMESPACE, namespace));
-        searchManager.maybeRefreshBlocking();
-        IndexSearcher localSearcher = searchManager.acquire();
+        IndexSearcher localSearcher = acquireSearcher( true );
         try {
             log.debug("Query: {}", luceneQuery.toString());
             TopFieldDocs search = localSearcher.search(luceneQuery, 1, new Sort(new SortField(PID_INT, SortField.Type.INT, true)));
 
             if (search.scoreDocs.length > 0) {
-                IndexReader localReader = localSearcher.getIndexReader();
-                Document document = localReader.document( search.scoreDocs[0].doc );
-                IndexableField identifer = document.getField(PID_INT);
-                if (identifer != null) {
-                    return identifer.numericValue().intValue();
-                }
+                return getPidInt( localSearcher.getIndexReader(), search.scoreDocs[0].doc );
             }
             return 0;
         }
@@ -659,6 +1117,192 @@ public final class LuceneFieldIndex
         }
     }
 
+    /**
+     * Reads the integer identifier of a document from the PID_INT DocValues
+     * of its segment, falling back to the stored field for documents
+     * indexed without DocValues.
+     */
+    private int getPidInt( IndexReader reader, int docId ) throws IOException
+    {
+        List<AtomicReaderContext> leaves = reader.leaves();
+        AtomicReaderContext leaf = leaves.get( ReaderUtil.subIndex( docId, leaves ) );
+        DocValues pidIntValues = leaf.reader().docValues( PID_INT );
+        if ( pidIntValues != null )
+        {
+            long id = pidIntValues.getSource().getInt( docId - leaf.docBase );
+            if ( id > 0 )
+            {
+                return (int) id;
+            }
+        }
+
+        storedFieldPidLookups.incrementAndGet();
+        Document document = reader.document( docId, Collections.singleton( PID_INT ) );
+        IndexableField identifer = document.getField(PID_INT);
+        if (identifer != null) {
+            return identifer.numericValue().intValue();
+        }
+        return 0;
+    }
+
+    /**
+     * Builds the result fields of a page of search results from the values
+     * stored in the index, looking all the documents up in a single searcher.
+     * {@link FedoraFieldName#RELPREDOBJ} and
+     * {@link FedoraFieldName#RELSYSPREDOBJ} are not stored in the index and
+     * are never set.
+     *
+     * @param pids the pids of the objects to get fields for
+     * @param resultFields the fields to set
+     * @return the fields by pid. Objects that are no longer in the index, or
+     *         were indexed before result fields were stored, are left out and
+     *         must be read from the object store
+     * @throws IOException if the index can't be read
+     */
+    Map<String, ObjectFields> getResultFields( final Collection<String> pids, final Set<FedoraFieldName> resultFields ) throws IOException
+    {
+        Set<String> fieldsToLoad = new HashSet<String>();
+        fieldsToLoad.add( FedoraFieldName.PID.toString() );
+        fieldsToLoad.add( RESULT_VERSION );
+        for( FedoraFieldName field : resultFields )
+        {
+            fieldsToLoad.add( getResultFieldName( field ) );
+        }
+
+        Map<String, ObjectFields> results = new HashMap<String, ObjectFields>();
+        IndexSearcher localSearcher = acquireSearcher( false );
+        try
+        {
+            List<AtomicReaderContext> leaves = localSearcher.getIndexReader().leaves();
+            for( String pid : pids )
+            {
+                Document document = getDocument( leaves, new Term( FedoraFieldName.PID.toString(), pid ), fieldsToLoad );
+                if( document == null || document.getField( RESULT_VERSION ) == null )
+                {
+                    log.trace( "No result fields in index for {}", pid );
+                    continue;
+                }
+                results.put( pid, getResultFields( document, resultFields ) );
+            }
+        }
+        finally
+        {
+            searchManager.release( localSearcher );
+        }
+        return results;
+    }
+
+    /**
+     * Loads the live document with the given unique term, null if there is
+     * none.
+     */
+    private static Document getDocument( List<AtomicReaderContext> leaves, Term term, Set<String> fieldsToLoad ) throws IOException
+    {
+        for( AtomicReaderContext leaf : leaves )
+        {
+            DocsEnum docs = leaf.reader().termDocsEnum( term );
+            if( docs != null )
+            {
+                int docId = docs.nextDoc();
+                if( docId != DocIdSetIterator.NO_MORE_DOCS )
+                {
+                    return leaf.reader().document( docId, fieldsToLoad );
+                }
+            }
+        }
+        return null;
+    }
+
+    private static ObjectFields getResultFields( Document document, Set<FedoraFieldName> resultFields )
+    {
+        ObjectFields fields = new ObjectFields();
+        for( FedoraFieldName field : resultFields )
+        {
+            String name = getResultFieldName( field );
+            switch( field )
+            {
+            case PID:
+                fields.setPid( document.get( name ) );
+                break;
+            case LABEL:
+                fields.setLabel( document.get( name ) );
+                break;
+            case STATE:
+                fields.setState( document.get( name ) );
+                break;
+            case OWNERID:
+                fields.setOwnerId( document.get( name ) );
+                break;
+            case CDATE:
+                fields.setCDate( getDate( document, name ) );
+                break;
+            case MDATE:
+                fields.setMDate( getDate( document, name ) );
+                break;
+            case DCMDATE:
+                fields.setDCMDate( getDate( document, name ) );
+                break;
+            default:
+                List<DCField> values = getValueList( fields, field );
+                if( values != null )
+                {
+                    for( String value : document.getValues( name ) )
+                    {
+                        values.add( new DCField( value ) );
+                    }
+                }
+            }
+        }
+        return fields;
+    }
+
+    /**
+     * @return the name of the stored field holding the result value of a field
+     */
+    private static String getResultFieldName( FedoraFieldName field )
+    {
+        switch( field )
+        {
+        case PID:
+        case CDATE:
+        case MDATE:
+        case DCMDATE:
+            return field.toString();
+        default:
+            return RESULT_PREFIX + field.toString();
+        }
+    }
+
+    private static Date getDate( Document document, String name )
+    {
+        IndexableField field = document.getField( name );
+        return field == null ? null : new Date( field.numericValue().longValue() );
+    }
+
+    private static List<DCField> getValueList( ObjectFields fields, FedoraFieldName field )
+    {
+        switch( field )
+        {
+        case TITLE: return fields.titles();
+        case CREATOR: return fields.creators();
+        case SUBJECT: return fields.subjects();
+        case DESCRIPTION: return fields.descriptions();
+        case PUBLISHER: return fields.publishers();
+        case CONTRIBUTOR: return fields.contributors();
+        case DATE: return fields.dates();
+        case TYPE: return fields.types();
+        case FORMAT: return fields.formats();
+        case IDENTIFIER: return fields.identifiers();
+        case SOURCE: return fields.sources();
+        case LANGUAGE: return fields.languages();
+        case RELATION: return fields.relations();
+        case COVERAGE: return fields.coverages();
+        case RIGHTS: return fields.rights();
+        case RELOBJ: return fields.relObjs();
+        default: return null;
+        }
+    }
+
     /**
      * For queries that are beforehand known to retrieve all (active) documents
      * from the index, this method can bypass the performance penalty of an
@@ -667,11 +1311,15 @@ public final class LuceneFieldIndex
      * @throws IOException if IndexWriter or IndexReader throws an exception
      */
     IPidList getAll() throws IOException
+    {
+        return getAll( false );
+    }
+
+    IPidList getAll( boolean requireLatest ) throws IOException
     {
         IPidList results = null;
 
-        searchManager.maybeRefreshBlocking();
-        IndexSearcher localSearcher = searchManager.acquire();
+        IndexSearcher localSearcher = acquireSearcher( requireLatest );
         IndexReader localReader = localSearcher.getIndexReader();
 
         try
@@ -700,6 +1348,7 @@ public final class LuceneFieldIndex
                 }
             }
             results = pidCollector.getResults();
+            storedFieldPidLookups.addAndGet( pidCollector.getStoredFieldLookups() );
         }
         finally
         {
@@ -708,6 +1357,27 @@ public final class LuceneFieldIndex
         return results;
     }
 
+    /**
+     * Acquires a searcher, which must be released to the searchManager after
+     * use. In {@link RefreshMode#BLOCKING} mode the searcher is always
+     * reopened first. In {@link RefreshMode#BACKGROUND} mode the current
+     * searcher is returned, unless {@code requireLatest} is set, in which case
+     * this method waits until the background thread has reopened the
+     * searcher on all changes made before the call.
+     */
+    private IndexSearcher acquireSearcher( boolean requireLatest ) throws IOException
+    {
+        if ( refreshMode == RefreshMode.BLOCKING )
+        {
+            searchManager.maybeRefreshBlocking();
+        }
+        else if ( requireLatest )
+        {
+            searchManager.waitForGeneration( trackingWriter.getGeneration() );
+        }
+        return searchManager.acquire();
+    }
+
     /**
      * Tries to shutdown all operations on the index and unlock the directory if
      * it is still locked. This method is non-reentrant and should only be used
@@ -717,6 +1387,10 @@ public final class LuceneFieldIndex
      */
     void closeIndex() throws IOException
     {
+        if ( reopenThread != null )
+        {
+            reopenThread.close();
+        }
         searchManager.close();
         if ( wal != null )
         {
@@ -5,10 +5,18 @@
 package dk.dbc.opensearch.fedora.search;
 
 import org.fcrepo.server.management.*;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 
-import java.util.HashMap;
 import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -20,11 +28,30 @@ import org.fcrepo.server.Server;
 import org.fcrepo.server.errors.ModuleInitializationException;
 import org.fcrepo.server.errors.ServerException;
 import org.fcrepo.server.search.FieldSearch;
+import org.fcrepo.utilities.FileUtils;
 
 
 /**
- * A PIDGenerator that uses a database to keep track of the highest pid it knows
- * about for each namespace.
+ * A PIDGenerator that keeps an atomic counter of the highest id used in each
+ * namespace.
+ *
+ * <p>Ids are reserved in blocks: before an id beyond the reserved block is
+ * handed out, the end of the next block is written to a high-water mark
+ * file. The file thus always holds an id at least as high as any id
+ * generated, and on startup the counters continue from it, leaving at most a
+ * block of ids unused. The highest numeric id of each namespace is also
+ * looked up in the Lucene index, with a sorted search, and a counter
+ * continues from the index where the file is behind it, for instance when
+ * the file was restored from a backup, so ids in use are never generated.
+ *
+ * <p>Parameters:
+ * <ul>
+ * <li> &lt;param name="highWaterMarkFile" value="pid-high-water-marks"/&gt;
+ * file keeping the highest reserved id of each namespace, relative to the
+ * server home directory (default: pid-high-water-marks)</li>
+ * <li> &lt;param name="reserveBlockSize" value="1000"/&gt; number of ids
+ * reserved with each write of the file (default: 1000)</li>
+ * </ul>
  *
  * @author Chris Wilper
  */
@@ -33,58 +60,179 @@ public class LucenePIDGenerator
         implements PIDGenerator {
 
     private static final Logger logger =
-            LoggerFactory.getLogger(DBPIDGenerator.class);
+            LoggerFactory.getLogger(LucenePIDGenerator.class);
 
-    private final HashMap m_highestID;
+    /** Optional param: File keeping the highest reserved ids. */
+    public static final String HIGH_WATER_MARK_FILE = "highWaterMarkFile";
 
-    private PID m_lastPID;
+    /** Optional param: Number of ids reserved at a time. */
+    public static final String RESERVE_BLOCK_SIZE = "reserveBlockSize";
 
-    protected FieldSearch m_fieldSearch;
+    private static final int DEFAULT_RESERVE_BLOCK_SIZE = 1000;
 
     /**
-     * Initialize the DBPIDGenerator. This initializes the memory hash with
-     * values in the database, if any. If oldPidGenDir is not null, the
-     * constructor will then call neverGeneratePID on the most recently
-     * generated PID as reported by the log files in that directory. This is to
-     * support automatic upgrade of this functionality from versions of Fedora
-     * prior to 1.2.
+     * The ids of a namespace. Ids up to <code>reserved</code> may be handed
+     * out without writing the high-water mark file.
      */
+    private static class Counter {
+
+        final AtomicInteger highestID;
+
+        volatile int reserved;
+
+        Counter(int highestID, int reserved) {
+            this.highestID = new AtomicInteger(highestID);
+            this.reserved = reserved;
+        }
+    }
+
+    private final ConcurrentMap<String, Counter> m_counters =
+            new ConcurrentHashMap<String, Counter>();
+
+    /** Serializes writes of the high-water mark file */
+    private final Object m_fileLock = new Object();
+
+    private volatile PID m_lastPID;
+
+    private File m_highWaterMarkFile;
+
+    private int m_blockSize;
+
+    protected FieldSearch m_fieldSearch;
+
     public LucenePIDGenerator(Map moduleParameters, Server server, String role)
             throws ModuleInitializationException {
         super(moduleParameters, server, role);
-        m_highestID = new HashMap();
     }
 
     @Override
     public void postInitModule() throws ModuleInitializationException {
-        m_fieldSearch =
+        FieldSearch fieldSearch =
                 (FieldSearch) getServer()
                         .getModule("org.fcrepo.server.search.FieldSearch");
+
+        String file = getParameter(HIGH_WATER_MARK_FILE);
+        File highWaterMarkFile =
+                new File(file == null ? "pid-high-water-marks" : file);
+        if (!highWaterMarkFile.isAbsolute()) {
+            highWaterMarkFile =
+                    new File(getServer().getHomeDir(),
+                             highWaterMarkFile.getPath());
+        }
+
+        int blockSize = DEFAULT_RESERVE_BLOCK_SIZE;
+        String blockSizeParam = getParameter(RESERVE_BLOCK_SIZE);
+        if (blockSizeParam != null) {
+            try {
+                blockSize = Integer.parseInt(blockSizeParam);
+            } catch (NumberFormatException e) {
+                throw new ModuleInitializationException("Parameter "
+                        + RESERVE_BLOCK_SIZE + " must be an integer: "
+                        + blockSizeParam, getRole(), e);
+            }
+        }
+        if (blockSize < 1) {
+            throw new ModuleInitializationException("Parameter "
+                    + RESERVE_BLOCK_SIZE + " must be positive: " + blockSize,
+                    getRole());
+        }
+
+        try {
+            initialize(fieldSearch, highWaterMarkFile, blockSize);
+        } catch (IOException e) {
+            throw new ModuleInitializationException("Unable to read "
+                    + highWaterMarkFile, getRole(), e);
+        }
+    }
+
+    /**
+     * Loads the high-water marks from the file, if it exists, raising any
+     * that are below the highest id in the index.
+     */
+    void initialize(FieldSearch fieldSearch,
+                    File highWaterMarkFile,
+                    int blockSize) throws IOException {
+        m_fieldSearch = fieldSearch;
+        m_highWaterMarkFile = highWaterMarkFile;
+        m_blockSize = blockSize;
+        m_counters.clear();
+        if (!highWaterMarkFile.exists()) {
+            logger.info("No PID high-water marks in " + highWaterMarkFile
+                    + ", they are read from the index");
+            return;
+        }
+        Properties marks = new Properties();
+        InputStream in = new FileInputStream(highWaterMarkFile);
+        try {
+            marks.load(in);
+        } finally {
+            in.close();
+        }
+        for (String namespace : marks.stringPropertyNames()) {
+            String value = marks.getProperty(namespace);
+            int id;
+            try {
+                id = Integer.parseInt(value.trim());
+            } catch (NumberFormatException e) {
+                logger.warn("Ignoring high-water mark '" + value
+                        + "' of namespace " + namespace);
+                continue;
+            }
+            int indexed = findHighestPid(namespace);
+            if (indexed > id) {
+                logger.warn("High-water mark " + id + " of namespace "
+                        + namespace + " in " + highWaterMarkFile
+                        + " is below the highest id in the index, "
+                        + indexed + "; continuing from the index");
+            }
+            // the ids above the mark are not reserved yet
+            m_counters.put(namespace, new Counter(Math.max(id, indexed), id));
+        }
+        logger.info("Read PID high-water marks of " + m_counters.size()
+                + " namespaces from " + highWaterMarkFile);
     }
 
     /**
      * Generate a new pid that is guaranteed to be unique, within the given
      * namespace.
      */
-    public synchronized PID generatePID(String namespace) throws IOException {
-        int i = getHighestID(namespace);
-        i++;
+    public PID generatePID(String namespace) throws IOException {
+        return generatePIDs(namespace, 1)[0];
+    }
 
+    /**
+     * Generate a number of new pids, taking the whole range of ids from the
+     * namespace counter in one step.
+     */
+    public PID[] generatePIDs(String namespace, int count) throws IOException {
+        if (count < 1) {
+            return new PID[0];
+        }
+        PID[] pids = new PID[count];
+        Counter counter = getCounter(namespace);
+        int last = counter.highestID.addAndGet(count);
+        if (last < count) {
+            throw new IOException("Ids of namespace " + namespace
+                    + " are exhausted");
+        }
+        reserve(namespace, counter, last);
+
+        int first = last - count + 1;
         try {
-            m_lastPID = new PID(namespace + ":" + i);
+            for (int i = 0; i < count; i++) {
+                pids[i] = new PID(namespace + ":" + (first + i));
+            }
         } catch (MalformedPIDException e) {
             throw new IOException(e);
         }
-
-        setHighestID(namespace, i);
-
-        return m_lastPID;
+        m_lastPID = pids[count - 1];
+        return pids;
     }
 
     /**
      * Get the last pid that was generated.
      */
-    public synchronized PID getLastPID() {
+    public PID getLastPID() {
         return m_lastPID;
     }
 
@@ -97,11 +245,13 @@ public class LucenePIDGenerator
             PID p = new PID(pid);
             String ns = p.getNamespaceId();
             int id = Integer.parseInt(p.getObjectId());
-            synchronized (m_highestID) {
-                if (id > getHighestID(ns)) {
-                    setHighestID(ns, id);
-                }
+            Counter counter = getCounter(ns);
+            int highest = counter.highestID.get();
+            while (id > highest
+                    && !counter.highestID.compareAndSet(highest, id)) {
+                highest = counter.highestID.get();
             }
+            reserve(ns, counter, id);
         } catch (MalformedPIDException mpe) {
             throw new IOException(mpe);
         } catch (NumberFormatException nfe) {
@@ -111,15 +261,22 @@ public class LucenePIDGenerator
     }
 
     /**
-     * Gets the highest id ever used for the given namespace.
+     * Gets the counter of the namespace, starting it from the highest id in
+     * the index if the namespace has no high-water mark.
      */
-    private int getHighestID(String namespace) {
-        Integer i = (Integer) m_highestID.get(namespace);
-        if (i == null) {
-            i = findHighestPid(namespace);
-            m_highestID.put(namespace, i);
+    private Counter getCounter(String namespace) {
+        Counter counter = m_counters.get(namespace);
+        if (counter == null) {
+            // The ids in the index are used already, so they need no
+            // reservation
+            int highest = findHighestPid(namespace);
+            Counter newCounter = new Counter(highest, highest);
+            counter = m_counters.putIfAbsent(namespace, newCounter);
+            if (counter == null) {
+                counter = newCounter;
+            }
         }
-        return i.intValue();
+        return counter;
     }
 
     private int findHighestPid(String namespace) {
@@ -127,18 +284,57 @@ public class LucenePIDGenerator
             return m_fieldSearch.findHighestID(namespace);
         }
         catch (ServerException ex) {
-            logger.error("Unable to determine ighest pid for namespace " + namespace, ex);
+            logger.error("Unable to determine highest pid for namespace " + namespace, ex);
             return 0;
         }
     }
 
+    /**
+     * Makes sure the high-water mark file holds an id of at least
+     * <code>id</code> for the namespace before the id is used.
+     */
+    private void reserve(String namespace, Counter counter, int id)
+            throws IOException {
+        if (id <= counter.reserved) {
+            return;
+        }
+        synchronized (counter) {
+            if (id <= counter.reserved) {
+                return;
+            }
+            int reserved = (int) Math.min(Integer.MAX_VALUE, (long) id + m_blockSize);
+            writeHighWaterMarks(namespace, counter, reserved);
+        }
+    }
 
     /**
-     * Sets the highest id ever used for the given namespace.
+     * Writes the reserved ids of all namespaces, with the given new
+     * reservation, replacing the file in one step. The reservation takes
+     * effect once it is written, and before any other write of the file.
      */
-    private void setHighestID(String namespace, int id) throws IOException {
-        logger.debug("Setting highest ID for " + namespace + " to " + id);
-        m_highestID.put(namespace, new Integer(id));
+    private void writeHighWaterMarks(String namespace,
+                                     Counter counter,
+                                     int reserved) throws IOException {
+        logger.debug("Reserving ids of " + namespace + " up to " + reserved);
+        synchronized (m_fileLock) {
+            Properties marks = new Properties();
+            for (Map.Entry<String, Counter> entry : m_counters.entrySet()) {
+                marks.setProperty(entry.getKey(),
+                                  Integer.toString(entry.getValue().reserved));
+            }
+            marks.setProperty(namespace, Integer.toString(reserved));
+
+            File tmp = new File(m_highWaterMarkFile.getPath() + ".tmp");
+            FileOutputStream out = new FileOutputStream(tmp);
+            try {
+                marks.store(out, "Highest reserved PID of each namespace");
+                out.getFD().sync();
+            } finally {
+                out.close();
+            }
+            FileUtils.replace(tmp, m_highWaterMarkFile);
+            counter.reserved = reserved;
+        }
     }
 
 }
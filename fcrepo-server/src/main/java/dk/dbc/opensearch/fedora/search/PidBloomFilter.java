@@ -0,0 +1,163 @@
+/*
+ * This file is part of opensearch.
+ * Copyright (c) 2012, Dansk Bibliotekscenter a/s,
+ * Tempovej 7-11, DK-2750 Ballerup, Denmark. CVR: 15149043
+ *
+ * opensearch is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * opensearch is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with opensearch. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package dk.dbc.opensearch.fedora.search;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * PidBloomFilter
+ * <p>
+ * Bloom filter over the PIDs that have been added to the index. A PID that
+ * the filter does not contain has definitely never been indexed, so the
+ * existence check of a new PID can be answered without searching. A PID that
+ * the filter contains may or may not be in the index, and must be looked up.
+ * <p>
+ * PIDs can not be removed from the filter, deleted objects just become false
+ * positives. The filter does not grow, so when more PIDs than expected are
+ * added the false positive rate increases, but the answers stay correct.
+ * <p>
+ * The filter is thread safe and does not lock.
+ */
+final class PidBloomFilter
+{
+    private final AtomicLongArray bits;
+    private final long numBits;
+    private final int numHashes;
+    private final long expectedPids;
+    private final AtomicLong added = new AtomicLong();
+
+    /**
+     * @param expectedPids the number of PIDs the filter is sized for
+     * @param falsePositiveRate the wanted false positive rate when the
+     *        expected number of PIDs have been added
+     */
+    PidBloomFilter( long expectedPids, double falsePositiveRate )
+    {
+        if( expectedPids <= 0 )
+        {
+            throw new IllegalArgumentException( "expectedPids must be positive: " + expectedPids );
+        }
+        if( falsePositiveRate <= 0 || falsePositiveRate >= 1 )
+        {
+            throw new IllegalArgumentException( "falsePositiveRate must be between 0 and 1: " + falsePositiveRate );
+        }
+        double ln2 = Math.log( 2 );
+        long wantedBits = (long) Math.ceil( -expectedPids * Math.log( falsePositiveRate ) / ( ln2 * ln2 ) );
+        int words = (int) Math.min( Integer.MAX_VALUE, Math.max( 1, ( wantedBits + 63 ) / 64 ) );
+        this.bits = new AtomicLongArray( words );
+        this.numBits = words * 64L;
+        this.numHashes = Math.max( 1, (int) Math.round( (double) numBits / expectedPids * ln2 ) );
+        this.expectedPids = expectedPids;
+    }
+
+    void add( String pid )
+    {
+        add( new BytesRef( pid ) );
+    }
+
+    /**
+     * @param pid the UTF-8 bytes of the PID, as stored in the index terms
+     */
+    void add( BytesRef pid )
+    {
+        long hash1 = hash( pid, 0x9E3779B97F4A7C15L );
+        long hash2 = hash( pid, 0xC2B2AE3D27D4EB4FL ) | 1;
+        for( int i = 0; i < numHashes; i++ )
+        {
+            long bit = ( ( hash1 + i * hash2 ) & Long.MAX_VALUE ) % numBits;
+            setBit( bit );
+        }
+        added.incrementAndGet();
+    }
+
+    /**
+     * @return false if the PID has definitely not been added
+     */
+    boolean mightContain( String pid )
+    {
+        BytesRef bytes = new BytesRef( pid );
+        long hash1 = hash( bytes, 0x9E3779B97F4A7C15L );
+        long hash2 = hash( bytes, 0xC2B2AE3D27D4EB4FL ) | 1;
+        for( int i = 0; i < numHashes; i++ )
+        {
+            long bit = ( ( hash1 + i * hash2 ) & Long.MAX_VALUE ) % numBits;
+            if( ( bits.get( (int) ( bit >>> 6 ) ) & ( 1L << bit ) ) == 0 )
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the number of PIDs added, including PIDs added more than once
+     */
+    long getAdded()
+    {
+        return added.get();
+    }
+
+    long getExpectedPids()
+    {
+        return expectedPids;
+    }
+
+    long getSizeInBytes()
+    {
+        return numBits / 8;
+    }
+
+    private void setBit( long bit )
+    {
+        int word = (int) ( bit >>> 6 );
+        long mask = 1L << bit;
+        while( true )
+        {
+            long current = bits.get( word );
+            if( ( current & mask ) != 0 || bits.compareAndSet( word, current, current | mask ) )
+            {
+                return;
+            }
+        }
+    }
+
+    /**
+     * 64 bit FNV-1a over the bytes, starting from the seed, followed by the
+     * MurmurHash3 finalizer to spread the bits.
+     */
+    private static long hash( BytesRef bytes, long seed )
+    {
+        long h = 0xCBF29CE484222325L ^ seed;
+        for( int i = bytes.offset; i < bytes.offset + bytes.length; i++ )
+        {
+            h ^= bytes.bytes[i] & 0xFF;
+            h *= 0x100000001B3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB93FE1A85EC3L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
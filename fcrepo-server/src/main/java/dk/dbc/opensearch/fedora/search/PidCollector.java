@@ -20,21 +20,30 @@
 package dk.dbc.opensearch.fedora.search;
 
 import org.apache.lucene.document.Document;
+import org.apache.lucene.index.DocValues;
 import org.apache.lucene.index.IndexableField;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.search.Collector;
 import org.apache.lucene.search.Scorer;
+import org.apache.lucene.util.BytesRef;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.Collections;
+import java.util.Set;
 import org.apache.lucene.index.AtomicReaderContext;
 
 /**
  * This class is an implementation of the
  * {@link org.apache.lucene.search.Collector} abstract class for providing
  * the entire collection of search result PIDs unsorted.
+ * <p>
+ * PIDs are read from the per-segment DocValues column of the pid field.
+ * Documents indexed before the pid field carried DocValues (or merged into a
+ * segment together with such documents) have no value in the column, and
+ * for those the PID is read from the stored field instead.
  */
 public class PidCollector extends Collector
 {
@@ -42,8 +51,12 @@ public class PidCollector extends Collector
 
     private IPidList pidList;
     private long pidsCollected = 0;
+    private long storedFieldLookups = 0;
     private IndexReader currentReader = null;
+    private DocValues.Source currentPidValues = null;
+    private final BytesRef scratch = new BytesRef();
     private final static String pidFieldName = "pid";
+    private final static Set<String> pidFieldSet = Collections.singleton( pidFieldName );
     private final int maxInMemory;
     private final File tmpDir;
 
@@ -67,40 +80,80 @@ public class PidCollector extends Collector
     {
         log.trace( "Collecting docId: {}", docId );
 
-        Document doc = currentReader.document( docId );
-        if( doc == null )
+        String pidFieldValue = null;
+        if( currentPidValues != null )
         {
-            log.warn( "Failed to retrieve Document for id {}", docId );
+            currentPidValues.getBytes( docId, scratch );
+            if( scratch.length > 0 )
+            {
+                pidFieldValue = scratch.utf8ToString();
+            }
+        }
+
+        if( pidFieldValue == null )
+        {
+            pidFieldValue = getStoredPid( docId );
+        }
+
+        if( pidFieldValue == null )
+        {
+            return;
+        }
+
+        if( pidFieldValue.isEmpty() )
+        {
+            log.warn( "Empty value for PID from field '{}' will not be in result set", pidFieldName );
         }
         else
         {
-            IndexableField pidField = doc.getField( pidFieldName );
-            if( pidField == null )
+            if( pidsCollected == maxInMemory )
             {
-                log.warn( "Unable to retrieve PID field '{}' from the index Document", pidFieldName );
-            }
-            else
-            {
-                String pidFieldValue = pidField.stringValue();
-                if( pidFieldValue.isEmpty() )
-                {
-                    log.warn( "Empty value for PID from field '{}' will not be in result set", pidFieldName );
-                }
-                else
-                {
-                    if( pidsCollected == maxInMemory )
-                    {
-                        IPidList tmpPidList = new PidListInFile( File.createTempFile( "pids", ".bin", tmpDir ), pidList );
-                        pidList.dispose();
-                        pidList = tmpPidList;
-                    }
-
-                    log.debug( "Adding PID '{}' to result set", pidFieldValue );
-                    pidList.addPid( pidFieldValue );
-                    pidsCollected++;
-                }
+                IPidList tmpPidList = new PidListInFile( File.createTempFile( "pids", ".bin", tmpDir ), pidList );
+                pidList.dispose();
+                pidList = tmpPidList;
             }
+
+            log.debug( "Adding PID '{}' to result set", pidFieldValue );
+            pidList.addPid( pidFieldValue );
+            pidsCollected++;
+        }
+    }
+
+    /**
+     * Reads the PID of a document from the stored pid field, loading only
+     * that field. Used for documents without a value in the pid DocValues.
+     *
+     * @return the stored PID, or null if it could not be retrieved
+     */
+    private String getStoredPid( final int docId ) throws IOException
+    {
+        storedFieldLookups++;
+
+        Document doc = currentReader.document( docId, pidFieldSet );
+        if( doc == null )
+        {
+            log.warn( "Failed to retrieve Document for id {}", docId );
+            return null;
         }
+
+        IndexableField pidField = doc.getField( pidFieldName );
+        if( pidField == null )
+        {
+            log.warn( "Unable to retrieve PID field '{}' from the index Document", pidFieldName );
+            return null;
+        }
+        return pidField.stringValue();
+    }
+
+    /**
+     * Gets the number of PIDs that could not be read from DocValues and had
+     * to be read from stored fields
+     *
+     * @return number of stored field lookups
+     */
+    public long getStoredFieldLookups()
+    {
+        return storedFieldLookups;
     }
 
     /**
@@ -118,6 +171,8 @@ public class PidCollector extends Collector
     public void setNextReader(AtomicReaderContext context) throws IOException
     {
         currentReader = context.reader();
+        DocValues pidValues = context.reader().docValues( pidFieldName );
+        currentPidValues = ( pidValues == null ) ? null : pidValues.getSource();
     }
 
     @Override
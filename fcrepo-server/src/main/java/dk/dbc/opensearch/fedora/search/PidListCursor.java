@@ -0,0 +1,207 @@
+/*
+ * This file is part of opensearch.
+ * Copyright (c) 2012, Dansk Bibliotekscenter a/s,
+ * Tempovej 7-11, DK-2750 Ballerup, Denmark. CVR: 15149043
+ *
+ * opensearch is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * opensearch is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with opensearch. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package dk.dbc.opensearch.fedora.search;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ReferenceManager;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.TotalHitCountCollector;
+import org.apache.lucene.search.Weight;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * PidListCursor
+ * <p>
+ * Implementation of the IPidList interface reading the PIDs of a search
+ * result one page at a time, instead of collecting them all up front.
+ * <p>
+ * The list holds on to the searcher the query was executed with, so every
+ * page is read from the same point-in-time view of the index. Each call to
+ * {@link #getNextPids(int)} continues after the last document returned, in
+ * index order, by advancing the query's scorer directly to that position.
+ * Only the total hit count is computed when the list is created.
+ * <p>
+ * The searcher is released to its manager when the list is disposed, so a
+ * list must always be disposed, e.g. when its search result expires.
+ */
+public class PidListCursor implements IPidList
+{
+    private final static Logger log = LoggerFactory.getLogger( PidListCursor.class );
+
+    private final ReferenceManager< IndexSearcher > searcherManager;
+    private final IndexSearcher searcher;
+    private final Weight weight;
+    private final List< AtomicReaderContext > leaves;
+    private final int size;
+    private final AtomicLong storedFieldLookups;
+
+    /** The leaf and the leaf relative document to continue from */
+    private int leaf;
+    private int nextDoc;
+
+    private volatile boolean disposed = false;
+
+    /**
+     * Executes the query and counts the hits.
+     *
+     * @param searcherManager the manager the searcher was acquired from
+     * @param searcher the searcher to read the pages with. It is released
+     *        when the list is disposed, also if this constructor fails
+     * @param query the query
+     * @param storedFieldLookups counter of PIDs read from stored fields
+     * @throws IOException if the query could not be executed
+     */
+    PidListCursor( ReferenceManager< IndexSearcher > searcherManager, IndexSearcher searcher,
+                   Query query, AtomicLong storedFieldLookups ) throws IOException
+    {
+        this.searcherManager = searcherManager;
+        this.searcher = searcher;
+        this.storedFieldLookups = storedFieldLookups;
+        try
+        {
+            this.weight = searcher.createNormalizedWeight( query );
+            this.leaves = searcher.getIndexReader().leaves();
+
+            TotalHitCountCollector counter = new TotalHitCountCollector();
+            searcher.search( query, counter );
+            this.size = counter.getTotalHits();
+        }
+        catch( IOException ex )
+        {
+            dispose();
+            throw ex;
+        }
+        catch( RuntimeException ex )
+        {
+            dispose();
+            throw ex;
+        }
+        log.debug( "Opened cursor over {} hits in {} segments", size, leaves.size() );
+    }
+
+    @Override
+    public void addPid( String pid )
+    {
+        throw new UnsupportedOperationException( "PIDs are read from the index" );
+    }
+
+    @Override
+    public Collection< String > getNextPids( int wanted ) throws IOException
+    {
+        if( disposed )
+        {
+            throw new IOException( "Cursor has been disposed, the search result has expired" );
+        }
+        if( wanted <= 0 || leaf >= leaves.size() )
+        {
+            return Collections.emptyList();
+        }
+
+        PidCollector pidCollector = new PidCollector( Integer.MAX_VALUE, null );
+        int collected = 0;
+        while( collected < wanted && leaf < leaves.size() )
+        {
+            AtomicReaderContext context = leaves.get( leaf );
+            Scorer scorer = weight.scorer( context, true, false, context.reader().getLiveDocs() );
+            int doc = ( scorer == null ) ? DocIdSetIterator.NO_MORE_DOCS : scorer.advance( nextDoc );
+            if( doc != DocIdSetIterator.NO_MORE_DOCS )
+            {
+                pidCollector.setNextReader( context );
+            }
+            while( doc != DocIdSetIterator.NO_MORE_DOCS && collected < wanted )
+            {
+                pidCollector.collect( doc );
+                collected++;
+                nextDoc = doc + 1;
+                doc = scorer.nextDoc();
+            }
+            if( doc == DocIdSetIterator.NO_MORE_DOCS )
+            {
+                leaf++;
+                nextDoc = 0;
+            }
+        }
+        storedFieldLookups.addAndGet( pidCollector.getStoredFieldLookups() );
+
+        return pidCollector.getResults().getNextPids( collected );
+    }
+
+    @Override
+    public int size()
+    {
+        return size;
+    }
+
+    /**
+     * The PIDs are read from the index as they are requested, none are held
+     */
+    @Override
+    public int getPidsInMemory()
+    {
+        return 0;
+    }
+
+    @Override
+    public long getBytesInFile()
+    {
+        return 0;
+    }
+
+    /**
+     * Rewinds the cursor to the first hit
+     */
+    @Override
+    public void commit()
+    {
+        leaf = 0;
+        nextDoc = 0;
+    }
+
+    /**
+     * Releases the searcher. Further reads from the list throw an
+     * IOException
+     */
+    @Override
+    public synchronized void dispose()
+    {
+        if( !disposed )
+        {
+            disposed = true;
+            try
+            {
+                searcherManager.release( searcher );
+            }
+            catch( IOException ex )
+            {
+                log.warn( "Could not release searcher: {}", ex.getMessage() );
+            }
+        }
+    }
+}
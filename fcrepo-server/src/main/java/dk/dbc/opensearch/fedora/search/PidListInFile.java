@@ -51,6 +51,8 @@ public class PidListInFile implements IPidList
 
     private int size = 0;
 
+    private long bytes = 0;
+
     private int cursor = 0;
 
     private File pidFile;
@@ -129,6 +131,7 @@ public class PidListInFile implements IPidList
         // Write bytes
         stream.write( bytes );
         size++;
+        this.bytes += 1 + bytes.length;
         log.debug( "Appended PID '{}'. Size is now {}", pid, size );
     }
 
@@ -217,6 +220,7 @@ public class PidListInFile implements IPidList
             {
                 log.warn( "File '{}' could not be deleted", pidFile );
             }
+            bytes = 0;
         }
         log.debug( "Returning {} pids", pids.size() );
         return pids;
@@ -229,6 +233,18 @@ public class PidListInFile implements IPidList
         return size;
     }
 
+    @Override
+    public int getPidsInMemory()
+    {
+        return 0;
+    }
+
+    @Override
+    public long getBytesInFile()
+    {
+        return bytes;
+    }
+
     @Override
     public void commit() throws IOException
     {
@@ -261,6 +277,7 @@ public class PidListInFile implements IPidList
         pidFile.delete();
         readOffset = 0;
         size = 0;
+        bytes = 0;
     }
 
 }
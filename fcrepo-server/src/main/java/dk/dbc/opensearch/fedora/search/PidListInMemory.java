@@ -76,6 +76,18 @@ public class PidListInMemory implements IPidList
         return pidList.size();
     }
 
+    @Override
+    public int getPidsInMemory()
+    {
+        return pidList.size();
+    }
+
+    @Override
+    public long getBytesInFile()
+    {
+        return 0;
+    }
+
     @Override
     public void commit() throws IOException
     {
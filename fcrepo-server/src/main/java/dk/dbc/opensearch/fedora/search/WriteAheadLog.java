@@ -7,7 +7,6 @@ import com.esotericsoftware.kryo.Serializer;
 import com.esotericsoftware.kryo.io.Input;
 import com.esotericsoftware.kryo.io.InputChunked;
 import com.esotericsoftware.kryo.io.Output;
-import com.esotericsoftware.kryo.io.OutputChunked;
 import java.io.File;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
@@ -17,9 +16,18 @@ import java.nio.ByteBuffer;
 import java.nio.channels.Channels;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.BlockingDeque;
-import java.util.concurrent.LinkedBlockingDeque;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import javax.management.JMException;
 import javax.management.MBeanServer;
 import javax.management.ObjectName;
@@ -27,13 +35,35 @@ import javax.management.ObjectName;
 import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.document.Field;
+import org.apache.lucene.document.IntDocValuesField;
 import org.apache.lucene.document.LongField;
+import org.apache.lucene.document.StoredField;
+import org.apache.lucene.document.StraightBytesDocValuesField;
 import org.apache.lucene.document.StringField;
 import org.apache.lucene.document.TextField;
 import org.apache.lucene.index.Term;
+import org.apache.lucene.search.NRTManager.TrackingIndexWriter;
+import org.apache.lucene.util.BytesRef;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+/**
+ * Write ahead log for the Lucene field index.
+ * <p>
+ * Every update is serialized by the calling thread, in the compact format of
+ * {@link LogRecordFormat} using per-thread buffers, and queued for the log. The first thread to obtain the
+ * log file becomes the appender and writes all queued records, from any
+ * thread, in one write followed by one fsync (group commit). Threads whose
+ * records were written by another appender return as soon as that batch is
+ * durable, so the number of fsyncs grows with the number of batches rather
+ * than the number of updates, and a record waits for at most the batch in
+ * progress and its own.
+ * <p>
+ * The Lucene index is committed for every {@code commitSize} updates and, if
+ * a commit interval is given, at that interval whenever there are uncommitted
+ * updates. A commit only blocks updates while the log file is rotated, not
+ * while Lucene commits.
+ */
 public class WriteAheadLog extends WriteAheadLogStats
 {
     private final static String LOG_OPEN_POSTFIX = ".log";
@@ -45,6 +75,7 @@ public class WriteAheadLog extends WriteAheadLogStats
     private static final Logger log = LoggerFactory.getLogger( WriteAheadLog.class );
 
     private final IndexWriter writer;
+    private final TrackingIndexWriter trackingWriter;
 
     private final File storageDirectory;
 
@@ -52,16 +83,72 @@ public class WriteAheadLog extends WriteAheadLogStats
     
     private final boolean keepFileOpen;
 
-    private final int numConcurrentTLogs;
-    private final BlockingDeque<TLogFile> tLogPool;
-    private final AtomicInteger tLogEntryId = new AtomicInteger();
+    private final long commitIntervalMS;
+    private ScheduledExecutorService commitScheduler;
+
+    /**
+     * The single log file all records are appended to. Only accessed while
+     * holding {@link #appendLock}.
+     */
+    private TLogFile tLog;
+    private final ReentrantLock appendLock = new ReentrantLock();
+
+    /**
+     * Records waiting to be written by the next appender. Entry ids are
+     * assigned while holding the lock on this list, so the list, and thereby
+     * the log file, is always ordered by entry id.
+     */
+    private final List<LogRecord> pendingRecords = new ArrayList<LogRecord>();
+    private int nextLogEntryId = 0;
+
+    /**
+     * Held in read mode by updates from the time their record is queued until
+     * the update is applied to the index writer, and in write mode while the
+     * log is rotated for a commit. This ensures that a commit includes every
+     * update found in the rotated log.
+     */
+    private final ReentrantReadWriteLock rotationLock = new ReentrantReadWriteLock();
+
+    /**
+     * Held by an update from the time its entry id is assigned until it is
+     * applied to the index writer, so that updates of the same PID reach the
+     * writer in the order they are logged. Striped by the hash of the PID.
+     */
+    private static final int PID_LOCK_STRIPES = 64;
+    private final Object[] pidLocks = new Object[PID_LOCK_STRIPES];
+
+    /**
+     * Set when a failed write could not be removed from the log file, so
+     * records appended after it could not be recovered. Appends are refused
+     * until the log is rotated. Only accessed while holding
+     * {@link #appendLock}.
+     */
+    private IOException brokenLog;
             
     private ObjectName jmxObjectName;
-    private final static Kryo serializer = new Kryo();
-    
 
-    static
+    /** Value types of Kryo serialized {@link StoredField}s. */
+    private static final byte STORED_STRING = 0;
+    private static final byte STORED_INT = 1;
+    private static final byte STORED_LONG = 2;
+
+    /**
+     * Reads records from log files written before the records had a
+     * version, where documents were Kryo serialized.
+     */
+    private static final ThreadLocal<Kryo> threadSerializer = new ThreadLocal<Kryo>()
+    {
+        @Override
+        protected Kryo initialValue()
+        {
+            return createLegacySerializer();
+        }
+    };
+
+
+    static Kryo createLegacySerializer()
     {
+        Kryo serializer = new Kryo();
         serializer.addDefaultSerializer( LongField.class, new Serializer<LongField>()
         {
             @Override
@@ -117,23 +204,118 @@ public class WriteAheadLog extends WriteAheadLogStats
                 return new TextField( name, value, stored ? Field.Store.YES : Field.Store.NO );
             }
         });
+        serializer.addDefaultSerializer( StoredField.class, new Serializer<StoredField>()
+        {
+            @Override
+            public void write( Kryo kryo, Output output, StoredField object )
+            {
+                output.writeString( object.name() );
+                Number number = object.numericValue();
+                if ( number instanceof Integer )
+                {
+                    output.writeByte( STORED_INT );
+                    output.writeInt( number.intValue() );
+                }
+                else if ( number instanceof Long )
+                {
+                    output.writeByte( STORED_LONG );
+                    output.writeLong( number.longValue() );
+                }
+                else if ( number == null && object.stringValue() != null )
+                {
+                    output.writeByte( STORED_STRING );
+                    output.writeString( object.stringValue() );
+                }
+                else
+                {
+                    throw new KryoException( "Unsupported value in stored field " + object.name() );
+                }
+            }
+            @Override
+            public StoredField read( Kryo kryo, Input input, Class<StoredField> type )
+            {
+                String name = input.readString();
+                byte valueType = input.readByte();
+                switch ( valueType )
+                {
+                    case STORED_INT:
+                        return new StoredField( name, input.readInt() );
+                    case STORED_LONG:
+                        return new StoredField( name, input.readLong() );
+                    case STORED_STRING:
+                        return new StoredField( name, input.readString() );
+                    default:
+                        throw new KryoException( "Unknown value type " + valueType + " in stored field " + name );
+                }
+            }
+        });
+        serializer.addDefaultSerializer( StraightBytesDocValuesField.class,new Serializer<StraightBytesDocValuesField>()
+        {
+            @Override
+            public void write( Kryo kryo, Output output, StraightBytesDocValuesField object )
+            {
+                BytesRef value = object.binaryValue();
+                output.writeString( object.name() );
+                output.writeInt( value.length, true );
+                output.writeBytes( value.bytes, value.offset, value.length );
+            }
+            @Override
+            public StraightBytesDocValuesField read( Kryo kryo, Input input, Class<StraightBytesDocValuesField> type )
+            {
+                String name = input.readString();
+                int length = input.readInt( true );
+                byte[] value = input.readBytes( length );
+                return new StraightBytesDocValuesField( name, new BytesRef( value ), false );
+            }
+        });
+        serializer.addDefaultSerializer( IntDocValuesField.class, new Serializer<IntDocValuesField>()
+        {
+            @Override
+            public void write( Kryo kryo, Output output, IntDocValuesField object )
+            {
+                output.writeString( object.name() );
+                output.writeInt( object.numericValue().intValue() );
+            }
+            @Override
+            public IntDocValuesField read( Kryo kryo, Input input, Class<IntDocValuesField> type )
+            {
+                String name = input.readString();
+                int value = input.readInt();
+                return new IntDocValuesField( name, value );
+            }
+        });
+        return serializer;
     }
     
 
-    public WriteAheadLog( IndexWriter writer, File storageDirectory, int commitSize, boolean keepFileOpen, int numConcurrentTLogs ) throws IOException
+    public WriteAheadLog( IndexWriter writer, File storageDirectory, int commitSize, boolean keepFileOpen ) throws IOException
+    {
+        this( writer, storageDirectory, commitSize, keepFileOpen, 0 );
+    }
+
+    /**
+     * @param commitIntervalMS if positive, the maximum time in milliseconds an
+     *        update may stay uncommitted in the index, regardless of commitSize
+     */
+    public WriteAheadLog( IndexWriter writer, File storageDirectory, int commitSize, boolean keepFileOpen, long commitIntervalMS ) throws IOException
     {
         super( commitSize );
-        log.info( "Creating Write Ahead Log in directory {}, with commit size: {} and keepFileOpen: {}",
-                new Object[] { storageDirectory.getAbsolutePath(), commitSize, keepFileOpen} );
+        log.info( "Creating Write Ahead Log in directory {}, with commit size: {}, commit interval: {} ms and keepFileOpen: {}",
+                new Object[] { storageDirectory.getAbsolutePath(), commitSize, commitIntervalMS, keepFileOpen} );
 
         checkParameterForNullLogAndThrow( "writer", writer );
         checkParameterForNullLogAndThrow( "storageDirectory", storageDirectory );
 
 
         this.writer = writer;
+        this.trackingWriter = new TrackingIndexWriter( writer );
         this.storageDirectory = storageDirectory;
         this.keepFileOpen = keepFileOpen;
-        this.numConcurrentTLogs = numConcurrentTLogs;
+        this.commitIntervalMS = commitIntervalMS;
+        for ( int i = 0; i < pidLocks.length; i++ )
+        {
+            pidLocks[i] = new Object();
+        }
 
         // Register the JMX monitoring bean
         try
@@ -146,9 +328,6 @@ public class WriteAheadLog extends WriteAheadLogStats
         {
             log.error( "Unable to register monitor. JMX Monitoring will be unavailable", ex);
         }
-        
-        this.tLogPool = new LinkedBlockingDeque<TLogFile>(numConcurrentTLogs);
-
     }
 
     private void checkParameterForNullLogAndThrow( String name, Object value)
@@ -169,73 +348,200 @@ public class WriteAheadLog extends WriteAheadLogStats
         {
             count = recoverUncomittedFiles();
         }
-        for (int i = 0; i < numConcurrentTLogs; i++) {
-            this.tLogPool.add(new TLogFile(storageDirectory, i, keepFileOpen));
-        }
+        tLog = new TLogFile( storageDirectory, 0, keepFileOpen );
         isOpen = true;
+
+        if ( commitIntervalMS > 0 )
+        {
+            commitScheduler = Executors.newSingleThreadScheduledExecutor( new ThreadFactory()
+            {
+                @Override
+                public Thread newThread( Runnable r )
+                {
+                    Thread t = new Thread( r, "WriteAheadLog commit" );
+                    t.setDaemon( true );
+                    return t;
+                }
+            } );
+            commitScheduler.scheduleWithFixedDelay( new IntervalCommit(), commitIntervalMS, commitIntervalMS, TimeUnit.MILLISECONDS );
+        }
         return count;
     }
     
+    /**
+     * Replays all log files left by an unclean shutdown and commits the
+     * result. The files are read in parallel, and since replaying an update
+     * or delete is idempotent per PID, only the last logged operation for
+     * each PID is applied. Records in commit files precede records in open
+     * log files. Within a file records are ordered by their position, since
+     * entry ids restart whenever the log is rotated, and records in different
+     * files of the same group are ordered by entry id. The files are deleted
+     * once the recovered documents are committed, so that they are neither
+     * appended to nor replayed again.
+     *
+     * @return the number of log records read
+     */
     int recoverUncomittedFiles( ) throws IOException
     {
-        return recoverUncomittedFiles( LOG_COMITTING_POSTFIX ) + recoverUncomittedFiles( LOG_OPEN_POSTFIX );
-    }
-    
-    int recoverUncomittedFiles( String postFix ) throws IOException
-    {
-        // Prepare all files in storageDirectory for processing
-        List<DocumentDataWrapper> files = new ArrayList<DocumentDataWrapper>();
-        for (File f : storageDirectory.listFiles()) {
-            if(f.getName().endsWith(postFix)){
-                DocumentDataWrapper w = new DocumentDataWrapper(new RandomAccessFile( f, "r" ));
-                try {
-                    w.doc = WriteAheadLog.readDocumentData(w.raf);
-                    files.add(w);
-                } catch (KryoException ex) {
-                    log.debug("No entries in log file {}", w.raf);
-                }
+        long recoveryStart = System.nanoTime();
+        List<RecoveryFile> files = new ArrayList<RecoveryFile>();
+        for ( File f : storageDirectory.listFiles() )
+        {
+            if ( f.getName().endsWith( LOG_COMITTING_POSTFIX ) )
+            {
+                files.add( new RecoveryFile( f, 0 ) );
+            }
+            else if ( f.getName().endsWith( LOG_OPEN_POSTFIX ) )
+            {
+                files.add( new RecoveryFile( f, 1 ) );
             }
         }
-        
-        // In each loop step, the "top" unprocessed document from each file is considered.
-        // The document with the smallest logEntryId will be processed.
+        log.info( "Recovering {} Write Ahead Log files", files.size() );
+
+        int threads = Math.max( 1, Runtime.getRuntime().availableProcessors() );
+        ExecutorService executor = Executors.newFixedThreadPool( threads );
         int count = 0;
-        while( true )
+        try
         {
-            DocumentDataWrapper toBeWritten = null;
-            for (DocumentDataWrapper file : files) {
-                if(toBeWritten == null || file.doc.logEntryId < toBeWritten.doc.logEntryId){
-                    toBeWritten = file;
-                }
+            final ConcurrentMap<String, RecoveredOperation> latest = new ConcurrentHashMap<String, RecoveredOperation>();
+            List<Future<Integer>> reads = new ArrayList<Future<Integer>>();
+            for ( final RecoveryFile file : files )
+            {
+                reads.add( executor.submit( new Callable<Integer>()
+                {
+                    @Override
+                    public Integer call() throws IOException
+                    {
+                        return readRecoveryFile( file, latest );
+                    }
+                } ) );
             }
+            count = waitForRecoveryTasks( reads );
+            numberOfRecoveredRecords.set( count );
+            log.info( "Read {} records for {} documents from Write Ahead Log", count, latest.size() );
 
-            if(toBeWritten != null){
-                count++;
-                Term pidTerm = getPidTerm( toBeWritten.doc.pid );
-                if ( toBeWritten.doc.docOrNull == null )
+            List<RecoveredOperation> operations = new ArrayList<RecoveredOperation>( latest.values() );
+            int chunkSize = ( operations.size() + threads - 1 ) / threads;
+            List<Future<Integer>> applies = new ArrayList<Future<Integer>>();
+            for ( int i = 0; i < operations.size(); i += chunkSize )
+            {
+                final List<RecoveredOperation> chunk = operations.subList( i, Math.min( i + chunkSize, operations.size() ) );
+                applies.add( executor.submit( new Callable<Integer>()
                 {
-                    log.info( "Recovering deleted document for {}", toBeWritten.doc );
-                    writer.deleteDocuments( pidTerm );
+                    @Override
+                    public Integer call() throws IOException
+                    {
+                        return applyRecoveredOperations( chunk );
+                    }
+                } ) );
+            }
+            waitForRecoveryTasks( applies );
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+        writer.commit();
+        for ( RecoveryFile file : files )
+        {
+            if ( !file.file.delete() && file.file.exists() )
+            {
+                throw new IOException( "Unable to delete recovered Write Ahead Log file " + file.file.getAbsolutePath() );
+            }
+            log.debug( "Deleted recovered tlog-file {}", file.file.getAbsolutePath() );
+        }
+
+        long recoveryEnd = System.nanoTime();
+        recoveryTimeMicroS.set( (recoveryEnd - recoveryStart)/1000 );
+        log.info( "Recovered {} documents from Write Ahead Log in {} ms",
+                numberOfRecoveredDocuments, (recoveryEnd - recoveryStart)/1000000 );
+        return count;
+    }
+
+    private static int readRecoveryFile( RecoveryFile file, ConcurrentMap<String, RecoveredOperation> latest ) throws IOException
+    {
+        int count = 0;
+        RandomAccessFile raf = new RandomAccessFile( file.file, "r" );
+        try
+        {
+            while ( true )
+            {
+                DocumentData doc;
+                long position = raf.getFilePointer();
+                try
+                {
+                    doc = WriteAheadLog.readDocumentData( raf );
                 }
-                else
+                catch ( KryoException ex )
                 {
-                    log.info( "Recovering updated document for {}", toBeWritten.doc.pid );
-                    writer.updateDocument( pidTerm, toBeWritten.doc.docOrNull );
+                    log.info( "No more updates found in log file {}", file.file );
+                    break;
                 }
-                try{ 
-                    toBeWritten.doc = WriteAheadLog.readDocumentData(toBeWritten.raf);
-                }catch( KryoException ex ){
-                    log.info( "No more updates found in log file {}", toBeWritten.raf);
-                    files.remove(toBeWritten);
+                count++;
+                RecoveredOperation operation = new RecoveredOperation( file, position, doc );
+                while ( true )
+                {
+                    RecoveredOperation existing = latest.putIfAbsent( doc.pid, operation );
+                    if ( existing == null || !operation.isNewerThan( existing ) || latest.replace( doc.pid, existing, operation ) )
+                    {
+                        break;
+                    }
                 }
-            }else{
-                log.info("All files read");
-                break;
             }
         }
-        writer.commit();
+        finally
+        {
+            raf.close();
+        }
         return count;
     }
+
+    private int applyRecoveredOperations( List<RecoveredOperation> operations ) throws IOException
+    {
+        for ( RecoveredOperation operation : operations )
+        {
+            DocumentData doc = operation.doc;
+            Term pidTerm = getPidTerm( doc.pid );
+            if ( doc.docOrNull == null )
+            {
+                log.debug( "Recovering deleted document for {}", doc );
+                writer.deleteDocuments( pidTerm );
+            }
+            else
+            {
+                log.debug( "Recovering updated document for {}", doc.pid );
+                writer.updateDocument( pidTerm, doc.docOrNull );
+            }
+            numberOfRecoveredDocuments.incrementAndGet();
+        }
+        return operations.size();
+    }
+
+    private static int waitForRecoveryTasks( List<Future<Integer>> tasks ) throws IOException
+    {
+        int sum = 0;
+        for ( Future<Integer> task : tasks )
+        {
+            try
+            {
+                sum += task.get();
+            }
+            catch ( InterruptedException ex )
+            {
+                Thread.currentThread().interrupt();
+                throw new IOException( "Interrupted while recovering Write Ahead Log", ex );
+            }
+            catch ( ExecutionException ex )
+            {
+                if ( ex.getCause() instanceof IOException )
+                {
+                    throw (IOException) ex.getCause();
+                }
+                throw new IOException( "Failed recovering Write Ahead Log", ex.getCause() );
+            }
+        }
+        return sum;
+    }
     
     public void deleteDocument( String pid) throws IOException
     {
@@ -258,30 +564,29 @@ public class WriteAheadLog extends WriteAheadLogStats
         {
             throw new IOException( "Write Ahead Log is not open");
         }
-        
-        TLogFile tlog = null;
+
+        byte[] recordBody = LogRecordFormat.createRecordBody( pid, docOrNull );
+
+        rotationLock.readLock().lock();
         try
         {
-            tlog = tLogPool.takeLast();
-            byte[] recordBytes = createDocumentData( tLogEntryId.getAndIncrement(), pid, docOrNull );
-            writeDocumentToFile( recordBytes, tlog.getFileAccess() );
-            updateInWriter( pid, docOrNull );
+            synchronized ( pidLocks[( pid.hashCode() & Integer.MAX_VALUE ) % pidLocks.length] )
+            {
+                LogRecord record;
+                synchronized ( pendingRecords )
+                {
+                    record = new LogRecord( nextLogEntryId++, recordBody );
+                    pendingRecords.add( record );
+                }
+                appendToLog( record );
+                updateInWriter( pid, docOrNull );
+            }
         }
-        catch (InterruptedException ex) 
-        {
-            log.error("Couldn't take tLogFile", ex);
-            throw new RuntimeException(ex);
-        }        
         finally
         {
-            if( tlog != null)
-            {
-                tlog.releaseFileAccess();
-                tLogPool.addLast(tlog);
-            }
+            rotationLock.readLock().unlock();
         }
 
-        
         if (updates % commitSize == 0) 
         {
             // Time to commit.
@@ -293,64 +598,204 @@ public class WriteAheadLog extends WriteAheadLogStats
         totalUpdateTimeMicroS.addAndGet( (updateEnd - updateStart)/1000 );
     }
 
-    private void commitNow() throws IOException {
-        synchronized(this)
+    /**
+     * Returns when the record has been written and synced to the log, either
+     * by this thread or as part of another thread's batch.
+     */
+    private void appendToLog( LogRecord record ) throws IOException
+    {
+        appendLock.lock();
+        try
+        {
+            if ( !record.written )
+            {
+                List<LogRecord> batch;
+                synchronized ( pendingRecords )
+                {
+                    batch = new ArrayList<LogRecord>( pendingRecords );
+                    pendingRecords.clear();
+                }
+                writeBatch( batch );
+            }
+        }
+        finally
         {
-            // Reserve all log files. This will wait for other threads to finish writing.
-            List<TLogFile> logFiles = obtainLogFiles();
+            appendLock.unlock();
+        }
 
-            // Make commit files
-            List<File> commitFiles = new ArrayList<File>();
-            for (TLogFile l : logFiles)
+        if ( record.failure != null )
+        {
+            throw new IOException( "Unable to write to Write Ahead Log", record.failure );
+        }
+    }
+
+    /**
+     * Writes and syncs a batch of records. If the write fails, the file is
+     * truncated to its length before the write, so that a torn record does
+     * not hide the records appended after it from recovery. If that fails
+     * too, the log is marked broken and refuses appends until it is rotated.
+     */
+    private void writeBatch( List<LogRecord> batch )
+    {
+        long writeStart = System.nanoTime();
+        IOException failure = null;
+        RandomAccessFile raf = null;
+        long length = -1;
+        try
+        {
+            if ( brokenLog != null )
+            {
+                throw new IOException( "Write Ahead Log is broken by an earlier failed write", brokenLog );
+            }
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            for ( LogRecord record : batch )
+            {
+                LogRecordFormat.writeRecord( bos, record.logEntryId, record.body );
+            }
+            raf = tLog.getFileAccess();
+            length = raf.getChannel().position();
+            writeDocumentData( raf, bos.toByteArray() );
+            numberOfLogWriteBytes.addAndGet( bos.size() );
+            raf.getChannel().force( false );
+        }
+        catch ( IOException ex )
+        {
+            log.error( "Failed writing {} records to Write Ahead Log", batch.size(), ex );
+            failure = ex;
+            if ( length >= 0 )
+            {
+                try
+                {
+                    raf.getChannel().truncate( length );
+                    raf.getChannel().position( length );
+                    raf.getChannel().force( false );
+                }
+                catch ( IOException truncateEx )
+                {
+                    log.error( "Unable to remove failed write from Write Ahead Log, refusing further updates until next commit", truncateEx );
+                    brokenLog = truncateEx;
+                }
+            }
+        }
+        finally
+        {
+            try
             {
-                commitFiles.add(l.makeCommitFile());
+                tLog.releaseFileAccess();
             }
+            catch ( IOException ex )
+            {
+                log.error( "Failed releasing Write Ahead Log file", ex );
+                if ( failure == null )
+                {
+                    failure = ex;
+                }
+            }
+        }
+        for ( LogRecord record : batch )
+        {
+            record.written = true;
+            record.failure = failure;
+        }
+        long writeEnd = System.nanoTime();
+        numberOfLogWrites.incrementAndGet();
+        numberOfLogWriteRecords.addAndGet( batch.size() );
+        totalWriteToFileTimeMicroS.addAndGet( (writeEnd - writeStart)/1000 );
+    }
 
-            // Reset tLogEntryId, and release log files
-            tLogEntryId.set(0);
-            for (TLogFile l : logFiles)
+    private void commitNow() throws IOException {
+        synchronized(this)
+        {
+            // A commit file left by a failed commit holds updates that are in
+            // the writer, so committing the writer makes it obsolete
+            File leftOver = tLog.getCommitFile();
+            if ( leftOver.exists() )
             {
-                tLogPool.addLast(l);
+                log.warn( "Committing updates of commit file {} left by a failed commit", leftOver.getAbsolutePath() );
+                commitWriter();
+                deleteCommitFile( leftOver );
             }
 
-            // Commit and delete commit files
+            File commitFile = rotateLogFile();
+
+            // Commit and delete commit file
             commitWriter();
-            for (File commitFile : commitFiles)
+            if ( commitFile != null )
             {
-                commitFile.delete();
-                log.debug("Deleted commit file {}", commitFile.getAbsolutePath());
+                deleteCommitFile( commitFile );
             }
         }
     }
-    
-    private List<TLogFile> obtainLogFiles(){
+
+    private static void deleteCommitFile( File commitFile ) throws IOException
+    {
+        if ( !commitFile.delete() && commitFile.exists() )
+        {
+            throw new IOException( "Unable to delete commit file " + commitFile.getAbsolutePath() );
+        }
+        log.debug("Deleted commit file {}", commitFile.getAbsolutePath());
+    }
+
+    /**
+     * Waits for all updates in progress to reach the index writer, then moves
+     * the current log file aside and restarts entry ids. Updates arriving
+     * after this goes to a new log file.
+     *
+     * @return the moved log file, or null if nothing has been logged
+     */
+    private File rotateLogFile() throws IOException
+    {
         long start = System.nanoTime();
-        List<TLogFile> result = new ArrayList<TLogFile>();
-        while ( result.size() < numConcurrentTLogs ) 
-        {
-            try {
-                result.add(tLogPool.take());
-            } catch (InterruptedException ex) {
-                
-                for (TLogFile l : result) 
+        rotationLock.writeLock().lock();
+        try
+        {
+            appendLock.lock();
+            try
+            {
+                if ( !tLog.getFile().exists() )
+                {
+                    return null;
+                }
+                File commitFile = tLog.makeCommitFile();
+                synchronized ( pendingRecords )
                 {
-                    tLogPool.add(l);
+                    nextLogEntryId = 0;
                 }
-                
-                log.error("Couldn't obtain all tLogFiles", ex);
-                throw new RuntimeException(ex);
+                // a torn record, if any, went with the old file
+                brokenLog = null;
+                return commitFile;
+            }
+            finally
+            {
+                appendLock.unlock();
             }
         }
-        long end = System.nanoTime();
-        numberOfObtainTLogFiles.incrementAndGet();
-        totalObtainTLogFilesTimeMicroS.addAndGet((end - start)/1000 );
-        return result;
+        finally
+        {
+            rotationLock.writeLock().unlock();
+            long end = System.nanoTime();
+            numberOfObtainTLogFiles.incrementAndGet();
+            totalObtainTLogFilesTimeMicroS.addAndGet((end - start)/1000 );
+        }
     }
     
     private void deleteLogFiles() throws IOException {
-        List<TLogFile> obtainLogFiles = obtainLogFiles();
-        for (TLogFile l : obtainLogFiles) {
-            l.delete();
+        rotationLock.writeLock().lock();
+        try
+        {
+            appendLock.lock();
+            try
+            {
+                tLog.delete();
+            }
+            finally
+            {
+                appendLock.unlock();
+            }
+        }
+        finally
+        {
+            rotationLock.writeLock().unlock();
         }
     }
 
@@ -374,12 +819,12 @@ public class WriteAheadLog extends WriteAheadLogStats
         if ( doc == null )
         {
             log.debug( "Deleting document with PID {}", pid );
-            this.writer.deleteDocuments( pidTerm);
+            this.trackingWriter.deleteDocuments( pidTerm);
         }
         else
         {
             log.debug( "Updating document with PID {}", pid );
-            this.writer.updateDocument( pidTerm, doc );
+            this.trackingWriter.updateDocument( pidTerm, doc );
         }
         long updateEnd = System.nanoTime();
         totalUpdateInLuceneTimeMicroS.addAndGet( (updateEnd - updateStart)/1000 );
@@ -396,6 +841,11 @@ public class WriteAheadLog extends WriteAheadLogStats
         log.info( "Shutting down Write Ahead Log");
         isOpen = false;
 
+        if ( commitScheduler != null )
+        {
+            commitScheduler.shutdownNow();
+        }
+
         commitWriter();
         deleteLogFiles();
         
@@ -414,44 +864,41 @@ public class WriteAheadLog extends WriteAheadLogStats
             }
         }
     }
+    
+    /**
+     * Gets the writer used for all index updates passing through the log, so
+     * searchers can track the generation of the latest update
+     */
+    TrackingIndexWriter getTrackingIndexWriter()
+    {
+        return trackingWriter;
+    }
 
-    private void writeDocumentToFile( byte[] recordBytes, RandomAccessFile raf ) throws IOException
+    /**
+     * Gets the lock held by the appender while it writes a batch, so tests
+     * can make records queue up behind it
+     */
+    ReentrantLock getAppendLock()
     {
-        long writeStart = System.nanoTime();
-        writeDocumentData( raf, recordBytes );
-        long writeEnd = System.nanoTime();
-        totalWriteToFileTimeMicroS.addAndGet( (writeEnd - writeStart)/1000 );
+        return appendLock;
     }
-    
+
+    /**
+     * @return the number of records waiting for the next log write
+     */
     @Override
     public int getTLogSize() {
-        return tLogPool.size();
-    }
-
-//    private static byte[] createDocumentData( String pid, Document docOrNull ) throws IOException
-//    {
-//        ByteArrayOutputStream bos = new ByteArrayOutputStream();
-//        ObjectOutputStream out = new ObjectOutputStream( bos );
-//        out.writeObject( pid );
-//        out.writeObject( docOrNull );
-//        byte[] recordBytes= bos.toByteArray();
-//        out.reset();
-//        return recordBytes;
-//    }
+        synchronized ( pendingRecords )
+        {
+            return pendingRecords.size();
+        }
+    }
+
     private static byte[] createDocumentData( Integer logEntryId, String pid, Document docOrNull ) throws IOException
     {
         ByteArrayOutputStream bos = new ByteArrayOutputStream();
-        OutputChunked output = new OutputChunked( bos );
-        synchronized ( serializer )
-        {
-            serializer.writeObject( output, logEntryId );
-            serializer.writeObject( output, pid );
-            serializer.writeObjectOrNull( output, docOrNull, Document.class );
-        }
-        output.endChunks();
-        output.close();
-        byte[] recordBytes= bos.toByteArray();
-        return recordBytes;
+        LogRecordFormat.writeRecord( bos, logEntryId, LogRecordFormat.createRecordBody( pid, docOrNull ) );
+        return bos.toByteArray();
     }
 
     static void writeDocumentData( RandomAccessFile raf, Integer logEntryId, String pid, Document docOrNull ) throws IOException
@@ -468,22 +915,38 @@ public class WriteAheadLog extends WriteAheadLogStats
         raf.getChannel().write( rbb );
     }
 
+    /**
+     * Reads the next record, in either the current or the Kryo serialized
+     * format.
+     *
+     * @throws KryoException at the end of the file, or if the record is
+     *         truncated
+     */
     static DocumentData readDocumentData( RandomAccessFile raf ) throws KryoException
     {
         InputChunked input = new InputChunked( Channels.newInputStream( raf.getChannel() ) );
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        while ( ( read = input.read( buffer ) ) > 0 )
+        {
+            bos.write( buffer, 0, read );
+        }
+        byte[] record = bos.toByteArray();
+        if ( record.length == 0 )
+        {
+            throw new KryoException( "Empty log record" );
+        }
 
-        Integer logEntryId;
-        String pid;
-        Document doc;
-        
-        synchronized ( serializer )
+        if ( LogRecordFormat.isVersioned( record[0] ) )
         {
-            logEntryId = serializer.readObject( input, Integer.class );
-            pid = serializer.readObject( input, String.class );
-            doc = serializer.readObjectOrNull( input, Document.class );
-            
+            return LogRecordFormat.readRecord( record );
         }
-        input.nextChunks();
+        Input recordInput = new Input( record );
+        Kryo serializer = threadSerializer.get();
+        Integer logEntryId = serializer.readObject( recordInput, Integer.class );
+        String pid = serializer.readObject( recordInput, String.class );
+        Document doc = serializer.readObjectOrNull( recordInput, Document.class );
         return new DocumentData( logEntryId, pid, doc );
     }
 
@@ -493,12 +956,79 @@ public class WriteAheadLog extends WriteAheadLogStats
         return pidTerm;
     }
 
-    static class DocumentDataWrapper
+    /**
+     * Commits the index from the scheduler thread if there are uncommitted
+     * updates.
+     */
+    private final class IntervalCommit implements Runnable
+    {
+        @Override
+        public void run()
+        {
+            if ( isOpen && numberOfUncomittedDocuments.get() > 0 )
+            {
+                try
+                {
+                    commitNow();
+                }
+                catch ( IOException ex )
+                {
+                    log.error( "Scheduled commit of Write Ahead Log failed", ex );
+                }
+            }
+        }
+    }
+
+    /**
+     * A serialized update waiting to be written to the log. The written and
+     * failure fields are only accessed while holding the append lock.
+     */
+    private static final class LogRecord
     {
-        final RandomAccessFile raf;
-        DocumentData doc;
-        public DocumentDataWrapper( RandomAccessFile raf ){
-            this.raf=raf;
+        final Integer logEntryId;
+        final byte[] body;
+        boolean written;
+        IOException failure;
+
+        LogRecord( Integer logEntryId, byte[] body )
+        {
+            this.logEntryId = logEntryId;
+            this.body = body;
+        }
+    }
+
+    static class RecoveryFile
+    {
+        final File file;
+        /** Commit files are generation 0, open log files generation 1 */
+        final int generation;
+        public RecoveryFile( File file, int generation ){
+            this.file = file;
+            this.generation = generation;
+        }
+    }
+    static class RecoveredOperation
+    {
+        final RecoveryFile file;
+        /** The offset of the record in the file */
+        final long position;
+        final DocumentData doc;
+        public RecoveredOperation( RecoveryFile file, long position, DocumentData doc ){
+            this.file = file;
+            this.position = position;
+            this.doc = doc;
+        }
+        boolean isNewerThan( RecoveredOperation other ){
+            if ( file.generation != other.file.generation )
+            {
+                return file.generation > other.file.generation;
+            }
+            if ( file == other.file )
+            {
+                return position > other.position;
+            }
+            // Files from concurrent transaction logs share entry ids
+            return doc.logEntryId > other.doc.logEntryId;
         }
     }
     static class DocumentData
@@ -545,7 +1075,7 @@ public class WriteAheadLog extends WriteAheadLogStats
         public RandomAccessFile getFileAccess() throws IOException 
         {
             if (fileAccess == null) {
-                fileAccess = new RandomAccessFile(file, "rwd");
+                fileAccess = new RandomAccessFile(file, "rw");
                 fileAccess.seek(file.length());
             }
             log.trace("Got file access {}", file.getAbsolutePath());
@@ -572,14 +1102,29 @@ public class WriteAheadLog extends WriteAheadLogStats
             log.debug("Deleted tlog-file {}", file.getAbsolutePath());
         }
 
+        File getCommitFile(){
+            return new File( storageDirectory, fileId+"_"+LOG_NAME + LOG_COMITTING_POSTFIX );
+        }
+
+        /**
+         * Moves the log file aside as the commit file. Refuses to overwrite
+         * the commit file of an unfinished commit.
+         */
         private File makeCommitFile() throws IOException {
+            File commitFile = getCommitFile();
+            if ( commitFile.exists() )
+            {
+                throw new IOException( "Commit file " + commitFile.getAbsolutePath() + " of an unfinished commit exists" );
+            }
             if(fileAccess != null)
             {
                 fileAccess.close();
                 fileAccess = null;
             }
-            File commitFile = new File( storageDirectory, fileId+"_"+LOG_NAME + LOG_COMITTING_POSTFIX );
-            file.renameTo(commitFile);
+            if ( !file.renameTo( commitFile ) )
+            {
+                throw new IOException( "Unable to rename " + file.getAbsolutePath() + " to " + commitFile.getAbsolutePath() );
+            }
             file = initFile();
             log.debug("Created commit file {}", commitFile.getAbsolutePath());
             return commitFile;
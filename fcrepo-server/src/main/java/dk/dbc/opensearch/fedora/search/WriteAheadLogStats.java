@@ -51,6 +51,18 @@ public class WriteAheadLogStats implements WriteAheadLogStatsMBean
     
     protected final AtomicLong totalObtainTLogFilesTimeMicroS = new AtomicLong();
 
+    protected final AtomicInteger numberOfLogWrites = new AtomicInteger();
+
+    protected final AtomicLong numberOfLogWriteRecords = new AtomicLong();
+
+    protected final AtomicLong numberOfLogWriteBytes = new AtomicLong();
+
+    protected final AtomicInteger numberOfRecoveredRecords = new AtomicInteger();
+
+    protected final AtomicInteger numberOfRecoveredDocuments = new AtomicInteger();
+
+    protected final AtomicLong recoveryTimeMicroS = new AtomicLong();
+
     protected final int commitSize;
 
 
@@ -93,8 +105,8 @@ public class WriteAheadLogStats implements WriteAheadLogStatsMBean
     @Override
     public long getAverageWriteToFileTimeMicroS()
     {
-        int updatedDocs = getNumberOfUpdatedDocuments();
-        return updatedDocs == 0 ? 0 : totalWriteToFileTimeMicroS.get() / updatedDocs;
+        int writes = getNumberOfLogWrites();
+        return writes == 0 ? 0 : totalWriteToFileTimeMicroS.get() / writes;
     }
     
     @Override
@@ -103,6 +115,54 @@ public class WriteAheadLogStats implements WriteAheadLogStatsMBean
         return obtainLogFiles == 0 ? 0 : totalObtainTLogFilesTimeMicroS.get() / obtainLogFiles;
     }
 
+    @Override
+    public int getNumberOfLogWrites()
+    {
+        return numberOfLogWrites.get();
+    }
+
+
+    @Override
+    public long getAverageRecordsPerLogWrite()
+    {
+        int writes = getNumberOfLogWrites();
+        return writes == 0 ? 0 : numberOfLogWriteRecords.get() / writes;
+    }
+
+    @Override
+    public long getTotalLogWriteBytes()
+    {
+        return numberOfLogWriteBytes.get();
+    }
+
+
+    @Override
+    public long getAverageBytesPerLogRecord()
+    {
+        long records = numberOfLogWriteRecords.get();
+        return records == 0 ? 0 : numberOfLogWriteBytes.get() / records;
+    }
+
+    @Override
+    public int getNumberOfRecoveredRecords()
+    {
+        return numberOfRecoveredRecords.get();
+    }
+
+
+    @Override
+    public int getNumberOfRecoveredDocuments()
+    {
+        return numberOfRecoveredDocuments.get();
+    }
+
+
+    @Override
+    public long getRecoveryTimeMicroS()
+    {
+        return recoveryTimeMicroS.get();
+    }
+
     @Override
     public int getCommitSize()
     {
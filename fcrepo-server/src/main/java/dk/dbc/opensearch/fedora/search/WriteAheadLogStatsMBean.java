@@ -52,6 +52,20 @@ public interface WriteAheadLogStatsMBean {
     long getAverageWriteToFileTimeMicroS();
     
     long getAverageObtainTLogFilesTimeMicroS();
+
+    int getNumberOfLogWrites();
+
+    long getAverageRecordsPerLogWrite();
+
+    long getTotalLogWriteBytes();
+
+    long getAverageBytesPerLogRecord();
+
+    int getNumberOfRecoveredRecords();
+
+    int getNumberOfRecoveredDocuments();
+
+    long getRecoveryTimeMicroS();
     
     
 }
@@ -4,8 +4,11 @@
  */
 package org.fcrepo.oai;
 
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 
 import java.util.Enumeration;
 import java.util.HashMap;
@@ -33,6 +36,9 @@ import org.fcrepo.server.errors.servletExceptionExtensions.RootException;
 public abstract class OAIProviderServlet
         extends HttpServlet {
 
+    /** the size of the buffer between the responder and the response */
+    private static final int BUFFER_SIZE = 8192;
+
     OAIResponder m_responder;
 
     public OAIProviderServlet() {
@@ -50,10 +56,14 @@ public abstract class OAIProviderServlet
                 String name = (String) enm.nextElement();
                 params.put(name, request.getParameter(name));
             }
-            ByteArrayOutputStream out = new ByteArrayOutputStream();
             Context context =
                     ReadOnlyContext.getContext(Constants.HTTP_REQUEST.REST.uri,
                                                request);
+            response.setContentType("text/xml");
+            response.setCharacterEncoding("UTF-8");
+            OutputStream out =
+                    new BufferedOutputStream(new UnflushedOutputStream(response
+                            .getOutputStream()), BUFFER_SIZE);
             try {
                 getResponder().respond(context, params, out);
             } catch (AuthzException ae) {
@@ -62,9 +72,14 @@ public abstract class OAIProviderServlet
                                                         ACTION_LABEL,
                                                         new String[0]);
             }
-            response.setContentType("text/xml; charset=UTF-8");
-            response.getWriter().print(new String(out.toByteArray(), "UTF-8"));
+            out.flush();
+            response.flushBuffer();
         } catch (Throwable t) {
+            // once part of the response is sent, the error can only cut it
+            // short; until then, it replaces the response
+            if (!response.isCommitted()) {
+                response.reset();
+            }
             throw new InternalError500Exception("",
                                                 t,
                                                 request,
@@ -74,6 +89,27 @@ public abstract class OAIProviderServlet
         }
     }
 
+    /**
+     * Passes the bytes written on, but not flushes, so the response is only
+     * committed once the buffer of the container fills or it is complete.
+     */
+    private static class UnflushedOutputStream
+            extends FilterOutputStream {
+
+        UnflushedOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+        }
+
+        @Override
+        public void flush() {
+        }
+    }
+
     private static String getMessage(Throwable t) {
         String msg = t.getMessage();
         if (msg == null) {
@@ -151,6 +151,12 @@ public class OAIResponder
                 }
                 respondToListMetadataFormats(args, baseURL, m_provider
                         .getMetadataFormats(identifier), out);
+            } else if (verb.equals("ListRecords")
+                    && m_provider instanceof StreamingOAIProvider) {
+                respondToListRecords(args,
+                                     baseURL,
+                                     (StreamingOAIProvider) m_provider,
+                                     out);
             } else if (verb.equals("ListRecords")) {
                 List records = processListRecords( args );
 
@@ -361,20 +367,42 @@ public class OAIResponder
     }
 
     List processListRecords(Map args) throws OAIException, RepositoryException {
-        String rToken = (String) args.get("resumptionToken");
-        List records;
-        if (rToken != null) {
-            if (args.size() > 2) {
-                throw new BadArgumentException("ListRecords request specified resumptionToken with other arguments.");
+        ListRecordsArguments list = new ListRecordsArguments(args);
+        if (list.resumptionToken != null) {
+            return m_provider.getRecords(list.resumptionToken);
+        }
+        return m_provider.getRecords(list.from,
+                                     list.until,
+                                     list.metadataPrefix,
+                                     list.set);
+    }
+
+    /**
+     * The checked arguments of a ListRecords request.
+     */
+    private class ListRecordsArguments {
+
+        String resumptionToken;
+
+        Date from;
+
+        Date until;
+
+        String metadataPrefix;
+
+        String set;
+
+        ListRecordsArguments(Map args) throws OAIException,
+                RepositoryException {
+            resumptionToken = (String) args.get("resumptionToken");
+            if (resumptionToken != null) {
+                if (args.size() > 2) {
+                    throw new BadArgumentException("ListRecords request specified resumptionToken with other arguments.");
+                }
+                return;
             }
-            records = m_provider.getRecords(rToken);
-        } else {
             Iterator iter = args.keySet().iterator();
             boolean badParam = false;
-            Date from = null;
-            Date until = null;
-            String metadataPrefix = null;
-            String set = null;
             while (iter.hasNext()) {
                 String name = (String) iter.next();
                 if (name.equals("metadataPrefix")) {
@@ -399,13 +427,71 @@ public class OAIResponder
             if (metadataPrefix == null) {
                 throw new BadArgumentException("ListRecords request did not specify metadataPrefix argument.");
             }
-            records =
-                    m_provider.getRecords(from,
-                                          until,
-                                          metadataPrefix,
-                                          set);
         }
-        return records;
+    }
+
+    /**
+     * Responds to ListRecords by writing each record as the provider hands
+     * it over. The top of the response is written with the first record, so
+     * errors the provider throws before that still get an error response.
+     */
+    void respondToListRecords(Map args,
+                              String baseURL,
+                              StreamingOAIProvider provider,
+                              PrintWriter out) throws OAIException,
+            RepositoryException {
+        ListRecordsArguments list = new ListRecordsArguments(args);
+        ListRecordsWriter writer = new ListRecordsWriter(args, baseURL, out);
+        ResumptionToken resumptionToken;
+        if (list.resumptionToken != null) {
+            resumptionToken =
+                    provider.getRecords(list.resumptionToken, writer);
+        } else {
+            resumptionToken =
+                    provider.getRecords(list.from,
+                                        list.until,
+                                        list.metadataPrefix,
+                                        list.set,
+                                        writer);
+        }
+        if (!writer.started) {
+            throw new NoRecordsMatchException("No records match the given criteria.");
+        }
+        appendResumptionToken(resumptionToken, out);
+        out.println("  </ListRecords>");
+        appendBottom(out);
+    }
+
+    /**
+     * Writes the records of a ListRecords response, starting the response
+     * with the first record.
+     */
+    private class ListRecordsWriter
+            implements RecordHandler {
+
+        private final Map m_args;
+
+        private final String m_baseURL;
+
+        private final PrintWriter m_out;
+
+        boolean started = false;
+
+        ListRecordsWriter(Map args, String baseURL, PrintWriter out) {
+            m_args = args;
+            m_baseURL = baseURL;
+            m_out = out;
+        }
+
+        public void handleRecord(Record record) throws RepositoryException {
+            if (!started) {
+                appendTop(m_out);
+                appendRequest(m_args, m_baseURL, m_out);
+                m_out.println("  <ListRecords>");
+                started = true;
+            }
+            appendRecord("    ", record, m_out);
+        }
     }
 
     // resumptionToken may be null
@@ -454,13 +540,17 @@ public class OAIResponder
 
     private void appendRecord(String indent, Record record, PrintWriter out) throws RepositoryException {
         Header header = record.getHeader();
-        String metadata = record.getMetadata();
         Set abouts = record.getAbouts();
         out.println(indent + "<record>");
         appendHeader(indent + "  ", header, out);
         if (header.isAvailable()) {
             out.println(indent + "  <metadata>");
-            out.println(metadata);
+            if (record instanceof WritableRecord) {
+                ((WritableRecord) record).writeMetadata(out);
+                out.println();
+            } else {
+                out.println(record.getMetadata());
+            }
             out.println(indent + "  </metadata>");
             Iterator iter = abouts.iterator();
             while (iter.hasNext()) {
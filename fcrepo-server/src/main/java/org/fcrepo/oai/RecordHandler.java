@@ -0,0 +1,25 @@
+/* The contents of this file are subject to the license and copyright terms
+ * detailed in the license directory at the root of the source tree (also
+ * available online at http://fedora-commons.org/license/).
+ */
+package org.fcrepo.oai;
+
+/**
+ * Receives the Records of a list one at a time, as a
+ * {@link StreamingOAIProvider} produces them.
+ */
+public interface RecordHandler {
+
+    /**
+     * Handle the next Record of the list. The Record need not be usable after
+     * the call returns.
+     *
+     * @param record
+     *        the record.
+     * @throws RepositoryException
+     *         if an error has occurred.
+     */
+    public abstract void handleRecord(Record record)
+            throws RepositoryException;
+
+}
@@ -0,0 +1,75 @@
+/* The contents of this file are subject to the license and copyright terms
+ * detailed in the license directory at the root of the source tree (also
+ * available online at http://fedora-commons.org/license/).
+ */
+package org.fcrepo.oai;
+
+import java.util.Date;
+
+/**
+ * An OAIProvider that can hand over the Records of a list one at a time,
+ * instead of returning them all in a List. The OAIResponder then writes each
+ * Record to the response as soon as it is produced, so a ListRecords response
+ * needs no more memory for a large page than for a small one.
+ * <p>
+ * The exceptions of the OAI-PMH protocol (such as NoRecordsMatchException)
+ * must be thrown before the first Record is handled, as the response can't be
+ * changed to an error response after that.
+ */
+public interface StreamingOAIProvider
+        extends OAIProvider {
+
+    /**
+     * Hand the Records in the repository matching the given criteria to the
+     * handler, like getRecords(Date, Date, String, String) returns them.
+     *
+     * @param from
+     *        the beginning date of the date range.
+     * @param until
+     *        the ending date of the date range.
+     * @param metadataPrefix
+     *        the metadata prefix.
+     * @param set
+     *        the set of criteria
+     * @param handler
+     *        the handler of the Records.
+     * @return the resumptionToken for the rest of the list, or null if there
+     *         are no more Records.
+     * @throws CannotDisseminateFormatException
+     * @throws NoRecordsMatchException
+     * @throws NoSetHierarchyException
+     * @throws RepositoryException
+     *         if an error has occurred.
+     */
+    public abstract ResumptionToken getRecords(Date from,
+                                               Date until,
+                                               String metadataPrefix,
+                                               String set,
+                                               RecordHandler handler)
+            throws CannotDisseminateFormatException, NoRecordsMatchException,
+            NoSetHierarchyException, RepositoryException;
+
+    /**
+     * Hand the remaining portion of a set of Records to the handler, like
+     * getRecords(String) returns them.
+     *
+     * @param resumptionToken
+     *        a string that can be used to get the rest of the list.
+     * @param handler
+     *        the handler of the Records.
+     * @return the resumptionToken for the rest of the list, or null if there
+     *         are no more Records.
+     * @throws CannotDisseminateFormatException
+     * @throws NoRecordsMatchException
+     * @throws NoSetHierarchyException
+     * @throws BadResumptionTokenException
+     * @throws RepositoryException
+     *         if an error has occurred.
+     */
+    public abstract ResumptionToken getRecords(String resumptionToken,
+                                               RecordHandler handler)
+            throws CannotDisseminateFormatException, NoRecordsMatchException,
+            NoSetHierarchyException, BadResumptionTokenException,
+            RepositoryException;
+
+}
@@ -0,0 +1,28 @@
+/* The contents of this file are subject to the license and copyright terms
+ * detailed in the license directory at the root of the source tree (also
+ * available online at http://fedora-commons.org/license/).
+ */
+package org.fcrepo.oai;
+
+import java.io.PrintWriter;
+
+/**
+ * A Record that can write its metadata straight to a response, so it never
+ * has to be held as a String.
+ */
+public interface WritableRecord
+        extends Record {
+
+    /**
+     * Write the metadata portion of the record, as getMetadata() would
+     * return it.
+     *
+     * @param out
+     *        the writer.
+     * @throws RepositoryException
+     *         if an error has occurred.
+     */
+    public abstract void writeMetadata(PrintWriter out)
+            throws RepositoryException;
+
+}
@@ -1141,11 +1141,13 @@ public class DefaultAccess
                             .GetDatastream(dsID, asOfDateTime);
 
             mimeTypedStream = new MIMETypedStream(ds.DSMIME, dmc.getContentStream(context), null,ds.DSSize);
+            setValidators(mimeTypedStream, ds);
         } else if (ds.DSControlGrp.equalsIgnoreCase("X")) {
             DatastreamXMLMetadata dxm =
                     (DatastreamXMLMetadata) reader.GetDatastream(dsID,
                                                                  asOfDateTime);
             mimeTypedStream = new MIMETypedStream(ds.DSMIME, dxm.getContentStream(context), null, ds.DSSize);
+            setValidators(mimeTypedStream, ds);
         } else if (ds.DSControlGrp.equalsIgnoreCase("R")) {
             DatastreamReferencedContent drc =
                     (DatastreamReferencedContent) reader
@@ -1186,4 +1188,27 @@ public class DefaultAccess
         return mimeTypedStream;
     }
 
+    /**
+     * Sets the validators of the content of a datastream version. A version
+     * never changes once created, so its id and creation date identify its
+     * content. A stored checksum is used instead when there is one, so that
+     * versions with the same content have the same entity tag. The checksum
+     * is never computed here, as that would read the whole content.
+     */
+    private static void setValidators(MIMETypedStream stream, Datastream ds) {
+        if (ds.DSCreateDT == null) {
+            return;
+        }
+        String entityTag;
+        if (ds.DSChecksum != null
+                && !ds.DSChecksum.equals(Datastream.CHECKSUM_NONE)
+                && ds.DSChecksumType != null
+                && !ds.DSChecksumType.equals(Datastream.CHECKSUMTYPE_DISABLED)) {
+            entityTag = ds.DSChecksumType + ":" + ds.DSChecksum;
+        } else {
+            entityTag = ds.DSVersionID + ":" + ds.DSCreateDT.getTime();
+        }
+        stream.setValidators(entityTag, ds.DSCreateDT);
+    }
+
 }
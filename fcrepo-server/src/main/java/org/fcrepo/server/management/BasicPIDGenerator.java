@@ -94,6 +94,11 @@ public class BasicPIDGenerator
         return m_pidGenerator.generatePID(namespaceID);
     }
 
+    public PID[] generatePIDs(String namespaceID, int count)
+            throws IOException {
+        return m_pidGenerator.generatePIDs(namespaceID, count);
+    }
+
     public PID getLastPID() throws IOException {
         return m_pidGenerator.getLastPID();
     }
@@ -143,6 +143,28 @@ public class DBPIDGenerator
         return m_lastPID;
     }
 
+    /**
+     * Generate a number of new pids, recording the highest id in the
+     * database only once.
+     */
+    public synchronized PID[] generatePIDs(String namespace, int count)
+            throws IOException {
+        int i = getHighestID(namespace);
+        PID[] pids = new PID[count];
+        try {
+            for (int j = 0; j < count; j++) {
+                pids[j] = new PID(namespace + ":" + (i + j + 1));
+            }
+        } catch (MalformedPIDException e) {
+            throw new IOException(e.getMessage());
+        }
+        if (count > 0) {
+            m_lastPID = pids[count - 1];
+            setHighestID(namespace, i + count);
+        }
+        return pids;
+    }
+
     /**
      * Get the last pid that was generated.
      */
@@ -27,6 +27,18 @@ public interface PIDGenerator {
      */
     public PID generatePID(String namespace) throws IOException;
 
+    /**
+     * Generate a number of new pids that are guaranteed to be unique, within
+     * the given namespace.
+     * 
+     * @param namespace
+     * @param count
+     *        the number of pids to generate
+     * @return the PIDs, in the order they were generated
+     * @throws IOException
+     */
+    public PID[] generatePIDs(String namespace, int count) throws IOException;
+
     /**
      * Get the last pid that was generated.
      * 
@@ -72,6 +72,9 @@ import org.slf4j.LoggerFactory;
  * repository, e.g. http://localhost:8080/fedora.</li>
  * <li>atom:summary corresponds to the PID of the method, if applicable.</li>
  * </ul>
+ * <p>
+ * Messages of method calls are serialized with an {@link AtomEntryWriter};
+ * only messages parsed from text are held as Abdera entries.
  *
  * @see <a href="http://atomenabled.org/developers/syndication/atom-format-spec.php">The Atom Syndication Format</a>
  *
@@ -85,7 +88,7 @@ public class AtomAPIMMessage
     private static final Logger logger =
             LoggerFactory.getLogger(AtomAPIMMessage.class);
 
-    private final Abdera abdera = new Abdera();
+    private static final Abdera abdera = new Abdera();
 
     private final static String TYPES_NS = Constants.TYPES.uri;
 
@@ -117,19 +120,19 @@ public class AtomAPIMMessage
 
     private final Object returnVal;
 
+    /** The entry of a parsed message */
     private final Entry entry;
 
+    private final String id;
+
+    private String content;
+
+    /** scheme, term and label of the method parameters */
+    private final List<String[]> parameters = new ArrayList<String[]>();
+
     public AtomAPIMMessage(FedoraMethod method, String fedoraBaseUrl, String serverVersion, String format)
             throws MessagingException {
-        if (fedoraTypes == null) {
-            try {
-                fedoraTypes = new FedoraTypes();
-            } catch (FileNotFoundException e) {
-                throw new MessagingException(e.getMessage(), e);
-            } catch (DocumentException e) {
-                throw new MessagingException(e.getMessage(), e);
-            }
-        }
+        loadFedoraTypes();
         this.method = method.getMethod();
         this.args = method.getParameters();
         returnVal = method.getReturnValue();
@@ -148,30 +151,17 @@ public class AtomAPIMMessage
             author = "unknown";
         }
 
-        entry = abdera.getFactory().newEntry();
-        entry.declareNS(Constants.XML_XSD.uri, "xsd");
-        entry.declareNS(TYPES_NS, TYPES_PREFIX);
-
-        setEntryId();
-        setUpdated();
-        setAuthor();
-        setTitle();
+        entry = null;
+        id = "urn:uuid:" + UUID.randomUUID().toString();
         addMethodParameters();
-        if (pid != null || !pid.equals("")) {
-            entry.setSummary(pid);
-        }
         setReturnValue();
-
-        if (serverVersion != null && !serverVersion.equals(""))
-            entry.addCategory(versionPredicate, serverVersion, null);
-        if (format != null && !format.equals(""))
-            entry.addCategory(formatPredicate, format, null);
     }
 
     public AtomAPIMMessage(String messageText) {
         Parser parser = abdera.getParser();
         Document<Entry> entryDoc = parser.parse(new StringReader(messageText));
         entry = entryDoc.getRoot();
+        id = entry.getId() == null ? null : entry.getId().toString();
         methodName = entry.getTitle();
         date = entry.getUpdated();
         author = entry.getAuthor().getName();
@@ -184,24 +174,17 @@ public class AtomAPIMMessage
         format = getCategoryTerm(formatPredicate);
     }
 
-    private void setEntryId() {
-        entry.setId("urn:uuid:" + UUID.randomUUID().toString());
-    }
-
-    /**
-     * Set the entry's atom:author element using author from the Context
-     * if it was available. Set the author:uri to fedoraBaseUrl.
-     */
-    private void setAuthor() {
-        entry.addAuthor(author, null, fedoraBaseUrl);
-    }
-
-    private void setTitle() {
-        entry.setTitle(methodName);
-    }
-
-    private void setUpdated() {
-        entry.setUpdated(date);
+    private static synchronized void loadFedoraTypes()
+            throws MessagingException {
+        if (fedoraTypes == null) {
+            try {
+                fedoraTypes = new FedoraTypes();
+            } catch (FileNotFoundException e) {
+                throw new MessagingException(e.getMessage(), e);
+            } catch (DocumentException e) {
+                throw new MessagingException(e.getMessage(), e);
+            }
+        }
     }
 
     private void addMethodParameters() {
@@ -211,7 +194,7 @@ public class AtomAPIMMessage
             String datatype = fedoraTypes.getDatatype(methodName, parameter);
             if (datatype != null) {
                 String scheme = TYPES_PREFIX + ":" + parameter;
-                entry.addCategory(scheme, objectToString(args[i], datatype), datatype);
+                parameters.add(new String[] {scheme, objectToString(args[i], datatype), datatype});
             } else {
                 // parameters not defined in the WSDL are silently dropped (e.g. Context)
                 if (logger.isDebugEnabled()) {
@@ -225,8 +208,7 @@ public class AtomAPIMMessage
         String m = methodName + "Response";
         String parameter = fedoraTypes.getResponseParameter(m);
         String datatype = fedoraTypes.getDatatype(m, parameter);
-        String term = objectToString(returnVal, datatype);
-        entry.setContent(term);
+        content = objectToString(returnVal, datatype);
     }
 
     /**
@@ -277,6 +259,9 @@ public class AtomAPIMMessage
      */
     @Override
     public String toString() {
+        if (entry == null) {
+            return writeEntry();
+        }
         Writer sWriter = new StringWriter();
 
         try {
@@ -287,6 +272,27 @@ public class AtomAPIMMessage
         return sWriter.toString();
     }
 
+    /**
+     * Writes the entry of a method call, with the elements in the order
+     * they were once added to an Abdera entry.
+     */
+    private String writeEntry() {
+        AtomEntryWriter writer =
+                AtomEntryWriter.start("xsd", Constants.XML_XSD.uri,
+                                      TYPES_PREFIX, TYPES_NS);
+        writer.id(id).updated(date).author(author, fedoraBaseUrl)
+                .title(methodName);
+        for (String[] parameter : parameters) {
+            writer.category(parameter[0], parameter[1], parameter[2]);
+        }
+        writer.summary(pid).content(content);
+        if (serverVersion != null && !serverVersion.equals(""))
+            writer.category(versionPredicate, serverVersion, null);
+        if (format != null && !format.equals(""))
+            writer.category(formatPredicate, format, null);
+        return writer.end();
+    }
+
     /**
      *
      * {@inheritDoc}
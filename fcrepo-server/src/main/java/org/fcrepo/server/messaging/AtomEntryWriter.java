@@ -0,0 +1,217 @@
+/* The contents of this file are subject to the license and copyright terms
+ * detailed in the license directory at the root of the source tree (also
+ * available online at http://fedora-commons.org/license/).
+ */
+package org.fcrepo.server.messaging;
+
+import java.util.Date;
+
+import org.fcrepo.utilities.DateUtility;
+
+/**
+ * Writes an Atom entry as text, element by element, from fixed templates.
+ * <p>
+ * This is a light replacement for building an Abdera <code>Entry</code> only
+ * to serialize it. The output has the layout of Abdera's
+ * <code>prettyxml</code> writer, and parsing it with Abdera yields the same
+ * entry. Characters that may not occur in XML are left out.
+ * <p>
+ * The text is written to a buffer kept by the calling thread, so a writer
+ * is meant to be used for one entry at a time:
+ *
+ * <pre>
+ * String xml = AtomEntryWriter.start(namespaces).id(id).title(title)...end();
+ * </pre>
+ *
+ * @version $Id$
+ */
+final class AtomEntryWriter {
+
+    private static final String PROLOG =
+            "<?xml version='1.0' encoding='UTF-8'?>\n";
+
+    private static final String ENTRY_START =
+            "<entry xmlns=\"http://www.w3.org/2005/Atom\"";
+
+    private static final String ENTRY_END = "</entry>";
+
+    /** Buffers grown beyond this are not kept for the next entry */
+    private static final int MAX_KEPT_CAPACITY = 64 * 1024;
+
+    private static final ThreadLocal<AtomEntryWriter> writers =
+            new ThreadLocal<AtomEntryWriter>() {
+
+                @Override
+                protected AtomEntryWriter initialValue() {
+                    return new AtomEntryWriter();
+                }
+            };
+
+    private StringBuilder buf = new StringBuilder(2048);
+
+    private AtomEntryWriter() {
+    }
+
+    /**
+     * Starts an entry in the buffer of the calling thread.
+     *
+     * @param namespaces pairs of prefix and namespace URI to declare on the
+     *        entry element
+     */
+    static AtomEntryWriter start(String... namespaces) {
+        AtomEntryWriter writer = writers.get();
+        if (writer.buf.capacity() > MAX_KEPT_CAPACITY) {
+            writer.buf = new StringBuilder(2048);
+        }
+        writer.buf.setLength(0);
+        writer.buf.append(PROLOG).append(ENTRY_START);
+        for (int i = 0; i + 1 < namespaces.length; i += 2) {
+            writer.buf.append(" xmlns:").append(namespaces[i]).append("=\"");
+            writer.appendAttribute(namespaces[i + 1]);
+            writer.buf.append('"');
+        }
+        writer.buf.append(">\n");
+        return writer;
+    }
+
+    AtomEntryWriter id(String id) {
+        return element("id", null, id);
+    }
+
+    AtomEntryWriter updated(Date date) {
+        return element("updated", null, DateUtility.convertDateToString(date));
+    }
+
+    /**
+     * Writes an atom:author element, with the name and uri that are not
+     * null.
+     */
+    AtomEntryWriter author(String name, String uri) {
+        buf.append("  <author>\n");
+        if (name != null) {
+            buf.append("  ");
+            element("name", null, name);
+        }
+        if (uri != null) {
+            buf.append("  ");
+            element("uri", null, uri);
+        }
+        buf.append("  </author>\n");
+        return this;
+    }
+
+    AtomEntryWriter title(String title) {
+        return element("title", "text", title);
+    }
+
+    /**
+     * Writes an atom:category element.
+     *
+     * @param label the label, or null for none
+     */
+    AtomEntryWriter category(String scheme, String term, String label) {
+        buf.append("  <category term=\"");
+        appendAttribute(term);
+        buf.append("\" scheme=\"");
+        appendAttribute(scheme);
+        if (label != null) {
+            buf.append("\" label=\"");
+            appendAttribute(label);
+        }
+        buf.append("\" />\n");
+        return this;
+    }
+
+    AtomEntryWriter summary(String summary) {
+        return element("summary", "text", summary);
+    }
+
+    AtomEntryWriter content(String content) {
+        return element("content", "text", content);
+    }
+
+    /**
+     * Ends the entry.
+     *
+     * @return the text of the entry
+     */
+    String end() {
+        buf.append(ENTRY_END);
+        return buf.toString();
+    }
+
+    private AtomEntryWriter element(String name, String type, String text) {
+        buf.append("  <").append(name);
+        if (type != null) {
+            buf.append(" type=\"").append(type).append('"');
+        }
+        buf.append('>');
+        appendText(text);
+        buf.append("</").append(name).append(">\n");
+        return this;
+    }
+
+    private void appendText(String text) {
+        if (text == null) {
+            return;
+        }
+        int length = text.length();
+        for (int i = 0; i < length; i++) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '&':
+                    buf.append("&amp;");
+                    break;
+                case '<':
+                    buf.append("&lt;");
+                    break;
+                case '>':
+                    buf.append("&gt;");
+                    break;
+                case '\r':
+                    buf.append("&#xd;");
+                    break;
+                default:
+                    appendChar(c);
+            }
+        }
+    }
+
+    private void appendAttribute(String value) {
+        if (value == null) {
+            return;
+        }
+        int length = value.length();
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '&':
+                    buf.append("&amp;");
+                    break;
+                case '<':
+                    buf.append("&lt;");
+                    break;
+                case '"':
+                    buf.append("&quot;");
+                    break;
+                case '\t':
+                    buf.append("&#x9;");
+                    break;
+                case '\n':
+                    buf.append("&#xa;");
+                    break;
+                case '\r':
+                    buf.append("&#xd;");
+                    break;
+                default:
+                    appendChar(c);
+            }
+        }
+    }
+
+    private void appendChar(char c) {
+        if (c >= 0x20 && c < 0xfffe || c == '\t' || c == '\n') {
+            buf.append(c);
+        }
+    }
+}
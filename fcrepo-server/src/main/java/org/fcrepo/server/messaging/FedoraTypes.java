@@ -23,7 +23,8 @@ import org.slf4j.LoggerFactory;
 
 /**
  * Utility class for retrieving the XML Schema Datatypes associated with
- * Fedora API methods.
+ * Fedora API methods. Lookups are cached, and may be made by several
+ * threads.
  *
  * @author Edwin Shin
  * @since 3.0
@@ -47,7 +48,7 @@ public class FedoraTypes
         ns2prefix.put("xsd", Constants.XML_XSD.uri);
     }
 
-    public String getDatatype(String method, String param) {
+    public synchronized String getDatatype(String method, String param) {
         String key = method + "." + param;
 
         if (!method2datatype.containsKey(key)) {
@@ -66,7 +67,7 @@ public class FedoraTypes
         return method2datatype.get(key);
     }
 
-    public String getResponseParameter(String response) {
+    public synchronized String getResponseParameter(String response) {
         if (!response2parameter.containsKey(response)) {
             String query = String.format("/xsd:schema/xsd:element[@name='%s']" +
                                   "/xsd:complexType/xsd:sequence" +
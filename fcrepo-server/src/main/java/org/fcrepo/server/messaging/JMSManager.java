@@ -493,7 +493,9 @@ public class JMSManager {
 
         // Send the message for this destination
         try {
-            jmsDest.producer.send(msg);
+            synchronized (jmsDest) {
+                jmsDest.producer.send(msg);
+            }
         } catch (JMSException e) {
             throw new MessagingException(e.getMessage(), e);
         }
@@ -503,6 +505,47 @@ public class JMSManager {
         }
     }
 
+    /**
+     * Allows the caller to send a number of Message objects to a named
+     * destination, in order. If the destination's session is transacted, the
+     * messages are committed together, or rolled back if any of them fails.
+     * Otherwise the messages sent before a failure stay sent, and a caller
+     * that sends the list again sends them twice.
+     */
+    public void send(String destName, List<? extends Message> msgs)
+            throws MessagingException {
+        JMSDestination jmsDest = getJMSDestination(destName);
+
+        // Make sure we have a message producer created for this destination
+        setupProducer(jmsDest);
+
+        synchronized (jmsDest) {
+            try {
+                for (Message msg : msgs) {
+                    jmsDest.producer.send(msg);
+                }
+                if (jmsDest.session.getTransacted()) {
+                    jmsDest.session.commit();
+                }
+            } catch (JMSException e) {
+                try {
+                    if (jmsDest.session.getTransacted()) {
+                        jmsDest.session.rollback();
+                    }
+                } catch (JMSException re) {
+                    logger.warn("Unable to roll back messages to destination "
+                            + destName, re);
+                }
+                throw new MessagingException(e.getMessage(), e);
+            }
+        }
+
+        if(logger.isDebugEnabled()) {
+            logger.debug("send() - " + msgs.size()
+                    + " messages sent to destination " + destName);
+        }
+    }
+
     /**
      * Allows the caller to send a Message object to a destination
      */
@@ -686,7 +729,10 @@ public class JMSManager {
             throws MessagingException {
         JMSDestination jmsDest = getJMSDestination(destName);
         try {
-            TextMessage message = jmsDest.session.createTextMessage();
+            TextMessage message;
+            synchronized (jmsDest) {
+                message = jmsDest.session.createTextMessage();
+            }
             message.setText(text);
             return message;
         } catch (JMSException e) {
@@ -840,12 +886,14 @@ public class JMSManager {
 
     protected void setupProducer(JMSDestination jmsDest)
             throws MessagingException {
-        if (jmsDest.producer != null) return;
-        try {
-            jmsDest.producer =
-                    jmsDest.session.createProducer(jmsDest.destination);
-        } catch (JMSException e) {
-            throw new MessagingException(e.getMessage(), e);
+        synchronized (jmsDest) {
+            if (jmsDest.producer != null) return;
+            try {
+                jmsDest.producer =
+                        jmsDest.session.createProducer(jmsDest.destination);
+            } catch (JMSException e) {
+                throw new MessagingException(e.getMessage(), e);
+            }
         }
     }
 
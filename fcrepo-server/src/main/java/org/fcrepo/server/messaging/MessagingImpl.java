@@ -4,6 +4,11 @@
  */
 package org.fcrepo.server.messaging;
 
+import java.io.File;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
@@ -15,17 +20,32 @@ import org.fcrepo.common.Constants;
 import org.fcrepo.server.Server;
 import org.fcrepo.server.errors.MessagingException;
 import org.fcrepo.server.management.Management;
+import org.fcrepo.server.messaging.NotificationPipeline.OverflowPolicy;
+import org.fcrepo.server.messaging.NotificationPipeline.PreparedMessage;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
  * The default, JMS implementation of Messaging.
+ * <p>
+ * Notifications of {@link FedoraMethod}s are sent by a
+ * {@link NotificationPipeline}, which keeps the notifications of each object
+ * in order and sends them in batches, one JMS transaction per destination
+ * and batch when the destination is transacted.
+ * <p>
+ * Delivery is at least once. When sending to a destination fails, only the
+ * destinations that failed are sent the batch again. A transacted
+ * destination receives the whole batch or none of it, but a destination that
+ * is not transacted may have received part of the batch before the failure,
+ * and receives that part again; destinations should be configured as
+ * transacted where consumers cannot tolerate duplicates.
  *
  * @author Edwin Shin
  * @since 3.0
  * @version $Id$
  */
-public class MessagingImpl implements Messaging {
+public class MessagingImpl
+        implements Messaging, NotificationPipeline.Sender {
 
     private static final Logger logger =
             LoggerFactory.getLogger(MessagingImpl.class);
@@ -33,8 +53,13 @@ public class MessagingImpl implements Messaging {
     private final Map<String, List<String>> mdMap;
     private final JMSManager jmsMgr;
     private final String fedoraBaseUrl;
+    private final NotificationPipeline pipeline;
     private final static String messageFormat = Constants.ATOM_APIM1_0.uri;
 
+    public static final int DEFAULT_WORKERS = 4;
+    public static final int DEFAULT_QUEUE_CAPACITY = 10000;
+    public static final int DEFAULT_BATCH_SIZE = 100;
+
     /**
      * Required JNDI Properties:
      * <ul>
@@ -58,9 +83,44 @@ public class MessagingImpl implements Messaging {
     }
 
     public MessagingImpl(String fedoraBaseUrl, Map<String, List<String>> mdMap, JMSManager jmsMgr) {
+        this(fedoraBaseUrl,
+             mdMap,
+             jmsMgr,
+             DEFAULT_WORKERS,
+             DEFAULT_QUEUE_CAPACITY,
+             OverflowPolicy.block,
+             null,
+             DEFAULT_BATCH_SIZE);
+    }
+
+    /**
+     * @param workers the number of threads sending notifications
+     * @param queueCapacity the number of notifications that may wait in
+     * memory to be sent
+     * @param overflowPolicy what to do with notifications when the queue is
+     * full
+     * @param spillDir where notifications are spilled, or null
+     * @param batchSize the maximum number of notifications sent in one
+     * transaction
+     */
+    public MessagingImpl(String fedoraBaseUrl,
+                         Map<String, List<String>> mdMap,
+                         JMSManager jmsMgr,
+                         int workers,
+                         int queueCapacity,
+                         OverflowPolicy overflowPolicy,
+                         File spillDir,
+                         int batchSize) {
         this.fedoraBaseUrl = fedoraBaseUrl;
         this.mdMap = mdMap;
         this.jmsMgr = jmsMgr;
+        pipeline =
+                new NotificationPipeline(this,
+                                         workers,
+                                         queueCapacity,
+                                         overflowPolicy,
+                                         spillDir,
+                                         batchSize);
     }
 
     public void send(String destName, FedoraMessage message)
@@ -83,7 +143,7 @@ public class MessagingImpl implements Messaging {
     }
 
     /**
-     * Send a message to each of the destinations configured for each
+     * Queue a message to each of the destinations configured for each
      * {@link Messaging#MessageType}. Currently, only
      * {@link FedoraMethod}s that represent
      * {@link org.fcrepo.server.Management} methods are supported.
@@ -91,31 +151,76 @@ public class MessagingImpl implements Messaging {
      */
     public void send(FedoraMethod method) throws MessagingException {
         if (Management.class == method.getMethod().getDeclaringClass()) {
+            pipeline.submit(method);
+        } else {
+            if (logger.isDebugEnabled()) {
+                logger.debug("Silently dropping non-Management method: " + method.getName());
+            }
+        }
+    }
 
-            APIMMessage message = new AtomAPIMMessage(method, fedoraBaseUrl, Server.VERSION, messageFormat);
+    /**
+     * {@inheritDoc}
+     */
+    public List<PreparedMessage> render(FedoraMethod method)
+            throws MessagingException {
+        String methodName = method.getName();
+        List<String> destNames;
+        if (methodName.startsWith("ingest")
+                || methodName.startsWith("add")
+                || methodName.startsWith("modify")
+                || methodName.startsWith("purge")
+                || methodName.startsWith("set")) {
+            destNames = mdMap.get(MessageType.apimUpdate.toString());
+        } else {
+            destNames = mdMap.get(MessageType.apimAccess.toString());
+        }
+        if (destNames == null || destNames.isEmpty()) {
+            return Collections.emptyList();
+        }
 
-            String methodName = method.getName();
-            if (methodName.startsWith("ingest")
-                    || methodName.startsWith("add")
-                    || methodName.startsWith("modify")
-                    || methodName.startsWith("purge")
-                    || methodName.startsWith("set")) {
-                for (String destName : mdMap.get(MessageType.apimUpdate.toString())) {
-                    send(destName, method, message);
-                }
-            } else {
-                for (String destName : mdMap.get(MessageType.apimAccess.toString())) {
-                    send(destName, method, message);
+        APIMMessage message = new AtomAPIMMessage(method, fedoraBaseUrl, Server.VERSION, messageFormat);
+        String text = message.toString();
+        String pid = method.getPID() == null ? null : method.getPID().toString();
+        List<PreparedMessage> messages = new ArrayList<PreparedMessage>(destNames.size());
+        for (String destName : destNames) {
+            messages.add(new PreparedMessage(destName, methodName, pid, text));
+        }
+        return messages;
+    }
+
+    /**
+     * Send the messages to their destinations, those of each destination
+     * in one call to {@link JMSManager#send(String, List)}.
+     * {@inheritDoc}
+     */
+    public void send(List<PreparedMessage> messages)
+            throws MessagingException {
+        Map<String, List<TextMessage>> byDest = new LinkedHashMap<String, List<TextMessage>>();
+        for (PreparedMessage message : messages) {
+            TextMessage jmsMessage = jmsMgr.createTextMessage(message.getDestName(), message.getText());
+            try {
+                jmsMessage.setStringProperty("methodName", message.getMethodName());
+                if(message.getPID() != null) {
+                    jmsMessage.setStringProperty("pid", message.getPID());
                 }
+            } catch(JMSException jmse) {
+                throw new MessagingException("Unable to set message properties.", jmse);
             }
-        } else {
-            if (logger.isDebugEnabled()) {
-                logger.debug("Silently dropping non-Management method: " + method.getName());
+            List<TextMessage> destMessages = byDest.get(message.getDestName());
+            if (destMessages == null) {
+                destMessages = new ArrayList<TextMessage>();
+                byDest.put(message.getDestName(), destMessages);
             }
+            destMessages.add(jmsMessage);
+        }
+        for (Map.Entry<String, List<TextMessage>> entry : byDest.entrySet()) {
+            jmsMgr.send(entry.getKey(), entry.getValue());
         }
     }
 
     public void close() throws MessagingException {
+        pipeline.close();
         if (jmsMgr != null) {
             jmsMgr.close();
         }
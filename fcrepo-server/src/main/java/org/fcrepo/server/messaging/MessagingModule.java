@@ -25,12 +25,26 @@ import org.fcrepo.server.errors.MessagingException;
 import org.fcrepo.server.errors.ModuleInitializationException;
 import org.fcrepo.server.errors.ModuleShutdownException;
 import org.fcrepo.server.messaging.JMSManager.DestinationType;
+import org.fcrepo.server.messaging.NotificationPipeline.OverflowPolicy;
 import org.fcrepo.server.utilities.ServerUtility;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
  * Fedora's <code>Messaging</code> as a configurable module.
+ * <p>
+ * Optional parameters of the notification pipeline:
+ * <ul>
+ * <li>notificationWorkers: threads sending notifications (default: 4)</li>
+ * <li>notificationQueueCapacity: notifications that may wait in memory
+ * (default: 10000)</li>
+ * <li>notificationOverflow: block, dropOldest or spill, what to do when the
+ * queue is full (default: block)</li>
+ * <li>notificationSpillDir: where notifications are spilled, relative to
+ * the server home directory (default: data/notification-spill)</li>
+ * <li>notificationBatchSize: notifications sent in one transaction
+ * (default: 100)</li>
+ * </ul>
  *
  * @author Edwin Shin
  * @version $Id$
@@ -85,7 +99,17 @@ public class MessagingModule
             msg =
                     new MessagingImpl(fedoraBaseUrl,
                                       createDestinations(),
-                                      jmsMgr);
+                                      jmsMgr,
+                                      getIntParameter("notificationWorkers",
+                                                      MessagingImpl.DEFAULT_WORKERS),
+                                      getIntParameter("notificationQueueCapacity",
+                                                      MessagingImpl.DEFAULT_QUEUE_CAPACITY),
+                                      getOverflowPolicy(),
+                                      getSpillDir(),
+                                      getIntParameter("notificationBatchSize",
+                                                      MessagingImpl.DEFAULT_BATCH_SIZE));
+        } catch (ModuleInitializationException e) {
+            throw e;
         } catch (Exception e) {
             throw new ModuleInitializationException("Error connecting to JMS ",
                                                     getRole(),
@@ -115,7 +139,55 @@ public class MessagingModule
     }
 
     public void send(FedoraMethod method) throws MessagingException {
-        msg.send(method);
+        Messaging messaging = msg;
+        if (messaging != null) {
+            messaging.send(method);
+        }
+    }
+
+    private int getIntParameter(String name, int defaultValue)
+            throws ModuleInitializationException {
+        String value = getParameter(name);
+        if (value == null || value.length() == 0) {
+            return defaultValue;
+        }
+        try {
+            int i = Integer.parseInt(value);
+            if (i < 1) {
+                throw new ModuleInitializationException(name
+                        + " must be positive", getRole());
+            }
+            return i;
+        } catch (NumberFormatException e) {
+            throw new ModuleInitializationException(name
+                    + " must be a number", getRole());
+        }
+    }
+
+    private OverflowPolicy getOverflowPolicy()
+            throws ModuleInitializationException {
+        String value = getParameter("notificationOverflow");
+        if (value == null || value.length() == 0) {
+            return OverflowPolicy.block;
+        }
+        for (OverflowPolicy policy : OverflowPolicy.values()) {
+            if (policy.toString().equalsIgnoreCase(value)) {
+                return policy;
+            }
+        }
+        throw new ModuleInitializationException(value
+                + " is not a supported notificationOverflow", getRole());
+    }
+
+    private File getSpillDir() {
+        String value = getParameter("notificationSpillDir");
+        File spillDir =
+                new File(value == null || value.length() == 0
+                        ? "data/notification-spill" : value);
+        if (!spillDir.isAbsolute()) {
+            spillDir = new File(getServer().getHomeDir(), spillDir.getPath());
+        }
+        return spillDir;
     }
 
     private Properties getJNDISettings() {
@@ -9,10 +9,6 @@ import java.io.File;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 
-import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-
 import org.fcrepo.common.Constants;
 import org.fcrepo.server.Server;
 import org.fcrepo.server.proxy.AbstractInvocationHandler;
@@ -22,6 +18,11 @@ import org.slf4j.LoggerFactory;
 /**
  * A {@link java.lang.reflect.InvocationHandler InvocationHandler} responsible
  * for sending notifications via {@link Messaging Messaging}.
+ * <p>
+ * Notifications are handed to {@link Messaging#send(FedoraMethod)} on the
+ * calling thread once the method returns. The default implementation queues
+ * them in a bounded {@link NotificationPipeline}, so the notifications of an
+ * object are published in the order of its calls.
  *
  * @author Edwin Shin
  * @version $Id$
@@ -35,8 +36,6 @@ public class NotificationInvocationHandler
     private Messaging messaging;
     private boolean attemptedToLoad = false;
 
-    private final ExecutorService exec = Executors.newCachedThreadPool();
-
     /**
      * Note: Setting of <code>messaging</code> does not take place in this
      * constructor because the construction of the Management proxy chain (of
@@ -79,33 +78,15 @@ public class NotificationInvocationHandler
             attemptedToLoad = true;
         }
 
-        if (messaging != null && !exec.isShutdown()) {
-            exec.submit(new Notifier(method, args, returnValue));
+        if (messaging != null) {
+            try {
+                messaging.send(new FedoraMethod(method, args, returnValue));
+            } catch (Exception e) {
+                logger.warn("Unable to send notification of "
+                        + method.getName(), e);
+            }
         }
 
         return returnValue;
     }
-
-    @Override
-    public void close() {
-        exec.shutdown();
-    }
-
-    class Notifier implements Callable<Void> {
-        private final Method method;
-        private final Object[] args;
-        private final Object returnValue;
-
-        public Notifier(Method method, Object[] args, Object returnValue) {
-            this.method = method;
-            this.args = args;
-            this.returnValue = returnValue;
-        }
-
-        public Void call() throws Exception {
-            FedoraMethod fm = new FedoraMethod(method, args, returnValue);
-            messaging.send(fm);
-            return null;
-        }
-    }
 }
@@ -0,0 +1,866 @@
+/* The contents of this file are subject to the license and copyright terms
+ * detailed in the license directory at the root of the source tree (also
+ * available online at http://fedora-commons.org/license/).
+ */
+package org.fcrepo.server.messaging;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.ObjectName;
+
+import org.fcrepo.server.errors.MessagingException;
+import org.fcrepo.server.utilities.JMXUtility;
+import org.fcrepo.server.utilities.RetryBackoff;
+import org.fcrepo.utilities.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Sends API-M notifications from a fixed set of worker threads.
+ * <p>
+ * Each worker has its own bounded queue, and notifications are assigned to a
+ * queue by the PID of the object they concern, so the notifications of an
+ * object are sent one at a time in the order the methods returned. A worker
+ * takes up to <code>batchSize</code> notifications at a time and hands their
+ * messages to the {@link Sender} one destination at a time, so the messages
+ * for each destination are sent in one transaction.
+ * <p>
+ * When a queue is full, a new notification is handled according to the
+ * {@link OverflowPolicy}: the submitting thread waits for room, the oldest
+ * queued notification is dropped, or the notification is rendered and
+ * appended to a spill file, from which the worker reads once its queue is
+ * empty. Spill files left by a previous run are queued again on startup.
+ * <p>
+ * When sending a batch fails, its notifications are put back at the head of
+ * the queue with the messages of the destinations that failed, and the worker
+ * backs off before trying again; destinations the batch was sent to are not
+ * sent it again. A notification
+ * that fails <code>MAX_SEND_ATTEMPTS</code> times is dropped and logged.
+ * Notifications still waiting to be retried at shutdown are written to the
+ * spill file, ahead of the spilled ones the worker has not read yet.
+ * <p>
+ * Queue depth, counters and latency are available over JMX as
+ * <code>org.fcrepo.server.messaging:type=NotificationPipeline</code>.
+ *
+ * @version $Id$
+ */
+public class NotificationPipeline
+        implements NotificationPipelineMBean {
+
+    private static final Logger logger =
+            LoggerFactory.getLogger(NotificationPipeline.class);
+
+    private static final String SPILL_SUFFIX = ".spill";
+
+    private static final String OLD_SPILL_SUFFIX = ".spill.old";
+
+    private static final long CLOSE_TIMEOUT_MILLIS = 10000;
+
+    private static final int MAX_SEND_ATTEMPTS = 10;
+
+    private static final long RETRY_DELAY_MILLIS = 1000;
+
+    private static final long MAX_RETRY_DELAY_MILLIS = 60000;
+
+    /**
+     * What to do with a notification when its queue is full.
+     */
+    public enum OverflowPolicy {
+        block, dropOldest, spill;
+    }
+
+    /**
+     * Renders and sends the messages of notifications.
+     */
+    public interface Sender {
+
+        /**
+         * Renders the messages of a notification, one for each destination.
+         * Called by a worker, or by the submitting thread when the
+         * notification is spilled.
+         *
+         * @return the messages, or an empty list if nothing is sent for the
+         *         method
+         */
+        List<PreparedMessage> render(FedoraMethod method)
+                throws MessagingException;
+
+        /**
+         * Sends the messages in order, in one transaction for each
+         * destination. The pipeline passes the messages of one destination
+         * at a time.
+         */
+        void send(List<PreparedMessage> messages) throws MessagingException;
+    }
+
+    /**
+     * A rendered message, ready to be sent to a destination.
+     */
+    public static class PreparedMessage {
+
+        private final String destName;
+
+        private final String methodName;
+
+        private final String pid;
+
+        private final String text;
+
+        /**
+         * @param pid the pid the message concerns, or null
+         */
+        public PreparedMessage(String destName,
+                               String methodName,
+                               String pid,
+                               String text) {
+            this.destName = destName;
+            this.methodName = methodName;
+            this.pid = pid;
+            this.text = text;
+        }
+
+        public String getDestName() {
+            return destName;
+        }
+
+        public String getMethodName() {
+            return methodName;
+        }
+
+        public String getPID() {
+            return pid;
+        }
+
+        public String getText() {
+            return text;
+        }
+    }
+
+    private final Sender sender;
+
+    private final OverflowPolicy overflowPolicy;
+
+    private final int laneCapacity;
+
+    private final int batchSize;
+
+    private final Lane[] lanes;
+
+    private final Thread[] workers;
+
+    private volatile boolean closed;
+
+    private final AtomicLong submitted = new AtomicLong();
+
+    private final AtomicLong sent = new AtomicLong();
+
+    private final AtomicLong batches = new AtomicLong();
+
+    private final AtomicLong spilled = new AtomicLong();
+
+    private final AtomicLong dropped = new AtomicLong();
+
+    private final AtomicLong failed = new AtomicLong();
+
+    private final AtomicLong totalLatencyMillis = new AtomicLong();
+
+    private final AtomicLong maxLatencyMillis = new AtomicLong();
+
+    private ObjectName objectName;
+
+    /**
+     * Creates the pipeline, queues the notifications left in spill files,
+     * and starts the workers.
+     *
+     * @param sender renders and sends the notifications
+     * @param workers the number of worker threads
+     * @param capacity the number of notifications that may be queued in
+     *        memory, shared evenly by the workers
+     * @param overflowPolicy what to do when a worker's queue is full
+     * @param spillDir where spill files are kept; required by
+     *        {@link OverflowPolicy#spill}
+     * @param batchSize the maximum number of notifications sent at a time
+     */
+    public NotificationPipeline(Sender sender,
+                                int workers,
+                                int capacity,
+                                OverflowPolicy overflowPolicy,
+                                File spillDir,
+                                int batchSize) {
+        if (overflowPolicy == OverflowPolicy.spill && spillDir == null) {
+            throw new IllegalArgumentException("A spill directory is required to spill notifications");
+        }
+        this.sender = sender;
+        this.overflowPolicy = overflowPolicy;
+        this.batchSize = Math.max(1, batchSize);
+        lanes = new Lane[Math.max(1, workers)];
+        laneCapacity = Math.max(1, capacity / lanes.length);
+
+        if (spillDir != null && !spillDir.isDirectory() && !spillDir.mkdirs()) {
+            logger.warn("Unable to create notification spill directory "
+                    + spillDir);
+        }
+        for (int i = 0; i < lanes.length; i++) {
+            lanes[i] =
+                    new Lane(spillDir == null ? null : new File(spillDir,
+                                                                "lane-" + i
+                                                                        + SPILL_SUFFIX));
+        }
+        if (spillDir != null) {
+            respill(spillDir);
+        }
+
+        objectName =
+                JMXUtility.registerMBean(this,
+                                         "org.fcrepo.server.messaging:type=NotificationPipeline");
+
+        this.workers = new Thread[lanes.length];
+        for (int i = 0; i < lanes.length; i++) {
+            final Lane lane = lanes[i];
+            this.workers[i] = new Thread(new Runnable() {
+
+                public void run() {
+                    work(lane);
+                }
+            }, "NotificationPipeline-" + i);
+            this.workers[i].setDaemon(true);
+            this.workers[i].start();
+        }
+    }
+
+    /**
+     * Queues a notification of the method. Depending on the overflow policy,
+     * this may wait for room in the queue.
+     */
+    public void submit(FedoraMethod method) {
+        String key = getKey(method);
+        Lane lane = lanes[(key.hashCode() & Integer.MAX_VALUE) % lanes.length];
+        Notification notification =
+                new Notification(key, method, System.currentTimeMillis());
+        submitted.incrementAndGet();
+        synchronized (lane) {
+            if (closed) {
+                logger.warn("Notification pipeline is closed, not sending "
+                        + method.getName() + " of " + key);
+                dropped.incrementAndGet();
+                return;
+            }
+            // once a lane spills, it spills until the file is read, to keep
+            // the notifications in order
+            if (lane.spilledCount > 0) {
+                spill(lane, notification);
+                return;
+            }
+            while (lane.queue.size() >= laneCapacity) {
+                if (overflowPolicy == OverflowPolicy.dropOldest) {
+                    Notification oldest = lane.queue.removeFirst();
+                    dropped.incrementAndGet();
+                    logger.warn("Notification queue is full, dropped "
+                            + oldest.method.getName() + " of " + oldest.key);
+                } else if (overflowPolicy == OverflowPolicy.spill) {
+                    spill(lane, notification);
+                    return;
+                } else {
+                    try {
+                        lane.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        dropped.incrementAndGet();
+                        logger.warn("Interrupted waiting to queue "
+                                + method.getName() + " of " + key);
+                        return;
+                    }
+                    if (closed) {
+                        dropped.incrementAndGet();
+                        return;
+                    }
+                }
+            }
+            lane.queue.addLast(notification);
+            lane.notifyAll();
+        }
+    }
+
+    /**
+     * Stops accepting notifications, and waits a while for the workers to
+     * send the queued ones. Spilled notifications not yet sent, and those
+     * waiting to be retried, are left in the spill files.
+     */
+    public void close() {
+        closed = true;
+        for (Lane lane : lanes) {
+            synchronized (lane) {
+                lane.notifyAll();
+            }
+        }
+        long end = System.currentTimeMillis() + CLOSE_TIMEOUT_MILLIS;
+        for (Thread worker : workers) {
+            try {
+                worker.join(Math.max(1, end - System.currentTimeMillis()));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        for (Lane lane : lanes) {
+            synchronized (lane) {
+                if (lane.spillFile != null) {
+                    rewriteSpill(lane);
+                }
+                if (!lane.queue.isEmpty()) {
+                    logger.warn("Dropping " + lane.queue.size()
+                            + " notifications not sent at shutdown");
+                    dropped.addAndGet(lane.queue.size());
+                    lane.queue.clear();
+                }
+                lane.closeSpill();
+            }
+        }
+        JMXUtility.unregisterMBean(objectName);
+    }
+
+    /**
+     * Waits until all notifications have been sent, or the timeout has
+     * passed.
+     *
+     * @return whether all queues are empty
+     */
+    boolean awaitEmpty(long timeoutMillis) throws InterruptedException {
+        long end = System.currentTimeMillis() + timeoutMillis;
+        for (Lane lane : lanes) {
+            synchronized (lane) {
+                long wait = end - System.currentTimeMillis();
+                while (!lane.isIdle() && wait > 0) {
+                    lane.wait(wait);
+                    wait = end - System.currentTimeMillis();
+                }
+                if (!lane.isIdle()) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private static String getKey(FedoraMethod method) {
+        try {
+            if (method.getPID() != null) {
+                return method.getPID().toString();
+            }
+        } catch (RuntimeException e) {
+            // not a method of an object
+        }
+        return method.getName();
+    }
+
+    private void work(Lane lane) {
+        RetryBackoff backoff =
+                new RetryBackoff(RETRY_DELAY_MILLIS, MAX_RETRY_DELAY_MILLIS);
+        while (true) {
+            List<Notification> batch = new ArrayList<Notification>();
+            synchronized (lane) {
+                while (lane.queue.isEmpty() && lane.spilledCount == 0
+                        && !closed) {
+                    try {
+                        lane.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (lane.queue.isEmpty()) {
+                    // spilled notifications are left for the next run
+                    if (closed) {
+                        return;
+                    }
+                    readSpilled(lane, batch);
+                }
+                while (!lane.queue.isEmpty() && batch.size() < batchSize) {
+                    batch.add(lane.queue.removeFirst());
+                }
+                lane.inFlight = batch.size();
+                lane.notifyAll();
+            }
+
+            List<Notification> unsent = send(batch);
+
+            synchronized (lane) {
+                // unsent notifications are older than those queued
+                for (int i = unsent.size() - 1; i >= 0; i--) {
+                    Notification notification = unsent.get(i);
+                    if (++notification.failures < MAX_SEND_ATTEMPTS) {
+                        lane.queue.addFirst(notification);
+                    } else {
+                        failed.incrementAndGet();
+                        logger.error("Giving up sending notification of "
+                                + notification.key + " after "
+                                + notification.failures + " attempts");
+                    }
+                }
+                lane.inFlight = 0;
+                lane.notifyAll();
+
+                if (unsent.isEmpty()) {
+                    backoff.succeeded();
+                } else {
+                    long delay = backoff.failed();
+                    long end = System.currentTimeMillis() + delay;
+                    while (!closed && delay > 0) {
+                        try {
+                            lane.wait(delay);
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                        delay = end - System.currentTimeMillis();
+                    }
+                    if (closed) {
+                        // left for close() to spill
+                        return;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Sends a batch of notifications, one destination at a time.
+     *
+     * @return the rendered notifications with messages to destinations that
+     *         failed, holding only those messages
+     */
+    private List<Notification> send(List<Notification> batch) {
+        List<Notification> rendered = new ArrayList<Notification>();
+        if (batch.isEmpty()) {
+            return rendered;
+        }
+        Map<String, List<PreparedMessage>> byDest =
+                new LinkedHashMap<String, List<PreparedMessage>>();
+        for (Notification notification : batch) {
+            try {
+                if (notification.messages == null) {
+                    notification.messages =
+                            sender.render(notification.method);
+                }
+                for (PreparedMessage message : notification.messages) {
+                    List<PreparedMessage> messages =
+                            byDest.get(message.getDestName());
+                    if (messages == null) {
+                        messages = new ArrayList<PreparedMessage>();
+                        byDest.put(message.getDestName(), messages);
+                    }
+                    messages.add(message);
+                }
+                rendered.add(notification);
+            } catch (Exception e) {
+                failed.incrementAndGet();
+                logger.error("Error rendering notification of "
+                        + notification.method.getName() + " of "
+                        + notification.key, e);
+            }
+        }
+        // the destinations are independent, so one failing does not hold
+        // back the others
+        Set<String> failedDests = new HashSet<String>();
+        for (Map.Entry<String, List<PreparedMessage>> entry : byDest
+                .entrySet()) {
+            try {
+                sender.send(entry.getValue());
+            } catch (Exception e) {
+                logger.error("Error sending " + entry.getValue().size()
+                        + " notification messages to " + entry.getKey()
+                        + ", will retry", e);
+                failedDests.add(entry.getKey());
+            }
+        }
+        // keep only what is left to send, so a retry does not send the other
+        // destinations their messages again
+        List<Notification> unsent = new ArrayList<Notification>();
+        List<Notification> done = rendered;
+        if (!failedDests.isEmpty()) {
+            done = new ArrayList<Notification>();
+            for (Notification notification : rendered) {
+                List<PreparedMessage> left = new ArrayList<PreparedMessage>();
+                for (PreparedMessage message : notification.messages) {
+                    if (failedDests.contains(message.getDestName())) {
+                        left.add(message);
+                    }
+                }
+                notification.messages = left;
+                if (left.isEmpty()) {
+                    done.add(notification);
+                } else {
+                    unsent.add(notification);
+                }
+            }
+        } else {
+            batches.incrementAndGet();
+        }
+        sent.addAndGet(done.size());
+        long now = System.currentTimeMillis();
+        for (Notification notification : done) {
+            long latency = now - notification.submitted;
+            totalLatencyMillis.addAndGet(latency);
+            long max = maxLatencyMillis.get();
+            while (latency > max
+                    && !maxLatencyMillis.compareAndSet(max, latency)) {
+                max = maxLatencyMillis.get();
+            }
+        }
+        return unsent;
+    }
+
+    //
+    // Spill files, always accessed while holding the lane lock
+    //
+
+    private void spill(Lane lane, Notification notification) {
+        try {
+            if (notification.messages == null) {
+                notification.messages = sender.render(notification.method);
+            }
+            if (lane.spillOut == null) {
+                lane.spillOut =
+                        new DataOutputStream(new BufferedOutputStream(new FileOutputStream(lane.spillFile,
+                                                                                           true)));
+            }
+            writeNotification(lane.spillOut, notification);
+            lane.spillOut.flush();
+            lane.spilledCount++;
+            spilled.incrementAndGet();
+            lane.notifyAll();
+        } catch (Exception e) {
+            dropped.incrementAndGet();
+            logger.error("Unable to spill notification of " + notification.key
+                    + " to " + lane.spillFile, e);
+        }
+    }
+
+    /**
+     * Reads up to a batch of spilled notifications, deleting the spill file
+     * once it is read.
+     */
+    private void readSpilled(Lane lane, List<Notification> batch) {
+        if (lane.spilledCount == 0) {
+            return;
+        }
+        try {
+            if (lane.spillIn == null) {
+                lane.spillIn =
+                        new DataInputStream(new BufferedInputStream(new FileInputStream(lane.spillFile)));
+            }
+            while (lane.spilledCount > 0 && batch.size() < batchSize) {
+                batch.add(readNotification(lane.spillIn));
+                lane.spilledCount--;
+            }
+        } catch (IOException e) {
+            logger.error("Error reading notification spill file "
+                    + lane.spillFile + ", dropping " + lane.spilledCount
+                    + " notifications", e);
+            dropped.addAndGet(lane.spilledCount);
+            lane.spilledCount = 0;
+        }
+        if (lane.spilledCount == 0) {
+            lane.closeSpill();
+            lane.spillFile.delete();
+        }
+    }
+
+    /**
+     * Rewrites the spill file of a lane at shutdown, so the next run sends
+     * what this one did not: first the notifications waiting to be retried,
+     * then the spilled ones not yet read. Those read and sent are left out.
+     */
+    private void rewriteSpill(Lane lane) {
+        // notifications that failed to send are rendered, and at the head
+        List<Notification> unsent = new ArrayList<Notification>();
+        while (!lane.queue.isEmpty() && lane.queue.getFirst().messages != null) {
+            unsent.add(lane.queue.removeFirst());
+        }
+        if (unsent.isEmpty() && lane.spillIn == null) {
+            // nothing was read from the spill file
+            return;
+        }
+        File rest = new File(lane.spillFile.getPath() + ".tmp");
+        try {
+            if (lane.spillOut != null) {
+                lane.spillOut.close();
+                lane.spillOut = null;
+            }
+            if (lane.spillIn == null && lane.spilledCount > 0) {
+                lane.spillIn =
+                        new DataInputStream(new BufferedInputStream(new FileInputStream(lane.spillFile)));
+            }
+            DataOutputStream out =
+                    new DataOutputStream(new BufferedOutputStream(new FileOutputStream(rest)));
+            try {
+                for (Notification notification : unsent) {
+                    writeNotification(out, notification);
+                }
+                for (int i = 0; i < lane.spilledCount; i++) {
+                    writeNotification(out, readNotification(lane.spillIn));
+                }
+            } finally {
+                out.close();
+            }
+            lane.closeSpill();
+            FileUtils.replace(rest, lane.spillFile);
+        } catch (IOException e) {
+            logger.error("Error rewriting notification spill file "
+                    + lane.spillFile + ", dropping " + unsent.size()
+                    + " notifications waiting to be retried", e);
+            dropped.addAndGet(unsent.size());
+        }
+    }
+
+    /**
+     * Queues the notifications in spill files of a previous run, in the
+     * lanes they belong to now.
+     */
+    private void respill(File spillDir) {
+        File[] files = spillDir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (file.getName().endsWith(SPILL_SUFFIX)) {
+                File old =
+                        new File(spillDir, file.getName().replace(SPILL_SUFFIX,
+                                                                  OLD_SPILL_SUFFIX));
+                if (!file.renameTo(old)) {
+                    logger.warn("Unable to rename notification spill file "
+                            + file);
+                }
+            }
+        }
+        files = spillDir.listFiles();
+        int count = 0;
+        for (File file : files) {
+            if (!file.getName().endsWith(OLD_SPILL_SUFFIX)) {
+                continue;
+            }
+            try {
+                DataInputStream in =
+                        new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+                try {
+                    while (true) {
+                        Notification notification;
+                        try {
+                            notification = readNotification(in);
+                        } catch (EOFException e) {
+                            // the end of the file, or a notification cut
+                            // short by a crash
+                            break;
+                        }
+                        Lane lane =
+                                lanes[(notification.key.hashCode() & Integer.MAX_VALUE)
+                                        % lanes.length];
+                        synchronized (lane) {
+                            spill(lane, notification);
+                        }
+                        count++;
+                    }
+                } finally {
+                    in.close();
+                }
+                file.delete();
+            } catch (IOException e) {
+                logger.error("Error reading notification spill file " + file,
+                             e);
+            }
+        }
+        if (count > 0) {
+            logger.info("Queued " + count
+                    + " notifications spilled by a previous run");
+        }
+    }
+
+    private static void writeNotification(DataOutputStream out,
+                                          Notification notification)
+            throws IOException {
+        out.writeUTF(notification.key);
+        out.writeLong(notification.submitted);
+        out.writeInt(notification.messages.size());
+        for (PreparedMessage message : notification.messages) {
+            out.writeUTF(message.getDestName());
+            out.writeUTF(message.getMethodName());
+            out.writeBoolean(message.getPID() != null);
+            if (message.getPID() != null) {
+                out.writeUTF(message.getPID());
+            }
+            byte[] text = message.getText().getBytes("UTF-8");
+            out.writeInt(text.length);
+            out.write(text);
+        }
+    }
+
+    private static Notification readNotification(DataInputStream in)
+            throws IOException {
+        String key = in.readUTF();
+        long submitted = in.readLong();
+        int count = in.readInt();
+        List<PreparedMessage> messages = new ArrayList<PreparedMessage>(count);
+        for (int i = 0; i < count; i++) {
+            String destName = in.readUTF();
+            String methodName = in.readUTF();
+            String pid = in.readBoolean() ? in.readUTF() : null;
+            byte[] text = new byte[in.readInt()];
+            in.readFully(text);
+            messages.add(new PreparedMessage(destName,
+                                             methodName,
+                                             pid,
+                                             new String(text, "UTF-8")));
+        }
+        Notification notification = new Notification(key, null, submitted);
+        notification.messages = messages;
+        return notification;
+    }
+
+    //
+    // JMX
+    //
+
+    public int getQueueDepth() {
+        int depth = 0;
+        for (Lane lane : lanes) {
+            synchronized (lane) {
+                depth += lane.queue.size() + lane.spilledCount;
+            }
+        }
+        return depth;
+    }
+
+    public int getSpilledDepth() {
+        int depth = 0;
+        for (Lane lane : lanes) {
+            synchronized (lane) {
+                depth += lane.spilledCount;
+            }
+        }
+        return depth;
+    }
+
+    public int getWorkers() {
+        return lanes.length;
+    }
+
+    public String getOverflowPolicy() {
+        return overflowPolicy.toString();
+    }
+
+    public long getSubmitted() {
+        return submitted.get();
+    }
+
+    public long getSent() {
+        return sent.get();
+    }
+
+    public long getBatches() {
+        return batches.get();
+    }
+
+    public long getSpilled() {
+        return spilled.get();
+    }
+
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    public long getFailed() {
+        return failed.get();
+    }
+
+    public long getAverageLatencyMillis() {
+        long count = sent.get();
+        return count == 0 ? 0 : totalLatencyMillis.get() / count;
+    }
+
+    public long getMaxLatencyMillis() {
+        return maxLatencyMillis.get();
+    }
+
+    /**
+     * A notification of a method, with its messages once rendered.
+     */
+    private static class Notification {
+
+        final String key;
+
+        final FedoraMethod method;
+
+        final long submitted;
+
+        List<PreparedMessage> messages;
+
+        // failed attempts to send it so far
+        int failures;
+
+        Notification(String key, FedoraMethod method, long submitted) {
+            this.key = key;
+            this.method = method;
+            this.submitted = submitted;
+        }
+    }
+
+    /**
+     * The queue of a worker. Notifications in the spill file are newer than
+     * those in the queue.
+     */
+    private static class Lane {
+
+        final ArrayDeque<Notification> queue = new ArrayDeque<Notification>();
+
+        final File spillFile;
+
+        DataOutputStream spillOut;
+
+        DataInputStream spillIn;
+
+        // notifications in the spill file not yet read
+        int spilledCount;
+
+        // notifications taken by the worker and not yet sent
+        int inFlight;
+
+        Lane(File spillFile) {
+            this.spillFile = spillFile;
+        }
+
+        boolean isIdle() {
+            return queue.isEmpty() && spilledCount == 0 && inFlight == 0;
+        }
+
+        void closeSpill() {
+            try {
+                if (spillOut != null) {
+                    spillOut.close();
+                }
+                if (spillIn != null) {
+                    spillIn.close();
+                }
+            } catch (IOException e) {
+                logger.warn("Error closing notification spill file "
+                        + spillFile, e);
+            }
+            spillOut = null;
+            spillIn = null;
+        }
+    }
+}
@@ -0,0 +1,35 @@
+/* The contents of this file are subject to the license and copyright terms
+ * detailed in the license directory at the root of the source tree (also
+ * available online at http://fedora-commons.org/license/).
+ */
+package org.fcrepo.server.messaging;
+
+/**
+ * JMX view of the {@link NotificationPipeline}.
+ */
+public interface NotificationPipelineMBean {
+
+    int getQueueDepth();
+
+    int getSpilledDepth();
+
+    int getWorkers();
+
+    String getOverflowPolicy();
+
+    long getSubmitted();
+
+    long getSent();
+
+    long getBatches();
+
+    long getSpilled();
+
+    long getDropped();
+
+    long getFailed();
+
+    long getAverageLatencyMillis();
+
+    long getMaxLatencyMillis();
+}
@@ -4,6 +4,8 @@
  */
 package org.fcrepo.server.oai;
 
+import java.io.PrintWriter;
+
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashSet;
@@ -21,14 +23,17 @@ import org.fcrepo.oai.IDDoesNotExistException;
 import org.fcrepo.oai.NoMetadataFormatsException;
 import org.fcrepo.oai.NoRecordsMatchException;
 import org.fcrepo.oai.NoSetHierarchyException;
-import org.fcrepo.oai.OAIProvider;
 import org.fcrepo.oai.Record;
+import org.fcrepo.oai.RecordHandler;
 import org.fcrepo.oai.RepositoryException;
+import org.fcrepo.oai.ResumptionToken;
 import org.fcrepo.oai.SimpleHeader;
 import org.fcrepo.oai.SimpleMetadataFormat;
-import org.fcrepo.oai.SimpleRecord;
 import org.fcrepo.oai.SimpleResumptionToken;
 import org.fcrepo.oai.SimpleSetInfo;
+import org.fcrepo.oai.StreamingOAIProvider;
+import org.fcrepo.oai.WritableRecord;
+import org.fcrepo.server.errors.MethodNotFoundException;
 import org.fcrepo.server.errors.ServerException;
 import org.fcrepo.server.errors.UnknownSessionTokenException;
 import org.fcrepo.server.search.Condition;
@@ -48,7 +53,7 @@ import org.fcrepo.utilities.DateUtility;
  * @author Chris Wilper
  */
 public class FedoraOAIProvider
-        implements Constants, OAIProvider {
+        implements Constants, StreamingOAIProvider {
 
     private final String m_repositoryName;
 
@@ -188,11 +193,10 @@ public class FedoraOAIProvider
         String pid = getPID(identifier);
         List l = null;
         try {
-            //FIXME: use maxResults from... config instead of hardcoding 100?
             l =
                     m_fieldSearch
                             .findObjects(s_headerAndDCFields,
-                                         100,
+                                         1,
                                          new FieldSearchQuery(Condition
                                                  .getConditions("pid='"
                                                          + pid
@@ -204,23 +208,17 @@ public class FedoraOAIProvider
         }
         if (l.size() > 0) {
             ObjectFields f = (ObjectFields) l.get(0);
-            return new SimpleRecord(getHeader(f), getDCXML(f), s_emptySet);
+            return new DCRecord(getHeader(f), f);
         } else {
             // see if it exists
+            boolean exists;
             try {
-                l =
-                        m_fieldSearch
-                                .findObjects(new String[] {"pid"},
-                                             1,
-                                             new FieldSearchQuery(Condition
-                                                     .getConditions("pid='"
-                                                             + pid + "'")))
-                                .objectFieldsList();
+                exists = m_fieldSearch.objectExists(pid);
             } catch (ServerException se) {
                 throw new RepositoryException(se.getClass().getName() + ": "
                         + se.getMessage());
             }
-            if (l.size() == 0) {
+            if (!exists) {
                 throw new IDDoesNotExistException("The provided id does not match any item in the repository.");
             } else {
                 throw new CannotDisseminateFormatException("The item doesn't even have dc_oai metadata.");
@@ -234,40 +232,143 @@ public class FedoraOAIProvider
                            String set) throws CannotDisseminateFormatException,
             NoRecordsMatchException, NoSetHierarchyException,
             RepositoryException {
+        RecordCollector records = new RecordCollector();
+        return records.getList(getRecords(from,
+                                          until,
+                                          metadataPrefix,
+                                          set,
+                                          records));
+    }
+
+    public ResumptionToken getRecords(Date from,
+                                      Date until,
+                                      String metadataPrefix,
+                                      String set,
+                                      RecordHandler handler)
+            throws CannotDisseminateFormatException, NoRecordsMatchException,
+            NoSetHierarchyException, RepositoryException {
         if (!metadataPrefix.equals("oai_dc")) {
             throw new CannotDisseminateFormatException("Repository does not provide that format in OAI-PMH responses.");
         }
-        List l = null;
+        RangeToken range = new RangeToken(from, until);
+        int maxRecords = (int) getMaxRecords();
         FieldSearchResult fsr;
         try {
-            fsr =
-                    m_fieldSearch
-                            .findObjects(s_headerAndDCFields,
-                                         (int) getMaxRecords(),
-                                         new FieldSearchQuery(Condition
-                                                 .getConditions("dcmDate>'2000-01-01'"
-                                                         + getDatePart(from,
-                                                                       until))));
-            l = fsr.objectFieldsList();
+            fsr = findObjectsAfter(s_headerAndDCFields, maxRecords, range);
+            if (fsr == null) {
+                range = null;
+                fsr =
+                        m_fieldSearch.findObjects(s_headerAndDCFields,
+                                                  maxRecords,
+                                                  getQuery(from, until));
+            }
         } catch (ServerException se) {
             throw new RepositoryException(se.getClass().getName() + ": "
                     + se.getMessage());
         }
+        return handleRecords(fsr, range, maxRecords, handler);
+    }
+
+    public List getRecords(String resumptionToken)
+            throws CannotDisseminateFormatException, NoRecordsMatchException,
+            NoSetHierarchyException, BadResumptionTokenException,
+            RepositoryException {
+        RecordCollector records = new RecordCollector();
+        return records.getList(getRecords(resumptionToken, records));
+    }
+
+    public ResumptionToken getRecords(String resumptionToken,
+                                      RecordHandler handler)
+            throws CannotDisseminateFormatException, NoRecordsMatchException,
+            NoSetHierarchyException, BadResumptionTokenException,
+            RepositoryException {
+        RangeToken range = RangeToken.parse(resumptionToken);
+        int maxRecords = (int) getMaxRecords();
+        FieldSearchResult fsr;
+        try {
+            fsr = resume(s_headerAndDCFields, maxRecords, resumptionToken, range);
+        } catch (UnknownSessionTokenException uste) {
+            throw new BadResumptionTokenException("Not a known resumptionToken.");
+        } catch (ServerException se) {
+            throw new RepositoryException(se.getClass().getName() + ": "
+                    + se.getMessage());
+        }
+        return handleRecords(fsr, range, maxRecords, handler);
+    }
+
+    /**
+     * Hands a record of each object of the page to the handler. The DC of
+     * each record is only rendered when it is written.
+     */
+    private ResumptionToken handleRecords(FieldSearchResult fsr,
+                                          RangeToken range,
+                                          int maxRecords,
+                                          RecordHandler handler)
+            throws NoRecordsMatchException, RepositoryException {
+        List l = fsr.objectFieldsList();
         if (l.size() == 0) {
             throw new NoRecordsMatchException("No records match the given criteria.");
         }
-        ArrayList<Object> ret = new ArrayList<Object>();
         for (int i = 0; i < l.size(); i++) {
             ObjectFields f = (ObjectFields) l.get(i);
-            ret.add(new SimpleRecord(getHeader(f), getDCXML(f), s_emptySet));
+            handler.handleRecord(new DCRecord(getHeader(f), f));
         }
-        if (fsr.getToken() != null) {
-            // add resumptionToken stuff
-            ret.add(new SimpleResumptionToken(fsr.getToken(), fsr
-                    .getExpirationDate(), fsr.getCompleteListSize(), fsr
-                    .getCursor()));
+        return getResumptionToken(fsr, l, range, maxRecords);
+    }
+
+    /**
+     * A record of the DC of an object.
+     */
+    private static class DCRecord
+            implements WritableRecord {
+
+        private final Header m_header;
+
+        private final DCFields m_dc;
+
+        DCRecord(Header header, DCFields dc) {
+            m_header = header;
+            m_dc = dc;
+        }
+
+        public Header getHeader() {
+            return m_header;
+        }
+
+        public String getMetadata() {
+            return m_dc.getAsXML();
+        }
+
+        public void writeMetadata(PrintWriter out) {
+            m_dc.writeAsXML(null, out);
+        }
+
+        public Set getAbouts() {
+            return s_emptySet;
+        }
+    }
+
+    /**
+     * Collects the records handed to it, for the methods that return a List.
+     */
+    private static class RecordCollector
+            implements RecordHandler {
+
+        private final ArrayList<Object> m_list = new ArrayList<Object>();
+
+        public void handleRecord(Record record) {
+            m_list.add(record);
+        }
+
+        /**
+         * @return the records, followed by the resumptionToken if not null
+         */
+        List getList(ResumptionToken resumptionToken) {
+            if (resumptionToken != null) {
+                m_list.add(resumptionToken);
+            }
+            return m_list;
         }
-        return ret;
     }
 
     private Header getHeader(ObjectFields f) {
@@ -283,42 +384,89 @@ public class FedoraOAIProvider
         return new SimpleHeader(identifier, datestamp, setSpecs, state);
     }
 
-    private String getDCXML(DCFields dc) {
-        return dc.getAsXML();
-    }
-
-    public List getRecords(String resumptionToken)
-            throws CannotDisseminateFormatException, NoRecordsMatchException,
-            NoSetHierarchyException, BadResumptionTokenException,
-            RepositoryException {
-        // this is the exact same as the other getRecords, except for the FieldSearch call,
-        // and the fact that we re-throw UnknownSessionTokenException
-        // as a BadResumptionTokenException
-        List l = null;
-        FieldSearchResult fsr;
+    /**
+     * Finds the objects modified within the range, after its position, in
+     * order of mDate and pid.
+     *
+     * @return the page, or null if the FieldSearch can't search in that order
+     */
+    private FieldSearchResult findObjectsAfter(String[] resultFields,
+                                               int maxResults,
+                                               RangeToken range)
+            throws ServerException {
         try {
-            fsr = m_fieldSearch.resumeFindObjects(resumptionToken);
-            l = fsr.objectFieldsList();
-        } catch (UnknownSessionTokenException uste) {
-            throw new BadResumptionTokenException("Not a known resumptionToken.");
-        } catch (ServerException se) {
-            throw new RepositoryException(se.getClass().getName() + ": "
-                    + se.getMessage());
-        }
-        if (l.size() == 0) {
-            throw new NoRecordsMatchException("No records match the given criteria.");
+            return m_fieldSearch.findObjectsAfter(resultFields,
+                                                  maxResults,
+                                                  getQuery(range.getFrom(),
+                                                           range.getUntil()),
+                                                  range.getMDate(),
+                                                  range.getPID());
+        } catch (MethodNotFoundException e) {
+            return null;
         }
-        ArrayList<Object> ret = new ArrayList<Object>();
-        for (int i = 0; i < l.size(); i++) {
-            ObjectFields f = (ObjectFields) l.get(i);
-            ret.add(new SimpleRecord(getHeader(f), getDCXML(f), s_emptySet));
-        }
-        if (fsr.getToken() != null) {
-            ret.add(new SimpleResumptionToken(fsr.getToken(), fsr
-                    .getExpirationDate(), fsr.getCompleteListSize(), fsr
-                    .getCursor()));
-        }
-        return ret;
+    }
+
+    /**
+     * Gets the page after a resumptionToken: the page after the position of
+     * a range token, or the next page of the FieldSearch session of any other
+     * token.
+     */
+    private FieldSearchResult resume(String[] resultFields,
+                                     int maxResults,
+                                     String resumptionToken,
+                                     RangeToken range) throws ServerException {
+        if (range == null) {
+            return m_fieldSearch.resumeFindObjects(resumptionToken);
+        }
+        return m_fieldSearch.findObjectsAfter(resultFields,
+                                              maxResults,
+                                              getQuery(range.getFrom(),
+                                                       range.getUntil()),
+                                              range.getMDate(),
+                                              range.getPID());
+    }
+
+    /**
+     * Gets the resumptionToken for the next page, if there is one. A page
+     * found by range has a next page if it was full, and the token holds the
+     * position after its last object. Otherwise, the FieldSearch session
+     * token of the result is used.
+     *
+     * @return the resumptionToken, or null if this is the last page
+     */
+    private ResumptionToken getResumptionToken(FieldSearchResult fsr,
+                                               List l,
+                                               RangeToken range,
+                                               int maxResults) {
+        if (range == null) {
+            if (fsr.getToken() == null) {
+                return null;
+            }
+            return new SimpleResumptionToken(fsr.getToken(),
+                                             fsr.getExpirationDate(),
+                                             fsr.getCompleteListSize(),
+                                             fsr.getCursor());
+        }
+        if (fsr.getCompleteListSize() <= maxResults) {
+            return null;
+        }
+        ObjectFields last = (ObjectFields) l.get(l.size() - 1);
+        // objects without an mDate are ordered as if modified at the epoch
+        Date mDate = last.getMDate() != null ? last.getMDate() : new Date(0);
+        RangeToken next = range.next(mDate, last.getPid(), maxResults);
+        // the token does not expire
+        return new SimpleResumptionToken(next.getValue(),
+                                         null,
+                                         range.getCursor()
+                                                 + fsr.getCompleteListSize(),
+                                         range.getCursor());
+    }
+
+    private FieldSearchQuery getQuery(Date from, Date until)
+            throws ServerException {
+        return new FieldSearchQuery(Condition
+                .getConditions("dcmDate>'2000-01-01'"
+                        + getDatePart(from, until)));
     }
 
     private String getDatePart(Date from, Date until) {
@@ -355,56 +503,48 @@ public class FedoraOAIProvider
         if (!metadataPrefix.equals("oai_dc")) {
             throw new CannotDisseminateFormatException("Repository does not provide that format in OAI-PMH responses.");
         }
-        List l = null;
+        RangeToken range = new RangeToken(from, until);
+        int maxHeaders = (int) getMaxHeaders();
         FieldSearchResult fsr;
         try {
-            fsr =
-                    m_fieldSearch
-                            .findObjects(s_headerFields,
-                                         (int) getMaxHeaders(),
-                                         new FieldSearchQuery(Condition
-                                                 .getConditions("dcmDate>'2000-01-01'"
-                                                         + getDatePart(from,
-                                                                       until))));
-            l = fsr.objectFieldsList();
+            fsr = findObjectsAfter(s_headerFields, maxHeaders, range);
+            if (fsr == null) {
+                range = null;
+                fsr =
+                        m_fieldSearch.findObjects(s_headerFields,
+                                                  maxHeaders,
+                                                  getQuery(from, until));
+            }
         } catch (ServerException se) {
             throw new RepositoryException(se.getClass().getName() + ": "
                     + se.getMessage());
         }
-        if (l.size() == 0) {
-            throw new NoRecordsMatchException("No records match the given criteria.");
-        }
-        ArrayList<Object> ret = new ArrayList<Object>();
-        for (int i = 0; i < l.size(); i++) {
-            ObjectFields f = (ObjectFields) l.get(i);
-            ret.add(getHeader(f));
-        }
-        if (fsr.getToken() != null) {
-            ret.add(new SimpleResumptionToken(fsr.getToken(), fsr
-                    .getExpirationDate(), fsr.getCompleteListSize(), fsr
-                    .getCursor()));
-        }
-        return ret;
+        return getHeaders(fsr, range, maxHeaders);
     }
 
     public List getHeaders(String resumptionToken)
             throws CannotDisseminateFormatException, NoRecordsMatchException,
             NoSetHierarchyException, BadResumptionTokenException,
             RepositoryException {
-        // this is the exact same as the other getHeaders, except for the FieldSearch call,
-        // and the fact that we re-throw UnknownSessionTokenException
-        // as a BadResumptionTokenException
-        List l = null;
+        RangeToken range = RangeToken.parse(resumptionToken);
+        int maxHeaders = (int) getMaxHeaders();
         FieldSearchResult fsr;
         try {
-            fsr = m_fieldSearch.resumeFindObjects(resumptionToken);
-            l = fsr.objectFieldsList();
+            fsr = resume(s_headerFields, maxHeaders, resumptionToken, range);
         } catch (UnknownSessionTokenException uste) {
             throw new BadResumptionTokenException("Not a known resumptionToken.");
         } catch (ServerException se) {
             throw new RepositoryException(se.getClass().getName() + ": "
                     + se.getMessage());
         }
+        return getHeaders(fsr, range, maxHeaders);
+    }
+
+    private List getHeaders(FieldSearchResult fsr,
+                            RangeToken range,
+                            int maxHeaders) throws NoRecordsMatchException,
+            RepositoryException {
+        List l = fsr.objectFieldsList();
         if (l.size() == 0) {
             throw new NoRecordsMatchException("No records match the given criteria.");
         }
@@ -413,10 +553,10 @@ public class FedoraOAIProvider
             ObjectFields f = (ObjectFields) l.get(i);
             ret.add(getHeader(f));
         }
-        if (fsr.getToken() != null) {
-            ret.add(new SimpleResumptionToken(fsr.getToken(), fsr
-                    .getExpirationDate(), fsr.getCompleteListSize(), fsr
-                    .getCursor()));
+        ResumptionToken resumptionToken =
+                getResumptionToken(fsr, l, range, maxHeaders);
+        if (resumptionToken != null) {
+            ret.add(resumptionToken);
         }
         return ret;
     }
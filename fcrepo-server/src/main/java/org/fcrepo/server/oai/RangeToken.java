@@ -0,0 +1,163 @@
+/* The contents of this file are subject to the license and copyright terms
+ * detailed in the license directory at the root of the source tree (also
+ * available online at http://fedora-commons.org/license/).
+ */
+package org.fcrepo.server.oai;
+
+import java.util.Date;
+
+import org.fcrepo.oai.BadResumptionTokenException;
+
+/**
+ * The value of a resumptionToken that holds all that is needed to get the
+ * next page of a harvest: the requested range of mDates, and the mDate and
+ * pid of the last object returned. Objects are harvested in order of mDate
+ * and pid, so the next page starts right after that position, and no search
+ * result has to be kept on the server between requests.
+ * <p>
+ * The value is <code>r1.from.until.mDate.cursor.pid</code>, with dates as
+ * milliseconds since the epoch and left empty when not given. The pid comes
+ * last, as it may contain dots. FieldSearch session tokens never start with
+ * <code>r1.</code>.
+ *
+ * @version $Id$
+ */
+final class RangeToken {
+
+    private static final String PREFIX = "r1.";
+
+    private final Date m_from;
+
+    private final Date m_until;
+
+    private final Date m_mDate;
+
+    private final String m_pid;
+
+    private final long m_cursor;
+
+    /**
+     * Creates the position before the first object modified within the range.
+     *
+     * @param from the earliest mDate, or null for no limit
+     * @param until the latest mDate, or null for no limit
+     */
+    RangeToken(Date from, Date until) {
+        this(from, until, null, null, 0);
+    }
+
+    private RangeToken(Date from,
+                       Date until,
+                       Date mDate,
+                       String pid,
+                       long cursor) {
+        m_from = from;
+        m_until = until;
+        m_mDate = mDate;
+        m_pid = pid;
+        m_cursor = cursor;
+    }
+
+    /**
+     * Parses a resumptionToken.
+     *
+     * @return the token, or null if the value is not a range token
+     * @throws BadResumptionTokenException if the value is a malformed range
+     *         token
+     */
+    static RangeToken parse(String value) throws BadResumptionTokenException {
+        if (value == null || !value.startsWith(PREFIX)) {
+            return null;
+        }
+        String[] parts = value.substring(PREFIX.length()).split("\\.", 5);
+        if (parts.length != 5 || parts[2].length() == 0
+                || parts[4].length() == 0) {
+            throw new BadResumptionTokenException("Not a valid resumptionToken.");
+        }
+        try {
+            return new RangeToken(parseDate(parts[0]),
+                                  parseDate(parts[1]),
+                                  parseDate(parts[2]),
+                                  parts[4],
+                                  Long.parseLong(parts[3]));
+        } catch (NumberFormatException e) {
+            throw new BadResumptionTokenException("Not a valid resumptionToken.");
+        }
+    }
+
+    private static Date parseDate(String millis) {
+        if (millis.length() == 0) {
+            return null;
+        }
+        return new Date(Long.parseLong(millis));
+    }
+
+    /**
+     * Gets the position after a page of objects.
+     *
+     * @param mDate the mDate of the last object of the page
+     * @param pid the pid of the last object of the page
+     * @param pageSize the number of objects in the page
+     */
+    RangeToken next(Date mDate, String pid, long pageSize) {
+        return new RangeToken(m_from, m_until, mDate, pid, m_cursor + pageSize);
+    }
+
+    Date getFrom() {
+        return m_from;
+    }
+
+    Date getUntil() {
+        return m_until;
+    }
+
+    /**
+     * @return the mDate of the last object returned, or null before the first
+     *         page
+     */
+    Date getMDate() {
+        return m_mDate;
+    }
+
+    /**
+     * @return the pid of the last object returned, or null before the first
+     *         page
+     */
+    String getPID() {
+        return m_pid;
+    }
+
+    /**
+     * @return the number of objects returned before this position
+     */
+    long getCursor() {
+        return m_cursor;
+    }
+
+    /**
+     * @return the value of the resumptionToken
+     */
+    String getValue() {
+        StringBuilder out = new StringBuilder(PREFIX);
+        appendDate(out, m_from).append('.');
+        appendDate(out, m_until).append('.');
+        appendDate(out, m_mDate).append('.');
+        out.append(m_cursor).append('.');
+        if (m_pid != null) {
+            out.append(m_pid);
+        }
+        return out.toString();
+    }
+
+    private static StringBuilder appendDate(StringBuilder out, Date date) {
+        if (date != null) {
+            out.append(date.getTime());
+        }
+        return out;
+    }
+
+    @Override
+    public String toString() {
+        return getValue();
+    }
+}
@@ -8,10 +8,18 @@ import java.io.File;
 import java.io.StringReader;
 import java.io.Writer;
 import java.net.URI;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
 import javax.servlet.http.HttpServletRequest;
 import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.EntityTag;
 import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Request;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.Response.ResponseBuilder;
 import javax.ws.rs.core.Response.Status;
@@ -65,6 +73,13 @@ public class BaseRestResource {
     public static final MediaType TEXT_HTML = new MediaType("text", "html");
     public static final MediaType TEXT_XML = new MediaType("text", "xml");
 
+    /** the format of dates in HTTP headers (RFC 2616, section 3.3.1) */
+    private static final String HTTP_DATE_FORMAT = "EEE, dd MMM yyyy HH:mm:ss zzz";
+
+    private static final int PARTIAL_CONTENT = 206;
+
+    private static final int REQUESTED_RANGE_NOT_SATISFIABLE = 416;
+
     protected Server fedoraServer;
     protected Management apiMService;
     protected Access apiAService;
@@ -82,6 +97,9 @@ public class BaseRestResource {
     @javax.ws.rs.core.Context
     protected HttpHeaders headers;
 
+    @javax.ws.rs.core.Context
+    protected Request request;
+
     public BaseRestResource() {
         try {
             this.fedoraServer = Server.getInstance(new File(Constants.FEDORA_HOME), false);
@@ -119,12 +137,54 @@ public class BaseRestResource {
         transformer.transform(new StreamSource(new StringReader(xml)), new StreamResult(out));
     }
 
+    /**
+     * Builds the response for a MIMETypedStream. If the stream has
+     * validators, conditional requests are answered with 304 (Not Modified)
+     * or 412 (Precondition Failed). If its size is known, the Range header is
+     * honored with a 206 (Partial Content) response, or a 416 (Requested
+     * Range Not Satisfiable) response if none of the ranges is in the content.
+     * A Range header with too many ranges is ignored.
+     */
     protected Response buildResponse(MIMETypedStream result) throws Exception {
         if (result.MIMEType.equalsIgnoreCase("application/fedora-redirect")) {
             URI location = URI.create(IOUtils.toString(result.getStream()));
             return Response.temporaryRedirect(location).build();
         } else {
-            ResponseBuilder builder = Response.ok();
+            EntityTag entityTag = getEntityTag(result);
+            Date lastModified = getLastModified(result);
+            ResponseBuilder builder =
+                    evaluatePreconditions(entityTag, lastModified);
+            if (builder != null) {
+                result.close();
+                return addValidators(builder, entityTag, lastModified).build();
+            }
+
+            ByteRangeOutput ranges = null;
+            if (result.getSize() != -1L
+                    && isRangeCurrent(entityTag, lastModified)) {
+                List<ByteRange> requested =
+                        ByteRange.parse(getRequestHeader("Range"),
+                                        result.getSize());
+                if (requested != null && requested.isEmpty()) {
+                    result.close();
+                    return Response.status(REQUESTED_RANGE_NOT_SATISFIABLE)
+                            .header("Content-Range",
+                                    "bytes */" + result.getSize()).build();
+                }
+                if (requested != null) {
+                    ranges = new ByteRangeOutput(result, requested);
+                    if (!ranges.canWrite()) {
+                        // the whole content is a valid response to any Range
+                        ranges = null;
+                    }
+                }
+            }
+
+            if (ranges == null) {
+                builder = Response.ok();
+            } else {
+                builder = Response.status(PARTIAL_CONTENT);
+            }
 
             if (result.header != null) {
                 for (Property header : result.header) {
@@ -136,6 +196,21 @@ public class BaseRestResource {
                     }
                 }
             }
+            addValidators(builder, entityTag, lastModified);
+            if (result.getSize() != -1L) {
+                builder.header("Accept-Ranges", "bytes");
+            }
+
+            if (ranges != null) {
+                if (ranges.getContentRange() != null) {
+                    builder.header("Content-Range", ranges.getContentRange());
+                }
+                builder.header("content-length", ranges.getLength());
+                builder.type(ranges.getContentType());
+                builder.entity(ranges);
+                return builder.build();
+            }
+
             if (result.getSize() != -1L){
                 builder.header("content-length",result.getSize());
             }
@@ -148,6 +223,88 @@ public class BaseRestResource {
         }
     }
 
+    private static EntityTag getEntityTag(MIMETypedStream result) {
+        if (result.getEntityTag() == null) {
+            return null;
+        }
+        return new EntityTag(result.getEntityTag());
+    }
+
+    /**
+     * HTTP dates are in seconds, so the date is truncated to the second;
+     * otherwise it would always be later than the date a client sends back.
+     */
+    private static Date getLastModified(MIMETypedStream result) {
+        if (result.getLastModified() == null) {
+            return null;
+        }
+        long time = result.getLastModified().getTime();
+        return new Date(time - time % 1000);
+    }
+
+    private ResponseBuilder evaluatePreconditions(EntityTag entityTag,
+                                                  Date lastModified) {
+        if (request == null) {
+            return null;
+        } else if (entityTag != null && lastModified != null) {
+            return request.evaluatePreconditions(lastModified, entityTag);
+        } else if (entityTag != null) {
+            return request.evaluatePreconditions(entityTag);
+        } else if (lastModified != null) {
+            return request.evaluatePreconditions(lastModified);
+        }
+        return null;
+    }
+
+    private static ResponseBuilder addValidators(ResponseBuilder builder,
+                                                 EntityTag entityTag,
+                                                 Date lastModified) {
+        if (entityTag != null) {
+            builder.tag(entityTag);
+        }
+        if (lastModified != null) {
+            builder.lastModified(lastModified);
+        }
+        return builder;
+    }
+
+    /**
+     * Tells whether the content is still the one an If-Range header names,
+     * if there is such a header. If not, the Range header must be ignored.
+     */
+    private boolean isRangeCurrent(EntityTag entityTag, Date lastModified) {
+        String ifRange = getRequestHeader("If-Range");
+        if (ifRange == null) {
+            return true;
+        }
+        ifRange = ifRange.trim();
+        if (ifRange.startsWith("\"")) {
+            return entityTag != null && ifRange.equals(entityTag.toString());
+        } else if (ifRange.startsWith("W/") || lastModified == null) {
+            // weak entity tags are never current
+            return false;
+        }
+        SimpleDateFormat format =
+                new SimpleDateFormat(HTTP_DATE_FORMAT, Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        try {
+            return lastModified.equals(format.parse(ifRange));
+        } catch (ParseException e) {
+            return false;
+        }
+    }
+
+    private String getRequestHeader(String name) {
+        if (headers == null) {
+            return null;
+        }
+        List<String> values = headers.getRequestHeader(name);
+        if (values == null || values.isEmpty()) {
+            return null;
+        }
+        return values.get(0);
+    }
+
     protected Response handleException(Exception ex) {
         if (ex instanceof ObjectNotInLowlevelStorageException ||
             ex instanceof DatastreamNotFoundException) {
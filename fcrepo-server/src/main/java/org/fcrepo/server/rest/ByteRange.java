@@ -0,0 +1,205 @@
+/* The contents of this file are subject to the license and copyright terms
+ * detailed in the license directory at the root of the source tree (also
+ * available online at http://fedora-commons.org/license/).
+ */
+package org.fcrepo.server.rest;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A range of the bytes of the content of a response, as requested in the
+ * Range header of a request (RFC 2616, section 14.35).
+ *
+ * @version $Id$
+ */
+final class ByteRange {
+
+    private static final String BYTES_UNIT = "bytes=";
+
+    /**
+     * The most ranges a Range header may have; more, even if they would be
+     * merged, and the header is ignored.
+     */
+    static final int MAX_RANGES = 200;
+
+    private final long first;
+
+    private final long last;
+
+    ByteRange(long first, long last) {
+        this.first = first;
+        this.last = last;
+    }
+
+    /**
+     * Parses the value of a Range header, for content of the given size.
+     * Ranges that extend past the end of the content are cut short, and
+     * ranges that start past it are left out. Ranges that overlap or adjoin
+     * are merged, so no byte is sent twice.
+     *
+     * @param header the value of the header, or null
+     * @param size the size of the content
+     * @return the satisfiable ranges, in the order requested, a merged range
+     *         taking the place of the first of its ranges; an empty list if
+     *         none of them is satisfiable; or null if the value is not a valid
+     *         set of byte ranges or has more than <code>MAX_RANGES</code>
+     *         ranges, in which case the header must be ignored
+     */
+    static List<ByteRange> parse(String header, long size) {
+        if (header == null) {
+            return null;
+        }
+        String value = header.trim();
+        if (!value.regionMatches(true, 0, BYTES_UNIT, 0, BYTES_UNIT.length())) {
+            return null;
+        }
+        List<ByteRange> ranges = new ArrayList<ByteRange>();
+        int specs = 0;
+        for (String spec : value.substring(BYTES_UNIT.length()).split(",")) {
+            spec = spec.trim();
+            if (spec.length() == 0) {
+                continue;
+            }
+            int dash = spec.indexOf('-');
+            if (dash < 0) {
+                return null;
+            }
+            String firstPos = spec.substring(0, dash).trim();
+            String lastPos = spec.substring(dash + 1).trim();
+            long first;
+            long last;
+            try {
+                if (firstPos.length() == 0) {
+                    // the last bytes of the content
+                    long suffixLength = parsePosition(lastPos);
+                    first = Math.max(0, size - suffixLength);
+                    last = suffixLength == 0 ? -1 : size - 1;
+                } else {
+                    first = parsePosition(firstPos);
+                    if (lastPos.length() == 0) {
+                        last = size - 1;
+                    } else {
+                        last = parsePosition(lastPos);
+                        if (last < first) {
+                            return null;
+                        }
+                        last = Math.min(last, size - 1);
+                    }
+                }
+            } catch (NumberFormatException e) {
+                return null;
+            }
+            if (++specs > MAX_RANGES) {
+                return null;
+            }
+            if (first <= last) {
+                addMerged(ranges, first, last);
+            }
+        }
+        if (specs == 0) {
+            return null;
+        }
+        return ranges;
+    }
+
+    /**
+     * Adds a range to ranges that neither overlap nor adjoin, merging it with
+     * those it overlaps or adjoins. The merged range takes the place of the
+     * first of them.
+     */
+    private static void addMerged(List<ByteRange> ranges, long first, long last) {
+        int index = -1;
+        for (int i = 0; i < ranges.size();) {
+            ByteRange range = ranges.get(i);
+            if (range.first <= last + 1 && first <= range.last + 1) {
+                first = Math.min(first, range.first);
+                last = Math.max(last, range.last);
+                if (index < 0) {
+                    index = i++;
+                } else {
+                    ranges.remove(i);
+                }
+            } else {
+                i++;
+            }
+        }
+        if (index < 0) {
+            ranges.add(new ByteRange(first, last));
+        } else {
+            ranges.set(index, new ByteRange(first, last));
+        }
+    }
+
+    private static long parsePosition(String value) {
+        if (value.length() == 0) {
+            throw new NumberFormatException("Missing position");
+        }
+        for (int i = 0; i < value.length(); i++) {
+            if (!Character.isDigit(value.charAt(i))) {
+                throw new NumberFormatException("Not a position: " + value);
+            }
+        }
+        return Long.parseLong(value);
+    }
+
+    /**
+     * Tells whether each of the ranges starts after the end of the one before,
+     * so that the content can be read once from start to end to write them.
+     */
+    static boolean isAscending(List<ByteRange> ranges) {
+        for (int i = 1; i < ranges.size(); i++) {
+            if (ranges.get(i).first <= ranges.get(i - 1).last) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the position of the first byte of the range
+     */
+    long getFirst() {
+        return first;
+    }
+
+    /**
+     * @return the position of the last byte of the range
+     */
+    long getLast() {
+        return last;
+    }
+
+    /**
+     * @return the number of bytes in the range
+     */
+    long getLength() {
+        return last - first + 1;
+    }
+
+    /**
+     * @return the value of the Content-Range header for the range
+     */
+    String getContentRange(long size) {
+        return "bytes " + first + "-" + last + "/" + size;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof ByteRange)) {
+            return false;
+        }
+        ByteRange other = (ByteRange) o;
+        return first == other.first && last == other.last;
+    }
+
+    @Override
+    public int hashCode() {
+        return (int) (first * 31 + last);
+    }
+
+    @Override
+    public String toString() {
+        return first + "-" + last;
+    }
+}
@@ -0,0 +1,220 @@
+/* The contents of this file are subject to the license and copyright terms
+ * detailed in the license directory at the root of the source tree (also
+ * available online at http://fedora-commons.org/license/).
+ */
+package org.fcrepo.server.rest;
+
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+import java.util.List;
+import java.util.UUID;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.StreamingOutput;
+
+import org.fcrepo.server.storage.lowlevel.IFileBacked;
+import org.fcrepo.server.storage.types.MIMETypedStream;
+
+/**
+ * Writes ranges of the content of a MIMETypedStream as the body of a 206
+ * (Partial Content) response: a single range as is, and several ranges as a
+ * multipart/byteranges body (RFC 2616, section 19.2).
+ * <p>
+ * When the content is a file, the ranges are transferred from the channel of
+ * the file, at their positions, so the ranges may come in any order.
+ * Otherwise, the stream is read once from start to end, skipping the bytes
+ * between the ranges, so the ranges must be ascending.
+ *
+ * @version $Id$
+ */
+class ByteRangeOutput
+        implements StreamingOutput {
+
+    private static final String CRLF = "\r\n";
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private final MIMETypedStream stream;
+
+    private final List<ByteRange> ranges;
+
+    private final String boundary;
+
+    private final InputStream in;
+
+    private final FileChannel channel;
+
+    /** the position of the stream, when there is no channel */
+    private long position = 0;
+
+    /**
+     * Creates the output of the ranges. The content stream is closed when the
+     * output is written.
+     *
+     * @param stream the content, of known size
+     * @param ranges the satisfiable ranges of the content
+     */
+    ByteRangeOutput(MIMETypedStream stream, List<ByteRange> ranges) {
+        this.stream = stream;
+        this.ranges = ranges;
+        this.boundary = UUID.randomUUID().toString();
+        this.in = stream.getStream();
+        this.channel = getFileChannel(in);
+    }
+
+    /**
+     * Gets the channel of the file a stream reads, if it reads a file.
+     */
+    static FileChannel getFileChannel(InputStream in) {
+        if (in instanceof FileInputStream) {
+            return ((FileInputStream) in).getChannel();
+        } else if (in instanceof IFileBacked) {
+            return ((IFileBacked) in).getFileChannel();
+        }
+        return null;
+    }
+
+    /**
+     * Tells whether the ranges can be written. Without a channel, the
+     * ranges must be ascending.
+     */
+    boolean canWrite() {
+        return channel != null || ByteRange.isAscending(ranges);
+    }
+
+    boolean isMultipart() {
+        return ranges.size() > 1;
+    }
+
+    /**
+     * @return the value of the Content-Type header of the response
+     */
+    String getContentType() {
+        if (isMultipart()) {
+            return "multipart/byteranges; boundary=" + boundary;
+        }
+        return stream.MIMEType;
+    }
+
+    /**
+     * @return the value of the Content-Range header of the response, or null
+     *         for a multipart response
+     */
+    String getContentRange() {
+        if (isMultipart()) {
+            return null;
+        }
+        return ranges.get(0).getContentRange(stream.getSize());
+    }
+
+    /**
+     * @return the number of bytes of the body
+     */
+    long getLength() {
+        if (!isMultipart()) {
+            return ranges.get(0).getLength();
+        }
+        long length = getClosingDelimiter().length();
+        for (ByteRange range : ranges) {
+            length += getPartHeader(range).length() + range.getLength()
+                    + CRLF.length();
+        }
+        return length;
+    }
+
+    public void write(OutputStream out) throws IOException,
+            WebApplicationException {
+        try {
+            if (!isMultipart()) {
+                writeRange(ranges.get(0), out);
+            } else {
+                for (ByteRange range : ranges) {
+                    out.write(getPartHeader(range).getBytes("US-ASCII"));
+                    writeRange(range, out);
+                    out.write(CRLF.getBytes("US-ASCII"));
+                }
+                out.write(getClosingDelimiter().getBytes("US-ASCII"));
+            }
+            out.flush();
+        } finally {
+            stream.close();
+        }
+    }
+
+    private String getPartHeader(ByteRange range) {
+        StringBuilder header = new StringBuilder();
+        header.append("--").append(boundary).append(CRLF);
+        if (stream.MIMEType != null && stream.MIMEType.length() > 0) {
+            header.append("Content-Type: ").append(stream.MIMEType).append(CRLF);
+        }
+        header.append("Content-Range: ")
+                .append(range.getContentRange(stream.getSize())).append(CRLF);
+        header.append(CRLF);
+        return header.toString();
+    }
+
+    private String getClosingDelimiter() {
+        return "--" + boundary + "--" + CRLF;
+    }
+
+    private void writeRange(ByteRange range, OutputStream out)
+            throws IOException {
+        if (channel != null) {
+            transferRange(range, out);
+        } else {
+            copyRange(range, out);
+        }
+    }
+
+    private void transferRange(ByteRange range, OutputStream out)
+            throws IOException {
+        WritableByteChannel target = Channels.newChannel(out);
+        long start = range.getFirst();
+        long remaining = range.getLength();
+        while (remaining > 0) {
+            long transferred = channel.transferTo(start, remaining, target);
+            if (transferred <= 0) {
+                throw new EOFException("Content ended before byte "
+                        + start + " of " + range);
+            }
+            start += transferred;
+            remaining -= transferred;
+        }
+    }
+
+    private void copyRange(ByteRange range, OutputStream out)
+            throws IOException {
+        while (position < range.getFirst()) {
+            long skipped = in.skip(range.getFirst() - position);
+            if (skipped <= 0) {
+                // skip may stop short; read a byte to tell the end apart
+                if (in.read() < 0) {
+                    throw new EOFException("Content ended before byte "
+                            + range.getFirst());
+                }
+                skipped = 1;
+            }
+            position += skipped;
+        }
+        byte[] buffer = new byte[(int) Math.min(BUFFER_SIZE, range.getLength())];
+        long remaining = range.getLength();
+        while (remaining > 0) {
+            int n = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+            if (n < 0) {
+                throw new EOFException("Content ended before byte "
+                        + position + " of " + range);
+            }
+            out.write(buffer, 0, n);
+            position += n;
+            remaining -= n;
+        }
+    }
+}
@@ -4,6 +4,8 @@
  */
 package org.fcrepo.server.search;
 
+import java.util.Date;
+
 import org.fcrepo.server.errors.ServerException;
 import org.fcrepo.server.storage.DOReader;
 
@@ -79,6 +81,61 @@ public interface FieldSearch {
     public FieldSearchResult resumeFindObjects(String sessionToken)
             throws ServerException;
 
+    /**
+     * Search across specific fields and return the desired fields, ordered by
+     * mDate and then pid, starting after the given position. No session is
+     * kept for the results: the result has no token, and the caller resumes
+     * by passing the mDate and pid of the last object it got. The complete
+     * list size of the result is the number of matching objects from the
+     * position on, including those returned.
+     *
+     * @param resultFields
+     *        the desired fields
+     * @param maxResults
+     *        the maximum number of results the client wants
+     * @param query
+     *        the query
+     * @param afterMDate
+     *        the mDate of the last object already returned, or null to start
+     *        at the first object
+     * @param afterPID
+     *        the pid of the last object already returned, or null to start at
+     *        the first object
+     * @return FieldSearchResult the results
+     * @throws ServerException
+     *         if anything went wrong
+     */
+    public FieldSearchResult findObjectsAfter(String[] resultFields,
+                                              int maxResults,
+                                              FieldSearchQuery query,
+                                              Date afterMDate,
+                                              String afterPID)
+            throws ServerException;
+
     public int findHighestID(String namespace)
             throws ServerException;
+
+    /**
+     * Tells whether an object is in the search indexes. Unlike a
+     * <code>findObjects</code> query on the pid, this does not create a search
+     * result, and it always reflects all preceding updates, so it can be used
+     * for existence checks during ingest.
+     *
+     * @param pid
+     *        the unique id of the object
+     * @return true if the object is in the search indexes; false otherwise.
+     * @throws ServerException
+     *         if anything went wrong
+     */
+    public boolean objectExists(String pid) throws ServerException;
+
+    /**
+     * Get the number of objects in the search indexes, without creating a
+     * search result. The count may not yet include the most recent updates.
+     *
+     * @return the number of objects
+     * @throws ServerException
+     *         if anything went wrong
+     */
+    public long getObjectCount() throws ServerException;
 }
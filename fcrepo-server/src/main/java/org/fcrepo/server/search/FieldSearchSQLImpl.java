@@ -8,6 +8,7 @@ import java.io.InputStream;
 
 import java.sql.Connection;
 import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
 
 
@@ -418,8 +419,61 @@ public class FieldSearchSQLImpl
         return out.toString();
     }
 
+    public FieldSearchResult findObjectsAfter(String[] resultFields,
+                                              int maxResults,
+                                              FieldSearchQuery query,
+                                              Date afterMDate,
+                                              String afterPID)
+            throws ServerException {
+        throw new MethodNotFoundException("FieldSearchSQL does not implement findObjectsAfter");
+    }
+
     @Override
     public int findHighestID(String namespace) throws ServerException {
         throw new MethodNotFoundException("FieldSearchSQL does not implement findHighestID");
     }
+
+    public boolean objectExists(String pid) throws ServerException {
+        return queryCount("SELECT COUNT(*) FROM doFields WHERE pid=?", pid) > 0;
+    }
+
+    public long getObjectCount() throws ServerException {
+        return queryCount("SELECT COUNT(*) FROM doFields", null);
+    }
+
+    /**
+     * Runs a count query with an optional single parameter.
+     */
+    private long queryCount(String sql, String param) throws ServerException {
+        Connection conn = null;
+        PreparedStatement st = null;
+        ResultSet results = null;
+        try {
+            conn = m_cPool.getReadOnlyConnection();
+            st = conn.prepareStatement(sql);
+            if (param != null) {
+                st.setString(1, param);
+            }
+            results = st.executeQuery();
+            return results.next() ? results.getLong(1) : 0;
+        } catch (SQLException sqle) {
+            throw new StorageDeviceException("Error querying sql db: "
+                    + sqle.getMessage(), sqle);
+        } finally {
+            try {
+                if (results != null) {
+                    results.close();
+                }
+                if (st != null) {
+                    st.close();
+                }
+                if (conn != null) {
+                    m_cPool.free(conn);
+                }
+            } catch (SQLException sqle2) {
+                throw new StorageDeviceException("Error closing statement "
+                        + "while querying sql db: " + sqle2.getMessage());
+            }
+        }
+    }
 }
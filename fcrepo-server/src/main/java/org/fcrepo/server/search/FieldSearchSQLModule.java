@@ -4,6 +4,7 @@
  */
 package org.fcrepo.server.search;
 
+import java.util.Date;
 import java.util.Map;
 
 import org.fcrepo.server.Module;
@@ -167,9 +168,30 @@ public class FieldSearchSQLModule
         return m_wrappedFieldSearch.resumeFindObjects(sessionToken);
     }
 
+    public FieldSearchResult findObjectsAfter(String[] resultFields,
+                                              int maxResults,
+                                              FieldSearchQuery query,
+                                              Date afterMDate,
+                                              String afterPID)
+            throws ServerException {
+        return m_wrappedFieldSearch.findObjectsAfter(resultFields,
+                                                     maxResults,
+                                                     query,
+                                                     afterMDate,
+                                                     afterPID);
+    }
+
     @Override
     public int findHighestID(String namespace) throws ServerException {
         return m_wrappedFieldSearch.findHighestID(namespace);
     }
 
+    public boolean objectExists(String pid) throws ServerException {
+        return m_wrappedFieldSearch.objectExists(pid);
+    }
+
+    public long getObjectCount() throws ServerException {
+        return m_wrappedFieldSearch.getObjectCount();
+    }
+
 }
@@ -7,7 +7,8 @@ package org.fcrepo.server.security;
 import java.net.URI;
 import java.net.URISyntaxException;
 
-import java.util.Hashtable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import com.sun.xacml.EvaluationCtx;
 import com.sun.xacml.attr.AttributeDesignator;
@@ -36,7 +37,11 @@ class ContextAttributeFinderModule
     static private final ContextAttributeFinderModule singleton =
             new ContextAttributeFinderModule();
 
-    private final Hashtable contexts = new Hashtable();
+    // the contexts of the requests being evaluated, by context id. Shared by
+    // all instances, so a request is registered once whichever instances
+    // the PDP uses
+    private static final ConcurrentMap<String, Context> contexts =
+            new ConcurrentHashMap<String, Context>();
 
     private ContextAttributeFinderModule() {
         super();
@@ -172,7 +177,7 @@ class ContextAttributeFinderModule
         logger.debug("getAttributeLocally context");
         String contextId = getContextId(ctx);
         logger.debug("contextId=" + contextId + " attributeId=" + attributeId);
-        Context context = (Context) contexts.get(contextId);
+        Context context = contextId == null ? null : contexts.get(contextId);
         logger.debug("got context");
         Object values = null;
         logger.debug("designatorType" + designatorType);
@@ -295,12 +300,12 @@ class ContextAttributeFinderModule
         return values;
     }
 
-    final void registerContext(Object key, Context value) {
+    static final void registerContext(String key, Context value) {
         logger.debug("registering " + key);
         contexts.put(key, value);
     }
 
-    final void unregisterContext(Object key) {
+    static final void unregisterContext(String key) {
         logger.debug("unregistering " + key);
         contexts.remove(key);
     }
@@ -12,6 +12,8 @@ import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 import com.sun.xacml.PDP;
 import com.sun.xacml.PDPConfig;
@@ -31,13 +33,15 @@ import org.fcrepo.server.errors.authorization.AuthzException;
 import org.fcrepo.server.errors.authorization.AuthzOperationalException;
 import org.fcrepo.server.errors.authorization.AuthzPermittedException;
 import org.fcrepo.server.storage.DOManager;
+import org.fcrepo.server.utilities.JMXUtility;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
  * @author Bill Niebel
  */
-public class PolicyEnforcementPoint {
+public class PolicyEnforcementPoint
+        implements PolicyEnforcementPointMBean {
 
     private static final Logger logger =
             LoggerFactory.getLogger(PolicyEnforcementPoint.class);
@@ -50,7 +54,7 @@ public class PolicyEnforcementPoint {
 
     private static int count = 0;
 
-    private String enforceMode = ENFORCE_MODE_ENFORCE_POLICIES;
+    private volatile String enforceMode = ENFORCE_MODE_ENFORCE_POLICIES;
 
     static final String ENFORCE_MODE_ENFORCE_POLICIES = "enforce-policies";
 
@@ -86,6 +90,26 @@ public class PolicyEnforcementPoint {
 
     private final URI RESOURCE_NAMESPACE_URI;
 
+    // upper bounds of the enforce latency histogram buckets, the last
+    // bucket counts everything slower
+    private static final long[] LATENCY_BUCKET_MILLIS =
+            {1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000};
+
+    private final AtomicLongArray m_latencyHistogram =
+            new AtomicLongArray(LATENCY_BUCKET_MILLIS.length + 1);
+
+    private final AtomicLong m_requests = new AtomicLong();
+
+    private final AtomicLong m_permits = new AtomicLong();
+
+    private final AtomicLong m_denials = new AtomicLong();
+
+    private final AtomicLong m_errors = new AtomicLong();
+
+    private final AtomicLong m_totalEnforceNanos = new AtomicLong();
+
+    private final AtomicLong m_maxEnforceNanos = new AtomicLong();
+
     private PolicyEnforcementPoint() {
 
         URI xacmlSubjectIdUri = null;
@@ -121,9 +145,12 @@ public class PolicyEnforcementPoint {
             RESOURCE_ID_URI = pidUri;
             RESOURCE_NAMESPACE_URI = namespaceUri;
         }
+
+        JMXUtility.registerMBean(this,
+                                 "org.fcrepo.server.security:type=PolicyEnforcementPoint");
     }
 
-    public static final PolicyEnforcementPoint getInstance() {
+    public static final synchronized PolicyEnforcementPoint getInstance() {
         if (singleton == null) {
             singleton = new PolicyEnforcementPoint();
         }
@@ -133,9 +160,10 @@ public class PolicyEnforcementPoint {
     }
 
     /**
-     * xacml pdp
+     * xacml pdp. Replaced as a whole by newPdp(), so enforce() only needs to
+     * read it once
      */
-    private PDP pdp = null;
+    private volatile PDP pdp = null;
 
     /**
      * available during init(); keep as logging hook
@@ -143,9 +171,22 @@ public class PolicyEnforcementPoint {
 
     private final List<com.sun.xacml.finder.AttributeFinderModule> m_attrFinderModules = new ArrayList<com.sun.xacml.finder.AttributeFinderModule>(0);
 
+    /**
+     * whether the request contexts must be registered for a
+     * ContextAttributeFinderModule
+     */
+    private volatile boolean m_registerContexts = false;
+
     public void setAttributeFinderModules(List<com.sun.xacml.finder.AttributeFinderModule> attrFinderModules){
+        boolean registerContexts = false;
+        for (com.sun.xacml.finder.AttributeFinderModule m : attrFinderModules) {
+            if (m instanceof ContextAttributeFinderModule) {
+                registerContexts = true;
+            }
+        }
         this.m_attrFinderModules.clear();
         this.m_attrFinderModules.addAll(attrFinderModules);
+        m_registerContexts = registerContexts;
     }
 
     public final void newPdp() throws Exception {
@@ -176,11 +217,8 @@ public class PolicyEnforcementPoint {
         policyFinder.setModules(policyModules);
         logger.debug("o after setting policy finder hashset into policy finder");
 
-        PDP pdp = new PDP(new PDPConfig(attrFinder, policyFinder, null));
-        synchronized (this) {
-            this.pdp = pdp;
-            //so enforce() will wait, if this pdp update is in progress
-        }
+        // requests already evaluating finish with the previous pdp
+        this.pdp = new PDP(new PDPConfig(attrFinder, policyFinder, null));
     }
 
     String combiningAlgorithm = null;
@@ -324,11 +362,7 @@ public class PolicyEnforcementPoint {
         return resources;
     }
 
-    private int n = 0;
-
-    private synchronized int next() {
-        return n++;
-    }
+    private final AtomicLong m_contextIndex = new AtomicLong();
 
     private final Set NULL_SET = new HashSet();
 
@@ -339,15 +373,16 @@ public class PolicyEnforcementPoint {
                               String namespace,
                               Context context) throws AuthzException {
 
-        long enforceStartTime = System.currentTimeMillis();
+        long enforceStartTime = System.nanoTime();
+        boolean permitted = false;
+        boolean denied = false;
+        String enforceMode = this.enforceMode;
         try {
-            synchronized (this) {
-                //wait, if pdp update is in progress
-            }
             if (ENFORCE_MODE_PERMIT_ALL_REQUESTS.equals(enforceMode)) {
                 logger.debug("permitting request because enforceMode==ENFORCE_MODE_PERMIT_ALL_REQUESTS");
             } else if (ENFORCE_MODE_DENY_ALL_REQUESTS.equals(enforceMode)) {
                 logger.debug("denying request because enforceMode==ENFORCE_MODE_DENY_ALL_REQUESTS");
+                denied = true;
                 throw new AuthzDeniedException("all requests are currently denied");
             } else if (!ENFORCE_MODE_ENFORCE_POLICIES.equals(enforceMode)) {
                 logger.debug("denying request because enforceMode is invalid");
@@ -355,8 +390,13 @@ public class PolicyEnforcementPoint {
             } else {
                 ResponseCtx response = null;
                 String contextIndex = null;
+                boolean registered = false;
                 try {
-                    contextIndex = (new Integer(next())).toString();
+                    PDP pdp = this.pdp;
+                    if (pdp == null) {
+                        throw new IllegalStateException("PDP is not initialized");
+                    }
+                    contextIndex = Long.toString(m_contextIndex.getAndIncrement());
                     logger.debug("context index set=" + contextIndex);
                     Set subjects = wrapSubjects(subjectId);
                     Set actions = wrapActions(action, api, contextIndex);
@@ -374,12 +414,9 @@ public class PolicyEnforcementPoint {
                         logger.debug("request action has " + tempobj.getId() + "="
                                 + tempobj.getValue().toString());
                     }
-                    for (com.sun.xacml.finder.AttributeFinderModule m:m_attrFinderModules){
-                        if (m instanceof ContextAttributeFinderModule){
-                            ContextAttributeFinderModule c = (ContextAttributeFinderModule)m;
-                            logger.debug("about to ref contextAttributeFinder=" + c);
-                            c.registerContext(contextIndex, context);
-                        }
+                    if (m_registerContexts) {
+                        ContextAttributeFinderModule.registerContext(contextIndex, context);
+                        registered = true;
                     }
                     long st = System.currentTimeMillis();
                     try {
@@ -394,24 +431,111 @@ public class PolicyEnforcementPoint {
                     logger.error("Error evaluating policy", t);
                     throw new AuthzOperationalException("");
                 } finally {
-                    for (com.sun.xacml.finder.AttributeFinderModule m:m_attrFinderModules){
-                        if (m instanceof ContextAttributeFinderModule){
-                            ContextAttributeFinderModule c = (ContextAttributeFinderModule)m;
-                            c.unregisterContext(contextIndex);
-                        }
+                    if (registered) {
+                        ContextAttributeFinderModule.unregisterContext(contextIndex);
                     }
                 }
                 logger.debug("in pep, before denyBiasedAuthz() called");
                 if (!denyBiasedAuthz(response.getResults())) {
+                    denied = true;
                     throw new AuthzDeniedException("");
                 }
             }
+            permitted = true;
             if (context.getNoOp()) {
                 throw new AuthzPermittedException("noOp");
             }
         } finally {
-            long dur = System.currentTimeMillis() - enforceStartTime;
-            logger.debug("Policy enforcement took " + dur + "ms.");
+            long dur = System.nanoTime() - enforceStartTime;
+            recordEnforce(dur, permitted, denied);
+            logger.debug("Policy enforcement took " + dur / 1000000 + "ms.");
+        }
+    }
+
+    private void recordEnforce(long nanos, boolean permitted, boolean denied) {
+        m_requests.incrementAndGet();
+        if (permitted) {
+            m_permits.incrementAndGet();
+        } else if (denied) {
+            m_denials.incrementAndGet();
+        } else {
+            m_errors.incrementAndGet();
+        }
+        m_totalEnforceNanos.addAndGet(nanos);
+        long max = m_maxEnforceNanos.get();
+        while (nanos > max && !m_maxEnforceNanos.compareAndSet(max, nanos)) {
+            max = m_maxEnforceNanos.get();
+        }
+
+        long millis = nanos / 1000000;
+        int bucket = 0;
+        while (bucket < LATENCY_BUCKET_MILLIS.length
+                && millis >= LATENCY_BUCKET_MILLIS[bucket]) {
+            bucket++;
+        }
+        m_latencyHistogram.incrementAndGet(bucket);
+    }
+
+    @Override
+    public String getEnforceMode() {
+        return enforceMode;
+    }
+
+    @Override
+    public long getRequests() {
+        return m_requests.get();
+    }
+
+    @Override
+    public long getPermits() {
+        return m_permits.get();
+    }
+
+    @Override
+    public long getDenials() {
+        return m_denials.get();
+    }
+
+    @Override
+    public long getErrors() {
+        return m_errors.get();
+    }
+
+    @Override
+    public long getMaxEnforceMillis() {
+        return m_maxEnforceNanos.get() / 1000000;
+    }
+
+    @Override
+    public double getAverageEnforceMillis() {
+        long requests = m_requests.get();
+        return requests == 0 ? 0 : m_totalEnforceNanos.get() / 1000000.0 / requests;
+    }
+
+    @Override
+    public long[] getEnforceLatencyBucketMillis() {
+        return LATENCY_BUCKET_MILLIS.clone();
+    }
+
+    @Override
+    public long[] getEnforceLatencyHistogram() {
+        long[] histogram = new long[m_latencyHistogram.length()];
+        for (int i = 0; i < histogram.length; i++) {
+            histogram[i] = m_latencyHistogram.get(i);
+        }
+        return histogram;
+    }
+
+    @Override
+    public void resetStatistics() {
+        m_requests.set(0);
+        m_permits.set(0);
+        m_denials.set(0);
+        m_errors.set(0);
+        m_totalEnforceNanos.set(0);
+        m_maxEnforceNanos.set(0);
+        for (int i = 0; i < m_latencyHistogram.length(); i++) {
+            m_latencyHistogram.set(i, 0);
         }
     }
 
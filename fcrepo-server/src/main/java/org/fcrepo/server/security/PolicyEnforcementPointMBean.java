@@ -0,0 +1,39 @@
+/* The contents of this file are subject to the license and copyright terms
+ * detailed in the license directory at the root of the source tree (also
+ * available online at http://fedora-commons.org/license/).
+ */
+package org.fcrepo.server.security;
+
+/**
+ * JMX view of the {@link PolicyEnforcementPoint}.
+ */
+public interface PolicyEnforcementPointMBean {
+
+    String getEnforceMode();
+
+    long getRequests();
+
+    long getPermits();
+
+    long getDenials();
+
+    long getErrors();
+
+    long getMaxEnforceMillis();
+
+    double getAverageEnforceMillis();
+
+    /**
+     * @return the upper bounds, in milliseconds, of the buckets of the
+     *         enforce latency histogram; the last bucket has no upper bound
+     */
+    long[] getEnforceLatencyBucketMillis();
+
+    /**
+     * @return the number of requests whose enforcement took less than the
+     *         corresponding bucket bound, and at least the previous one
+     */
+    long[] getEnforceLatencyHistogram();
+
+    void resetStatistics();
+}
@@ -13,7 +13,10 @@ import java.net.URI;
 import java.net.URISyntaxException;
 
 import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import com.sun.xacml.AbstractPolicy;
 import com.sun.xacml.EvaluationCtx;
@@ -46,6 +49,12 @@ import org.slf4j.LoggerFactory;
  * <p>
  * This provides repository-wide policies and object-specific policies,
  * when available.
+ * <p>
+ * Parsed object policies are cached by pid, together with the version id
+ * and creation date of the POLICY datastream they were parsed from. Every
+ * committed change to a POLICY datastream creates a new version, so a cached
+ * policy is only used while it is still the current version, and is dropped
+ * when the datastream or object is found to be gone.
  */
 public class PolicyFinderModule
         extends com.sun.xacml.finder.PolicyFinderModule {
@@ -59,7 +68,12 @@ public class PolicyFinderModule
         ERROR_CODE_LIST.add(Status.STATUS_PROCESSING_ERROR);
     }
 
-    private final String m_combiningAlgorithm;
+    // the maximum number of parsed object policies to keep
+    private static final int OBJECT_POLICY_CACHE_SIZE = 1000;
+
+    private static final URI EMPTY_URI = URI.create("");
+
+    private final PolicyCombiningAlgorithm m_combiningAlgorithm;
 
     private final RepositoryReader m_repoReader;
 
@@ -71,6 +85,18 @@ public class PolicyFinderModule
 
     private final List<AbstractPolicy> m_repositoryPolicies;
 
+    // access ordered, guarded by itself
+    private final Map<String, ObjectPolicy> m_objectPolicies =
+            new LinkedHashMap<String, ObjectPolicy>(16, 0.75f, true) {
+
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, ObjectPolicy> eldest) {
+                    return size() > OBJECT_POLICY_CACHE_SIZE;
+                }
+            };
+
     public PolicyFinderModule(String combiningAlgorithm,
                               String repositoryPolicyDirectoryPath,
                               String repositoryBackendPolicyDirectoryPath,
@@ -81,7 +107,15 @@ public class PolicyFinderModule
                               PolicyParser policyParser)
             throws GeneralException {
 
-        m_combiningAlgorithm = combiningAlgorithm;
+        try {
+            // combining algorithms are stateless, so one instance is shared
+            m_combiningAlgorithm =
+                    (PolicyCombiningAlgorithm) Class.forName(combiningAlgorithm)
+                            .newInstance();
+        } catch (Exception e) {
+            throw new GeneralException("Error loading policy combining algorithm "
+                                       + combiningAlgorithm, e);
+        }
         m_repoReader = repoReader;
         m_validateRepositoryPolicies = validateRepositoryPolicies;
         m_validateObjectPoliciesFromDatastream = validateObjectPoliciesFromDatastream;
@@ -135,12 +169,9 @@ public class PolicyFinderModule
                     policies.add(objectPolicyFromObject);
                 }
             }
-            PolicyCombiningAlgorithm policyCombiningAlgorithm =
-                    (PolicyCombiningAlgorithm) Class
-                            .forName(m_combiningAlgorithm).newInstance();
             PolicySet policySet =
-                    new PolicySet(new URI(""),
-                                  policyCombiningAlgorithm,
+                    new PolicySet(EMPTY_URI,
+                                  m_combiningAlgorithm,
                                   null /*
                                    * no general target beyond those of
                                    * multiplexed individual policies
@@ -165,17 +196,38 @@ public class PolicyFinderModule
             Datastream ds = reader.GetDatastream("POLICY", null);
             if (ds != null) {
                 logger.debug("Using POLICY for " + pid);
-                return m_policyParser //TODO performance hole. Each copy() performs schema parsing, which is expensive
-                        .copy().parse(ds.getContentStream(),
-                                      m_validateObjectPoliciesFromDatastream);
+                ObjectPolicy cached;
+                synchronized (m_objectPolicies) {
+                    cached = m_objectPolicies.get(pid);
+                }
+                if (cached != null && cached.isVersionOf(ds)) {
+                    return cached.policy;
+                }
+                // parsed outside the lock; if two threads parse the same
+                // policy, either result will do
+                AbstractPolicy policy =
+                        m_policyParser.parse(ds.getContentStream(),
+                                             m_validateObjectPoliciesFromDatastream);
+                synchronized (m_objectPolicies) {
+                    m_objectPolicies.put(pid, new ObjectPolicy(ds, policy));
+                }
+                return policy;
             } else {
+                removeObjectPolicy(pid);
                 return null;
             }
         } catch (ObjectNotInLowlevelStorageException e) {
+            removeObjectPolicy(pid);
             return null;
         }
     }
 
+    private void removeObjectPolicy(String pid) {
+        synchronized (m_objectPolicies) {
+            m_objectPolicies.remove(pid);
+        }
+    }
+
     // get the pid from the context, or null if unable
     public static String getPid(EvaluationCtx context) {
         URI resourceIdType = null;
@@ -231,6 +283,27 @@ public class PolicyFinderModule
         }
     }
 
+    // a parsed object policy and the POLICY datastream version it was parsed from
+    private static class ObjectPolicy {
+
+        final String versionId;
+
+        final Date createDate;
+
+        final AbstractPolicy policy;
+
+        ObjectPolicy(Datastream ds, AbstractPolicy policy) {
+            versionId = ds.DSVersionID;
+            createDate = ds.DSCreateDT;
+            this.policy = policy;
+        }
+
+        boolean isVersionOf(Datastream ds) {
+            return versionId != null && versionId.equals(ds.DSVersionID)
+                    && createDate != null && createDate.equals(ds.DSCreateDT);
+        }
+    }
+
     // load and parse all policies (*.xml) from a given directory, recursively
     private static List<AbstractPolicy> loadPolicies(PolicyParser parser,
                                                      boolean validate,
@@ -17,6 +17,10 @@ import javax.xml.validation.Schema;
 import javax.xml.validation.SchemaFactory;
 import javax.xml.validation.Validator;
 
+import org.apache.commons.pool.BasePoolableObjectFactory;
+import org.apache.commons.pool.ObjectPool;
+import org.apache.commons.pool.impl.SoftReferenceObjectPool;
+
 import com.sun.xacml.AbstractPolicy;
 import com.sun.xacml.ParsingException;
 import com.sun.xacml.Policy;
@@ -41,8 +45,10 @@ import org.fcrepo.utilities.XmlTransformUtility;
  * <p>
  * This class also provides a commandline XACML validation utility.
  * <p>
- * NOTE: Although instances may be re-used, this class is not thread-safe.
- * Use the <code>copy()</code> method to support concurrent parsing.
+ * The schema is compiled once, and the (non thread-safe) validators created
+ * from it are pooled, so instances are thread-safe. The <code>copy()</code>
+ * method is kept for callers written for earlier, non thread-safe versions;
+ * copies share the compiled schema and validator pool.
  */
 public class PolicyParser {
 
@@ -55,7 +61,9 @@ public class PolicyParser {
 
     private static final ErrorHandler THROW_ALL = new ThrowAllErrorHandler();
     
-    private final Validator m_validator;
+    // Validators of the compiled schema; a soft reference pool creates
+    // validators on demand and lets the garbage collector reclaim idle ones
+    private final ObjectPool<Validator> m_validators;
 
     /**
      * Creates an instance that will validate according to the given schema.
@@ -72,22 +80,29 @@ public class PolicyParser {
     // actual constructor keeps schema bytes to enable cheap copying
     private PolicyParser(byte[] schemaBytes)
             throws SAXException {
-        m_schemaBytes = schemaBytes;
-        m_validator = createXSDValidator(new ByteArrayInputStream(m_schemaBytes));
+        this(schemaBytes,
+             new SoftReferenceObjectPool<Validator>(
+                     new PoolableValidatorFactory(
+                             createXSDSchema(new ByteArrayInputStream(schemaBytes)))));
 //        m_domParser = createDOMParser();
     }
 
+    private PolicyParser(byte[] schemaBytes, ObjectPool<Validator> validators) {
+        m_schemaBytes = schemaBytes;
+        m_validators = validators;
+    }
+
     /**
      * Gets a new instance that uses the same schema as this one.
+     * <p>
+     * As instances are thread-safe, this is no longer needed for concurrent
+     * parsing. The copy shares the compiled schema of this instance, so
+     * copying is cheap.
      *
      * @return a copy of this instance
      */
     public PolicyParser copy() {
-        try {
-            return new PolicyParser(m_schemaBytes);
-        } catch (SAXException wontHappen) {
-            throw new FaultException(wontHappen);
-        }
+        return new PolicyParser(m_schemaBytes, m_validators);
     }
 
     /**
@@ -127,11 +142,14 @@ public class PolicyParser {
 
         if (schemaValidate) {
             // XSD-validate; die if not schema-valid
+            Validator validator = borrowValidator();
             try {
-                m_validator.validate(new DOMSource(doc));
+                validator.validate(new DOMSource(doc));
             } catch (Exception e) {
                 throw new ValidationException("Policy invalid; schema"
                                               + " validation failed", e);
+            } finally {
+                returnValidator(validator);
             }
         }
 
@@ -166,12 +184,49 @@ public class PolicyParser {
 //        }
 //    }
 //
-    private static Validator createXSDValidator(InputStream schemaStream)
+    private static Schema createXSDSchema(InputStream schemaStream)
             throws SAXException {
-        if (schemaStream == null) return null;
         SchemaFactory factory = SchemaFactory.newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI);
-        Schema schema = factory.newSchema(new StreamSource(schemaStream));
-        return schema.newValidator();
+        return factory.newSchema(new StreamSource(schemaStream));
+    }
+
+    private Validator borrowValidator() {
+        try {
+            return m_validators.borrowObject();
+        } catch (Exception e) {
+            throw new FaultException("Unable to create policy schema validator", e);
+        }
+    }
+
+    private void returnValidator(Validator validator) {
+        try {
+            m_validators.returnObject(validator);
+        } catch (Exception e) {
+            // the validator is simply not reused
+        }
+    }
+
+    /**
+     * Creates validators for a compiled, thread-safe, schema.
+     */
+    private static class PoolableValidatorFactory
+            extends BasePoolableObjectFactory<Validator> {
+
+        private final Schema m_schema;
+
+        PoolableValidatorFactory(Schema schema) {
+            m_schema = schema;
+        }
+
+        @Override
+        public Validator makeObject() {
+            return m_schema.newValidator();
+        }
+
+        @Override
+        public void passivateObject(Validator validator) {
+            validator.reset();
+        }
     }
 
     /**
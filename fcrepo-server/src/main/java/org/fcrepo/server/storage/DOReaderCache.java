@@ -1,80 +1,50 @@
 /* The contents of this file are subject to the license and copyright terms
- * detailed in the license directory at the root of the source tree (also 
+ * detailed in the license directory at the root of the source tree (also
  * available online at http://fedora-commons.org/license/).
  */
 package org.fcrepo.server.storage;
 
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.List;
-import java.util.Map;
+import javax.management.ObjectName;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.fcrepo.server.utilities.JMXUtility;
+import org.fcrepo.server.utilities.StripedLruCache;
+
+/**
+ * A size and time bounded cache of {@link DOReader}s, kept in a
+ * {@link StripedLruCache} by PID.
+ * <p>
+ * Entries expire <code>maxCachedSeconds</code> after they were last put or
+ * read.
+ * <p>
+ * Hit, miss and eviction counters are available over JMX as
+ * <code>org.fcrepo.server.storage:type=DOReaderCache</code>.
+ */
 public class DOReaderCache
-        extends Thread {
+        implements DOReaderCacheMBean {
 
-    private final int m_maxReaders;
+    private static final Logger logger =
+            LoggerFactory.getLogger(DOReaderCache.class);
 
     private final int m_maxCachedSeconds;
 
-    private final Map m_readers;
-
-    private final List m_pidList;
+    private final StripedLruCache<DOReader> m_readers;
 
-    private boolean m_stopRequested;
+    private ObjectName m_objectName;
 
     public DOReaderCache(int maxReaders, int maxCachedSeconds) {
 
-        m_maxReaders = maxReaders;
         m_maxCachedSeconds = maxCachedSeconds;
-
-        m_readers = new HashMap();
-        m_pidList = new ArrayList();
-
-        m_stopRequested = false;
-        start();
-    }
-
-    /**
-     * Until closed, check for and remove any expired entries every second.
-     */
-    @Override
-    public void run() {
-        while (!m_stopRequested) {
-            removeExpired();
-            if (!m_stopRequested) {
-                try {
-                    Thread.sleep(1000);
-                } catch (Exception e) {
-                }
-            }
-        }
-    }
-
-    private void removeExpired() {
-        long cutoffTime =
-                System.currentTimeMillis() - 1000 * m_maxCachedSeconds;
-        synchronized (m_readers) {
-            if (m_pidList.size() > 0) {
-                boolean done = false;
-                List expiredList = new ArrayList();
-                Iterator pids = m_pidList.iterator();
-                while (pids.hasNext() && !done) {
-                    String pid = (String) pids.next();
-                    List l = (List) m_readers.get(pid);
-                    long cachedTime = ((Long) l.get(1)).longValue();
-                    if (cachedTime < cutoffTime) {
-                        expiredList.add(pid);
-                    } else {
-                        done = true;
-                    }
-                }
-                pids = expiredList.iterator();
-                while (pids.hasNext()) {
-                    remove((String) pids.next());
-                }
-            }
-        }
+        m_readers =
+                new StripedLruCache<DOReader>(maxReaders,
+                                              1000L * maxCachedSeconds,
+                                              true);
+
+        m_objectName =
+                JMXUtility.registerMBean(this,
+                                         "org.fcrepo.server.storage:type=DOReaderCache");
     }
 
     /**
@@ -82,11 +52,7 @@ public class DOReaderCache
      * nothing.
      */
     public void remove(String pid) {
-        synchronized (m_readers) {
-            if (m_readers.remove(pid) != null) {
-                m_pidList.remove(pid);
-            }
-        }
+        m_readers.remove(pid);
     }
 
     /**
@@ -99,22 +65,10 @@ public class DOReaderCache
             pid = reader.GetObjectPID();
         } catch (Exception e) {
         }
-        Long time = new Long(System.currentTimeMillis());
-        List l = new ArrayList();
-        l.add(reader);
-        l.add(time);
-        synchronized (m_readers) {
-            m_readers.put(pid, l);
-            if (m_pidList.contains(pid)) {
-                // ensure it only appears in the list once, at the end
-                m_pidList.remove(pid);
-            }
-            m_pidList.add(pid);
-            if (m_readers.size() > m_maxReaders) {
-                Object overflowPid = m_pidList.remove(0);
-                m_readers.remove(overflowPid);
-            }
+        if (pid == null) {
+            return;
         }
+        m_readers.put(pid, reader);
     }
 
     /**
@@ -122,24 +76,43 @@ public class DOReaderCache
      * null. If it does exist, set its time to the current time and return it.
      */
     public DOReader get(String pid) {
-        DOReader reader = null;
-        synchronized (m_readers) {
-            List l = (List) m_readers.get(pid);
-            if (l != null) {
-                reader = (DOReader) l.get(0);
-                l.remove(1);
-                l.add(new Long(System.currentTimeMillis()));
-                // move it to the end of the list so the list stays sorted
-                m_pidList.remove(pid);
-                m_pidList.add(pid);
-            }
-        }
-        return reader;
+        return m_readers.get(pid);
     }
 
     public void close() {
-        // make sure the thread finishes
-        m_stopRequested = true;
+        clear();
+        JMXUtility.unregisterMBean(m_objectName);
     }
 
-}
\ No newline at end of file
+    public void clear() {
+        m_readers.clear();
+    }
+
+    public int getSize() {
+        return m_readers.size();
+    }
+
+    public int getMaxReaders() {
+        return m_readers.getCapacity();
+    }
+
+    public int getMaxCachedSeconds() {
+        return m_maxCachedSeconds;
+    }
+
+    public long getHits() {
+        return m_readers.getHits();
+    }
+
+    public long getMisses() {
+        return m_readers.getMisses();
+    }
+
+    public long getEvictions() {
+        return m_readers.getEvictions();
+    }
+
+    public long getExpirations() {
+        return m_readers.getExpirations();
+    }
+}
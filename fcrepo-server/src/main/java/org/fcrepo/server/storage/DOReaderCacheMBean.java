@@ -0,0 +1,27 @@
+/* The contents of this file are subject to the license and copyright terms
+ * detailed in the license directory at the root of the source tree (also
+ * available online at http://fedora-commons.org/license/).
+ */
+package org.fcrepo.server.storage;
+
+/**
+ * JMX view of the {@link DOReaderCache}.
+ */
+public interface DOReaderCacheMBean {
+
+    int getSize();
+
+    int getMaxReaders();
+
+    int getMaxCachedSeconds();
+
+    long getHits();
+
+    long getMisses();
+
+    long getEvictions();
+
+    long getExpirations();
+
+    void clear();
+}
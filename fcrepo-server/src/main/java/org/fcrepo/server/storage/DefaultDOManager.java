@@ -30,6 +30,7 @@ import java.util.Set;
 import java.util.Map.Entry;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Pattern;
 
 import org.slf4j.Logger;
@@ -37,10 +38,10 @@ import org.slf4j.LoggerFactory;
 
 import org.fcrepo.common.Constants;
 import org.fcrepo.common.Models;
+import org.fcrepo.common.PID;
 
 import org.fcrepo.server.Context;
 import org.fcrepo.server.Module;
-import org.fcrepo.server.ReadOnlyContext;
 import org.fcrepo.server.RecoveryContext;
 import org.fcrepo.server.Server;
 import org.fcrepo.server.errors.ConnectionPoolNotFoundException;
@@ -103,6 +104,14 @@ public class DefaultDOManager
 
     private static final Pattern URL_PROTOCOL = Pattern.compile("^\\w+:\\/.*$");
 
+    /**
+     * When to check, on commit, that the serialized object can be
+     * deserialized again.
+     */
+    private enum RoundTripCheck {
+        OFF, SAMPLED, ALWAYS
+    }
+
     private String m_pidNamespace;
 
     protected String m_storagePool;
@@ -139,6 +148,18 @@ public class DefaultDOManager
 
     private ModelDeploymentMap m_cModelDeploymentMap;
 
+    // serializations of objects as they were stored when a writer was
+    // obtained for them, by pid, for working out the ResourceIndex changes
+    // on commit. there is at most one writer per pid
+    private final Map<String, byte[]> m_originalObjects =
+            new ConcurrentHashMap<String, byte[]>();
+
+    private RoundTripCheck m_roundTripCheck;
+
+    private int m_roundTripSampleRate;
+
+    private final AtomicLong m_commitCount = new AtomicLong();
+
     private final StringLock stringLock;
 
 
@@ -462,6 +483,39 @@ public class DefaultDOManager
             m_readerCache =
                     new DOReaderCache(readerCacheSize, readerCacheSeconds);
         }
+
+        // commitRoundTripCheck and commitRoundTripSampleRate
+        // (optional, defaults = always, 100)
+        String roundTripCheck = getParameter("commitRoundTripCheck");
+        if (roundTripCheck == null) {
+            logger.debug("Parameter commitRoundTripCheck not given, using always");
+            roundTripCheck = "always";
+        }
+        try {
+            m_roundTripCheck =
+                    RoundTripCheck.valueOf(roundTripCheck.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new ModuleInitializationException("Bad value for commitRoundTripCheck parameter: "
+                                                            + roundTripCheck
+                                                            + " (must be off, sampled or always)",
+                                                    getRole());
+        }
+
+        String sampleRate = getParameter("commitRoundTripSampleRate");
+        if (sampleRate == null) {
+            logger.debug("Parameter commitRoundTripSampleRate not given, using 100");
+            sampleRate = "100";
+        }
+        try {
+            m_roundTripSampleRate = Integer.parseInt(sampleRate);
+            if (m_roundTripSampleRate < 1) {
+                throw new Exception("Cannot be less than one");
+            }
+        } catch (Exception e) {
+            throw new ModuleInitializationException("Bad value for commitRoundTripSampleRate parameter: "
+                                                            + e.getMessage(),
+                                                    getRole());
+        }
     }
 
     protected void initRetainPID() {
@@ -786,6 +840,7 @@ public class DefaultDOManager
         writer.invalidate();
 
         try {
+            m_originalObjects.remove(writer.GetObjectPID());
             releaseWriteLock(writer.GetObjectPID());
         } catch (ServerException e) {
             logger.warn("Error releasing object lock; Unable to obtain pid from writer.");
@@ -939,7 +994,22 @@ public class DefaultDOManager
             throw new InvalidContextException("A DOWriter is unavailable in a cached context.");
         } else {
             BasicDigitalObject obj = new BasicDigitalObject();
-            m_translator.deserialize(m_permanentStore.retrieveObject(pid),
+            InputStream in = m_permanentStore.retrieveObject(pid);
+            byte[] original = null;
+            if (m_resourceIndex != null
+                    && m_resourceIndex.getIndexLevel() != ResourceIndex.INDEX_LEVEL_OFF) {
+                // RESOURCE INDEX:
+                // keep the object as stored, so the commit can work out the
+                // changes without reading the object again
+                try {
+                    original = StreamUtility.getBytes(in);
+                } catch (IOException e) {
+                    throw new StreamIOException("Error reading object " + pid,
+                                                e);
+                }
+                in = new ByteArrayInputStream(original);
+            }
+            m_translator.deserialize(in,
                                      obj,
                                      m_defaultStorageFormat,
                                      m_storageCharacterEncoding,
@@ -952,10 +1022,40 @@ public class DefaultDOManager
                                        m_storageCharacterEncoding,
                                        obj);
             getWriteLock(obj.getPid());
+            if (original != null) {
+                m_originalObjects.put(obj.getPid(), original);
+            }
             return w;
         }
     }
 
+    /**
+     * Gets a reader on an object as it was when its writer was obtained: the
+     * cached reader if there is one, else the serialization kept by
+     * {@link #getWriter(boolean, Context, String)}, else the stored object.
+     * Only to be called before the modified object is stored.
+     */
+    private DOReader getOriginalReader(String pid) throws ServerException {
+        byte[] original = m_originalObjects.remove(pid);
+        DOReader reader = null;
+        if (m_readerCache != null) {
+            reader = m_readerCache.get(pid);
+        }
+        if (reader == null && original != null) {
+            BasicDigitalObject obj = new BasicDigitalObject();
+            m_translator.deserialize(new ByteArrayInputStream(original),
+                                     obj,
+                                     m_defaultStorageFormat,
+                                     m_storageCharacterEncoding,
+                                     DOTranslationUtility.DESERIALIZE_INSTANCE);
+            reader = new SimpleDOReader(null, null, null, null, null, obj);
+        }
+        if (reader == null) {
+            reader = getReader(false, null, pid);
+        }
+        return reader;
+    }
+
     /**
      * Manages the INGEST process which includes validation of the ingest XML
      * file, deserialization of the XML into a Digital Object instance, setting
@@ -1369,6 +1469,7 @@ public class DefaultDOManager
             } else {
                 logger.info("Committing modification of " + obj.getPid());
             }
+            CommitTimer timer = new CommitTimer();
             try {
 
                 // DATASTREAM STORAGE:
@@ -1481,11 +1582,12 @@ public class DefaultDOManager
                 if (!obj.isNew()) {
                     deletePurgedDatastreams(obj, context);
                 }
+                timer.phase("datastreams");
 
                 // MODIFIED DATE:
                 // set digital object last modified date, in UTC
                 obj.setLastModDate(Server.getCurrentDate(context));
-                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                SerializationBuffer out = new SerializationBuffer();
 
                 // FINAL XML SERIALIZATION:
                 // serialize the object in its final form for persistent storage
@@ -1496,6 +1598,7 @@ public class DefaultDOManager
                                    m_defaultStorageFormat,
                                    m_storageCharacterEncoding,
                                    DOTranslationUtility.SERIALIZE_STORAGE_INTERNAL);
+                timer.phase("serialize");
 
                 // FINAL VALIDATION:
                 // As of version 2.0, final validation is only performed in DEBUG mode.
@@ -1505,21 +1608,22 @@ public class DefaultDOManager
                 // create valid XML files for persistent storage of digital objects.  As
                 // a sanity check, we check that we can deserialize the object we just serialized
                 if (logger.isDebugEnabled()) {
-                    ByteArrayInputStream inV =
-                            new ByteArrayInputStream(out.toByteArray());
                     logger.debug("Final Validation (storage phase)");
-                    m_validator.validate(inV,
+                    m_validator.validate(out.toInputStream(),
                                          m_defaultStorageFormat,
                                          DOValidatorImpl.VALIDATE_ALL,
                                          "store");
                 }
-                /* Verify that we can deserialize our object.  */
-                m_translator
-                        .deserialize(new ByteArrayInputStream(out.toByteArray()),
-                             new BasicDigitalObject(),
-                             m_defaultStorageFormat,
-                             m_storageCharacterEncoding,
-                             DOTranslationUtility.SERIALIZE_STORAGE_INTERNAL);
+                /* Verify that we can deserialize our object, if configured to.  */
+                if (isRoundTripCheckDue()) {
+                    m_translator
+                            .deserialize(out.toInputStream(),
+                                 new BasicDigitalObject(),
+                                 m_defaultStorageFormat,
+                                 m_storageCharacterEncoding,
+                                 DOTranslationUtility.SERIALIZE_STORAGE_INTERNAL);
+                }
+                timer.phase("validate");
 
 
                 // RESOURCE INDEX:
@@ -1534,30 +1638,31 @@ public class DefaultDOManager
                                                                      null,
                                                                      obj));
                     } else {
-                        m_resourceIndex.modifyObject(getReader(false, null, obj
-                                .getPid()), new SimpleDOReader(null,
-                                                               null,
-                                                               null,
-                                                               null,
-                                                               null,
-                                                               obj));
-
+                        DOReader newReader =
+                                new SimpleDOReader(null,
+                                                   null,
+                                                   null,
+                                                   null,
+                                                   null,
+                                                   obj);
+                        m_resourceIndex.modifyObject(getOriginalReader(obj
+                                .getPid()), newReader);
                     }
                     logger.debug("Finished adding to ResourceIndex.");
                 }
+                timer.phase("resourceIndex");
 
                 // STORAGE:
                 // write XML serialization of object to persistent storage
                 logger.debug("Storing digital object");
                 if (obj.isNew()) {
                     m_permanentStore.addObject(obj.getPid(),
-                                               new ByteArrayInputStream(out
-                                                       .toByteArray()));
+                                               out.toInputStream());
                 } else {
                     m_permanentStore.replaceObject(obj.getPid(),
-                                                   new ByteArrayInputStream(out
-                                                           .toByteArray()));
+                                                   out.toInputStream());
                 }
+                timer.phase("store");
 
                 // INVALIDATE DOREADER CACHE:
                 // now that the object xml is stored, make sure future DOReaders
@@ -1586,6 +1691,7 @@ public class DefaultDOManager
                         }
                     }
                 }
+                timer.phase("registry");
                 // REPLICATE:
                 // add to replication jobs table and do replication to db
                 logger.trace("Updating dissemination index");
@@ -1610,6 +1716,11 @@ public class DefaultDOManager
                     logger.error(msg, th);
                     throw new GeneralException(msg, th);
                 }
+                timer.phase("fieldSearch");
+
+                if (logger.isDebugEnabled()) {
+                    logger.debug("Committed " + obj.getPid() + " " + timer);
+                }
             } catch (Throwable th) {
                 if (obj.isNew()) {
                     // Clean up after a failed attempt to add
@@ -1633,6 +1744,21 @@ public class DefaultDOManager
         }
     }
 
+    /**
+     * Whether the serialized object should be deserialized again on this
+     * commit, to check that it can be.
+     */
+    private boolean isRoundTripCheckDue() {
+        switch (m_roundTripCheck) {
+            case OFF:
+                return false;
+            case SAMPLED:
+                return m_commitCount.getAndIncrement() % m_roundTripSampleRate == 0;
+            default:
+                return true;
+        }
+    }
+
     private Set<Long> getDatastreamDates(Iterable<Datastream> ds) {
         Set<Long> dates = new HashSet<Long>();
         for (Datastream d : ds) {
@@ -1693,20 +1819,14 @@ public class DefaultDOManager
     }
 
     /**
-     * Checks the object registry for the given object.
+     * Checks the object registry for the given object. The lookup reflects
+     * any preceding updates, so objects ingested just before the call are
+     * found.
      */
     public boolean objectExists( String pid) throws StorageDeviceException {
         logger.debug("Checking if " + pid + " already exists");
         try {
-            Context context = ReadOnlyContext.getContext(null,
-                                         null,
-                                         null,
-                                         false);
-            List<Condition> conditions = new ArrayList<Condition>();
-            conditions.add(new Condition("pid", Operator.EQUALS, pid));
-            FieldSearchQuery query = new FieldSearchQuery(conditions);
-            FieldSearchResult findObjects = findObjects(context, new String[] { "PID" }, 1, query);
-            return findObjects.getCompleteListSize() > 0;
+            return m_fieldSearch.objectExists(pid);
         }
         catch (Exception ex) {
             throw new StorageDeviceException("Failed to determine if object exists", ex);
@@ -1935,8 +2055,9 @@ public class DefaultDOManager
             namespace = m_pidNamespace;
         }
         try {
+            PID[] pids = m_pidGenerator.generatePIDs(namespace, numPIDs);
             for (int i = 0; i < numPIDs; i++) {
-                pidList[i] = m_pidGenerator.generatePID(namespace).toString();
+                pidList[i] = pids[i].toString();
             }
             return pidList;
         } catch (IOException ioe) {
@@ -1966,18 +2087,8 @@ public class DefaultDOManager
 
         Connection conn = null;
         try {
-            Context context = ReadOnlyContext.getContext(null,
-                                         null,
-                                         null,
-                                         false);
-
             StringBuffer hash = new StringBuffer();
-            List<Condition> conditions = new ArrayList<Condition>();
-            conditions.add(new Condition("pid", Operator.EQUALS, "*"));
-            FieldSearchQuery query = new FieldSearchQuery(conditions);
-            FieldSearchResult findObjects = findObjects(context, new String[] { "PID" }, 1, query);
-            long size = findObjects.getCompleteListSize();
-            hash.append(size);
+            hash.append(m_fieldSearch.getObjectCount());
             //hash.append(getNumObjectsWithVersion(conn, 0));
             hash.append('|');
             //hash.append(getLatestModificationDate(conn));
@@ -2103,4 +2214,45 @@ public class DefaultDOManager
             return _val.hashCode();
         }
     }
+
+    /**
+     * Holds the serialization of an object, which can be read back any
+     * number of times without copying it.
+     */
+    private static class SerializationBuffer
+            extends ByteArrayOutputStream {
+
+        SerializationBuffer() {
+            super(8192);
+        }
+
+        InputStream toInputStream() {
+            return new ByteArrayInputStream(buf, 0, count);
+        }
+    }
+
+    /**
+     * Records the time taken by each phase of a commit.
+     */
+    private static class CommitTimer {
+
+        private final long m_start = System.nanoTime();
+
+        private long m_last = m_start;
+
+        private final StringBuilder m_phases = new StringBuilder();
+
+        void phase(String name) {
+            long now = System.nanoTime();
+            m_phases.append(m_phases.length() == 0 ? "" : ", ").append(name)
+                    .append('=').append((now - m_last) / 1000000).append("ms");
+            m_last = now;
+        }
+
+        @Override
+        public String toString() {
+            return "in " + (m_last - m_start) / 1000000 + "ms (" + m_phases
+                    + ")";
+        }
+    }
 }
@@ -5,6 +5,8 @@
 package org.fcrepo.server.storage;
 
 import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 
@@ -35,6 +37,10 @@ import org.fcrepo.server.storage.types.DigitalObject;
  * DefaultDOManager extension that updates a GSearch (Fedora Generic Search)
  * service as object changes are committed.
  * <p>
+ * The updates are sent asynchronously by a {@link GSearchUpdateQueue}, so a
+ * slow GSearch service doesn't slow down commits.
+ * </p>
+ * <p>
  * To use, simply change fedora.fcfg, replacing "DefaultDOManager" with
  * "GSearchDOManager", and add the following xml param elements:
  * </p>
@@ -52,6 +58,20 @@ import org.fcrepo.server.storage.types.DigitalObject;
  * <li> &lt;param name="gSearchPassword" value="examplePassword"/&gt;</li>
  * </ul>
  * </p>
+ * <p>
+ * Optional (update queue):
+ * <ul>
+ * <li> &lt;param name="gSearchBacklogFile" value="gsearch-backlog"/&gt;
+ * file keeping the updates not yet sent, relative to the server home
+ * directory (default: gsearch-backlog)</li>
+ * <li> &lt;param name="gSearchBatchSize" value="100"/&gt; maximum number of
+ * updates taken from the queue at a time (default: 100)</li>
+ * <li> &lt;param name="gSearchMaxRetries" value="5"/&gt; how often a failed
+ * update is retried before it is dropped (default: 5)</li>
+ * <li> &lt;param name="gSearchRetryDelayMillis" value="1000"/&gt; initial
+ * wait after a failed update, doubling with each failure (default: 1000)</li>
+ * </ul>
+ * </p>
  *
  * @author Chris Wilper
  */
@@ -70,6 +90,19 @@ public class GSearchDOManager
     /** Optional param: Password to use for GSearch authentication. */
     public static final String GSEARCH_PASSWORD = "gSearchPassword";
 
+    /** Optional param: File keeping the updates not yet sent. */
+    public static final String GSEARCH_BACKLOG_FILE = "gSearchBacklogFile";
+
+    /** Optional param: Maximum number of updates sent per batch. */
+    public static final String GSEARCH_BATCH_SIZE = "gSearchBatchSize";
+
+    /** Optional param: How often a failed update is retried. */
+    public static final String GSEARCH_MAX_RETRIES = "gSearchMaxRetries";
+
+    /** Optional param: Initial wait after a failed update. */
+    public static final String GSEARCH_RETRY_DELAY_MILLIS =
+            "gSearchRetryDelayMillis";
+
     /** Configured value for GSEARCH_REST_URL parameter. */
     private String _gSearchRESTURL;
 
@@ -82,6 +115,9 @@ public class GSearchDOManager
     /** HTTP client we'll use for sending GSearch update signals. */
     private WebClient _webClient;
 
+    /** Queue sending the GSearch update signals. */
+    private GSearchUpdateQueue _updateQueue;
+
     /**
      * Delegates construction to the superclass.
      */
@@ -141,11 +177,48 @@ public class GSearchDOManager
         // finally, init the http client we'll use
         _webClientConfig = getServer().getWebClientConfig();
         _webClient = new WebClient(_webClientConfig);
+
+        // and the queue sending the updates with it
+        String backlog = getParameter(GSEARCH_BACKLOG_FILE);
+        File backlogFile = new File(backlog == null ? "gsearch-backlog" : backlog);
+        if (!backlogFile.isAbsolute()) {
+            backlogFile = new File(getServer().getHomeDir(), backlogFile.getPath());
+        }
+        int batchSize = getIntParameter(GSEARCH_BATCH_SIZE, 100);
+        int maxRetries = getIntParameter(GSEARCH_MAX_RETRIES, 5);
+        int retryDelayMillis = getIntParameter(GSEARCH_RETRY_DELAY_MILLIS, 1000);
+        try {
+            _updateQueue =
+                    new GSearchUpdateQueue(new RESTSender(_gSearchRESTURL,
+                                                          _webClient,
+                                                          _gSearchCredentials),
+                                           backlogFile,
+                                           batchSize,
+                                           maxRetries,
+                                           retryDelayMillis);
+        } catch (IOException e) {
+            throw new ModuleInitializationException("Error reading GSearch "
+                    + "update backlog " + backlogFile + ": " + e.getMessage(),
+                    getRole());
+        }
+    }
+
+    /**
+     * Stops sending updates, leaving the ones not yet sent in the backlog,
+     * then shuts down the superclass.
+     */
+    @Override
+    public void shutdownModule() {
+        if (_updateQueue != null) {
+            _updateQueue.close();
+            _updateQueue = null;
+        }
+        super.shutdownModule();
     }
 
     /**
-     * Commits the changes to the given object as usual, then attempts to
-     * propagate the change to the GSearch service.
+     * Commits the changes to the given object as usual, then queues the
+     * change to be propagated to the GSearch service.
      */
     @Override
     public void doCommit(boolean cachedObjectRequired,
@@ -156,27 +229,19 @@ public class GSearchDOManager
 
         super.doCommit(cachedObjectRequired, context, obj, logMessage, remove);
 
-        // determine the url we need to invoke
-        StringBuffer url = new StringBuffer();
-        url.append(_gSearchRESTURL + "?operation=updateIndex");
         String pid = obj.getPid();
-        url.append("&value=" + urlEncode(pid));
         if (remove) {
-            logger.info("Signaling removal of " + pid + " to GSearch");
-            url.append("&action=deletePid");
+            logger.info("Queueing removal of " + pid + " for GSearch");
         } else {
             if (logger.isInfoEnabled()) {
                 if (obj.isNew()) {
-                    logger.info("Signaling add of " + pid + " to GSearch");
+                    logger.info("Queueing add of " + pid + " for GSearch");
                 } else {
-                    logger.info("Signaling mod of " + pid + " to GSearch");
+                    logger.info("Queueing mod of " + pid + " for GSearch");
                 }
             }
-            url.append("&action=fromPid");
         }
-
-        // send the signal
-        sendRESTMessage(url.toString());
+        _updateQueue.add(pid, remove);
     }
 
     //
@@ -184,30 +249,71 @@ public class GSearchDOManager
     //
 
     /**
-     * Performs the given HTTP request, logging a warning if we don't get a 200
-     * OK response.
+     * Gets an optional non-negative integer parameter.
      */
-    private void sendRESTMessage(String url) {
-        HttpInputStream response = null;
+    private int getIntParameter(String name, int defaultValue)
+            throws ModuleInitializationException {
+        String value = getParameter(name);
+        if (value == null) {
+            return defaultValue;
+        }
         try {
-            logger.debug("Getting " + url);
-            response = _webClient.get(url, false, _gSearchCredentials);
-            int code = response.getStatusCode();
-            if (code != 200) {
-                logger.warn("Error sending update to GSearch service (url=" + url
-                        + ").  HTTP response code was " + code + ". "
-                        + "Body of response from GSearch follows:\n"
-                        + getString(response));
+            int i = Integer.parseInt(value);
+            if (i < 0) {
+                throw new NumberFormatException();
             }
-        } catch (Exception e) {
-            logger.warn("Error sending update to GSearch service via URL: " + url,
-                     e);
-        } finally {
-            if (response != null) {
-                try {
-                    response.close();
-                } catch (Exception e) {
-                    logger.warn("Error closing GSearch response", e);
+            return i;
+        } catch (NumberFormatException e) {
+            throw new ModuleInitializationException("Bad value for " + name
+                    + " parameter: " + value, getRole());
+        }
+    }
+
+    /**
+     * Sends update signals to the GSearch REST interface.
+     */
+    static class RESTSender
+            implements GSearchUpdateQueue.Sender {
+
+        private final String _restURL;
+
+        private final WebClient _client;
+
+        private final UsernamePasswordCredentials _credentials;
+
+        RESTSender(String restURL,
+                   WebClient client,
+                   UsernamePasswordCredentials credentials) {
+            _restURL = restURL;
+            _client = client;
+            _credentials = credentials;
+        }
+
+        /**
+         * Performs the update request, failing if we don't get a 200 OK
+         * response.
+         */
+        public void send(String pid, boolean remove) throws IOException {
+            String url = _restURL + "?operation=updateIndex&value="
+                    + urlEncode(pid)
+                    + (remove ? "&action=deletePid" : "&action=fromPid");
+            HttpInputStream response = null;
+            try {
+                logger.debug("Getting " + url);
+                response = _client.get(url, false, _credentials);
+                int code = response.getStatusCode();
+                if (code != 200) {
+                    throw new IOException("HTTP response code from " + url
+                            + " was " + code + ". Body of response from"
+                            + " GSearch follows:\n" + getString(response));
+                }
+            } finally {
+                if (response != null) {
+                    try {
+                        response.close();
+                    } catch (Exception e) {
+                        logger.warn("Error closing GSearch response", e);
+                    }
                 }
             }
         }
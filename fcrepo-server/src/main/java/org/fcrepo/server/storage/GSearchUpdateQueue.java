@@ -0,0 +1,575 @@
+/* The contents of this file are subject to the license and copyright terms
+ * detailed in the license directory at the root of the source tree (also
+ * available online at http://fedora-commons.org/license/).
+ */
+package org.fcrepo.server.storage;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.fcrepo.server.utilities.JMXUtility;
+import org.fcrepo.server.utilities.RetryBackoff;
+import org.fcrepo.utilities.FileUtils;
+
+/**
+ * Sends GSearch update signals from a background thread, so commits don't
+ * wait for the indexer.
+ * <p>
+ * Updates are queued per PID: if an object changes again before its update
+ * was sent, only the latest action (update or delete) is sent. The worker
+ * thread takes up to <code>batchSize</code> PIDs at a time and sends them
+ * one after the other. A failed update is queued again, unless the object
+ * has changed meanwhile, and the worker backs off before the next batch;
+ * after <code>maxRetries</code> failed attempts the update is dropped and
+ * logged.
+ * <p>
+ * Queued updates are appended to a backlog file as they are added, and the
+ * file is rewritten with the remaining updates as they are sent. Both are
+ * synced to disk before returning, and a rewrite replaces the file only once
+ * the new one is complete. Threads adding updates at the same time share a
+ * sync, and the file is written without holding up the worker or threads
+ * reading the queue. If writing the file fails, it is rewritten from the
+ * queue on the next change. Updates in the file when the queue is created,
+ * i.e. not sent before a shutdown or a crash, are queued again.
+ * <p>
+ * Queue depth and counters are available over JMX as
+ * <code>org.fcrepo.server.storage:type=GSearchUpdateQueue</code>.
+ */
+public class GSearchUpdateQueue
+        implements GSearchUpdateQueueMBean {
+
+    private static final Logger logger =
+            LoggerFactory.getLogger(GSearchUpdateQueue.class);
+
+    /**
+     * Sends one update signal to GSearch.
+     */
+    public interface Sender {
+
+        /**
+         * @param pid the object that changed
+         * @param remove whether the object was purged
+         * @throws IOException if GSearch could not be signalled
+         */
+        void send(String pid, boolean remove) throws IOException;
+    }
+
+    private static final char UPDATE = 'U';
+
+    private static final char DELETE = 'D';
+
+    private static final long MAX_RETRY_DELAY_MILLIS = 60000;
+
+    private static final long CLOSE_TIMEOUT_MILLIS = 10000;
+
+    private final Sender m_sender;
+
+    private final File m_backlogFile;
+
+    private final int m_batchSize;
+
+    private final int m_maxRetries;
+
+    private final long m_retryDelayMillis;
+
+    // queued updates in the order they were added: pid -> update. Guarded by
+    // itself
+    private final LinkedHashMap<String, Update> m_queue =
+            new LinkedHashMap<String, Update>();
+
+    // updates taken from the queue by the worker and not yet sent. Guarded
+    // by the queue
+    private Map<String, Update> m_inFlight = Collections.emptyMap();
+
+    // whether the worker is busy with a batch, until it has updated the
+    // backlog after sending it. Guarded by the queue
+    private boolean m_busy;
+
+    private volatile boolean m_closed;
+
+    // guards the backlog writer; taken before the queue lock
+    private final Object m_backlogLock = new Object();
+
+    // held while syncing the backlog file or replacing it; taken after the
+    // backlog lock
+    private final Object m_syncLock = new Object();
+
+    private FileOutputStream m_backlogOut;
+
+    private Writer m_backlog;
+
+    // lines in the backlog file, to tell when to rewrite it
+    private int m_backlogLines;
+
+    // lines appended to the backlog so far, and how many of them are synced
+    private volatile long m_backlogWritten;
+
+    private long m_backlogSynced;
+
+    // set when syncing the backlog failed, so it is rewritten
+    private volatile boolean m_backlogFailed;
+
+    private final Thread m_worker;
+
+    private final AtomicLong m_sent = new AtomicLong();
+
+    private final AtomicLong m_coalesced = new AtomicLong();
+
+    private final AtomicLong m_retries = new AtomicLong();
+
+    private final AtomicLong m_dropped = new AtomicLong();
+
+    private ObjectName m_objectName;
+
+    private static class Update {
+
+        final boolean remove;
+
+        // failed attempts so far
+        int failures;
+
+        Update(boolean remove) {
+            this.remove = remove;
+        }
+    }
+
+    /**
+     * Creates the queue, queues the updates left in the backlog file, and
+     * starts the worker thread.
+     *
+     * @param sender sends the updates
+     * @param backlogFile where queued updates are kept until they are sent
+     * @param batchSize the maximum number of updates the worker takes from
+     *        the queue at a time
+     * @param maxRetries how often a failed update is retried
+     * @param retryDelayMillis how long the worker waits after a failure. The
+     *        delay doubles with each consecutive failed batch, up to a minute
+     * @throws IOException if the backlog file can't be read or written
+     */
+    public GSearchUpdateQueue(Sender sender,
+                              File backlogFile,
+                              int batchSize,
+                              int maxRetries,
+                              long retryDelayMillis) throws IOException {
+        m_sender = sender;
+        m_backlogFile = backlogFile;
+        m_batchSize = Math.max(1, batchSize);
+        m_maxRetries = Math.max(0, maxRetries);
+        m_retryDelayMillis = Math.max(0, retryDelayMillis);
+
+        readBacklog();
+        if (!m_queue.isEmpty()) {
+            logger.info("Queued " + m_queue.size()
+                    + " GSearch updates from " + m_backlogFile);
+        }
+        synchronized (m_backlogLock) {
+            rewriteBacklog();
+        }
+
+        m_objectName =
+                JMXUtility.registerMBean(this,
+                                         "org.fcrepo.server.storage:type=GSearchUpdateQueue");
+
+        m_worker = new Thread(new Runnable() {
+
+            public void run() {
+                work();
+            }
+        }, "GSearchUpdateQueue");
+        m_worker.setDaemon(true);
+        m_worker.start();
+    }
+
+    /**
+     * Queues an update signal for the object, replacing any queued one.
+     *
+     * @param pid the object that changed
+     * @param remove whether the object was purged
+     */
+    public void add(String pid, boolean remove) {
+        long line;
+        synchronized (m_backlogLock) {
+            synchronized (m_queue) {
+                if (m_closed) {
+                    logger.warn("GSearch update queue is closed, not signalling "
+                            + (remove ? "removal" : "update") + " of " + pid);
+                    return;
+                }
+                if (m_queue.put(pid, new Update(remove)) != null) {
+                    m_coalesced.incrementAndGet();
+                }
+                m_queue.notifyAll();
+            }
+            line = appendBacklog(pid, remove);
+        }
+        syncBacklog(line);
+    }
+
+    /**
+     * Stops the worker and leaves the updates not yet sent in the backlog
+     * file. The worker is interrupted, and given a few seconds to finish the
+     * update it is sending; the updates it has not sent by then are kept in
+     * the backlog as well.
+     */
+    public void close() {
+        synchronized (m_queue) {
+            m_closed = true;
+            m_queue.notifyAll();
+        }
+        m_worker.interrupt();
+        try {
+            m_worker.join(CLOSE_TIMEOUT_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (m_worker.isAlive()) {
+            logger.warn("GSearch update queue did not stop within "
+                    + CLOSE_TIMEOUT_MILLIS + " ms, keeping the updates it is"
+                    + " sending in the backlog");
+        }
+        synchronized (m_backlogLock) {
+            rewriteBacklog();
+            closeBacklog();
+        }
+        JMXUtility.unregisterMBean(m_objectName);
+    }
+
+    /**
+     * Waits until all queued updates have been sent or dropped, or the
+     * timeout has passed.
+     *
+     * @return whether the queue is empty
+     */
+    boolean awaitEmpty(long timeoutMillis) throws InterruptedException {
+        long end = System.currentTimeMillis() + timeoutMillis;
+        synchronized (m_queue) {
+            long wait = timeoutMillis;
+            while ((!m_queue.isEmpty() || m_busy) && wait > 0) {
+                m_queue.wait(wait);
+                wait = end - System.currentTimeMillis();
+            }
+            return m_queue.isEmpty() && !m_busy;
+        }
+    }
+
+    private void work() {
+        RetryBackoff backoff =
+                new RetryBackoff(m_retryDelayMillis, MAX_RETRY_DELAY_MILLIS);
+        while (true) {
+            Map<String, Update> batch =
+                    new LinkedHashMap<String, Update>(m_batchSize * 2);
+            synchronized (m_queue) {
+                while (m_queue.isEmpty() && !m_closed) {
+                    try {
+                        m_queue.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (m_closed) {
+                    return;
+                }
+                Iterator<Map.Entry<String, Update>> it =
+                        m_queue.entrySet().iterator();
+                while (it.hasNext() && batch.size() < m_batchSize) {
+                    Map.Entry<String, Update> entry = it.next();
+                    batch.put(entry.getKey(), entry.getValue());
+                    it.remove();
+                }
+                m_inFlight = batch;
+                m_busy = true;
+            }
+
+            List<String> failed = new ArrayList<String>();
+            List<String> unsent = new ArrayList<String>();
+            for (Map.Entry<String, Update> entry : batch.entrySet()) {
+                if (m_closed) {
+                    unsent.add(entry.getKey());
+                    continue;
+                }
+                try {
+                    m_sender.send(entry.getKey(), entry.getValue().remove);
+                    m_sent.incrementAndGet();
+                } catch (Exception e) {
+                    logger.warn("Error signalling GSearch update of "
+                            + entry.getKey() + ": " + e.getMessage());
+                    failed.add(entry.getKey());
+                }
+            }
+
+            boolean rewrite;
+            synchronized (m_queue) {
+                m_inFlight = Collections.emptyMap();
+                for (String pid : unsent) {
+                    if (!m_queue.containsKey(pid)) {
+                        m_queue.put(pid, batch.get(pid));
+                    }
+                }
+                for (String pid : failed) {
+                    Update update = batch.get(pid);
+                    update.failures++;
+                    if (m_queue.containsKey(pid)) {
+                        // changed again meanwhile, the new update replaces it
+                    } else if (update.failures > m_maxRetries) {
+                        m_dropped.incrementAndGet();
+                        logger.error("Giving up signalling GSearch "
+                                + (update.remove ? "removal" : "update")
+                                + " of " + pid + " after " + update.failures
+                                + " attempts");
+                    } else {
+                        m_retries.incrementAndGet();
+                        m_queue.put(pid, update);
+                    }
+                }
+                rewrite = !m_closed;
+            }
+            if (rewrite) {
+                compactBacklog();
+            }
+            synchronized (m_queue) {
+                m_busy = false;
+                m_queue.notifyAll();
+            }
+
+            if (failed.isEmpty()) {
+                backoff.succeeded();
+            } else {
+                long delay = backoff.failed();
+                synchronized (m_queue) {
+                    long end = System.currentTimeMillis() + delay;
+                    while (!m_closed && delay > 0) {
+                        try {
+                            m_queue.wait(delay);
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                        delay = end - System.currentTimeMillis();
+                    }
+                }
+            }
+        }
+    }
+
+    //
+    // Backlog file. Except for reading it, all called while holding the
+    // backlog lock
+    //
+
+    private void readBacklog() throws IOException {
+        if (!m_backlogFile.exists()) {
+            return;
+        }
+        BufferedReader reader =
+                new BufferedReader(new InputStreamReader(new FileInputStream(m_backlogFile),
+                                                         "UTF-8"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                // a line cut short by a crash has no action
+                if (line.length() < 3 || line.charAt(1) != ' ') {
+                    continue;
+                }
+                char action = line.charAt(0);
+                if (action == UPDATE || action == DELETE) {
+                    String pid = line.substring(2);
+                    m_queue.remove(pid);
+                    m_queue.put(pid, new Update(action == DELETE));
+                }
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Writes the update to the backlog, without syncing it.
+     *
+     * @return the number of the line to sync, or 0 if there is none
+     */
+    private long appendBacklog(String pid, boolean remove) {
+        if (m_backlog == null || m_backlogFailed) {
+            // writing failed before, so the file may lack earlier updates
+            rewriteBacklog();
+            return 0;
+        }
+        try {
+            writeBacklogLine(m_backlog, pid, remove);
+            m_backlog.flush();
+            m_backlogLines++;
+            return ++m_backlogWritten;
+        } catch (IOException e) {
+            logger.error("Error writing GSearch update backlog "
+                    + m_backlogFile + ", will rewrite it on the next update", e);
+            closeBacklog();
+            return 0;
+        }
+    }
+
+    /**
+     * Syncs the backlog up to the given line, unless a sync since it was
+     * written did so already. Called without holding the backlog lock.
+     */
+    private void syncBacklog(long line) {
+        if (line == 0) {
+            return;
+        }
+        synchronized (m_syncLock) {
+            if (m_backlogSynced >= line || m_backlogOut == null) {
+                return;
+            }
+            long written = m_backlogWritten;
+            try {
+                m_backlogOut.getFD().sync();
+                m_backlogSynced = written;
+            } catch (IOException e) {
+                logger.error("Error syncing GSearch update backlog "
+                        + m_backlogFile + ", will rewrite it on the next update",
+                        e);
+                m_backlogFailed = true;
+            }
+        }
+    }
+
+    /**
+     * Rewrites the backlog once it is mostly sent, or if writing it failed.
+     */
+    private void compactBacklog() {
+        synchronized (m_backlogLock) {
+            synchronized (m_queue) {
+                if (m_closed) {
+                    return;
+                }
+                int queued = m_queue.size() + m_inFlight.size();
+                if (!(queued == 0 && m_backlogLines > 0)
+                        && m_backlog != null && !m_backlogFailed
+                        && m_backlogLines <= 2 * queued + m_batchSize) {
+                    return;
+                }
+            }
+            rewriteBacklog();
+        }
+    }
+
+    private void rewriteBacklog() {
+        // the updates being sent, followed by the queue: pid -> remove
+        Map<String, Boolean> updates = new LinkedHashMap<String, Boolean>();
+        synchronized (m_queue) {
+            for (Map.Entry<String, Update> entry : m_inFlight.entrySet()) {
+                updates.put(entry.getKey(), entry.getValue().remove);
+            }
+            for (Map.Entry<String, Update> entry : m_queue.entrySet()) {
+                updates.remove(entry.getKey());
+                updates.put(entry.getKey(), entry.getValue().remove);
+            }
+        }
+        File temp = new File(m_backlogFile.getPath() + ".tmp");
+        try {
+            File parent = m_backlogFile.getAbsoluteFile().getParentFile();
+            if (parent != null && !parent.isDirectory()) {
+                parent.mkdirs();
+            }
+            FileOutputStream out = new FileOutputStream(temp);
+            try {
+                Writer writer =
+                        new BufferedWriter(new OutputStreamWriter(out, "UTF-8"));
+                for (Map.Entry<String, Boolean> entry : updates.entrySet()) {
+                    writeBacklogLine(writer, entry.getKey(), entry.getValue());
+                }
+                writer.flush();
+                out.getFD().sync();
+            } finally {
+                out.close();
+            }
+            synchronized (m_syncLock) {
+                closeBacklog();
+                FileUtils.replace(temp, m_backlogFile);
+                m_backlogOut = new FileOutputStream(m_backlogFile, true);
+                m_backlog =
+                        new BufferedWriter(new OutputStreamWriter(m_backlogOut,
+                                                                  "UTF-8"));
+                m_backlogLines = updates.size();
+                // the lines written before are all in the new file
+                m_backlogSynced = m_backlogWritten;
+                m_backlogFailed = false;
+            }
+        } catch (IOException e) {
+            logger.error("Error writing GSearch update backlog "
+                    + m_backlogFile + ", will rewrite it on the next update", e);
+            closeBacklog();
+        }
+    }
+
+    private static void writeBacklogLine(Writer writer,
+                                         String pid,
+                                         boolean remove) throws IOException {
+        writer.write(remove ? DELETE : UPDATE);
+        writer.write(' ');
+        writer.write(pid);
+        writer.write('\n');
+    }
+
+    private void closeBacklog() {
+        synchronized (m_syncLock) {
+            if (m_backlog != null) {
+                try {
+                    m_backlog.close();
+                } catch (IOException e) {
+                    logger.warn("Error closing GSearch update backlog "
+                            + m_backlogFile, e);
+                }
+                m_backlog = null;
+                m_backlogOut = null;
+            }
+        }
+    }
+
+    //
+    // JMX
+    //
+
+    public int getQueueDepth() {
+        synchronized (m_queue) {
+            return m_queue.size();
+        }
+    }
+
+    public String getBacklogFile() {
+        return m_backlogFile.getPath();
+    }
+
+    public long getSent() {
+        return m_sent.get();
+    }
+
+    public long getCoalesced() {
+        return m_coalesced.get();
+    }
+
+    public long getRetries() {
+        return m_retries.get();
+    }
+
+    public long getDropped() {
+        return m_dropped.get();
+    }
+}
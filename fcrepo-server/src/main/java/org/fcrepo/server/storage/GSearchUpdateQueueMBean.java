@@ -0,0 +1,23 @@
+/* The contents of this file are subject to the license and copyright terms
+ * detailed in the license directory at the root of the source tree (also
+ * available online at http://fedora-commons.org/license/).
+ */
+package org.fcrepo.server.storage;
+
+/**
+ * JMX view of the {@link GSearchUpdateQueue}.
+ */
+public interface GSearchUpdateQueueMBean {
+
+    int getQueueDepth();
+
+    String getBacklogFile();
+
+    long getSent();
+
+    long getCoalesced();
+
+    long getRetries();
+
+    long getDropped();
+}
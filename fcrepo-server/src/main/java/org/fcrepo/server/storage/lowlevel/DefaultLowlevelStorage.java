@@ -44,6 +44,8 @@ public class DefaultLowlevelStorage
 
     public static final String PATH_REGISTRY = "path_registry";
 
+    public static final String PATH_REGISTRY_DIR = "path_registry_dir";
+
     private final Store objectStore;
 
     private final Store datastreamStore;
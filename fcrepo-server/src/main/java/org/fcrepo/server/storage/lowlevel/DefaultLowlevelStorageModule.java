@@ -62,6 +62,10 @@ public class DefaultLowlevelStorageModule
         String pathRegistry =
                 getModuleParameter(DefaultLowlevelStorage.PATH_REGISTRY, false);
 
+        // optional parameter required by MappedPathRegistry
+        String pathRegistryDir =
+                getParameter(DefaultLowlevelStorage.PATH_REGISTRY_DIR, true);
+
         // parameter required by DBPathRegistry
         String backslashIsEscape;
         String param =
@@ -95,6 +99,8 @@ public class DefaultLowlevelStorageModule
         configuration.put(DefaultLowlevelStorage.FILESYSTEM, filesystem);
         configuration.put(DefaultLowlevelStorage.PATH_ALGORITHM, pathAlgorithm);
         configuration.put(DefaultLowlevelStorage.PATH_REGISTRY, pathRegistry);
+        configuration.put(DefaultLowlevelStorage.PATH_REGISTRY_DIR,
+                          pathRegistryDir);
         configuration.put(DefaultLowlevelStorage.OBJECT_STORE_BASE,
                           objectStoreBase);
         configuration.put(DefaultLowlevelStorage.DATASTREAM_STORE_BASE,
@@ -0,0 +1,27 @@
+/* The contents of this file are subject to the license and copyright terms
+ * detailed in the license directory at the root of the source tree (also
+ * available online at http://fedora-commons.org/license/).
+ */
+package org.fcrepo.server.storage.lowlevel;
+
+import java.nio.channels.FileChannel;
+
+/**
+ * Interface for streams returned by {@link ILowlevelStorage} implementations
+ * that may read a file of the local file system. The channel lets callers
+ * read any part of the content without reading through the stream.
+ * <p>
+ * Streams that are <code>FileInputStream</code>s need not implement this.
+ */
+public interface IFileBacked {
+
+    /**
+     * Get the channel of the file the stream reads. The position of the
+     * channel is the position of the stream, and closing the stream closes
+     * the channel.
+     *
+     * @return the channel, or null if the stream does not read a file
+     */
+    public FileChannel getFileChannel();
+
+}
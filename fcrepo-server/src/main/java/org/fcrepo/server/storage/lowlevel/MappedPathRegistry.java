@@ -0,0 +1,914 @@
+/* The contents of this file are subject to the license and copyright terms
+ * detailed in the license directory at the root of the source tree (also
+ * available online at http://fedora-commons.org/license/).
+ */
+package org.fcrepo.server.storage.lowlevel;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.fcrepo.server.errors.LowlevelStorageException;
+import org.fcrepo.server.errors.ObjectNotInLowlevelStorageException;
+
+/**
+ * A PathRegistry kept in memory-mapped files, so lookups need neither a
+ * database round trip nor a heap entry per object.
+ *
+ * <p>Each registry has two files in the directory given by the
+ * <code>path_registry_dir</code> parameter. The log is append-only: a put
+ * appends the pid and path, and a remove appends a tombstone. The index is
+ * an open addressing hash table of pid hashes and log offsets. When the
+ * table gets too full, or more than half of the log is superseded records,
+ * the live records are rewritten to a new generation of both files.
+ *
+ * <p>The files are written through the mappings and are not forced to disk
+ * after each update, so they survive a crash of the server, but not
+ * necessarily of the operating system. The registry is rebuilt from the
+ * store when no valid files are found, and can always be rebuilt with
+ * {@link #rebuild()}, which walks the store directories in parallel into a
+ * new generation, while the current one keeps answering. Files written
+ * during a rebuild are marked as such until the walk has finished, so a
+ * rebuild cut short by a crash is started over.
+ */
+public class MappedPathRegistry
+        extends PathRegistry {
+
+    private static final Logger logger =
+            LoggerFactory.getLogger(MappedPathRegistry.class);
+
+    private static final int MAGIC = 0x50524731;
+
+    // index header layout
+    private static final int H_MAGIC = 0;
+
+    private static final int H_CAPACITY = 4;
+
+    private static final int H_LIVE = 8;
+
+    private static final int H_DELETED = 12;
+
+    private static final int H_LOG_LENGTH = 16;
+
+    private static final int H_DEAD_BYTES = 24;
+
+    private static final int H_REBUILDING = 32;
+
+    private static final int HEADER_SIZE = 64;
+
+    /** Each slot holds the pid hash and the log offset + 1 */
+    private static final int SLOT_SIZE = 16;
+
+    private static final long EMPTY = 0;
+
+    private static final long DELETED = -1;
+
+    private static final int INITIAL_CAPACITY = 1 << 16;
+
+    private static final int MAX_CAPACITY = 1 << 26;
+
+    private static final int INITIAL_LOG_SIZE = 1 << 20;
+
+    private static final double MAX_LOAD = 0.7;
+
+    private static final long MIN_COMPACT_BYTES = 1 << 20;
+
+    private static final int MAX_REBUILD_THREADS = 8;
+
+    private final File m_dir;
+
+    private final ReadWriteLock m_lock = new ReentrantReadWriteLock();
+
+    /** The current files; guarded by m_lock */
+    private Segment m_segment;
+
+    /** The files a rebuild is filling, or null; guarded by m_lock */
+    private Segment m_rebuilt;
+
+    /** Pids removed during the rebuild; guarded by m_lock */
+    private Set<String> m_removed;
+
+    /** The newest generation in use; guarded by m_lock */
+    private long m_generation;
+
+    public MappedPathRegistry(Map<String, ?> configuration)
+            throws LowlevelStorageException {
+        super(configuration);
+        String dir =
+                (String) configuration
+                        .get(DefaultLowlevelStorage.PATH_REGISTRY_DIR);
+        if (stringNull(dir)) {
+            throw new LowlevelStorageException(true,
+                                               DefaultLowlevelStorage.PATH_REGISTRY_DIR
+                                                       + " must be specified for "
+                                                       + getClass().getName());
+        }
+        m_dir = new File(dir);
+        if (!m_dir.isDirectory() && !m_dir.mkdirs()) {
+            throw new LowlevelStorageException(true, "couldn't create "
+                    + m_dir);
+        }
+        if (!open()) {
+            rebuild();
+        }
+    }
+
+    @Override
+    public String get(String pid) throws LowlevelStorageException {
+        byte[] key = encode(pid);
+        long hash = hash(key);
+        m_lock.readLock().lock();
+        try {
+            Segment segment = m_segment;
+            int slot = segment.probe(key, hash);
+            if (slot < 0 && m_rebuilt != null) {
+                // may have been found by the rebuild
+                segment = m_rebuilt;
+                slot = segment.probe(key, hash);
+            }
+            if (slot < 0) {
+                throw new ObjectNotInLowlevelStorageException("no path in registry for ["
+                        + pid + "]");
+            }
+            return segment.readValue(segment.slotOffset(slot) - 1);
+        } finally {
+            m_lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void put(String pid, String path) throws LowlevelStorageException {
+        byte[] key = encode(pid);
+        byte[] value = encode(path);
+        long hash = hash(key);
+        m_lock.writeLock().lock();
+        try {
+            m_segment = put(m_segment, key, hash, value);
+            if (m_rebuilt != null) {
+                m_rebuilt = put(m_rebuilt, key, hash, value);
+                m_removed.remove(pid);
+            }
+        } catch (IOException e) {
+            throw new LowlevelStorageException(true, "put into registry failed for ["
+                    + pid + "]", e);
+        } finally {
+            m_lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void remove(String pid) throws LowlevelStorageException {
+        byte[] key = encode(pid);
+        long hash = hash(key);
+        m_lock.writeLock().lock();
+        try {
+            if (m_segment.probe(key, hash) < 0) {
+                throw new ObjectNotInLowlevelStorageException("[" + pid
+                        + "] not in registry to delete");
+            }
+            m_segment = remove(m_segment, key, hash);
+            if (m_rebuilt != null) {
+                // the walk may not have reached the file yet
+                m_rebuilt = remove(m_rebuilt, key, hash);
+                m_removed.add(pid);
+            }
+        } catch (IOException e) {
+            throw new LowlevelStorageException(true, "remove from registry failed for ["
+                    + pid + "]", e);
+        } finally {
+            m_lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Fills a new registry from the files in the store, walking the
+     * directories in parallel, and replaces the current one with it. Until
+     * then the current registry answers lookups; puts and removes made
+     * meanwhile are applied to both.
+     */
+    @Override
+    public void rebuild() throws LowlevelStorageException {
+        long start = System.currentTimeMillis();
+        m_lock.writeLock().lock();
+        try {
+            if (m_rebuilt != null) {
+                throw new LowlevelStorageException(true,
+                                                   "registry is already being rebuilt");
+            }
+            Segment next =
+                    Segment.create(m_dir,
+                                   getRegistryName(),
+                                   ++m_generation,
+                                   INITIAL_CAPACITY,
+                                   INITIAL_LOG_SIZE);
+            next.setRebuilding(true);
+            next.seal();
+            m_rebuilt = next;
+            m_removed = new HashSet<String>();
+        } catch (IOException e) {
+            throw new LowlevelStorageException(true,
+                                               "ending rebuild unsuccessfully",
+                                               e);
+        } finally {
+            m_lock.writeLock().unlock();
+        }
+
+        logger.info("begin rebuilding registry from files");
+        int threads =
+                Math.min(MAX_REBUILD_THREADS, Runtime.getRuntime()
+                        .availableProcessors());
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        Walk walk = new Walk(executor);
+        boolean done = false;
+        try {
+            for (String storeBase : storeBases) {
+                walk.submit(new File(storeBase));
+            }
+            walk.await();
+            if (walk.failure != null) {
+                logger.error("ending rebuild unsuccessfully", walk.failure);
+                throw new LowlevelStorageException(true,
+                                                   "ending rebuild unsuccessfully",
+                                                   walk.failure);
+            }
+            done = true;
+        } catch (InterruptedException e) {
+            throw new LowlevelStorageException(true,
+                                               "rebuild interrupted",
+                                               e);
+        } finally {
+            executor.shutdownNow();
+            m_lock.writeLock().lock();
+            try {
+                if (done) {
+                    // the segment may have been rewritten during the walk
+                    m_rebuilt.setRebuilding(false);
+                    m_rebuilt.seal();
+                    m_segment = replace(m_segment, m_rebuilt);
+                }
+                // else its files are left unfinished, as after a crash, and
+                // deleted when the registry is next opened
+                m_rebuilt = null;
+                m_removed = null;
+            } finally {
+                m_lock.writeLock().unlock();
+            }
+        }
+        logger.info("end rebuilding registry from files (ending normally): "
+                + walk.added.get() + " files in "
+                + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    @Override
+    public void auditFiles() throws LowlevelStorageException {
+        logger.info("begin audit:  files-against-registry");
+        traverseFiles(storeBases, AUDIT_FILES, false, FULL_REPORT);
+        logger.info("end audit:  files-against-registry (ending normally)");
+    }
+
+    /**
+     * Enumerates the pids of the files current when this method is called.
+     */
+    @Override
+    protected Enumeration<String> keys() throws LowlevelStorageException {
+        m_lock.readLock().lock();
+        try {
+            return new KeyEnumeration(m_segment);
+        } finally {
+            m_lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Puts an entry found by the walk of a rebuild into the new registry,
+     * unless it was removed meanwhile. Called holding the write lock.
+     */
+    void putRebuilt(String pid, String path) throws LowlevelStorageException {
+        if (m_removed.contains(pid)) {
+            return;
+        }
+        byte[] key = encode(pid);
+        try {
+            m_rebuilt = put(m_rebuilt, key, hash(key), encode(path));
+        } catch (IOException e) {
+            throw new LowlevelStorageException(true, "put into registry failed for ["
+                    + pid + "]", e);
+        }
+    }
+
+    /**
+     * Opens the newest valid generation of the files, deleting the others.
+     *
+     * @return false if there are no valid files
+     */
+    private boolean open() {
+        final String prefix = getRegistryName() + ".";
+        String[] names = m_dir.list();
+        List<Long> generations = new ArrayList<Long>();
+        for (String name : names == null ? new String[0] : names) {
+            if (name.startsWith(prefix) && name.endsWith(".idx")) {
+                try {
+                    generations.add(Long.valueOf(name.substring(prefix
+                            .length(), name.length() - 4)));
+                } catch (NumberFormatException e) {
+                    logger.warn("Ignoring unexpected file " + name + " in "
+                            + m_dir);
+                }
+            }
+        }
+        Long[] sorted = generations.toArray(new Long[generations.size()]);
+        Arrays.sort(sorted);
+        if (sorted.length > 0) {
+            m_generation = sorted[sorted.length - 1];
+        }
+        for (int i = sorted.length - 1; i >= 0; i--) {
+            if (m_segment == null) {
+                try {
+                    m_segment =
+                            Segment.open(m_dir, getRegistryName(), sorted[i]);
+                    logger.info("Opened " + getRegistryName() + " with "
+                            + m_segment.live() + " entries");
+                    continue;
+                } catch (IOException e) {
+                    logger.warn("Ignoring invalid " + getRegistryName()
+                            + " generation " + sorted[i] + ": "
+                            + e.getMessage());
+                }
+            }
+            Segment.delete(m_dir, getRegistryName(), sorted[i]);
+        }
+        return m_segment != null;
+    }
+
+    /**
+     * Puts the entry into the segment.
+     *
+     * @return the segment, or the one it was rewritten to
+     */
+    private Segment put(Segment segment, byte[] key, long hash, byte[] value)
+            throws IOException {
+        long offset = segment.append(key, value);
+        int slot = segment.probe(key, hash);
+        if (slot >= 0) {
+            segment.addDeadBytes(segment.recordSize(segment.slotOffset(slot) - 1));
+        } else {
+            slot = -slot - 1;
+            if (segment.slotOffset(slot) == DELETED) {
+                segment.setDeleted(segment.deleted() - 1);
+            }
+            segment.setLive(segment.live() + 1);
+        }
+        segment.setSlot(slot, hash, offset + 1);
+        return rewriteIfNeeded(segment);
+    }
+
+    /**
+     * Removes the entry from the segment, if it is there.
+     *
+     * @return the segment, or the one it was rewritten to
+     */
+    private Segment remove(Segment segment, byte[] key, long hash)
+            throws IOException {
+        int slot = segment.probe(key, hash);
+        if (slot < 0) {
+            return segment;
+        }
+        long offset = segment.append(key, null);
+        segment.addDeadBytes(segment.recordSize(segment.slotOffset(slot) - 1)
+                + segment.recordSize(offset));
+        segment.setSlot(slot, 0, DELETED);
+        segment.setLive(segment.live() - 1);
+        segment.setDeleted(segment.deleted() + 1);
+        return rewriteIfNeeded(segment);
+    }
+
+    /**
+     * Rewrites the live records to a new generation when the hash table is
+     * too full, or the log is mostly superseded records.
+     *
+     * @return the segment, or the one it was rewritten to
+     */
+    private Segment rewriteIfNeeded(Segment segment) throws IOException {
+        int capacity = segment.capacity;
+        boolean compact =
+                segment.deadBytes() >= MIN_COMPACT_BYTES
+                        && segment.deadBytes() >= segment.logLength() / 2;
+        if (segment.live() + segment.deleted() > capacity * MAX_LOAD) {
+            while (segment.live() > capacity * MAX_LOAD / 2
+                    && capacity < MAX_CAPACITY) {
+                capacity *= 2;
+            }
+            // once the table can't grow, a rewrite only pays if it clears
+            // enough deleted slots
+            if (capacity == segment.capacity
+                    && segment.deleted() < capacity * (1 - MAX_LOAD) / 2
+                    && !compact) {
+                return segment;
+            }
+        } else if (!compact) {
+            return segment;
+        }
+
+        long liveBytes = segment.logLength() - segment.deadBytes();
+        Segment next =
+                Segment.create(m_dir,
+                               getRegistryName(),
+                               ++m_generation,
+                               capacity,
+                               (int) Math.min(Integer.MAX_VALUE, Math.max(INITIAL_LOG_SIZE, liveBytes * 3 / 2)));
+        for (int slot = 0; slot < segment.capacity; slot++) {
+            long offset = segment.slotOffset(slot);
+            if (offset > 0) {
+                long newOffset = next.copy(segment, offset - 1);
+                next.insert(segment.slotHash(slot), newOffset + 1);
+            }
+        }
+        next.setLive(segment.live());
+        next.setRebuilding(segment.rebuilding());
+        logger.debug("Rewrote " + getRegistryName() + " with "
+                + next.live() + " entries and capacity " + capacity);
+        next.seal();
+        return replace(segment, next);
+    }
+
+    /**
+     * Deletes the files of the previous segment, which the next one
+     * replaces. Enumerations of the previous segment keep their mappings.
+     *
+     * @return the next segment
+     */
+    private Segment replace(Segment previous, Segment next) {
+        if (previous != null) {
+            Segment.delete(m_dir, getRegistryName(), previous.generation);
+        }
+        return next;
+    }
+
+    private static byte[] encode(String s) {
+        try {
+            return s.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static String decode(byte[] bytes) {
+        try {
+            return new String(bytes, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * 64 bit FNV-1a followed by the MurmurHash3 finalizer.
+     */
+    private static long hash(byte[] key) {
+        long h = 0xCBF29CE484222325L;
+        for (byte b : key) {
+            h ^= b & 0xFF;
+            h *= 0x100000001B3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB93FE1A85EC3L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * One generation of the index and log files.
+     *
+     * <p>A log record is the key length, the key, and the value length
+     * followed by the value, or -1 for a tombstone. Reads use duplicates of
+     * the buffers, as several readers may hold the read lock.
+     */
+    private static class Segment {
+
+        final long generation;
+
+        final int capacity;
+
+        private final File m_logFile;
+
+        private final MappedByteBuffer m_index;
+
+        private MappedByteBuffer m_log;
+
+        private Segment(long generation,
+                        File logFile,
+                        MappedByteBuffer index,
+                        MappedByteBuffer log) {
+            this.generation = generation;
+            this.capacity = index.getInt(H_CAPACITY);
+            m_logFile = logFile;
+            m_index = index;
+            m_log = log;
+        }
+
+        static File indexFile(File dir, String name, long generation) {
+            return new File(dir, name + "." + generation + ".idx");
+        }
+
+        static File logFile(File dir, String name, long generation) {
+            return new File(dir, name + "." + generation + ".log");
+        }
+
+        /**
+         * Creates empty files. The segment is not valid until it is sealed.
+         */
+        static Segment create(File dir,
+                              String name,
+                              long generation,
+                              int capacity,
+                              int logSize) throws IOException {
+            File indexFile = indexFile(dir, name, generation);
+            File logFile = logFile(dir, name, generation);
+            indexFile.delete();
+            logFile.delete();
+            MappedByteBuffer index =
+                    map(indexFile, HEADER_SIZE + (long) capacity * SLOT_SIZE);
+            index.putInt(H_CAPACITY, capacity);
+            return new Segment(generation, logFile, index, map(logFile, logSize));
+        }
+
+        static Segment open(File dir, String name, long generation)
+                throws IOException {
+            File indexFile = indexFile(dir, name, generation);
+            File logFile = logFile(dir, name, generation);
+            if (!logFile.exists()) {
+                throw new IOException(logFile + " is missing");
+            }
+            MappedByteBuffer index = map(indexFile, indexFile.length());
+            if (index.capacity() < HEADER_SIZE || index.getInt(H_MAGIC) != MAGIC) {
+                throw new IOException(indexFile + " is not a sealed index");
+            }
+            if (index.getInt(H_REBUILDING) != 0) {
+                throw new IOException(indexFile
+                        + " is from a rebuild that did not finish");
+            }
+            int capacity = index.getInt(H_CAPACITY);
+            if (Integer.bitCount(capacity) != 1
+                    || index.capacity() != HEADER_SIZE + (long) capacity * SLOT_SIZE) {
+                throw new IOException(indexFile + " has an invalid capacity");
+            }
+            long logLength = index.getLong(H_LOG_LENGTH);
+            if (logLength > logFile.length()) {
+                throw new IOException(logFile + " is truncated");
+            }
+            return new Segment(generation,
+                               logFile,
+                               index,
+                               map(logFile, logFile.length()));
+        }
+
+        static void delete(File dir, String name, long generation) {
+            File indexFile = indexFile(dir, name, generation);
+            File logFile = logFile(dir, name, generation);
+            // Mapped files can't be deleted on all platforms; they are
+            // deleted when the registry is next opened
+            if (indexFile.exists() && !indexFile.delete()
+                    || logFile.exists() && !logFile.delete()) {
+                logger.warn("Unable to delete " + name + " generation "
+                        + generation + " in " + dir);
+            }
+        }
+
+        private static MappedByteBuffer map(File file, long size)
+                throws IOException {
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException(file + " would exceed 2 GB");
+            }
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                return raf.getChannel().map(FileChannel.MapMode.READ_WRITE,
+                                            0,
+                                            size);
+            } finally {
+                raf.close();
+            }
+        }
+
+        /**
+         * Marks the segment valid, after forcing its contents to disk.
+         */
+        void seal() {
+            m_log.force();
+            m_index.force();
+            m_index.putInt(H_MAGIC, MAGIC);
+            m_index.force();
+        }
+
+        int live() {
+            return m_index.getInt(H_LIVE);
+        }
+
+        void setLive(int live) {
+            m_index.putInt(H_LIVE, live);
+        }
+
+        int deleted() {
+            return m_index.getInt(H_DELETED);
+        }
+
+        void setDeleted(int deleted) {
+            m_index.putInt(H_DELETED, deleted);
+        }
+
+        boolean rebuilding() {
+            return m_index.getInt(H_REBUILDING) != 0;
+        }
+
+        void setRebuilding(boolean rebuilding) {
+            m_index.putInt(H_REBUILDING, rebuilding ? 1 : 0);
+        }
+
+        long logLength() {
+            return m_index.getLong(H_LOG_LENGTH);
+        }
+
+        long deadBytes() {
+            return m_index.getLong(H_DEAD_BYTES);
+        }
+
+        void addDeadBytes(long bytes) {
+            m_index.putLong(H_DEAD_BYTES, deadBytes() + bytes);
+        }
+
+        long slotHash(int slot) {
+            return m_index.getLong(HEADER_SIZE + slot * SLOT_SIZE);
+        }
+
+        long slotOffset(int slot) {
+            return m_index.getLong(HEADER_SIZE + slot * SLOT_SIZE + 8);
+        }
+
+        void setSlot(int slot, long hash, long offset) {
+            m_index.putLong(HEADER_SIZE + slot * SLOT_SIZE, hash);
+            m_index.putLong(HEADER_SIZE + slot * SLOT_SIZE + 8, offset);
+        }
+
+        /**
+         * @return the slot holding the key, or -(slot + 1) for the slot to
+         *         insert it into
+         */
+        int probe(byte[] key, long hash) {
+            int mask = capacity - 1;
+            int insertAt = -1;
+            for (int i = 0, slot = (int) hash & mask; i < capacity; i++, slot =
+                    (slot + 1) & mask) {
+                long offset = slotOffset(slot);
+                if (offset == EMPTY) {
+                    return -(insertAt < 0 ? slot : insertAt) - 1;
+                }
+                if (offset == DELETED) {
+                    if (insertAt < 0) {
+                        insertAt = slot;
+                    }
+                } else if (slotHash(slot) == hash
+                        && Arrays.equals(key, readBytes(offset - 1))) {
+                    return slot;
+                }
+            }
+            if (insertAt < 0) {
+                // can't happen, the table is rewritten before it fills up
+                throw new IllegalStateException("path registry index is full");
+            }
+            return -insertAt - 1;
+        }
+
+        /**
+         * Inserts a key known not to be in the table.
+         */
+        void insert(long hash, long offset) {
+            int mask = capacity - 1;
+            int slot = (int) hash & mask;
+            while (slotOffset(slot) != EMPTY) {
+                slot = (slot + 1) & mask;
+            }
+            setSlot(slot, hash, offset);
+        }
+
+        /**
+         * Appends a record, growing the log mapping if needed.
+         *
+         * @param value the value, or null for a tombstone
+         * @return the offset of the record
+         */
+        long append(byte[] key, byte[] value) throws IOException {
+            long offset = logLength();
+            long size = 8 + key.length + (value == null ? 0 : value.length);
+            if (offset + size > m_log.capacity()) {
+                m_log = map(m_logFile,
+                            Math.min(Integer.MAX_VALUE, Math.max(offset + size,
+                                                                 2L * m_log.capacity())));
+                if (offset + size > m_log.capacity()) {
+                    throw new IOException(m_logFile + " would exceed 2 GB");
+                }
+            }
+            ByteBuffer log = m_log.duplicate();
+            log.position((int) offset);
+            log.putInt(key.length);
+            log.put(key);
+            if (value == null) {
+                log.putInt(-1);
+            } else {
+                log.putInt(value.length);
+                log.put(value);
+            }
+            m_index.putLong(H_LOG_LENGTH, offset + size);
+            return offset;
+        }
+
+        /**
+         * Copies a record from another segment.
+         */
+        long copy(Segment from, long offset) throws IOException {
+            return append(from.readBytes(offset), encode(from.readValue(offset)));
+        }
+
+        long recordSize(long offset) {
+            int keyLength = m_log.getInt((int) offset);
+            int valueLength = m_log.getInt((int) offset + 4 + keyLength);
+            return 8 + keyLength + Math.max(0, valueLength);
+        }
+
+        /**
+         * @return the key of the record
+         */
+        byte[] readBytes(long offset) {
+            ByteBuffer log = m_log.duplicate();
+            log.position((int) offset);
+            byte[] key = new byte[log.getInt()];
+            log.get(key);
+            return key;
+        }
+
+        String readValue(long offset) {
+            ByteBuffer log = m_log.duplicate();
+            log.position((int) offset);
+            log.position(log.position() + 4 + log.getInt(log.position()));
+            byte[] value = new byte[log.getInt()];
+            log.get(value);
+            return decode(value);
+        }
+    }
+
+    /**
+     * Iterates over the keys of a segment, reading one at a time under the
+     * read lock.
+     */
+    private class KeyEnumeration
+            implements Enumeration<String> {
+
+        private final Segment m_keys;
+
+        private int m_slot = -1;
+
+        private String m_nextKey;
+
+        KeyEnumeration(Segment segment) {
+            m_keys = segment;
+            setNextKey();
+        }
+
+        private void setNextKey() {
+            m_nextKey = null;
+            m_lock.readLock().lock();
+            try {
+                while (++m_slot < m_keys.capacity) {
+                    long offset = m_keys.slotOffset(m_slot);
+                    if (offset > 0) {
+                        m_nextKey = decode(m_keys.readBytes(offset - 1));
+                        return;
+                    }
+                }
+            } finally {
+                m_lock.readLock().unlock();
+            }
+        }
+
+        public boolean hasMoreElements() {
+            return m_nextKey != null;
+        }
+
+        public String nextElement() {
+            if (m_nextKey == null) {
+                throw new NoSuchElementException();
+            }
+            try {
+                return m_nextKey;
+            } finally {
+                setNextKey();
+            }
+        }
+    }
+
+    /**
+     * Walks directory trees on an executor, one task per directory, putting
+     * the files of each directory with a single lock acquisition.
+     */
+    private class Walk {
+
+        final AtomicInteger added = new AtomicInteger();
+
+        volatile Exception failure;
+
+        private final ExecutorService m_executor;
+
+        private final AtomicInteger m_pending = new AtomicInteger();
+
+        Walk(ExecutorService executor) {
+            m_executor = executor;
+        }
+
+        void submit(final File dir) {
+            m_pending.incrementAndGet();
+            m_executor.execute(new Runnable() {
+
+                public void run() {
+                    try {
+                        if (failure == null) {
+                            visit(dir);
+                        }
+                    } catch (Exception e) {
+                        failure = e;
+                    } finally {
+                        if (m_pending.decrementAndGet() == 0) {
+                            synchronized (Walk.this) {
+                                Walk.this.notifyAll();
+                            }
+                        }
+                    }
+                }
+            });
+        }
+
+        synchronized void await() throws InterruptedException {
+            while (m_pending.get() > 0) {
+                wait();
+            }
+        }
+
+        private void visit(File dir) throws IOException,
+                LowlevelStorageException {
+            File[] files = dir.listFiles();
+            if (files == null) {
+                return;
+            }
+            List<String> pids = new ArrayList<String>();
+            List<String> paths = new ArrayList<String>();
+            for (File file : files) {
+                if (file.isDirectory()) {
+                    submit(file);
+                } else {
+                    String path = file.getCanonicalPath();
+                    try {
+                        pids.add(PathAlgorithm.decode(file.getName()));
+                        paths.add(path);
+                    } catch (LowlevelStorageException e) {
+                        // continues, ignoring bad files
+                        logger.error("unexpected file at [" + path + "]");
+                    }
+                }
+            }
+            if (pids.isEmpty()) {
+                return;
+            }
+            m_lock.writeLock().lock();
+            try {
+                for (int i = 0; i < pids.size(); i++) {
+                    putRebuilt(pids.get(i), paths.get(i));
+                    logger.debug("added to registry: [" + pids.get(i)
+                            + "] ==> [" + paths.get(i) + "]");
+                }
+            } finally {
+                m_lock.writeLock().unlock();
+            }
+            added.addAndGet(pids.size());
+        }
+    }
+}
@@ -4,6 +4,7 @@
  */
 package org.fcrepo.server.storage.lowlevel.akubra;
 
+import java.io.FileInputStream;
 import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -15,6 +16,8 @@ import java.net.URISyntaxException;
 import java.net.URLDecoder;
 import java.net.URLEncoder;
 
+import java.nio.channels.FileChannel;
+
 import java.util.Iterator;
 import java.util.Map;
 
@@ -36,6 +39,7 @@ import org.fcrepo.common.PID;
 import org.fcrepo.server.errors.LowlevelStorageException;
 import org.fcrepo.server.errors.ObjectAlreadyInLowlevelStorageException;
 import org.fcrepo.server.errors.ObjectNotInLowlevelStorageException;
+import org.fcrepo.server.storage.lowlevel.IFileBacked;
 import org.fcrepo.server.storage.lowlevel.IListable;
 import org.fcrepo.server.storage.lowlevel.ILowlevelStorage;
 import org.fcrepo.server.storage.lowlevel.ISizable;
@@ -599,8 +603,12 @@ public class AkubraLowlevelStorage
 
     /**
      * Closes the stream and connection automatically when closed or finalized.
+     * <p>
+     * When the content is a <code>FileInputStream</code>, as with a
+     * {@link FileBackedFSBlobStore}, the channel of the file is handed out.
      */
-    static class ConnectionClosingInputStream extends FilterInputStream {
+    static class ConnectionClosingInputStream extends FilterInputStream
+            implements IFileBacked {
 
         private final BlobStoreConnection connection;
 
@@ -610,6 +618,13 @@ public class AkubraLowlevelStorage
             this.connection = connection;
         }
 
+        public FileChannel getFileChannel() {
+            if (in instanceof FileInputStream) {
+                return ((FileInputStream) in).getChannel();
+            }
+            return null;
+        }
+
         @Override
         public void close() {
             if (!connection.isClosed()) {
@@ -0,0 +1,97 @@
+/* The contents of this file are subject to the license and copyright terms
+ * detailed in the license directory at the root of the source tree (also
+ * available online at http://fedora-commons.org/license/).
+ */
+package org.fcrepo.server.storage.lowlevel.akubra;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+
+import java.net.URI;
+
+import java.util.Map;
+
+import javax.transaction.Transaction;
+
+import org.akubraproject.Blob;
+import org.akubraproject.BlobStoreConnection;
+import org.akubraproject.MissingBlobException;
+import org.akubraproject.fs.FSBlobStore;
+import org.akubraproject.impl.BlobStoreConnectionWrapper;
+import org.akubraproject.impl.BlobWrapper;
+
+/**
+ * A file system blob store whose blobs open their content as plain
+ * <code>FileInputStream</code>s, so that readers can use the channel of the
+ * file, for instance to send ranges of the content from it.
+ * <p>
+ * Blobs are stored as by {@link FSBlobStore}: the blob with id
+ * <code>file:path</code> is the file <code>path</code> in the base
+ * directory. Since the content streams are not managed by the connection,
+ * they are not closed when it is; readers must close them.
+ */
+public class FileBackedFSBlobStore
+        extends FSBlobStore {
+
+    private final File baseDir;
+
+    /**
+     * Creates the store.
+     *
+     * @param id the id of the store
+     * @param baseDir the directory the blobs are stored in
+     */
+    public FileBackedFSBlobStore(URI id, File baseDir) {
+        super(id, baseDir);
+        this.baseDir = baseDir;
+    }
+
+    @Override
+    public BlobStoreConnection openConnection(Transaction tx,
+                                              Map<String, String> hints) {
+        return new FileBackedConnection(super.openConnection(tx, hints));
+    }
+
+    private class FileBackedConnection
+            extends BlobStoreConnectionWrapper {
+
+        FileBackedConnection(BlobStoreConnection connection) {
+            super(FileBackedFSBlobStore.this, connection);
+        }
+
+        public Blob getBlob(URI blobId, Map<String, String> hints)
+                throws IOException {
+            return new FileBackedBlob(delegate.getBlob(blobId, hints), this);
+        }
+    }
+
+    private class FileBackedBlob
+            extends BlobWrapper {
+
+        FileBackedBlob(Blob blob, BlobStoreConnection connection) {
+            super(blob, connection);
+        }
+
+        @Override
+        public InputStream openInputStream() throws IOException {
+            if (getConnection().isClosed()) {
+                throw new IllegalStateException("Connection closed");
+            }
+            // the file of a blob, as FSBlob finds it
+            File file =
+                    new File(baseDir, delegate.getCanonicalId()
+                            .getRawSchemeSpecificPart());
+            if (!file.isFile()) {
+                throw new MissingBlobException(getId());
+            }
+            try {
+                return new FileInputStream(file);
+            } catch (FileNotFoundException e) {
+                throw new MissingBlobException(getId(), e.getMessage(), e);
+            }
+        }
+    }
+}
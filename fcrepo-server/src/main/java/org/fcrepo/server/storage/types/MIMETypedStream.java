@@ -7,6 +7,8 @@ package org.fcrepo.server.storage.types;
 import java.io.IOException;
 import java.io.InputStream;
 
+import java.util.Date;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -30,6 +32,10 @@ public class MIMETypedStream {
 
     private boolean gotStream = false;
 
+    private String entityTag;
+
+    private Date lastModified;
+
     /**
      * Constructs a MIMETypedStream.
      *
@@ -116,4 +122,33 @@ public class MIMETypedStream {
     public long getSize() {
         return size;
     }
+
+    /**
+     * Sets the validators of the content, which HTTP clients can use to make
+     * conditional requests. The entity tag must change whenever the content
+     * does.
+     *
+     * @param entityTag
+     *        The opaque entity tag, without quotes.
+     * @param lastModified
+     *        The date the content was last modified.
+     */
+    public void setValidators(String entityTag, Date lastModified) {
+        this.entityTag = entityTag;
+        this.lastModified = lastModified;
+    }
+
+    /**
+     * @return the entity tag of the content, or null if it has none
+     */
+    public String getEntityTag() {
+        return entityTag;
+    }
+
+    /**
+     * @return the date the content was last modified, or null if unknown
+     */
+    public Date getLastModified() {
+        return lastModified;
+    }
 }
@@ -6,6 +6,8 @@ package org.fcrepo.server.utilities;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
 
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -236,6 +238,21 @@ public class DCFields
             * @return
      */
     public String getAsXML(String targetPid) {
+        StringWriter xml = new StringWriter();
+        PrintWriter out = new PrintWriter(xml);
+        writeAsXML(targetPid, out);
+        out.flush();
+        return xml.toString();
+    }
+
+    /**
+     * Write the DCFields in the form of {@link #getAsXML(String)} straight to
+     * the given writer, without building the XML as a String first.
+     *
+     * @param targetPid the pid to include in the dc:identifiers, or null
+     * @param out the writer
+     */
+    public void writeAsXML(String targetPid, PrintWriter out) {
         boolean addPid = (targetPid != null);
         if (addPid) {
         for (DCField dcField : identifiers()) {
@@ -244,45 +261,49 @@ public class DCFields
             }
         }
         }
-        StringBuffer out = new StringBuffer();
-        out.append("<" + OAI_DC.prefix + ":dc" + " xmlns:" + OAI_DC.prefix
+        out.write("<" + OAI_DC.prefix + ":dc" + " xmlns:" + OAI_DC.prefix
                 + "=\"" + OAI_DC.uri + "\"" + " xmlns:" + DC.prefix + "=\""
                 + DC.uri + "\" xmlns:xsi=\"" + XSI.uri
                 + "\" xsi:schemaLocation=\"" + OAI_DC.uri + " "
                 + OAI_DC2_0.xsdLocation + "\">");
-        appendXML(titles(), "title", out);
-        appendXML(creators(), "creator", out);
-        appendXML(subjects(), "subject", out);
-        appendXML(descriptions(), "description", out);
-        appendXML(publishers(), "publisher", out);
-        appendXML(contributors(), "contributor", out);
-        appendXML(dates(), "date", out);
-        appendXML(types(), "type", out);
-        appendXML(formats(), "format", out);
+        writeXML(titles(), "title", out);
+        writeXML(creators(), "creator", out);
+        writeXML(subjects(), "subject", out);
+        writeXML(descriptions(), "description", out);
+        writeXML(publishers(), "publisher", out);
+        writeXML(contributors(), "contributor", out);
+        writeXML(dates(), "date", out);
+        writeXML(types(), "type", out);
+        writeXML(formats(), "format", out);
         if (addPid) {
-            appendXML(new DCField(targetPid), "identifier", out);
+            writeXML(new DCField(targetPid), "identifier", out);
         }
-        appendXML(identifiers(), "identifier", out);
-        appendXML(sources(), "source", out);
-        appendXML(languages(), "language", out);
-        appendXML(relations(), "relation", out);
-        appendXML(coverages(), "coverage", out);
-        appendXML(rights(), "rights", out);
-        out.append("</oai_dc:dc>");
-        return out.toString();    }
-
-    private void appendXML(List<DCField> values, String name, StringBuffer out) {
+        writeXML(identifiers(), "identifier", out);
+        writeXML(sources(), "source", out);
+        writeXML(languages(), "language", out);
+        writeXML(relations(), "relation", out);
+        writeXML(coverages(), "coverage", out);
+        writeXML(rights(), "rights", out);
+        out.write("</oai_dc:dc>");
+    }
+
+    private void writeXML(List<DCField> values, String name, PrintWriter out) {
         for (DCField value : values) {
-            appendXML(value, name, out);
+            writeXML(value, name, out);
         }
     }
-    private void appendXML(DCField value, String name, StringBuffer out) {
-        out.append("<dc:" + name);
+
+    private void writeXML(DCField value, String name, PrintWriter out) {
+        out.write("<dc:");
+        out.write(name);
         if (value.getLang() != null) {
-            out.append(" xml:lang=\"" + value.getLang() + "\"");
+            out.write(" xml:lang=\"" + value.getLang() + "\"");
         }
-        out.append(">");
-        out.append(StreamUtility.enc(value.getValue()));
-        out.append("</dc:" + name + ">");
+        out.write(">");
+        String text = value.getValue();
+        StreamUtility.enc(text == null ? "" : text, out);
+        out.write("</dc:");
+        out.write(name);
+        out.write(">");
     }
 }
@@ -0,0 +1,67 @@
+/* The contents of this file are subject to the license and copyright terms
+ * detailed in the license directory at the root of the source tree (also
+ * available online at http://fedora-commons.org/license/).
+ */
+package org.fcrepo.server.utilities;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Registers monitoring beans with the platform MBean server. Failures are
+ * logged rather than thrown, as monitoring is not essential.
+ */
+public class JMXUtility {
+
+    private static final Logger logger =
+            LoggerFactory.getLogger(JMXUtility.class);
+
+    /**
+     * Registers the MBean under the name, replacing the MBean registered
+     * under it by a previous instance, e.g. of a module that was restarted.
+     *
+     * @param mbean the MBean
+     * @param name the object name
+     * @return the object name, or null if the MBean could not be registered
+     */
+    public static ObjectName registerMBean(Object mbean, String name) {
+        try {
+            ObjectName objectName = new ObjectName(name);
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (server.isRegistered(objectName)) {
+                server.unregisterMBean(objectName);
+            }
+            server.registerMBean(mbean, objectName);
+            return objectName;
+        } catch (JMException e) {
+            logger.warn("Unable to register " + name + " with JMX", e);
+            return null;
+        }
+    }
+
+    /**
+     * Unregisters the MBean registered under the name, if any.
+     *
+     * @param objectName the object name returned by
+     *        {@link #registerMBean(Object, String)}, may be null
+     */
+    public static void unregisterMBean(ObjectName objectName) {
+        if (objectName == null) {
+            return;
+        }
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (server.isRegistered(objectName)) {
+                server.unregisterMBean(objectName);
+            }
+        } catch (JMException e) {
+            logger.warn("Unable to unregister " + objectName + " from JMX", e);
+        }
+    }
+}
@@ -24,4 +24,13 @@ public abstract class MD5Utility {
         return MD5.asHex(new MD5(in).Final());
     }
 
+    /**
+     * Get hash of the given bytes in hex.
+     */
+    public static String getBase16Hash(byte[] in) {
+        MD5 md5 = new MD5();
+        md5.Update(in);
+        return MD5.asHex(md5.Final());
+    }
+
 }
@@ -0,0 +1,51 @@
+/* The contents of this file are subject to the license and copyright terms
+ * detailed in the license directory at the root of the source tree (also
+ * available online at http://fedora-commons.org/license/).
+ */
+package org.fcrepo.server.utilities;
+
+/**
+ * Exponential backoff for a worker that retries failed attempts: the delay
+ * doubles with each consecutive failure, up to a maximum, and starts over
+ * after a success.
+ * <p>
+ * Not thread safe; each worker has its own.
+ */
+public class RetryBackoff {
+
+    private final long m_initialDelayMillis;
+
+    private final long m_maxDelayMillis;
+
+    private int m_failures;
+
+    /**
+     * @param initialDelayMillis the delay after the first failure
+     * @param maxDelayMillis the longest delay
+     */
+    public RetryBackoff(long initialDelayMillis, long maxDelayMillis) {
+        m_initialDelayMillis = Math.max(0, initialDelayMillis);
+        m_maxDelayMillis = maxDelayMillis;
+    }
+
+    /**
+     * Records a failure.
+     *
+     * @return how long to wait before the next attempt, in milliseconds
+     */
+    public long failed() {
+        // 2^16 times the initial delay is beyond any sensible maximum
+        long delay =
+                Math.min(m_maxDelayMillis, m_initialDelayMillis
+                        << Math.min(m_failures, 16));
+        m_failures++;
+        return delay;
+    }
+
+    /**
+     * Records a success, so the next failure waits the initial delay again.
+     */
+    public void succeeded() {
+        m_failures = 0;
+    }
+}
@@ -9,6 +9,7 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.PrintWriter;
 import java.io.UnsupportedEncodingException;
 
 import org.fcrepo.common.FaultException;
@@ -58,6 +59,47 @@ public abstract class StreamUtility {
         }
     }
 
+    /**
+     * Writes an XML-appropriate encoding of the given String to the given
+     * PrintWriter. Runs of characters that need no encoding are written as
+     * they are.
+     *
+     * @param in
+     *        The String to encode.
+     * @param out
+     *        The PrintWriter to write to.
+     */
+    public static void enc(String in, PrintWriter out) {
+        int start = 0;
+        int length = in.length();
+        for (int i = 0; i < length; i++) {
+            String entity;
+            switch (in.charAt(i)) {
+                case '&':
+                    entity = "&amp;";
+                    break;
+                case '<':
+                    entity = "&lt;";
+                    break;
+                case '>':
+                    entity = "&gt;";
+                    break;
+                case '\"':
+                    entity = "&quot;";
+                    break;
+                case '\'':
+                    entity = "&apos;";
+                    break;
+                default:
+                    continue;
+            }
+            out.write(in, start, i - start);
+            out.write(entity);
+            start = i + 1;
+        }
+        out.write(in, start, length - start);
+    }
+
     /**
      * Appends an XML-appropriate encoding of the given range of characters to
      * the given StringBuffer.
@@ -0,0 +1,262 @@
+/* The contents of this file are subject to the license and copyright terms
+ * detailed in the license directory at the root of the source tree (also
+ * available online at http://fedora-commons.org/license/).
+ */
+package org.fcrepo.server.utilities;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A size and time bounded map from strings to values, safe for concurrent
+ * use.
+ * <p>
+ * The map is split into a fixed number of stripes, chosen by the hash of the
+ * key. Each stripe is an access-ordered {@link LinkedHashMap} guarded by its
+ * own lock, so threads working on different keys rarely contend, and moving
+ * an entry to the most recently used position is O(1). Each stripe holds its
+ * share of the capacity and evicts its least recently used entry when full.
+ * <p>
+ * Entries expire a time to live after they were put or, if so configured,
+ * last read. Since that order differs from the order of use, each stripe
+ * also keeps its entries in the order they expire. Expired entries are
+ * removed when looked up and from the head of that queue when an entry is
+ * put in the stripe, so no background thread is needed.
+ *
+ * @param <V> the type of the values
+ */
+public class StripedLruCache<V> {
+
+    private static final int MAX_STRIPES = 16;
+
+    private final int m_capacity;
+
+    private final long m_ttl;
+
+    private final boolean m_refreshOnGet;
+
+    private final Stripe[] m_stripes;
+
+    private final AtomicLong m_hits = new AtomicLong();
+
+    private final AtomicLong m_misses = new AtomicLong();
+
+    private final AtomicLong m_evictions = new AtomicLong();
+
+    private final AtomicLong m_expirations = new AtomicLong();
+
+    /**
+     * @param capacity the maximum number of entries
+     * @param ttl the time to live of an entry, in milliseconds
+     * @param refreshOnGet whether reading an entry restarts its time to live
+     */
+    public StripedLruCache(int capacity, long ttl, boolean refreshOnGet) {
+        this(capacity, ttl, refreshOnGet, Math.min(MAX_STRIPES, capacity));
+    }
+
+    @SuppressWarnings("unchecked")
+    StripedLruCache(int capacity, long ttl, boolean refreshOnGet, int stripes) {
+        m_capacity = capacity;
+        m_ttl = ttl;
+        m_refreshOnGet = refreshOnGet;
+
+        stripes = Math.max(1, stripes);
+        m_stripes = new StripedLruCache.Stripe[stripes];
+        for (int i = 0; i < stripes; i++) {
+            // spread the capacity over the stripes, so the total is exact
+            int stripeCapacity =
+                    capacity / stripes + (i < capacity % stripes ? 1 : 0);
+            m_stripes[i] = new Stripe(stripeCapacity);
+        }
+    }
+
+    /**
+     * Gets the value of a key, and makes it the most recently used.
+     *
+     * @return the value, or null if the key is not cached or has expired
+     */
+    public V get(String key) {
+        long now = System.currentTimeMillis();
+        Stripe stripe = stripeFor(key);
+        stripe.lock.lock();
+        try {
+            // get() moves the entry to the most recently used position
+            CacheEntry<V> entry = stripe.entries.get(key);
+            if (entry != null) {
+                if (isExpired(entry, now)) {
+                    stripe.remove(key);
+                    m_expirations.incrementAndGet();
+                } else {
+                    if (m_refreshOnGet) {
+                        entry.time = now;
+                        stripe.expiryQueue.remove(key);
+                        stripe.expiryQueue.put(key, entry);
+                    }
+                    m_hits.incrementAndGet();
+                    return entry.value;
+                }
+            }
+        } finally {
+            stripe.lock.unlock();
+        }
+        m_misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Puts the value of a key, replacing any cached value.
+     */
+    public void put(String key, V value) {
+        long now = System.currentTimeMillis();
+        Stripe stripe = stripeFor(key);
+        stripe.lock.lock();
+        try {
+            CacheEntry<V> entry = new CacheEntry<V>(value, now);
+            stripe.expiryQueue.remove(key);
+            stripe.expiryQueue.put(key, entry);
+            stripe.entries.put(key, entry);
+            removeExpired(stripe, now);
+        } finally {
+            stripe.lock.unlock();
+        }
+    }
+
+    /**
+     * Removes a key. If it is not cached, does nothing.
+     */
+    public void remove(String key) {
+        Stripe stripe = stripeFor(key);
+        stripe.lock.lock();
+        try {
+            stripe.remove(key);
+        } finally {
+            stripe.lock.unlock();
+        }
+    }
+
+    public void clear() {
+        for (Stripe stripe : m_stripes) {
+            stripe.lock.lock();
+            try {
+                stripe.entries.clear();
+                stripe.expiryQueue.clear();
+            } finally {
+                stripe.lock.unlock();
+            }
+        }
+    }
+
+    public int size() {
+        int size = 0;
+        for (Stripe stripe : m_stripes) {
+            stripe.lock.lock();
+            try {
+                size += stripe.entries.size();
+            } finally {
+                stripe.lock.unlock();
+            }
+        }
+        return size;
+    }
+
+    public int getCapacity() {
+        return m_capacity;
+    }
+
+    public long getTTL() {
+        return m_ttl;
+    }
+
+    public long getHits() {
+        return m_hits.get();
+    }
+
+    public long getMisses() {
+        return m_misses.get();
+    }
+
+    public long getEvictions() {
+        return m_evictions.get();
+    }
+
+    public long getExpirations() {
+        return m_expirations.get();
+    }
+
+    /**
+     * Removes expired entries from the head of the expiry queue of the
+     * stripe. Must be called with the stripe locked.
+     */
+    private void removeExpired(Stripe stripe, long now) {
+        Iterator<Map.Entry<String, CacheEntry<V>>> queue =
+                stripe.expiryQueue.entrySet().iterator();
+        while (queue.hasNext()) {
+            Map.Entry<String, CacheEntry<V>> head = queue.next();
+            if (!isExpired(head.getValue(), now)) {
+                break;
+            }
+            queue.remove();
+            stripe.entries.remove(head.getKey());
+            m_expirations.incrementAndGet();
+        }
+    }
+
+    private boolean isExpired(CacheEntry<V> entry, long now) {
+        return now - entry.time > m_ttl;
+    }
+
+    private Stripe stripeFor(String key) {
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        return m_stripes[(h & 0x7fffffff) % m_stripes.length];
+    }
+
+    private static class CacheEntry<V> {
+
+        final V value;
+
+        long time;
+
+        CacheEntry(V value, long time) {
+            this.value = value;
+            this.time = time;
+        }
+    }
+
+    private class Stripe {
+
+        final ReentrantLock lock = new ReentrantLock();
+
+        /** the entries, least recently used first */
+        final LinkedHashMap<String, CacheEntry<V>> entries;
+
+        /** the same entries, first to expire first */
+        final LinkedHashMap<String, CacheEntry<V>> expiryQueue =
+                new LinkedHashMap<String, CacheEntry<V>>();
+
+        Stripe(final int capacity) {
+            entries = new LinkedHashMap<String, CacheEntry<V>>(16, 0.75f, true) {
+
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, CacheEntry<V>> eldest) {
+                    if (size() > capacity) {
+                        expiryQueue.remove(eldest.getKey());
+                        m_evictions.incrementAndGet();
+                        return true;
+                    }
+                    return false;
+                }
+            };
+        }
+
+        void remove(String key) {
+            entries.remove(key);
+            expiryQueue.remove(key);
+        }
+    }
+}
@@ -213,5 +213,17 @@ public class FieldSearchLuceneTest {
         void dispose()
         {
         }
+
+        @Mock
+        int getPidsInMemory()
+        {
+            return 0;
+        }
+
+        @Mock
+        long getBytesInFile()
+        {
+            return 0;
+        }
     }
 }
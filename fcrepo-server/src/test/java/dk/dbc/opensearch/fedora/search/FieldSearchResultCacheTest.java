@@ -19,15 +19,28 @@ along with opensearch.  If not, see <http://www.gnu.org/licenses/>.
 
 package dk.dbc.opensearch.fedora.search;
 
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
+import java.util.List;
 import mockit.Expectations;
 import mockit.Mocked;
+import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.TieredMergePolicy;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.Version;
+import org.fcrepo.server.search.Condition;
+import org.fcrepo.server.search.FieldSearchQuery;
 import org.junit.Test;
 import static org.junit.Assert.*;
 
 public class FieldSearchResultCacheTest
 {
     private final static String token = "token";
+    private final static String indexLocation = "build/test-index-cache";
 
 
     @Test ( expected = IllegalArgumentException.class )
@@ -119,4 +132,132 @@ public class FieldSearchResultCacheTest
         // And result must not be in cache after shutdown
         assertNull( instance.getCachedResult( token ) );
     }
-}
\ No newline at end of file
+
+
+    @Test
+    public void testLeastRecentlyUsedResultIsEvictedAndDisposed() throws Exception
+    {
+        LuceneFieldIndex index = createIndex( 3 );
+        try
+        {
+            FieldSearchResultCache instance = new FieldSearchResultCache( 60, 2, Long.MAX_VALUE );
+            FieldSearchResultCache.ResultCacheMonitor monitor = instance.new ResultCacheMonitor();
+            FieldSearchResultLucene first = search( index, 60 );
+            instance.putCachedResult( "first", first );
+            instance.putCachedResult( "second", search( index, 60 ) );
+
+            // Using the first result makes the second the least recently used
+            assertSame( first, instance.getCachedResult( "first" ) );
+            FieldSearchResultLucene third = search( index, 60 );
+            instance.putCachedResult( "third", third );
+
+            assertEquals( 2, monitor.getLiveTokens() );
+            assertEquals( 1, monitor.getEvictions() );
+            assertNull( instance.getCachedResult( "second" ) );
+            assertSame( first, instance.getCachedResult( "first" ) );
+            assertSame( third, instance.getCachedResult( "third" ) );
+            instance.shutdown();
+        }
+        finally
+        {
+            closeIndex( index );
+        }
+    }
+
+
+    @Test
+    public void testResultsAreEvictedBeyondWeightBound() throws Exception
+    {
+        LuceneFieldIndex index = createIndex( 3 );
+        try
+        {
+            // A result holds the PIDs of the three objects in memory
+            long weight = 3 * FieldSearchResultCache.BYTES_PER_PID_IN_MEMORY;
+            FieldSearchResultCache instance = new FieldSearchResultCache( 60, 10, 2 * weight );
+            FieldSearchResultCache.ResultCacheMonitor monitor = instance.new ResultCacheMonitor();
+            instance.putCachedResult( "first", search( index, 60 ) );
+            instance.putCachedResult( "second", search( index, 60 ) );
+            assertEquals( 2 * weight, monitor.getBytesHeld() );
+
+            instance.putCachedResult( "third", search( index, 60 ) );
+            assertEquals( 2, monitor.getLiveTokens() );
+            assertEquals( 2 * weight, monitor.getBytesHeld() );
+            assertEquals( 1, monitor.getEvictions() );
+            assertNull( instance.getCachedResult( "first" ) );
+
+            assertNotNull( instance.removeCachedResult( "second" ) );
+            assertEquals( weight, monitor.getBytesHeld() );
+            instance.shutdown();
+            assertEquals( 0, monitor.getBytesHeld() );
+        }
+        finally
+        {
+            closeIndex( index );
+        }
+    }
+
+
+    @Test
+    public void testExpiredResultIsNotReturned() throws Exception
+    {
+        LuceneFieldIndex index = createIndex( 3 );
+        try
+        {
+            FieldSearchResultCache instance = new FieldSearchResultCache( 60 );
+            FieldSearchResultCache.ResultCacheMonitor monitor = instance.new ResultCacheMonitor();
+            // The result expires as soon as it is returned
+            instance.putCachedResult( token, search( index, 0 ) );
+            Thread.sleep( 10 );
+
+            assertNull( instance.getCachedResult( token ) );
+            assertEquals( 1, monitor.getExpirations() );
+            assertEquals( 0, monitor.getLiveTokens() );
+            instance.shutdown();
+        }
+        finally
+        {
+            closeIndex( index );
+        }
+    }
+
+
+    /**
+     * Searches for all objects, one per page, so the result is unfinished
+     */
+    private static FieldSearchResultLucene search( LuceneFieldIndex index, int timeout ) throws Exception
+    {
+        List<Condition> conditions = Collections.singletonList( new Condition( "state", "eq", "a" ) );
+        FieldSearchResultLucene result = new FieldSearchResultLucene( index, null, new String[] { "pid" },
+                new FieldSearchQuery( conditions ), 1, timeout );
+        assertNotNull( result.getToken() );
+        return result;
+    }
+
+
+    private static LuceneFieldIndex createIndex( int objects ) throws Exception
+    {
+        TieredMergePolicy tieredMergePolicy = new TieredMergePolicy();
+        IndexWriterConfig conf = new IndexWriterConfig( Version.LUCENE_41, new WhitespaceAnalyzer( Version.LUCENE_41 ) ).
+                setMergePolicy( tieredMergePolicy );
+        IndexWriter writer = new IndexWriter( FSDirectory.open( new File( indexLocation ) ), conf );
+        LuceneFieldIndex index = new LuceneFieldIndex( writer, tieredMergePolicy, Integer.MAX_VALUE, null, null );
+        for( int i = 0; i < objects; i++ )
+        {
+            List<Pair<FedoraFieldName, String>> fields = new ArrayList<Pair<FedoraFieldName, String>>();
+            fields.add( new Pair<FedoraFieldName, String>( FedoraFieldName.PID, "demo:" + i ) );
+            fields.add( new Pair<FedoraFieldName, String>( FedoraFieldName.STATE, "a" ) );
+            index.indexFields( fields, 0 );
+        }
+        return index;
+    }
+
+
+    private static void closeIndex( LuceneFieldIndex index ) throws Exception
+    {
+        index.closeIndex();
+        for( File f : new File( indexLocation ).listFiles() )
+        {
+            f.delete();
+        }
+    }
+}
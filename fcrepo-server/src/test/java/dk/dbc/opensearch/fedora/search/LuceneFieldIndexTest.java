@@ -21,6 +21,9 @@ package dk.dbc.opensearch.fedora.search;
 
 
 import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field.Store;
+import org.apache.lucene.document.StringField;
 import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.IndexWriterConfig;
 import org.apache.lucene.index.TieredMergePolicy;
@@ -30,6 +33,7 @@ import org.fcrepo.server.errors.InvalidOperatorException;
 import org.fcrepo.server.errors.QueryParseException;
 import org.fcrepo.server.search.Condition;
 import org.fcrepo.server.search.FieldSearchQuery;
+import org.fcrepo.server.search.ObjectFields;
 import org.junit.After;
 import org.junit.AfterClass;
 import org.junit.Before;
@@ -41,12 +45,20 @@ import java.text.DateFormat;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Date;
+import java.util.EnumSet;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 /**
  *
@@ -199,6 +211,103 @@ public class LuceneFieldIndexTest {
         assertEquals( "demo:1", nextPidArray[0] );
     }
 
+    /**
+     * In background refresh mode a search requiring the latest state must
+     * see updates made immediately before it, even though the reopen thread
+     * would not refresh on its own within the test.
+     */
+    @Test
+    public void testSearchRequireLatestInBackgroundRefreshMode() throws Exception
+    {
+        instance.closeIndex();
+        TieredMergePolicy tieredMergePolicy = new TieredMergePolicy();
+        IndexWriterConfig conf = new IndexWriterConfig( Version.LUCENE_41, new WhitespaceAnalyzer( Version.LUCENE_41 ) ).
+                setWriteLockTimeout( 1000L ).
+                setMergePolicy( tieredMergePolicy );
+        IndexWriter writer = new IndexWriter( fsdir, conf );
+        instance = new LuceneFieldIndex( writer, tieredMergePolicy,
+                PID_COLLECTOR_MAX_IN_MEMORY, PID_COLLECTOR_TMP_DIR, null,
+                LuceneFieldIndex.RefreshMode.BACKGROUND, 60000, 10 );
+
+        instance.indexFields( constructIndexFields( pid ), 0 );
+
+        FieldSearchQuery fsq = getFieldSearchQuery( "PID", "eq", pid.getSecond() );
+        IPidList searchResult = instance.search( fsq, true );
+
+        assertEquals( 1, searchResult.size() );
+    }
+
+    /**
+     * With cursor paging the pages together hold every hit exactly once,
+     * across segments and skipping deleted documents.
+     */
+    @Test
+    public void testSearchWithCursorPaging() throws Exception
+    {
+        instance.setCursorPaging( true );
+        for( int i = 0; i < 10; i++ )
+        {
+            instance.indexFields( constructIndexFields( new Pair<FedoraFieldName, String>( FedoraFieldName.PID, "demo:" + i ) ), 0 );
+        }
+        // searching reopens the searcher, so the next documents go in a new segment
+        instance.search( getFieldSearchQuery( "PID", "eq", "demo:0" ) ).dispose();
+        for( int i = 10; i < 25; i++ )
+        {
+            instance.indexFields( constructIndexFields( new Pair<FedoraFieldName, String>( FedoraFieldName.PID, "demo:" + i ) ), 0 );
+        }
+        instance.removeDocument( "demo:3" );
+
+        IPidList searchResult = instance.search( getFieldSearchQuery( "title", "eq", title.getSecond() ) );
+        assertTrue( searchResult instanceof PidListCursor );
+        assertEquals( 24, searchResult.size() );
+
+        Set<String> pids = new HashSet<String>();
+        assertEquals( 10, addAll( pids, searchResult.getNextPids( 10 ) ) );
+        assertEquals( 10, addAll( pids, searchResult.getNextPids( 10 ) ) );
+        assertEquals( 4, addAll( pids, searchResult.getNextPids( 10 ) ) );
+        assertEquals( 0, searchResult.getNextPids( 10 ).size() );
+        assertEquals( 24, pids.size() );
+        assertFalse( pids.contains( "demo:3" ) );
+        searchResult.dispose();
+    }
+
+    /**
+     * A cursor pages through the index as it was when the search was made,
+     * and can't be read after it has been disposed.
+     */
+    @Test
+    public void testCursorPagingUsesPinnedSearcher() throws Exception
+    {
+        instance.setCursorPaging( true );
+        for( int i = 0; i < 5; i++ )
+        {
+            instance.indexFields( constructIndexFields( new Pair<FedoraFieldName, String>( FedoraFieldName.PID, "demo:" + i ) ), 0 );
+        }
+
+        IPidList searchResult = instance.search( getFieldSearchQuery( "title", "eq", title.getSecond() ) );
+        assertEquals( 2, searchResult.getNextPids( 2 ).size() );
+
+        instance.removeDocument( "demo:4" );
+        for( int i = 5; i < 10; i++ )
+        {
+            instance.indexFields( constructIndexFields( new Pair<FedoraFieldName, String>( FedoraFieldName.PID, "demo:" + i ) ), 0 );
+        }
+        assertEquals( 9, instance.search( getFieldSearchQuery( "title", "eq", title.getSecond() ) ).size() );
+
+        assertEquals( 5, searchResult.size() );
+        assertEquals( 3, searchResult.getNextPids( 10 ).size() );
+
+        searchResult.dispose();
+        try
+        {
+            searchResult.getNextPids( 10 );
+            fail( "Disposed cursor must not be readable" );
+        }
+        catch( IOException expected )
+        {
+        }
+    }
+
     @Test
     public void findHighestId() throws Exception
     {
@@ -425,10 +534,216 @@ public class LuceneFieldIndexTest {
         assertEquals( pid.getSecond(), searchResult.getNextPids( 1 ).iterator().next() );
     }
 
+    @Test
+    public void testGetResultFieldsReturnsOriginalValues() throws Exception
+    {
+        long created = now - 1234;
+        List< Pair< FedoraFieldName, String >> fieldList = new ArrayList< Pair< FedoraFieldName, String >>();
+        fieldList.add( pid2 );
+        fieldList.add( new Pair<FedoraFieldName, String>( FedoraFieldName.STATE, "A" ) );
+        fieldList.add( new Pair<FedoraFieldName, String>( FedoraFieldName.LABEL, "Demo Object Label" ) );
+        fieldList.add( new Pair<FedoraFieldName, String>( FedoraFieldName.CDATE, dateFormatter.format( new Date( created ) ) ) );
+        fieldList.add( new Pair<FedoraFieldName, String>( FedoraFieldName.TITLE, "First Title" ) );
+        fieldList.add( new Pair<FedoraFieldName, String>( FedoraFieldName.TITLE, "Second Title" ) );
+        fieldList.add( new Pair<FedoraFieldName, String>( FedoraFieldName.DATE, "Spring 1930" ) );
+        fieldList.add( new Pair<FedoraFieldName, String>( FedoraFieldName.RELOBJ, "Work:1" ) );
+        instance.indexFields( fieldList, 0 );
+
+        Set<FedoraFieldName> resultFields = EnumSet.of( FedoraFieldName.PID, FedoraFieldName.STATE,
+                FedoraFieldName.LABEL, FedoraFieldName.CDATE, FedoraFieldName.MDATE,
+                FedoraFieldName.TITLE, FedoraFieldName.DATE, FedoraFieldName.RELOBJ );
+        Map<String, ObjectFields> result = instance.getResultFields( Arrays.asList( pid2.getSecond() ), resultFields );
+
+        ObjectFields fields = result.get( pid2.getSecond() );
+        assertEquals( pid2.getSecond(), fields.getPid() );
+        assertEquals( "A", fields.getState() );
+        assertEquals( "Demo Object Label", fields.getLabel() );
+        assertEquals( new Date( created ), fields.getCDate() );
+        assertNull( fields.getMDate() );
+        assertEquals( 2, fields.titles().size() );
+        assertEquals( "First Title", fields.titles().get( 0 ).getValue() );
+        assertEquals( "Second Title", fields.titles().get( 1 ).getValue() );
+        assertEquals( "Spring 1930", fields.dates().get( 0 ).getValue() );
+        assertEquals( "Work:1", fields.relObjs().get( 0 ).getValue() );
+        assertTrue( fields.creators().isEmpty() );
+    }
+
+    @Test
+    public void testGetResultFieldsLeavesOutObjectsNotInIndex() throws Exception
+    {
+        instance.indexFields( constructIndexFields( pid ), 0 );
+        instance.removeDocument( pid.getSecond() );
+        instance.indexFields( constructCaseSensitiveIndexFields(), 0 );
+
+        Map<String, ObjectFields> result = instance.getResultFields(
+                Arrays.asList( pid.getSecond(), pid2.getSecond(), "demo:unknown" ), EnumSet.of( FedoraFieldName.PID ) );
+
+        assertEquals( 1, result.size() );
+        assertEquals( pid2.getSecond(), result.get( pid2.getSecond() ).getPid() );
+    }
+
+    @Test
+    public void testPidExists() throws Exception
+    {
+        instance.indexFields( constructIndexFields( pid ), 0 );
+
+        assertTrue( instance.pidExists( pid.getSecond(), true ) );
+        assertFalse( instance.pidExists( pid2.getSecond(), true ) );
+        assertEquals( 1, instance.getNumDocs( true ) );
+
+        instance.removeDocument( pid.getSecond() );
+
+        assertFalse( instance.pidExists( pid.getSecond(), true ) );
+        assertEquals( 0, instance.getNumDocs( true ) );
+    }
+
+    @Test
+    public void testPidFilterAnswersExistenceOfNewPids() throws Exception
+    {
+        instance.indexFields( constructIndexFields( pid ), 0 );
+        instance.enablePidFilter( 1000, 0.01 );
+        instance.indexFields( constructCaseSensitiveIndexFields(), 0 );
+        LuceneFieldIndex.LuceneFieldIndexMonitor monitor = instance.new LuceneFieldIndexMonitor();
+
+        // Found both when indexed before and after the filter was filled
+        assertTrue( instance.pidExists( pid.getSecond(), true ) );
+        assertTrue( instance.pidExists( pid2.getSecond(), true ) );
+        assertEquals( 0, monitor.getExistenceChecksAnsweredByFilter() );
+
+        assertFalse( instance.pidExists( "demo:new", true ) );
+        assertEquals( 3, monitor.getExistenceChecks() );
+        assertEquals( 1, monitor.getExistenceChecksAnsweredByFilter() );
+
+        // Deleted pids stay in the filter, and are looked up
+        instance.removeDocument( pid.getSecond() );
+        assertFalse( instance.pidExists( pid.getSecond(), true ) );
+        assertEquals( 1, monitor.getExistenceChecksAnsweredByFilter() );
+    }
+
+    @Test
+    public void testDocumentsWithoutPidDocValuesAreCountedUntilReindexed() throws Exception
+    {
+        instance.indexFields( constructIndexFields( pid ), 0 );
+        assertEquals( 0, instance.countDocumentsWithoutPidDocValues() );
+
+        // A document as indexed before the pid DocValues were added
+        instance.closeIndex();
+        TieredMergePolicy tieredMergePolicy = new TieredMergePolicy();
+        IndexWriterConfig conf = new IndexWriterConfig( Version.LUCENE_41, new WhitespaceAnalyzer( Version.LUCENE_41 ) ).
+                setWriteLockTimeout( 1000L ).
+                setMergePolicy( tieredMergePolicy );
+        IndexWriter writer = new IndexWriter( fsdir, conf );
+        Document legacy = new Document();
+        legacy.add( new StringField( FedoraFieldName.PID.toString(), "demo:2", Store.YES ) );
+        writer.addDocument( legacy );
+        instance = new LuceneFieldIndex( writer, tieredMergePolicy,
+                PID_COLLECTOR_MAX_IN_MEMORY, PID_COLLECTOR_TMP_DIR, null );
+
+        assertEquals( 1, instance.countDocumentsWithoutPidDocValues() );
+
+        instance.indexFields( constructIndexFields( new Pair<FedoraFieldName, String>( FedoraFieldName.PID, "demo:2" ) ), 0 );
+
+        assertEquals( 0, instance.countDocumentsWithoutPidDocValues() );
+    }
+
+    @Test
+    public void testSearchAfterPagesInOrderOfMDateAndPid() throws Exception
+    {
+        // pids in reverse order, with several objects sharing an mDate
+        List<String> expected = new ArrayList<String>();
+        long[] mDates = { now - 3000, now - 2000, now - 1000 };
+        for( long mDate : mDates )
+        {
+            for( int i = 4; i > 0; i-- )
+            {
+                List< Pair< FedoraFieldName, String >> fieldList = new ArrayList< Pair< FedoraFieldName, String >>();
+                String objectPid = "demo:" + mDate + "-" + i;
+                fieldList.add( new Pair<FedoraFieldName, String>( FedoraFieldName.PID, objectPid ) );
+                fieldList.add( new Pair<FedoraFieldName, String>( FedoraFieldName.MDATE, dateFormatter.format( new Date( mDate ) ) ) );
+                fieldList.add( title );
+                instance.indexFields( fieldList, 0 );
+            }
+            for( int i = 1; i <= 4; i++ )
+            {
+                expected.add( "demo:" + mDate + "-" + i );
+            }
+        }
+        FieldSearchQuery fsq = getFieldSearchQuery( "title", "eq", title.getSecond() );
+
+        List<String> pids = new ArrayList<String>();
+        Date afterMDate = null;
+        String afterPid = null;
+        int remaining = expected.size();
+        while( true )
+        {
+            Pair<IPidList, Integer> page = instance.searchAfter( fsq, afterMDate, afterPid, 5, true );
+            assertEquals( remaining, page.getSecond().intValue() );
+            Collection<String> pagePids = page.getFirst().getNextPids( 5 );
+            if( pagePids.isEmpty() )
+            {
+                break;
+            }
+            for( String pagePid : pagePids )
+            {
+                pids.add( pagePid );
+                afterPid = pagePid;
+            }
+            afterMDate = new Date( mDates[ expected.indexOf( afterPid ) / 4 ] );
+            remaining -= pagePids.size();
+        }
+
+        assertEquals( expected, pids );
+    }
+
+    @Test
+    public void testSearchAfterPagesPastObjectsWithoutMDate() throws Exception
+    {
+        List<String> expected = Arrays.asList( "demo:1", "demo:2", "demo:3", "demo:4" );
+        for( String objectPid : new String[] { "demo:4", "demo:2", "demo:3", "demo:1" } )
+        {
+            List< Pair< FedoraFieldName, String >> fieldList = new ArrayList< Pair< FedoraFieldName, String >>();
+            fieldList.add( new Pair<FedoraFieldName, String>( FedoraFieldName.PID, objectPid ) );
+            if( objectPid.compareTo( "demo:3" ) >= 0 )
+            {
+                fieldList.add( new Pair<FedoraFieldName, String>( FedoraFieldName.MDATE, dateFormatter.format( new Date( now ) ) ) );
+            }
+            fieldList.add( title );
+            instance.indexFields( fieldList, 0 );
+        }
+        FieldSearchQuery fsq = getFieldSearchQuery( "title", "eq", title.getSecond() );
+
+        // pages of one, positioned at the epoch after the objects without an mDate
+        List<String> pids = new ArrayList<String>();
+        Date afterMDate = null;
+        String afterPid = null;
+        while( true )
+        {
+            Pair<IPidList, Integer> page = instance.searchAfter( fsq, afterMDate, afterPid, 1, true );
+            assertEquals( expected.size() - pids.size(), page.getSecond().intValue() );
+            Collection<String> pagePids = page.getFirst().getNextPids( 1 );
+            if( pagePids.isEmpty() )
+            {
+                break;
+            }
+            afterPid = pagePids.iterator().next();
+            pids.add( afterPid );
+            afterMDate = new Date( afterPid.compareTo( "demo:3" ) >= 0 ? now : 0 );
+        }
+
+        assertEquals( expected, pids );
+    }
+
     /**
      * Below follows helper methods
      */
 
+    private static int addAll( Set<String> pids, Collection<String> page )
+    {
+        pids.addAll( page );
+        return page.size();
+    }
+
+
     private List< Pair< FedoraFieldName, String > > constructIndexFields(Pair<FedoraFieldName, String> pid)
     {
         List< Pair< FedoraFieldName, String >> fieldList = new ArrayList< Pair< FedoraFieldName, String >>();
@@ -0,0 +1,240 @@
+/* The contents of this file are subject to the license and copyright terms
+ * detailed in the license directory at the root of the source tree (also
+ * available online at http://fedora-commons.org/license/).
+ */
+package dk.dbc.opensearch.fedora.search;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+
+import org.fcrepo.common.PID;
+import org.fcrepo.server.errors.ServerException;
+import org.fcrepo.server.search.FieldSearch;
+import org.fcrepo.server.search.FieldSearchQuery;
+import org.fcrepo.server.search.FieldSearchResult;
+import org.fcrepo.server.storage.DOReader;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+
+public class LucenePIDGeneratorTest
+{
+    private File highWaterMarkFile;
+
+    /**
+     * Answers the highest id in the index, counting the lookups. The
+     * generator uses nothing else
+     */
+    private static class IndexedIds implements FieldSearch
+    {
+        private final int highestId;
+        int lookups = 0;
+
+        IndexedIds( int highestId )
+        {
+            this.highestId = highestId;
+        }
+
+        @Override
+        public int findHighestID( String namespace ) throws ServerException
+        {
+            lookups++;
+            return highestId;
+        }
+
+        @Override
+        public void update( DOReader reader ) throws ServerException
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean delete( String pid ) throws ServerException
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public FieldSearchResult findObjects( String[] resultFields, int maxResults, FieldSearchQuery query ) throws ServerException
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public FieldSearchResult resumeFindObjects( String sessionToken ) throws ServerException
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public FieldSearchResult findObjectsAfter( String[] resultFields, int maxResults, FieldSearchQuery query, Date afterMDate, String afterPID ) throws ServerException
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean objectExists( String pid ) throws ServerException
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public long getObjectCount() throws ServerException
+        {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    @Before
+    public void setUp() throws IOException
+    {
+        highWaterMarkFile = File.createTempFile( "pid-high-water-marks", ".properties" );
+        highWaterMarkFile.delete();
+    }
+
+    @After
+    public void tearDown()
+    {
+        highWaterMarkFile.delete();
+    }
+
+    private LucenePIDGenerator createGenerator( IndexedIds index, int blockSize ) throws Exception
+    {
+        LucenePIDGenerator generator = new LucenePIDGenerator( new HashMap<String, String>(), null, "PIDGenerator" );
+        generator.initialize( index, highWaterMarkFile, blockSize );
+        return generator;
+    }
+
+    private int readHighWaterMark( String namespace ) throws IOException
+    {
+        Properties marks = new Properties();
+        InputStream in = new FileInputStream( highWaterMarkFile );
+        try
+        {
+            marks.load( in );
+        }
+        finally
+        {
+            in.close();
+        }
+        return Integer.parseInt( marks.getProperty( namespace ) );
+    }
+
+    @Test
+    public void testGeneratePIDsContinuesFromIndex() throws Exception
+    {
+        IndexedIds index = new IndexedIds( 41 );
+        LucenePIDGenerator generator = createGenerator( index, 100 );
+
+        assertEquals( "demo:42", generator.generatePID( "demo" ).toString() );
+        PID[] pids = generator.generatePIDs( "demo", 500 );
+
+        assertEquals( 500, pids.length );
+        assertEquals( "demo:43", pids[0].toString() );
+        assertEquals( "demo:542", pids[499].toString() );
+        assertEquals( "demo:542", generator.getLastPID().toString() );
+        assertEquals( 1, index.lookups );
+        assertEquals( 642, readHighWaterMark( "demo" ) );
+    }
+
+    @Test
+    public void testRestartContinuesFromHighWaterMark() throws Exception
+    {
+        LucenePIDGenerator generator = createGenerator( new IndexedIds( 0 ), 10 );
+        generator.generatePIDs( "demo", 5 );
+
+        IndexedIds index = new IndexedIds( 0 );
+        generator = createGenerator( index, 10 );
+
+        // The unused part of the reserved block is skipped
+        assertEquals( "demo:16", generator.generatePID( "demo" ).toString() );
+        assertEquals( 1, index.lookups );
+    }
+
+    @Test
+    public void testRestartContinuesFromIndexAheadOfHighWaterMark() throws Exception
+    {
+        LucenePIDGenerator generator = createGenerator( new IndexedIds( 0 ), 10 );
+        generator.generatePIDs( "demo", 5 );
+
+        // As if the file was restored from a backup taken before demo:16..50 were made
+        generator = createGenerator( new IndexedIds( 50 ), 10 );
+
+        assertEquals( "demo:51", generator.generatePID( "demo" ).toString() );
+        assertEquals( 61, readHighWaterMark( "demo" ) );
+    }
+
+    @Test
+    public void testNeverGeneratePID() throws Exception
+    {
+        LucenePIDGenerator generator = createGenerator( new IndexedIds( 0 ), 10 );
+        generator.neverGeneratePID( "demo:100" );
+        generator.neverGeneratePID( "demo:50" );
+        generator.neverGeneratePID( "demo:notnumeric" );
+
+        assertEquals( "demo:101", generator.generatePID( "demo" ).toString() );
+        assertEquals( 110, readHighWaterMark( "demo" ) );
+    }
+
+    @Test
+    public void testConcurrentGenerationYieldsUniquePIDs() throws Exception
+    {
+        final LucenePIDGenerator generator = createGenerator( new IndexedIds( 0 ), 7 );
+        final Set<String> pids = Collections.synchronizedSet( new HashSet<String>() );
+        final List<Throwable> errors = Collections.synchronizedList( new ArrayList<Throwable>() );
+        List<Thread> threads = new ArrayList<Thread>();
+        for( int i = 0; i < 8; i++ )
+        {
+            final String namespace = "ns" + ( i % 2 );
+            threads.add( new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        for( int j = 0; j < 250; j++ )
+                        {
+                            pids.add( generator.generatePID( namespace ).toString() );
+                            for( PID pid : generator.generatePIDs( namespace, 3 ) )
+                            {
+                                pids.add( pid.toString() );
+                            }
+                        }
+                    }
+                    catch( Throwable t )
+                    {
+                        errors.add( t );
+                    }
+                }
+            } );
+        }
+        for( Thread thread : threads )
+        {
+            thread.start();
+        }
+        for( Thread thread : threads )
+        {
+            thread.join();
+        }
+
+        assertTrue( errors.toString(), errors.isEmpty() );
+        assertEquals( 8000, pids.size() );
+        assertTrue( readHighWaterMark( "ns0" ) >= 4000 );
+        assertTrue( readHighWaterMark( "ns1" ) >= 4000 );
+    }
+}
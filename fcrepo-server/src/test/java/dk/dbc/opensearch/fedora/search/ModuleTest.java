@@ -1236,8 +1236,8 @@ public class ModuleTest
         new Expectations( domareal )
         {
             {
+                // the DC fields are read from the index, only the relationships from the object
                 domareal.getReader( Server.USE_DEFINITIVE_STORE, ReadOnlyContext.EMPTY, "demo:1" ); result = reader;
-                reader.GetDatastream( "DC", null ); result = null;
                 reader.getRelationships(); result = relationships;
             }
         };
@@ -1297,8 +1297,8 @@ public class ModuleTest
         new Expectations( domareal )
         {
             {
+                // the DC fields are read from the index, only the relationships from the object
                 domareal.getReader( Server.USE_DEFINITIVE_STORE, ReadOnlyContext.EMPTY, "demo:1" ); result = reader;
-                reader.GetDatastream( "DC", null ); result = null;
                 reader.getRelationships(); result = relationships;
             }
         };
@@ -0,0 +1,94 @@
+/*
+ * This file is part of opensearch.
+ * Copyright (c) 2012, Dansk Bibliotekscenter a/s,
+ * Tempovej 7-11, DK-2750 Ballerup, Denmark. CVR: 15149043
+ *
+ * opensearch is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * opensearch is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with opensearch. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package dk.dbc.opensearch.fedora.search;
+
+import org.apache.lucene.util.BytesRef;
+import org.junit.Test;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+
+/**
+ * PidBloomFilter unit tests
+ * <p>
+ * The test methods of this class uses the following naming convention:
+ *
+ *  unitOfWork_stateUnderTest_expectedBehavior
+ */
+public class PidBloomFilterTest
+{
+    @Test
+    public void mightContain_emptyFilter_returnsFalse()
+    {
+        PidBloomFilter instance = new PidBloomFilter( 100, 0.01 );
+        assertFalse( instance.mightContain( "demo:1" ) );
+        assertEquals( 0, instance.getAdded() );
+    }
+
+    @Test
+    public void mightContain_addedPids_returnsTrue()
+    {
+        PidBloomFilter instance = new PidBloomFilter( 10000, 0.01 );
+        for( int i = 0; i < 10000; i++ )
+        {
+            instance.add( "demo:" + i );
+        }
+        for( int i = 0; i < 10000; i++ )
+        {
+            assertTrue( instance.mightContain( "demo:" + i ) );
+        }
+        assertEquals( 10000, instance.getAdded() );
+    }
+
+    @Test
+    public void mightContain_pidAddedAsIndexTerm_returnsTrue()
+    {
+        PidBloomFilter instance = new PidBloomFilter( 100, 0.01 );
+        instance.add( new BytesRef( "æøå:1" ) );
+        assertTrue( instance.mightContain( "æøå:1" ) );
+    }
+
+    @Test
+    public void mightContain_filledToExpectedPids_keepsFalsePositiveRate()
+    {
+        PidBloomFilter instance = new PidBloomFilter( 10000, 0.01 );
+        for( int i = 0; i < 10000; i++ )
+        {
+            instance.add( "demo:" + i );
+        }
+        int falsePositives = 0;
+        for( int i = 0; i < 10000; i++ )
+        {
+            if( instance.mightContain( "new:" + i ) )
+            {
+                falsePositives++;
+            }
+        }
+        assertTrue( "False positives: " + falsePositives, falsePositives < 200 );
+    }
+
+    @Test( expected = IllegalArgumentException.class )
+    public void constructor_noExpectedPids_throws()
+    {
+        new PidBloomFilter( 0, 0.01 );
+    }
+}
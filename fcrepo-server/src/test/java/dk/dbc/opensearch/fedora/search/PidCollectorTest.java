@@ -22,10 +22,12 @@ package dk.dbc.opensearch.fedora.search;
 import org.apache.lucene.analysis.core.SimpleAnalyzer;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StraightBytesDocValuesField;
 import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.IndexWriterConfig;
 import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.BytesRef;
 import org.apache.lucene.util.Version;
 import org.junit.After;
 import org.junit.AfterClass;
@@ -195,6 +197,46 @@ public class PidCollectorTest
         assertEquals( PID_FIELD_VALUE_3, nextPidArray[2] );
     }
 
+    @Test
+    public void collect_docIdArgExistsInIndexWithPidDocValues_pidIsReadFromDocValues() throws IOException
+    {
+        Document doc = new Document();
+        doc.add( new StraightBytesDocValuesField( PID_FIELD_NAME, new BytesRef( PID_FIELD_VALUE_1 ), false ) );
+        AtomicReader reader = populateIndexAndGetIndexReader( doc );
+        PidCollector instance = new PidCollector( MAX_IN_MEMORY, tmpDir );
+        instance.setNextReader( reader.getContext() );
+
+        instance.collect( 0 );
+
+        IPidList pidList = instance.getResults();
+        assertEquals( 1, pidList.size() );
+        assertEquals( PID_FIELD_VALUE_1, pidList.getNextPids( 1 ).iterator().next() );
+        assertEquals( 0, instance.getStoredFieldLookups() );
+    }
+
+    @Test
+    public void collect_docsWithAndWithoutPidDocValuesInSameSegment_pidsAreReadFromDocValuesOrStoredField() throws IOException
+    {
+        Document doc = newIndexDocument( PID_FIELD_NAME, PID_FIELD_VALUE_1 );
+        doc.add( new StraightBytesDocValuesField( PID_FIELD_NAME, new BytesRef( PID_FIELD_VALUE_1 ), false ) );
+        AtomicReader reader = populateIndexAndGetIndexReader( doc, newIndexDocument( PID_FIELD_NAME, PID_FIELD_VALUE_2 ) );
+        PidCollector instance = new PidCollector( MAX_IN_MEMORY, tmpDir );
+        instance.setNextReader( reader.getContext() );
+
+        int maxDoc = reader.maxDoc();
+        for( int i = 0; i < maxDoc; i++ )
+        {
+            instance.collect( i );
+        }
+
+        IPidList pidList = instance.getResults();
+        assertEquals( 2, pidList.size() );
+        String[] nextPidArray = pidList.getNextPids( 2 ).toArray( new String[0] );
+        assertEquals( PID_FIELD_VALUE_1, nextPidArray[0] );
+        assertEquals( PID_FIELD_VALUE_2, nextPidArray[1] );
+        assertEquals( 1, instance.getStoredFieldLookups() );
+    }
+
     private AtomicReader populateIndexAndGetIndexReader( Document... docs ) throws IOException
     {
         IndexWriterConfig config = new IndexWriterConfig( Version.LUCENE_41, new SimpleAnalyzer( Version.LUCENE_41 ) );
@@ -24,18 +24,31 @@ along with opensearch.  If not, see <http://www.gnu.org/licenses/>.
 
 package dk.dbc.opensearch.fedora.search;
 
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.io.OutputChunked;
 import dk.dbc.opensearch.fedora.search.WriteAheadLog.DocumentData;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CyclicBarrier;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
 import org.apache.lucene.analysis.core.SimpleAnalyzer;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.document.Field;
+import org.apache.lucene.document.IntDocValuesField;
+import org.apache.lucene.document.IntField;
 import org.apache.lucene.document.LongField;
+import org.apache.lucene.document.StoredField;
+import org.apache.lucene.document.StraightBytesDocValuesField;
 import org.apache.lucene.document.StringField;
 import org.apache.lucene.document.TextField;
 import org.apache.lucene.index.DirectoryReader;
@@ -52,6 +65,7 @@ import org.apache.lucene.search.TermQuery;
 import org.apache.lucene.search.TopDocs;
 import org.apache.lucene.store.RAMDirectory;
 import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
 import org.apache.lucene.util.Version;
 import org.junit.After;
 import org.junit.AfterClass;
@@ -202,10 +216,140 @@ public class WriteAheadLogTest
     }
 
 
+    @Test
+    public void testReadWriteDocumentDataWithStoredFields() throws Exception
+    {
+        File objectFile = new File( folder.getRoot(), "writeaheadlog.log");
+        RandomAccessFile fileAccess = new RandomAccessFile( objectFile, "rwd" );
+
+        String pid = "obj:1";
+        Document doc = makeLuceneDocument( pid );
+        doc.add( new StoredField( "storedString", "Stored Value" ) );
+        doc.add( new StoredField( "storedInt", 1 ) );
+        doc.add( new StoredField( "storedLong", Long.MAX_VALUE ) );
+
+        WriteAheadLog.writeDocumentData( fileAccess, 1, pid, doc );
+        fileAccess.seek( 0 );
+        DocumentData docData1 = WriteAheadLog.readDocumentData( fileAccess );
+        assertEquals( doc.toString(), docData1.docOrNull.toString() );
+        assertEquals( "Stored Value", docData1.docOrNull.get( "storedString" ) );
+        assertEquals( Integer.valueOf( 1 ), docData1.docOrNull.getField( "storedInt" ).numericValue() );
+        assertEquals( Long.valueOf( Long.MAX_VALUE ), docData1.docOrNull.getField( "storedLong" ).numericValue() );
+    }
+
+
+    private Document makeDublinCoreDocument( String pid )
+    {
+        Document doc = new Document();
+        doc.add( new StringField( "pid", pid, Field.Store.YES ) );
+        doc.add( new IntField( "pidint", 1234, Field.Store.YES ) );
+        doc.add( new IntDocValuesField( "pidint", 1234 ) );
+        String[][] dcFields = { { "title", "Den store bog om alting" },
+                                { "creator", "Hans Hansen" },
+                                { "creator", "Jens Jensen" },
+                                { "subject", "Biblioteker" },
+                                { "subject", "Søgning" },
+                                { "description", "En beskrivelse der er lidt længere end de andre felter" },
+                                { "identifier", pid } };
+        for ( String[] dcField : dcFields )
+        {
+            doc.add( new StoredField( "result_" + dcField[0], dcField[1] ) );
+            doc.add( new TextField( dcField[0], dcField[1], Field.Store.NO ) );
+            doc.add( new StringField( dcField[0] + "_eq", "^" + dcField[1] + "$", Field.Store.NO ) );
+        }
+        doc.add( new StraightBytesDocValuesField( "title", new BytesRef( "Den store bog om alting" ), false ) );
+        doc.add( new LongField( "mDate", 1356994800000L, Field.Store.YES ) );
+        return doc;
+    }
+
+
+    @Test
+    public void testReadWriteDocumentDataWithAllFieldTypes() throws Exception
+    {
+        File objectFile = new File( folder.getRoot(), "writeaheadlog.log");
+        RandomAccessFile fileAccess = new RandomAccessFile( objectFile, "rwd" );
+
+        String pid = "obj:1";
+        Document doc = makeDublinCoreDocument( pid );
+        StringBuilder longText = new StringBuilder();
+        while ( longText.length() < 4 * LogRecordFormat.DEFLATE_THRESHOLD )
+        {
+            longText.append( "Fields larger than the threshold are deflated. " );
+        }
+        Document largeDoc = makeDublinCoreDocument( pid );
+        largeDoc.add( new TextField( "description", longText.toString(), Field.Store.YES ) );
+
+        WriteAheadLog.writeDocumentData( fileAccess, 1, pid, doc );
+        WriteAheadLog.writeDocumentData( fileAccess, 2, pid, largeDoc );
+        assertTrue( "Large document is deflated", fileAccess.length() < 2 * longText.length() );
+        fileAccess.seek( 0 );
+
+        DocumentData docData1 = WriteAheadLog.readDocumentData( fileAccess );
+        assertEquals( 1, (int) docData1.logEntryId );
+        assertEquals( doc.toString(), docData1.docOrNull.toString() );
+        assertEquals( Integer.valueOf( 1234 ), docData1.docOrNull.getField( "pidint" ).numericValue() );
+        assertEquals( new BytesRef( "Den store bog om alting" ), docData1.docOrNull.getFields( "title" )[1].binaryValue() );
+
+        DocumentData docData2 = WriteAheadLog.readDocumentData( fileAccess );
+        assertEquals( 2, (int) docData2.logEntryId );
+        assertEquals( largeDoc.toString(), docData2.docOrNull.toString() );
+    }
+
+
+    @Test
+    public void testReadDocumentDataReadsKryoSerializedRecords() throws Exception
+    {
+        File objectFile = new File( folder.getRoot(), "writeaheadlog.log");
+        RandomAccessFile fileAccess = new RandomAccessFile( objectFile, "rwd" );
+
+        // A log file written before records had a version
+        Document doc = makeLuceneDocument( "obj:1" );
+        Kryo serializer = WriteAheadLog.createLegacySerializer();
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        OutputChunked output = new OutputChunked( bos );
+        serializer.writeObject( output, Integer.valueOf( 7 ) );
+        serializer.writeObject( output, "obj:1" );
+        serializer.writeObjectOrNull( output, doc, Document.class );
+        output.endChunks();
+        output.flush();
+        WriteAheadLog.writeDocumentData( fileAccess, bos.toByteArray() );
+        WriteAheadLog.writeDocumentData( fileAccess, 8, "obj:2", null );
+        fileAccess.seek( 0 );
+
+        DocumentData docData1 = WriteAheadLog.readDocumentData( fileAccess );
+        assertEquals( 7, (int) docData1.logEntryId );
+        assertEquals( "obj:1", docData1.pid );
+        assertEquals( doc.toString(), docData1.docOrNull.toString() );
+
+        DocumentData docData2 = WriteAheadLog.readDocumentData( fileAccess );
+        assertEquals( 8, (int) docData2.logEntryId );
+        assertEquals( "obj:2", docData2.pid );
+        assertNull( docData2.docOrNull );
+    }
+
+
+    @Test
+    public void testRecordIsSmallerThanKryoSerializedRecord() throws Exception
+    {
+        Document doc = makeDublinCoreDocument( "obj:1" );
+        byte[] record = LogRecordFormat.createRecordBody( "obj:1", doc );
+
+        Kryo serializer = WriteAheadLog.createLegacySerializer();
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        OutputChunked output = new OutputChunked( bos );
+        serializer.writeObject( output, "obj:1" );
+        serializer.writeObjectOrNull( output, doc, Document.class );
+        output.endChunks();
+        output.flush();
+
+        assertTrue( record.length + " < " + bos.size(), record.length < bos.size() / 2 );
+    }
+
+
     @Test ( expected = IOException.class )
     public void testUpdateDocumentOnUnitializedWriteAheadLogThrowsException() throws Exception
     {
-        WriteAheadLog wal = new WriteAheadLog( writer, folder.getRoot(), 1000, true, 1 );
+        WriteAheadLog wal = new WriteAheadLog( writer, folder.getRoot(), 1000, true );
 
         String pid = "obj:1";
         Document doc = makeLuceneDocument( pid );
@@ -217,7 +361,7 @@ public class WriteAheadLogTest
     @Test ( expected = IOException.class )
     public void testUpdateDocumentOnClosedWriteAheadLogThrowsException() throws Exception
     {
-        WriteAheadLog wal = new WriteAheadLog( writer, folder.getRoot(), 1000, true, 1 );
+        WriteAheadLog wal = new WriteAheadLog( writer, folder.getRoot(), 1000, true );
         wal.initialize();
         wal.shutdown();
 
@@ -247,7 +391,7 @@ public class WriteAheadLogTest
     @Test
     public void testUpdateTwoDocumentsAndDeleteOneOfThem() throws Exception
     {
-        WriteAheadLog wal = new WriteAheadLog( writer, folder.getRoot(), 1000, true, 1 );
+        WriteAheadLog wal = new WriteAheadLog( writer, folder.getRoot(), 1000, true );
         wal.initialize();
 
         String pid1 = "obj:1";
@@ -328,7 +472,7 @@ public class WriteAheadLogTest
 
         // Initialize the WAL to recover the lost files
 
-        WriteAheadLog wal = new WriteAheadLog( writer, folder.getRoot(), 1000, true, 1 );
+        WriteAheadLog wal = new WriteAheadLog( writer, folder.getRoot(), 1000, true );
         int recovered = wal.initialize();
         assertEquals( 4, recovered );
 
@@ -396,7 +540,7 @@ public class WriteAheadLogTest
         }
         currentRaf.close();
         
-        WriteAheadLog wal2 = new WriteAheadLog( writer, folder.getRoot(), 2000, true, 10 );
+        WriteAheadLog wal2 = new WriteAheadLog( writer, folder.getRoot(), 2000, true );
         int recovered = wal2.initialize();
         assertEquals(7, recovered);
         
@@ -411,15 +555,229 @@ public class WriteAheadLogTest
         assertEquals( 1, result.scoreDocs.length );
     }
     
+    @Test
+    public void testInitializeAppliesOnlyLastOperationPerPid() throws Exception
+    {
+        RandomAccessFile committingRaf = new RandomAccessFile( new File( folder.getRoot(), "0_writeaheadlog.committing"), "rwd" );
+        RandomAccessFile currentRaf = new RandomAccessFile( new File( folder.getRoot(), "0_writeaheadlog.log"), "rwd" );
+
+        WriteAheadLog.writeDocumentData( committingRaf, 0, "obj:1", makeLuceneDocument( "obj:1" ) );
+        WriteAheadLog.writeDocumentData( committingRaf, 1, "obj:2", makeLuceneDocument( "obj:2" ) );
+        WriteAheadLog.writeDocumentData( committingRaf, 2, "obj:1", null );
+        WriteAheadLog.writeDocumentData( currentRaf, 0, "obj:2", null );
+        WriteAheadLog.writeDocumentData( currentRaf, 1, "obj:1", makeLuceneDocument( "obj:1" ) );
+        committingRaf.close();
+        currentRaf.close();
+
+        WriteAheadLog wal = new WriteAheadLog( writer, folder.getRoot(), 1000, true );
+        assertEquals( 5, wal.initialize() );
+        assertEquals( 5, wal.getNumberOfRecoveredRecords() );
+        assertEquals( 2, wal.getNumberOfRecoveredDocuments() );
+
+        IndexReader reader = DirectoryReader.open( writer, false );
+        IndexSearcher searcher = new IndexSearcher( reader );
+        assertEquals( 1, searcher.search( new TermQuery( WriteAheadLog.getPidTerm( "obj:1" ) ), 100 ).totalHits );
+        assertEquals( 0, searcher.search( new TermQuery( WriteAheadLog.getPidTerm( "obj:2" ) ), 100 ).totalHits );
+        wal.shutdown();
+    }
+
+    @Test
+    public void testInitializeOrdersRecordsInFileByPosition() throws Exception
+    {
+        // A log file appended to after a restart, where entry ids started over
+        RandomAccessFile currentRaf = new RandomAccessFile( new File( folder.getRoot(), "0_writeaheadlog.log"), "rwd" );
+        WriteAheadLog.writeDocumentData( currentRaf, 0, "obj:2", makeLuceneDocument( "obj:2" ) );
+        WriteAheadLog.writeDocumentData( currentRaf, 1, "obj:1", makeLuceneDocument( "obj:1", new Pair<String,String>( "field", "old" ) ) );
+        WriteAheadLog.writeDocumentData( currentRaf, 0, "obj:1", makeLuceneDocument( "obj:1", new Pair<String,String>( "field", "new" ) ) );
+        currentRaf.close();
+
+        WriteAheadLog wal = new WriteAheadLog( writer, folder.getRoot(), 1000, true );
+        assertEquals( 3, wal.initialize() );
+
+        assertEquals( "new", getStoredField( "obj:1", "field" ) );
+        wal.shutdown();
+    }
+
+    @Test
+    public void testSecondCrashAfterRecoveryKeepsLatestUpdate() throws Exception
+    {
+        RandomAccessFile currentRaf = new RandomAccessFile( new File( folder.getRoot(), "0_writeaheadlog.log"), "rwd" );
+        WriteAheadLog.writeDocumentData( currentRaf, 0, "obj:2", makeLuceneDocument( "obj:2" ) );
+        WriteAheadLog.writeDocumentData( currentRaf, 1, "obj:1", makeLuceneDocument( "obj:1", new Pair<String,String>( "field", "old" ) ) );
+        currentRaf.close();
+
+        // Given a recovered log, which is updated and then lost without a shutdown
+
+        WriteAheadLog wal = new WriteAheadLog( writer, folder.getRoot(), 1000, false );
+        assertEquals( 2, wal.initialize() );
+        wal.updateDocument( "obj:1", makeLuceneDocument( "obj:1", new Pair<String,String>( "field", "new" ) ) );
+
+        // When the log is recovered again
+
+        WriteAheadLog wal2 = new WriteAheadLog( writer, folder.getRoot(), 1000, true );
+        assertEquals( "Only the update after the first recovery is replayed", 1, wal2.initialize() );
+
+        // Then the latest update wins
+
+        assertEquals( "new", getStoredField( "obj:1", "field" ) );
+        assertEquals( 1, getHits( "obj:2" ) );
+        wal2.shutdown();
+    }
+
+    @Test
+    public void testInitializeDeletesRecoveredLegacyFiles() throws Exception
+    {
+        String[] names = { "0_writeaheadlog.log", "1_writeaheadlog.log", "2_writeaheadlog.log", "1_writeaheadlog.committing" };
+        for ( int i = 0; i < names.length; i++ )
+        {
+            RandomAccessFile raf = new RandomAccessFile( new File( folder.getRoot(), names[i] ), "rwd" );
+            WriteAheadLog.writeDocumentData( raf, i, "obj:" + i, makeLuceneDocument( "obj:" + i ) );
+            raf.close();
+        }
+
+        WriteAheadLog wal = new WriteAheadLog( writer, folder.getRoot(), 1000, true );
+        assertEquals( 4, wal.initialize() );
+        assertEquals( "recovered files are deleted", 0, folder.getRoot().listFiles().length );
+
+        wal.updateDocument( "obj:4", makeLuceneDocument( "obj:4" ) );
+
+        WriteAheadLog wal2 = new WriteAheadLog( writer, folder.getRoot(), 1000, true );
+        assertEquals( "legacy files are not replayed again", 1, wal2.initialize() );
+        for ( int i = 0; i <= names.length; i++ )
+        {
+            assertEquals( 1, getHits( "obj:" + i ) );
+        }
+        wal2.shutdown();
+    }
+
+    @Test(timeout = 15000)
+    public void testConcurrentUpdatesOfPidReachIndexInLogOrder() throws Exception
+    {
+        final WriteAheadLog wal = new WriteAheadLog( writer, folder.getRoot(), 100000, true );
+        wal.initialize();
+
+        int threads = 8;
+        final int updates = 200;
+        ExecutorService executor = Executors.newFixedThreadPool( threads );
+        List<Future<Void>> results = new ArrayList<Future<Void>>();
+        for ( int t = 0; t < threads; t++ )
+        {
+            final int thread = t;
+            results.add( executor.submit( new Callable<Void>()
+            {
+                @Override
+                public Void call() throws Exception
+                {
+                    for ( int i = 0; i < updates; i++ )
+                    {
+                        wal.updateDocument( "obj:1", makeLuceneDocument( "obj:1", new Pair<String,String>( "field", thread + "-" + i ) ) );
+                    }
+                    return null;
+                }
+            } ) );
+        }
+        for ( Future<Void> result : results )
+        {
+            result.get();
+        }
+        executor.shutdown();
+
+        // The last record in the log is the state of the index
+        RandomAccessFile raf = new RandomAccessFile( new File( folder.getRoot(), "0_writeaheadlog.log"), "r" );
+        DocumentData last = null;
+        try
+        {
+            for ( int i = 0; i < threads * updates; i++ )
+            {
+                last = WriteAheadLog.readDocumentData( raf );
+            }
+        }
+        finally
+        {
+            raf.close();
+        }
+        assertEquals( last.docOrNull.get( "field" ), getStoredField( "obj:1", "field" ) );
+        wal.shutdown();
+    }
+
+    @Test
+    public void testCommitFileLeftByFailedCommitIsCommittedFirst() throws Exception
+    {
+        WriteAheadLog wal = new WriteAheadLog( writer, folder.getRoot(), 1, true );
+        wal.initialize();
+
+        File leftOver = new File( folder.getRoot(), "0_writeaheadlog.committing" );
+        RandomAccessFile raf = new RandomAccessFile( leftOver, "rwd" );
+        WriteAheadLog.writeDocumentData( raf, 0, "obj:2", makeLuceneDocument( "obj:2" ) );
+        raf.close();
+
+        wal.updateDocument( "obj:1", makeLuceneDocument( "obj:1" ) );
+
+        assertFalse( leftOver.exists() );
+        assertEquals( 1, getHits( "obj:1" ) );
+        wal.shutdown();
+    }
+
+    @Test
+    public void testCommitFileOfUnfinishedCommitIsNotOverwritten() throws Exception
+    {
+        WriteAheadLog wal = new WriteAheadLog( writer, folder.getRoot(), 1, true );
+        wal.initialize();
+
+        // A commit file that cannot be deleted
+        File leftOver = new File( folder.getRoot(), "0_writeaheadlog.committing" );
+        assertTrue( leftOver.mkdir() );
+        assertTrue( new File( leftOver, "entry" ).createNewFile() );
+
+        try
+        {
+            wal.updateDocument( "obj:1", makeLuceneDocument( "obj:1" ) );
+            fail( "Commit should fail" );
+        }
+        catch ( IOException ex )
+        {
+        }
+        assertTrue( new File( leftOver, "entry" ).exists() );
+        assertTrue( "The update stays in the log", new File( folder.getRoot(), "0_writeaheadlog.log" ).length() > 0 );
+    }
+
+    private int getHits( String pid ) throws IOException
+    {
+        IndexReader reader = DirectoryReader.open( writer, false );
+        try
+        {
+            return new IndexSearcher( reader ).search( new TermQuery( WriteAheadLog.getPidTerm( pid ) ), 100 ).totalHits;
+        }
+        finally
+        {
+            reader.close();
+        }
+    }
+
+    private String getStoredField( String pid, String field ) throws IOException
+    {
+        IndexReader reader = DirectoryReader.open( writer, false );
+        try
+        {
+            TopDocs result = new IndexSearcher( reader ).search( new TermQuery( WriteAheadLog.getPidTerm( pid ) ), 100 );
+            assertEquals( 1, result.scoreDocs.length );
+            return reader.document( result.scoreDocs[0].doc ).get( field );
+        }
+        finally
+        {
+            reader.close();
+        }
+    }
+
     @Test(timeout = 15000)
     public void testInitializeRecoversUncomittedFiles_concurrent() throws Exception
     {
-        final WriteAheadLog wal = new WriteAheadLog( writer, folder.getRoot(), 2000, true, 5 );
+        final WriteAheadLog wal = new WriteAheadLog( writer, folder.getRoot(), 2000, true );
 
         wal.initialize();
         doConcurrentWork(10, 100, wal, 1);
         
-        final WriteAheadLog wal2 = new WriteAheadLog( writer, folder.getRoot(), 2000, true, 10 );
+        final WriteAheadLog wal2 = new WriteAheadLog( writer, folder.getRoot(), 2000, true );
         int recovered = wal2.initialize();
         
         assertEquals(1000, recovered);
@@ -429,7 +787,7 @@ public class WriteAheadLogTest
     @Test(timeout = 15000)
     public void testCommittedFilesAreDeleted_concurrent() throws Exception
     {
-        final WriteAheadLog wal = new WriteAheadLog( writer, folder.getRoot(), 1001, true, 5 );
+        final WriteAheadLog wal = new WriteAheadLog( writer, folder.getRoot(), 1001, true );
 
         wal.initialize();
         doConcurrentWork(10, 100, wal, 1);
@@ -440,6 +798,79 @@ public class WriteAheadLogTest
         
     }
     
+    @Test(timeout = 15000)
+    public void testConcurrentUpdatesAreWrittenInBatches() throws Exception
+    {
+        final WriteAheadLog wal = new WriteAheadLog( writer, folder.getRoot(), 2000, true );
+        wal.initialize();
+
+        // Hold the log while all writers queue their records, so the first
+        // writer to get the log must write the records of all of them
+        final int threads = 10;
+        final CyclicBarrier start = new CyclicBarrier( threads );
+        ExecutorService es = Executors.newFixedThreadPool( threads );
+        List<Future<?>> updates = new ArrayList<Future<?>>();
+        ReentrantLock appendLock = wal.getAppendLock();
+        appendLock.lock();
+        try
+        {
+            for ( int i = 0; i < threads; i++ )
+            {
+                final String pid = "obj:" + i;
+                updates.add( es.submit( new Callable<Void>()
+                {
+                    @Override
+                    public Void call() throws Exception
+                    {
+                        start.await();
+                        wal.updateDocument( pid, makeLuceneDocument( pid ) );
+                        return null;
+                    }
+                } ) );
+            }
+            while ( wal.getTLogSize() < threads )
+            {
+                Thread.sleep( 5 );
+            }
+        }
+        finally
+        {
+            appendLock.unlock();
+        }
+        for ( Future<?> update : updates )
+        {
+            update.get();
+        }
+        es.shutdown();
+
+        assertEquals( threads, wal.getNumberOfUpdatedDocuments() );
+        assertEquals( "one log write for all queued records", 1, wal.getNumberOfLogWrites() );
+        assertEquals( threads, wal.getAverageRecordsPerLogWrite() );
+        assertEquals( 0, wal.getTLogSize() );
+        wal.shutdown();
+    }
+
+    @Test(timeout = 15000)
+    public void testUncommittedDocumentsAreCommittedAtInterval() throws Exception
+    {
+        WriteAheadLog wal = new WriteAheadLog( writer, folder.getRoot(), 1000, true, 50 );
+        wal.initialize();
+
+        wal.updateDocument( "obj:1", makeLuceneDocument( "obj:1" ) );
+        assertEquals( 1, folder.getRoot().listFiles().length );
+
+        while ( wal.getNumberOfCommits() == 0 )
+        {
+            Thread.sleep( 10 );
+        }
+        while ( folder.getRoot().listFiles().length > 0 )
+        {
+            Thread.sleep( 10 );
+        }
+        assertEquals( 0, wal.getNumberOfUncomittedDocuments() );
+        wal.shutdown();
+    }
+
     private void doConcurrentWork(int threads, final int docsPerThread, final WriteAheadLog wal, int timeoutMinutes) throws InterruptedException{
         ExecutorService es = Executors.newFixedThreadPool(10);
         for (int i = 0; i < threads; i++) {
@@ -0,0 +1,176 @@
+/* The contents of this file are subject to the license and copyright terms
+ * detailed in the license directory at the root of the source tree (also
+ * available online at http://fedora-commons.org/license/).
+ */
+package org.fcrepo.oai;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import java.util.Collections;
+import java.util.Map;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import mockit.Mocked;
+import mockit.Mockit;
+import mockit.NonStrictExpectations;
+import mockit.Verifications;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.fcrepo.server.Context;
+import org.fcrepo.server.errors.servletExceptionExtensions.InternalError500Exception;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests that OAIProviderServlet streams the response of the responder.
+ */
+public class OAIProviderServletTest {
+
+    private static final int CHUNK = 1024;
+
+    private static final int CHUNKS = 64;
+
+    @Mocked
+    HttpServletRequest request;
+
+    @Mocked
+    HttpServletResponse response;
+
+    private final RecordingOutputStream body = new RecordingOutputStream();
+
+    /**
+     * Records the bytes the servlet writes to the response, and whether it
+     * flushes them.
+     */
+    private static class RecordingOutputStream
+            extends ServletOutputStream {
+
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+        int flushes = 0;
+
+        @Override
+        public void write(int b) {
+            bytes.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            bytes.write(b, off, len);
+        }
+
+        @Override
+        public void flush() {
+            flushes++;
+        }
+    }
+
+    /**
+     * A servlet with the given responder.
+     */
+    private static OAIProviderServlet servlet(final OAIResponder responder) {
+        return new OAIProviderServlet() {
+
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            public OAIResponder getResponder() {
+                return responder;
+            }
+        };
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        new NonStrictExpectations() {
+
+            {
+                request.getParameterNames();
+                returns(Collections.enumeration(Collections.emptyList()));
+                response.getOutputStream();
+                returns(body);
+            }
+        };
+    }
+
+    @After
+    public void tearDown() {
+        Mockit.tearDownMocks();
+    }
+
+    @Test
+    public void testResponseIsWrittenAsItIsProduced() throws Exception {
+        final int[] writtenBeforeEnd = new int[1];
+        OAIResponder responder = new OAIResponder(null) {
+
+            @Override
+            public void respond(Context context, Map args, OutputStream out)
+                    throws RepositoryException {
+                try {
+                    byte[] chunk = new byte[CHUNK];
+                    for (int i = 0; i < CHUNKS; i++) {
+                        out.write(chunk);
+                    }
+                } catch (IOException e) {
+                    throw new RepositoryException("Error writing", e);
+                }
+                writtenBeforeEnd[0] = body.bytes.size();
+            }
+        };
+        servlet(responder).doGet(request, response);
+
+        assertTrue(writtenBeforeEnd[0] > 0);
+        assertTrue(writtenBeforeEnd[0] < CHUNK * CHUNKS);
+        assertEquals(CHUNK * CHUNKS, body.bytes.size());
+        new Verifications() {
+
+            {
+                response.setCharacterEncoding("UTF-8");
+                response.flushBuffer();
+            }
+        };
+    }
+
+    @Test
+    public void testErrorBeforeCommitIsSentAsError() throws Exception {
+        OAIResponder responder = new OAIResponder(null) {
+
+            @Override
+            public void respond(Context context, Map args, OutputStream out)
+                    throws RepositoryException {
+                try {
+                    out.write("<?xml version=\"1.0\"?>".getBytes("UTF-8"));
+                    // as OAIResponder flushes when it fails
+                    out.flush();
+                } catch (IOException e) {
+                    throw new RepositoryException("Error writing", e);
+                }
+                throw new RepositoryException("Unavailable");
+            }
+        };
+        try {
+            servlet(responder).doGet(request, response);
+            fail("The error was not passed on");
+        } catch (InternalError500Exception e) {
+        }
+
+        // the bytes written are left in the buffer of the response, and reset
+        assertEquals(0, body.flushes);
+        new Verifications() {
+
+            {
+                response.reset();
+            }
+        };
+    }
+}
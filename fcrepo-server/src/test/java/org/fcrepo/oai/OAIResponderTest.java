@@ -152,6 +152,21 @@ public class OAIResponderTest
         }
     }
 
+    static class MockStreamingOAIProvider extends MockOAIProvider implements StreamingOAIProvider {
+
+        @Override
+        public ResumptionToken getRecords(Date from, Date until, String metadataPrefix, String set, RecordHandler handler)
+                throws CannotDisseminateFormatException, NoRecordsMatchException, NoSetHierarchyException, RepositoryException {
+            throw new UnsupportedOperationException("Not supported yet.");
+        }
+
+        @Override
+        public ResumptionToken getRecords(String resumptionToken, RecordHandler handler)
+                throws CannotDisseminateFormatException, NoRecordsMatchException, NoSetHierarchyException, BadResumptionTokenException, RepositoryException {
+            throw new UnsupportedOperationException("Not supported yet.");
+        }
+    }
+
     public OAIResponderTest() {
     }
 
@@ -389,4 +404,104 @@ public class OAIResponderTest
         List records = responder.processListRecords(args);
     }
 
+
+    @Test
+    public void testRespondToListRecordsStreaming() throws Exception {
+
+        StreamingOAIProvider provider = new MockStreamingOAIProvider() {
+            @Override
+            public DateGranularitySupport getDateGranularitySupport() throws RepositoryException {
+                return DateGranularitySupport.SECONDS;
+            }
+            @Override
+            public ResumptionToken getRecords(String resumptionToken, RecordHandler handler)
+                    throws CannotDisseminateFormatException, NoRecordsMatchException, NoSetHierarchyException, BadResumptionTokenException, RepositoryException {
+                assertEquals("token1", resumptionToken);
+                handler.handleRecord(new SimpleRecord(new SimpleHeader("oai:domain:obj:1", obj1Date, Collections.emptySet(), true),
+                        "<metadata1/>", Collections.emptySet()));
+                handler.handleRecord(new WritableRecord() {
+                    public Header getHeader() {
+                        return new SimpleHeader("oai:domain:obj:2", obj2Date, Collections.emptySet(), true);
+                    }
+                    public String getMetadata() {
+                        throw new UnsupportedOperationException("Not supported yet.");
+                    }
+                    public void writeMetadata(PrintWriter out) {
+                        out.print("<metadata2/>");
+                    }
+                    public Set getAbouts() {
+                        return Collections.emptySet();
+                    }
+                });
+                return null;
+            }
+        };
+        OAIResponder responder = new OAIResponder(provider);
+
+        StringWriter writer = new StringWriter();
+
+        Map args = new LinkedHashMap();
+        args.put("verb", "ListRecords");
+        args.put("resumptionToken", "token1");
+
+        responder.respondToListRecords(args, "http://localhost:8080/fedora/oai", provider, new PrintWriter(writer));
+
+        String expectedXml =
+            "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
+            "<OAI-PMH xmlns=\"http://www.openarchives.org/OAI/2.0/\"\n" +
+            "         xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\"\n" +
+            "         xsi:schemaLocation=\"http://www.openarchives.org/OAI/2.0/ http://www.openarchives.org/OAI/2.0/OAI-PMH.xsd\">\n" +
+            "  <responseDate>" + DateUtility.convertDateToString(new Date(), false) + "</responseDate>\n"+
+            "  <request verb=\"ListRecords\" resumptionToken=\"token1\">http://localhost:8080/fedora/oai</request>\n" +
+            "  <ListRecords>\n" +
+            "    <record>\n" +
+            "      <header>\n" +
+            "        <identifier>oai:domain:obj:1</identifier>\n" +
+            "        <datestamp>2002-07-01T06:07:08Z</datestamp>\n" +
+            "      </header>\n" +
+            "      <metadata>\n" +
+            "<metadata1/>\n" +
+            "      </metadata>\n" +
+            "    </record>\n" +
+            "    <record>\n" +
+            "      <header>\n" +
+            "        <identifier>oai:domain:obj:2</identifier>\n" +
+            "        <datestamp>2010-01-02T23:24:25Z</datestamp>\n" +
+            "      </header>\n" +
+            "      <metadata>\n" +
+            "<metadata2/>\n" +
+            "      </metadata>\n" +
+            "    </record>\n" +
+            "  </ListRecords>\n" +
+            "</OAI-PMH>\n";
+
+        assertEquals( expectedXml, writer.toString() );
+    }
+
+    @Test
+    public void testRespondToListRecordsStreamingNoRecords() throws Exception {
+
+        StreamingOAIProvider provider = new MockStreamingOAIProvider() {
+            @Override
+            public ResumptionToken getRecords(String resumptionToken, RecordHandler handler) {
+                return null;
+            }
+        };
+        OAIResponder responder = new OAIResponder(provider);
+
+        StringWriter writer = new StringWriter();
+
+        Map args = new HashMap();
+        args.put("verb", "ListRecords");
+        args.put("resumptionToken", "token1");
+
+        try {
+            responder.respondToListRecords(args, "http://localhost:8080/fedora/oai", provider, new PrintWriter(writer));
+            fail("Expected NoRecordsMatchException");
+        } catch (NoRecordsMatchException e) {
+            // nothing was written, so an error response can still be sent
+            assertEquals("", writer.toString());
+        }
+    }
+
 }
\ No newline at end of file
@@ -13,7 +13,9 @@ import org.fcrepo.server.messaging.AllUnitTests;
 import junit.framework.JUnit4TestAdapter;
 
 @RunWith(Suite.class)
-@Suite.SuiteClasses( {org.fcrepo.server.messaging.JMSManagerTest.class})
+@Suite.SuiteClasses( {org.fcrepo.server.messaging.AtomEntryWriterTest.class,
+                      org.fcrepo.server.messaging.JMSManagerTest.class,
+                      org.fcrepo.server.messaging.NotificationPipelineTest.class})
 public class AllUnitTests {
 
     // Supports legacy tests runners
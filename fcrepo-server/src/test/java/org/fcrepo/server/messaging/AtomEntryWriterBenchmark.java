@@ -0,0 +1,88 @@
+/* The contents of this file are subject to the license and copyright terms
+ * detailed in the license directory at the root of the source tree (also
+ * available online at http://fedora-commons.org/license/).
+ */
+package org.fcrepo.server.messaging;
+
+import org.fcrepo.server.messaging.AtomEntryWriterTest.Event;
+
+/**
+ * Compares the time taken to write API-M Atom entries with the
+ * {@link AtomEntryWriter} and with Abdera, as AtomAPIMMessage did before.
+ * <p>
+ * This is not run with the unit tests, since timings depend on the machine;
+ * run it by hand with the test classpath:
+ *
+ * <pre>
+ * java -cp ... org.fcrepo.server.messaging.AtomEntryWriterBenchmark [entries [rounds]]
+ * </pre>
+ *
+ * Each round writes <code>entries</code> entries with each writer, after a
+ * warm-up round that is not reported.
+ *
+ * @version $Id$
+ */
+public class AtomEntryWriterBenchmark {
+
+    private static final int DEFAULT_ENTRIES = 20000;
+
+    private static final int DEFAULT_ROUNDS = 5;
+
+    private static final Event[] events =
+            new Event[] {AtomEntryWriterTest.modifyDatastreamByValue(),
+                    AtomEntryWriterTest.ingest()};
+
+    // the length of everything written, so the writing cannot be optimized
+    // away
+    private static long written;
+
+    private static long writeEntries(int entries) {
+        long start = System.nanoTime();
+        for (int i = 0; i < entries; i++) {
+            written += AtomEntryWriterTest.write(events[i % events.length])
+                    .length();
+        }
+        return System.nanoTime() - start;
+    }
+
+    private static long writeEntriesWithAbdera(int entries) throws Exception {
+        long start = System.nanoTime();
+        for (int i = 0; i < entries; i++) {
+            written +=
+                    AtomEntryWriterTest.writeWithAbdera(events[i
+                            % events.length]).length();
+        }
+        return System.nanoTime() - start;
+    }
+
+    private static String perEntry(long nanos, long entries) {
+        return String.format("%8.2f us/entry", nanos / 1000.0 / entries);
+    }
+
+    public static void main(String[] args) throws Exception {
+        int entries =
+                args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_ENTRIES;
+        int rounds =
+                args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_ROUNDS;
+
+        writeEntries(entries);
+        writeEntriesWithAbdera(entries);
+
+        long total = 0;
+        long totalWithAbdera = 0;
+        for (int round = 1; round <= rounds; round++) {
+            long nanos = writeEntries(entries);
+            long nanosWithAbdera = writeEntriesWithAbdera(entries);
+            total += nanos;
+            totalWithAbdera += nanosWithAbdera;
+            System.out.println("Round " + round + ": AtomEntryWriter "
+                    + perEntry(nanos, entries) + ", Abdera "
+                    + perEntry(nanosWithAbdera, entries));
+        }
+        System.out.println("Mean:    AtomEntryWriter "
+                + perEntry(total, (long) entries * rounds) + ", Abdera "
+                + perEntry(totalWithAbdera, (long) entries * rounds)
+                + String.format(" (%.1fx)", (double) totalWithAbdera / total));
+        System.out.println("(" + written + " characters written)");
+    }
+}
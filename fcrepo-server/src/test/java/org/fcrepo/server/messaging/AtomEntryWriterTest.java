@@ -0,0 +1,176 @@
+/* The contents of this file are subject to the license and copyright terms
+ * detailed in the license directory at the root of the source tree (also
+ * available online at http://fedora-commons.org/license/).
+ */
+package org.fcrepo.server.messaging;
+
+import java.io.StringReader;
+import java.io.StringWriter;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+
+import org.apache.abdera.Abdera;
+import org.apache.abdera.model.Document;
+import org.apache.abdera.model.Entry;
+
+import org.junit.Test;
+
+import org.fcrepo.common.Constants;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests the AtomEntryWriter against entries built and written with Abdera.
+ */
+public class AtomEntryWriterTest {
+
+    private static final Abdera abdera = new Abdera();
+
+    private static final String TYPES_NS = Constants.TYPES.uri;
+
+    private static final String VERSION = Constants.VIEW.VERSION.uri;
+
+    private static final String FORMAT =
+            "http://www.fedora.info/definitions/1/0/types/formatURI";
+
+    /**
+     * The elements of an API-M event, as AtomAPIMMessage writes them. Also
+     * used by {@link AtomEntryWriterBenchmark}.
+     */
+    static class Event {
+
+        final String id = "urn:uuid:" + UUID.randomUUID();
+
+        final Date updated = new Date();
+
+        final String title;
+
+        final String summary;
+
+        final String content;
+
+        final List<String[]> categories = new ArrayList<String[]>();
+
+        Event(String title, String summary, String content) {
+            this.title = title;
+            this.summary = summary;
+            this.content = content;
+        }
+
+        Event category(String parameter, String term, String label) {
+            categories.add(new String[] {"fedora-types:" + parameter, term,
+                    label});
+            return this;
+        }
+    }
+
+    static Event modifyDatastreamByValue() {
+        return new Event("modifyDatastreamByValue",
+                         "demo:1",
+                         "2012-05-01T10:11:12.013Z")
+                .category("pid", "demo:1", "xsd:string")
+                .category("dsID", "DC", "xsd:string")
+                .category("altIDs", "", "fedora-types:ArrayOfString")
+                .category("dsLabel", "Dublin Core Record", "xsd:string")
+                .category("mimeType", "text/xml", "xsd:string")
+                .category("formatURI",
+                          "http://www.openarchives.org/OAI/2.0/oai_dc/",
+                          "xsd:string")
+                .category("dsContent", "[OMITTED]", "xsd:base64Binary")
+                .category("checksumType", "DISABLED", "xsd:string")
+                .category("checksum", "null", "xsd:string")
+                .category("logMessage", "Updated the title", "xsd:string");
+    }
+
+    static Event ingest() {
+        return new Event("ingest", "demo:2", "demo:2")
+                .category("logMessage", "Ingested from the batch tool",
+                          "xsd:string")
+                .category("format", "info:fedora/fedora-system:FOXML-1.1",
+                          "xsd:string");
+    }
+
+    static String write(Event event) {
+        AtomEntryWriter writer =
+                AtomEntryWriter.start("xsd", Constants.XML_XSD.uri,
+                                      "fedora-types", TYPES_NS);
+        writer.id(event.id).updated(event.updated)
+                .author("fedoraAdmin", "http://localhost:8080/fedora")
+                .title(event.title);
+        for (String[] category : event.categories) {
+            writer.category(category[0], category[1], category[2]);
+        }
+        return writer.summary(event.summary).content(event.content)
+                .category(VERSION, "3.6", null).category(FORMAT,
+                                                        Constants.ATOM_APIM1_0.uri,
+                                                        null).end();
+    }
+
+    static String writeWithAbdera(Event event) throws Exception {
+        Entry entry = abdera.getFactory().newEntry();
+        entry.declareNS(Constants.XML_XSD.uri, "xsd");
+        entry.declareNS(TYPES_NS, "fedora-types");
+        entry.setId(event.id);
+        entry.setUpdated(event.updated);
+        entry.addAuthor("fedoraAdmin", null, "http://localhost:8080/fedora");
+        entry.setTitle(event.title);
+        for (String[] category : event.categories) {
+            entry.addCategory(category[0], category[1], category[2]);
+        }
+        entry.setSummary(event.summary);
+        entry.setContent(event.content);
+        entry.addCategory(VERSION, "3.6", null);
+        entry.addCategory(FORMAT, Constants.ATOM_APIM1_0.uri, null);
+
+        StringWriter out = new StringWriter();
+        org.apache.abdera.writer.Writer writer =
+                abdera.getWriterFactory().getWriter("prettyxml");
+        entry.writeTo(writer, out);
+        return out.toString();
+    }
+
+    private static Entry parse(String xml) {
+        Document<Entry> doc = abdera.getParser().parse(new StringReader(xml));
+        return doc.getRoot();
+    }
+
+    /**
+     * Leaves out the whitespace between elements, which differs with the
+     * indentation, and keeps the whitespace in text and attributes.
+     */
+    private static String normalize(String xml) {
+        return xml.replaceAll(">\\s+<", "><").trim();
+    }
+
+    @Test
+    public void testMatchesAbdera() throws Exception {
+        for (Event event : new Event[] {modifyDatastreamByValue(), ingest()}) {
+            assertEquals(normalize(writeWithAbdera(event)),
+                         normalize(write(event)));
+        }
+    }
+
+    @Test
+    public void testEscaping() throws Exception {
+        String special =
+                "special characters (!@#$%^&*<>?`':;,.|[]{}) \"quoted\" ]]>\t\r\n\u00e6\ud834\udd1e";
+        Event event =
+                new Event("purgeObject", special, special)
+                        .category("logMessage", special, "xsd:string");
+        Entry entry = parse(write(event));
+        assertEquals(special, entry.getCategories().get(0).getTerm());
+        assertEquals(special, entry.getSummary());
+        assertEquals(special, entry.getContent());
+    }
+
+    @Test
+    public void testInvalidCharactersAreLeftOut() throws Exception {
+        Event event = new Event("purgeObject", "demo:\u0001a", "\u0000b\ufffe");
+        Entry entry = parse(write(event));
+        assertEquals("demo:a", entry.getSummary());
+        assertEquals("b", entry.getContent());
+    }
+}
@@ -4,6 +4,8 @@
  */
 package org.fcrepo.server.messaging;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Properties;
 
 import javax.naming.Context;
@@ -15,6 +17,7 @@ import javax.jms.Message;
 import javax.jms.MessageListener;
 import javax.jms.ObjectMessage;
 import javax.jms.Queue;
+import javax.jms.Session;
 import javax.jms.TextMessage;
 import javax.jms.Topic;
 
@@ -218,6 +221,29 @@ public class JMSManagerTest extends TestCase implements MessageListener {
         jmsMgr.close();
     }
 
+    @Test
+    public void testSendTransactedBatch() throws Exception {
+        String queue = "jmsmanager.batch";
+        JMSManager jmsMgr = new JMSManager(properties);
+        jmsMgr.createDestination(queue, DestinationType.Queue, true,
+                                 Session.SESSION_TRANSACTED);
+        List<TextMessage> batch = new ArrayList<TextMessage>();
+        for (int i = 0; i < 3; i++) {
+            batch.add(jmsMgr.createTextMessage(queue, messageText + i));
+        }
+        jmsMgr.send(queue, batch);
+
+        JMSManager receiver = new JMSManager(properties);
+        receiver.createDestination(queue, DestinationType.Queue);
+        for (int i = 0; i < 3; i++) {
+            Message message = receiver.listen(queue, timeout);
+            assertNotNull("Batch was not committed", message);
+            assertEquals(messageText + i, ((TextMessage) message).getText());
+        }
+        receiver.close();
+        jmsMgr.close();
+    }
+
     @Test
     public void testMessageVolume() throws Exception {
         String topic = "jmsmanager.test";
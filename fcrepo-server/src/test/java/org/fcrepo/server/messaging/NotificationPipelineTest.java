@@ -0,0 +1,454 @@
+/* The contents of this file are subject to the license and copyright terms
+ * detailed in the license directory at the root of the source tree (also
+ * available online at http://fedora-commons.org/license/).
+ */
+package org.fcrepo.server.messaging;
+
+import java.io.File;
+
+import java.lang.reflect.Method;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.fcrepo.server.Context;
+import org.fcrepo.server.errors.MessagingException;
+import org.fcrepo.server.management.Management;
+import org.fcrepo.server.messaging.NotificationPipeline.OverflowPolicy;
+import org.fcrepo.server.messaging.NotificationPipeline.PreparedMessage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests the NotificationPipeline with a Sender that records the messages.
+ */
+public class NotificationPipelineTest {
+
+    private static Method purgeObject;
+
+    private File spillDir;
+
+    private NotificationPipeline pipeline;
+
+    /**
+     * Renders a message of the log message of purgeObject, and records the
+     * messages sent. Sending waits until the sender is released.
+     */
+    private static class RecordingSender
+            implements NotificationPipeline.Sender {
+
+        final List<String> sent =
+                Collections.synchronizedList(new ArrayList<String>());
+
+        volatile CountDownLatch sending = new CountDownLatch(1);
+
+        volatile CountDownLatch release = new CountDownLatch(0);
+
+        // if set, only the send starting with this message waits for release
+        volatile String holdAt;
+
+        // the number of sends to fail
+        int failures;
+
+        public List<PreparedMessage> render(FedoraMethod method) {
+            String pid = method.getPID().toString();
+            return Collections.singletonList(new PreparedMessage("dest",
+                                                                 method.getName(),
+                                                                 pid,
+                                                                 pid
+                                                                         + " "
+                                                                         + method.getParameters()[2]));
+        }
+
+        public void send(List<PreparedMessage> messages)
+                throws MessagingException {
+            if (holdAt == null || holdAt.equals(messages.get(0).getText())) {
+                sending.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new MessagingException("Interrupted", e);
+                }
+            }
+            synchronized (this) {
+                if (failures > 0) {
+                    failures--;
+                    throw new MessagingException("Unavailable");
+                }
+            }
+            for (PreparedMessage message : messages) {
+                sent.add(message.getText());
+            }
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        purgeObject =
+                Management.class.getMethod("purgeObject",
+                                           Context.class,
+                                           String.class,
+                                           String.class);
+        spillDir = File.createTempFile("notification-spill", "");
+        spillDir.delete();
+    }
+
+    @After
+    public void tearDown() {
+        if (pipeline != null) {
+            pipeline.close();
+        }
+        File[] files = spillDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        spillDir.delete();
+    }
+
+    private static FedoraMethod purge(String pid, int seq) {
+        return new FedoraMethod(purgeObject,
+                                new Object[] {null, pid, Integer.toString(seq)},
+                                null);
+    }
+
+    @Test
+    public void testOrderPerPid() throws Exception {
+        RecordingSender sender = new RecordingSender();
+        pipeline =
+                new NotificationPipeline(sender,
+                                         4,
+                                         16,
+                                         OverflowPolicy.block,
+                                         null,
+                                         5);
+        int pids = 10;
+        int calls = 100;
+        for (int i = 0; i < calls; i++) {
+            for (int p = 0; p < pids; p++) {
+                pipeline.submit(purge("demo:" + p, i));
+            }
+        }
+        assertTrue(pipeline.awaitEmpty(10000));
+
+        assertEquals(pids * calls, sender.sent.size());
+        Map<String, Integer> last = new HashMap<String, Integer>();
+        for (String text : sender.sent) {
+            String[] parts = text.split(" ");
+            Integer previous = last.get(parts[0]);
+            int seq = Integer.parseInt(parts[1]);
+            assertEquals("Out of order for " + parts[0],
+                         previous == null ? 0 : previous + 1,
+                         seq);
+            last.put(parts[0], seq);
+        }
+        assertEquals(pids * calls, pipeline.getSent());
+        assertEquals(0, pipeline.getDropped());
+        assertEquals(0, pipeline.getQueueDepth());
+    }
+
+    @Test
+    public void testDropOldest() throws Exception {
+        RecordingSender sender = new RecordingSender();
+        sender.release = new CountDownLatch(1);
+        pipeline =
+                new NotificationPipeline(sender,
+                                         1,
+                                         2,
+                                         OverflowPolicy.dropOldest,
+                                         null,
+                                         1);
+        pipeline.submit(purge("demo:1", 0));
+        sender.sending.await();
+        for (int i = 1; i < 5; i++) {
+            pipeline.submit(purge("demo:1", i));
+        }
+        assertEquals(2, pipeline.getQueueDepth());
+        assertEquals(2, pipeline.getDropped());
+
+        sender.release.countDown();
+        assertTrue(pipeline.awaitEmpty(10000));
+        assertEquals(3, sender.sent.size());
+        assertEquals("demo:1 0", sender.sent.get(0));
+        assertEquals("demo:1 3", sender.sent.get(1));
+        assertEquals("demo:1 4", sender.sent.get(2));
+    }
+
+    @Test
+    public void testBlock() throws Exception {
+        RecordingSender sender = new RecordingSender();
+        sender.release = new CountDownLatch(1);
+        pipeline =
+                new NotificationPipeline(sender,
+                                         1,
+                                         1,
+                                         OverflowPolicy.block,
+                                         null,
+                                         1);
+        pipeline.submit(purge("demo:1", 0));
+        sender.sending.await();
+        pipeline.submit(purge("demo:1", 1));
+
+        Thread submitter = new Thread() {
+
+            @Override
+            public void run() {
+                pipeline.submit(purge("demo:1", 2));
+            }
+        };
+        submitter.start();
+        submitter.join(200);
+        assertTrue("Submit should wait for room", submitter.isAlive());
+
+        sender.release.countDown();
+        submitter.join(10000);
+        assertFalse(submitter.isAlive());
+        assertTrue(pipeline.awaitEmpty(10000));
+        assertEquals(3, sender.sent.size());
+        assertEquals("demo:1 2", sender.sent.get(2));
+        assertEquals(0, pipeline.getDropped());
+    }
+
+    @Test
+    public void testSpillAndRestart() throws Exception {
+        final RecordingSender sender = new RecordingSender();
+        sender.release = new CountDownLatch(1);
+        pipeline =
+                new NotificationPipeline(sender,
+                                         1,
+                                         1,
+                                         OverflowPolicy.spill,
+                                         spillDir,
+                                         1);
+        pipeline.submit(purge("demo:1", 0));
+        sender.sending.await();
+        for (int i = 1; i < 5; i++) {
+            pipeline.submit(purge("demo:1", i));
+        }
+        assertEquals(3, pipeline.getSpilled());
+        assertEquals(3, pipeline.getSpilledDepth());
+        assertEquals(4, pipeline.getQueueDepth());
+
+        // close while the worker is sending, leaving the spilled ones
+        final NotificationPipeline closing = pipeline;
+        Thread closer = new Thread() {
+
+            @Override
+            public void run() {
+                closing.close();
+            }
+        };
+        closer.start();
+        while (closer.getState() != Thread.State.TIMED_WAITING) {
+            Thread.sleep(10);
+        }
+        sender.release.countDown();
+        closer.join();
+        pipeline = null;
+        assertEquals(2, sender.sent.size());
+
+        RecordingSender restarted = new RecordingSender();
+        pipeline =
+                new NotificationPipeline(restarted,
+                                         2,
+                                         10,
+                                         OverflowPolicy.spill,
+                                         spillDir,
+                                         10);
+        assertTrue(pipeline.awaitEmpty(10000));
+        assertEquals(3, restarted.sent.size());
+        for (int i = 0; i < 3; i++) {
+            assertEquals("demo:1 " + (i + 2), restarted.sent.get(i));
+        }
+        assertEquals(0, spillDir.listFiles().length);
+    }
+
+    @Test
+    public void testFailedSendIsRetried() throws Exception {
+        RecordingSender sender = new RecordingSender();
+        sender.failures = 1;
+        pipeline =
+                new NotificationPipeline(sender,
+                                         1,
+                                         10,
+                                         OverflowPolicy.block,
+                                         null,
+                                         10);
+        for (int i = 0; i < 3; i++) {
+            pipeline.submit(purge("demo:1", i));
+        }
+        assertTrue(pipeline.awaitEmpty(10000));
+        assertEquals(3, sender.sent.size());
+        for (int i = 0; i < 3; i++) {
+            assertEquals("demo:1 " + i, sender.sent.get(i));
+        }
+        assertEquals(3, pipeline.getSent());
+        assertEquals(0, pipeline.getFailed());
+    }
+
+    @Test
+    public void testFailedDestinationIsRetriedAlone() throws Exception {
+        final List<String> sentA =
+                Collections.synchronizedList(new ArrayList<String>());
+        final List<String> sentB =
+                Collections.synchronizedList(new ArrayList<String>());
+        final int[] failuresB = {1};
+        NotificationPipeline.Sender sender = new NotificationPipeline.Sender() {
+
+            public List<PreparedMessage> render(FedoraMethod method) {
+                String text =
+                        method.getPID() + " " + method.getParameters()[2];
+                return Arrays.asList(new PreparedMessage("a",
+                                                         method.getName(),
+                                                         null,
+                                                         text),
+                                     new PreparedMessage("b",
+                                                         method.getName(),
+                                                         null,
+                                                         text));
+            }
+
+            public void send(List<PreparedMessage> messages)
+                    throws MessagingException {
+                String dest = messages.get(0).getDestName();
+                if (dest.equals("b") && failuresB[0]-- > 0) {
+                    throw new MessagingException("Unavailable");
+                }
+                for (PreparedMessage message : messages) {
+                    (dest.equals("a") ? sentA : sentB).add(message.getText());
+                }
+            }
+        };
+        pipeline =
+                new NotificationPipeline(sender,
+                                         1,
+                                         10,
+                                         OverflowPolicy.block,
+                                         null,
+                                         10);
+        for (int i = 0; i < 3; i++) {
+            pipeline.submit(purge("demo:1", i));
+        }
+        assertTrue(pipeline.awaitEmpty(10000));
+
+        List<String> expected =
+                Arrays.asList("demo:1 0", "demo:1 1", "demo:1 2");
+        assertEquals(expected, sentA);
+        assertEquals(expected, sentB);
+        assertEquals(3, pipeline.getSent());
+        assertEquals(0, pipeline.getFailed());
+    }
+
+    @Test
+    public void testRestartAfterCloseWhileSendingSpilled() throws Exception {
+        RecordingSender sender = new RecordingSender();
+        sender.holdAt = "demo:1 0";
+        sender.release = new CountDownLatch(1);
+        pipeline =
+                new NotificationPipeline(sender,
+                                         1,
+                                         1,
+                                         OverflowPolicy.spill,
+                                         spillDir,
+                                         1);
+        pipeline.submit(purge("demo:1", 0));
+        sender.sending.await();
+        for (int i = 1; i < 5; i++) {
+            pipeline.submit(purge("demo:1", i));
+        }
+        assertEquals(3, pipeline.getSpilled());
+
+        // hold again once the worker has read two of the spilled ones
+        CountDownLatch first = sender.release;
+        sender.holdAt = "demo:1 3";
+        sender.sending = new CountDownLatch(1);
+        sender.release = new CountDownLatch(1);
+        first.countDown();
+        sender.sending.await();
+        closeWhileSending(sender);
+        assertEquals(4, sender.sent.size());
+
+        RecordingSender restarted = new RecordingSender();
+        pipeline =
+                new NotificationPipeline(restarted,
+                                         1,
+                                         10,
+                                         OverflowPolicy.spill,
+                                         spillDir,
+                                         10);
+        assertTrue(pipeline.awaitEmpty(10000));
+        assertEquals(Collections.singletonList("demo:1 4"), restarted.sent);
+    }
+
+    @Test
+    public void testRestartAfterCloseWhileRetrying() throws Exception {
+        RecordingSender sender = new RecordingSender();
+        sender.release = new CountDownLatch(1);
+        sender.failures = 1;
+        pipeline =
+                new NotificationPipeline(sender,
+                                         1,
+                                         1,
+                                         OverflowPolicy.spill,
+                                         spillDir,
+                                         1);
+        pipeline.submit(purge("demo:1", 0));
+        sender.sending.await();
+        for (int i = 1; i < 4; i++) {
+            pipeline.submit(purge("demo:1", i));
+        }
+        assertEquals(2, pipeline.getSpilled());
+
+        // the send fails after close, so 0 is spilled ahead of 2 and 3, and
+        // 1, queued in memory, is dropped
+        NotificationPipeline closing = pipeline;
+        closeWhileSending(sender);
+        assertTrue(sender.sent.isEmpty());
+        assertEquals(1, closing.getDropped());
+
+        RecordingSender restarted = new RecordingSender();
+        pipeline =
+                new NotificationPipeline(restarted,
+                                         1,
+                                         10,
+                                         OverflowPolicy.spill,
+                                         spillDir,
+                                         10);
+        assertTrue(pipeline.awaitEmpty(10000));
+        assertEquals(Arrays.asList("demo:1 0", "demo:1 2", "demo:1 3"),
+                     restarted.sent);
+    }
+
+    /**
+     * Closes the pipeline while the sender is held, then releases it.
+     */
+    private void closeWhileSending(RecordingSender sender) throws Exception {
+        final NotificationPipeline closing = pipeline;
+        Thread closer = new Thread() {
+
+            @Override
+            public void run() {
+                closing.close();
+            }
+        };
+        closer.start();
+        while (closer.getState() != Thread.State.TIMED_WAITING) {
+            Thread.sleep(10);
+        }
+        sender.release.countDown();
+        closer.join();
+        pipeline = null;
+    }
+}
@@ -24,15 +24,23 @@ along with opensearch.  If not, see <http://www.gnu.org/licenses/>.
 
 package org.fcrepo.server.oai;
 
+import java.io.PrintWriter;
+import java.io.StringWriter;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
 import java.util.List;
+import org.fcrepo.oai.BadResumptionTokenException;
+import org.fcrepo.oai.CannotDisseminateFormatException;
 import org.fcrepo.oai.DateGranularitySupport;
 import org.fcrepo.oai.DeletedRecordSupport;
 import org.fcrepo.oai.Header;
+import org.fcrepo.oai.IDDoesNotExistException;
 import org.fcrepo.oai.Record;
+import org.fcrepo.oai.RecordHandler;
 import org.fcrepo.oai.ResumptionToken;
+import org.fcrepo.oai.WritableRecord;
+import org.fcrepo.server.errors.MethodNotFoundException;
 import org.fcrepo.server.errors.ServerException;
 import org.fcrepo.server.search.Condition;
 import org.fcrepo.server.search.FieldSearch;
@@ -87,20 +95,45 @@ public class FedoraOAIProviderTest
             throw new UnsupportedOperationException("Not supported yet.");
         }
 
+        /**
+         * Not supported, like in FieldSearchSQL, so the provider pages with
+         * the FieldSearch session tokens unless overridden.
+         */
+        @Override
+        public FieldSearchResult findObjectsAfter(String[] resultFields, int maxResults, FieldSearchQuery query, Date afterMDate, String afterPID) throws ServerException {
+            throw new MethodNotFoundException("Not supported yet.");
+        }
+
         @Override
         public int findHighestID(String namespace) throws ServerException {
             throw new UnsupportedOperationException("Not supported yet.");
         }
+
+        @Override
+        public boolean objectExists(String pid) throws ServerException {
+            throw new UnsupportedOperationException("Not supported yet.");
+        }
+
+        @Override
+        public long getObjectCount() throws ServerException {
+            throw new UnsupportedOperationException("Not supported yet.");
+        }
     }
 
     public static class MockFieldSearchResult implements FieldSearchResult {
 
         private final List<ObjectFields> result;
         private final String token;
+        private final long completeListSize;
 
         public MockFieldSearchResult(List<ObjectFields> result, String token) {
+            this(result, token, result.size());
+        }
+
+        public MockFieldSearchResult(List<ObjectFields> result, String token, long completeListSize) {
             this.result = result;
             this.token = token;
+            this.completeListSize = completeListSize;
         }
 
         @Override
@@ -120,7 +153,7 @@ public class FedoraOAIProviderTest
 
         @Override
         public long getCompleteListSize() {
-            return result.size();
+            return completeListSize;
         }
 
         @Override
@@ -574,6 +607,189 @@ public class FedoraOAIProviderTest
         assertFalse(header2.isAvailable());
     }
 
+    /**
+     * Harvests headers of objects in order of mDate and pid, as the
+     * FieldSearch returns them from the position in the token.
+     */
+    private class RangeFieldSearch extends MockFieldSearch {
+
+        private final List<ObjectFields> objects = new ArrayList<ObjectFields>();
+
+        private int searches = 0;
+
+        RangeFieldSearch(int count) {
+            for (int i = 0; i < count; i++) {
+                ObjectFields obj = new ObjectFields();
+                obj.setPid("obj:" + i / 3 + "." + i);
+                obj.setMDate(new Date(obj1Date.getTime() + (i / 3) * 1000));
+                obj.setState("A");
+                objects.add(obj);
+            }
+        }
+
+        @Override
+        public FieldSearchResult findObjectsAfter(String[] resultFields, int maxResults, FieldSearchQuery query, Date afterMDate, String afterPID) throws ServerException {
+            searches++;
+            List<Condition> conditions = query.getConditions();
+            assertEquals(new Condition("dcmDate", Operator.GREATER_THAN, "2000-01-01"), conditions.get(0));
+            assertEquals(new Condition("mDate", Operator.GREATER_OR_EQUAL, "2001-06-24T04:05:06Z"), conditions.get(1));
+            assertEquals(new Condition("mDate", Operator.LESS_OR_EQUAL, "2010-12-24T13:14:15Z"), conditions.get(2));
+
+            int start = 0;
+            if (afterPID != null) {
+                while (!objects.get(start).getPid().equals(afterPID)) {
+                    start++;
+                }
+                // objects without an mDate are positioned at the epoch
+                Date mDate = objects.get(start).getMDate();
+                assertEquals(mDate != null ? mDate : new Date(0), afterMDate);
+                start++;
+            }
+            int end = Math.min(start + maxResults, objects.size());
+            return new MockFieldSearchResult(new ArrayList<ObjectFields>(objects.subList(start, end)), null, objects.size() - start);
+        }
+    }
+
+    @Test
+    public void testGetHeaders_range() throws Exception {
+        RangeFieldSearch fs = new RangeFieldSearch(250);
+
+        FedoraOAIProvider provider = getInstance(fs);
+
+        List<String> identifiers = new ArrayList<String>();
+        List headers = provider.getHeaders(from, until, "oai_dc", null);
+        long cursor = 0;
+        while (true) {
+            Object last = headers.get(headers.size() - 1);
+            for (Object header : headers) {
+                if (header instanceof Header) {
+                    identifiers.add(((Header) header).getIdentifier());
+                }
+            }
+            if (!(last instanceof ResumptionToken)) {
+                break;
+            }
+            ResumptionToken token = (ResumptionToken) last;
+            assertEquals(cursor, token.getCursor());
+            assertEquals(250, token.getCompleteListSize());
+            assertNull(token.getExpirationDate());
+            cursor += 103;
+            headers = provider.getHeaders(token.getValue());
+        }
+
+        assertEquals(3, fs.searches);
+        assertEquals(250, identifiers.size());
+        for (int i = 0; i < 250; i++) {
+            assertEquals("oai:repositoryDomain:obj:" + i / 3 + "." + i, identifiers.get(i));
+        }
+    }
+
+    @Test
+    public void testGetRecords_range() throws Exception {
+        RangeFieldSearch fs = new RangeFieldSearch(103);
+
+        FedoraOAIProvider provider = getInstance(fs);
+
+        List records = provider.getRecords(from, until, "oai_dc", null);
+        assertEquals(103, records.size());
+        ResumptionToken token = (ResumptionToken) records.get(102);
+
+        // a token holds its position, so it can be used again
+        for (int i = 0; i < 2; i++) {
+            records = provider.getRecords(token.getValue());
+            assertEquals(1, records.size());
+            assertEquals("oai:repositoryDomain:obj:34.102", ((Record) records.get(0)).getHeader().getIdentifier());
+        }
+    }
+
+    @Test
+    public void testGetRecords_rangeAfterObjectWithoutMDate() throws Exception {
+        RangeFieldSearch fs = new RangeFieldSearch(103);
+        fs.objects.get(101).setMDate(null);
+
+        FedoraOAIProvider provider = getInstance(fs);
+
+        List records = provider.getRecords(from, until, "oai_dc", null);
+        ResumptionToken token = (ResumptionToken) records.get(102);
+        records = provider.getRecords(token.getValue());
+        assertEquals(1, records.size());
+        assertEquals("oai:repositoryDomain:obj:34.102", ((Record) records.get(0)).getHeader().getIdentifier());
+    }
+
+    @Test(expected = BadResumptionTokenException.class)
+    public void testGetHeaders_badRangeToken() throws Exception {
+        FedoraOAIProvider provider = getInstance(new RangeFieldSearch(1));
+
+        provider.getHeaders("r1.x.y");
+    }
+
+    @Test
+    public void testGetRecords_handler() throws Exception {
+        RangeFieldSearch fs = new RangeFieldSearch(103);
+        fs.objects.get(0).titles().add(new DCField("a & b"));
+
+        FedoraOAIProvider provider = getInstance(fs);
+
+        final List<Record> records = new ArrayList<Record>();
+        ResumptionToken token = provider.getRecords(from, until, "oai_dc", null, new RecordHandler() {
+            public void handleRecord(Record record) {
+                records.add(record);
+            }
+        });
+        assertEquals(102, records.size());
+        assertEquals(103, token.getCompleteListSize());
+
+        // the metadata is written as it would be returned
+        for (Record record : records) {
+            StringWriter writer = new StringWriter();
+            ((WritableRecord) record).writeMetadata(new PrintWriter(writer));
+            assertEquals(record.getMetadata(), writer.toString());
+        }
+        assertTrue(records.get(0).getMetadata().contains("<dc:title>a &amp; b</dc:title>"));
+
+        token = provider.getRecords(token.getValue(), new RecordHandler() {
+            public void handleRecord(Record record) {
+                records.add(record);
+            }
+        });
+        assertNull(token);
+        assertEquals(103, records.size());
+    }
+
+    @Test(expected = IDDoesNotExistException.class)
+    public void testGetRecord_idDoesNotExist() throws Exception {
+        MockFieldSearch fs = new MockFieldSearch() {
+            @Override
+            public FieldSearchResult findObjects(String[] resultFields, int maxResults, FieldSearchQuery query) throws ServerException {
+                assertEquals(1, maxResults);
+                return new MockFieldSearchResult(new ArrayList<ObjectFields>(), null);
+            }
+            @Override
+            public boolean objectExists(String pid) throws ServerException {
+                assertEquals("obj:1", pid);
+                return false;
+            }
+        };
+
+        getInstance(fs).getRecord("oai:repositoryDomain:obj:1", "oai_dc");
+    }
+
+    @Test(expected = CannotDisseminateFormatException.class)
+    public void testGetRecord_noDC() throws Exception {
+        MockFieldSearch fs = new MockFieldSearch() {
+            @Override
+            public FieldSearchResult findObjects(String[] resultFields, int maxResults, FieldSearchQuery query) throws ServerException {
+                return new MockFieldSearchResult(new ArrayList<ObjectFields>(), null);
+            }
+            @Override
+            public boolean objectExists(String pid) throws ServerException {
+                return true;
+            }
+        };
+
+        getInstance(fs).getRecord("oai:repositoryDomain:obj:1", "oai_dc");
+    }
+
     @Test
     @Ignore
     public void testGetSets_0args() throws Exception {
@@ -0,0 +1,187 @@
+/* The contents of this file are subject to the license and copyright terms
+ * detailed in the license directory at the root of the source tree (also
+ * available online at http://fedora-commons.org/license/).
+ */
+
+package org.fcrepo.server.rest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.fcrepo.server.storage.types.MIMETypedStream;
+import org.junit.Test;
+
+/**
+ * Tests for {@link ByteRange} and {@link ByteRangeOutput}.
+ *
+ * @version $Id$
+ */
+public class ByteRangeTest {
+
+    private static final String CONTENT = "0123456789";
+
+    @Test
+    public void testParse() {
+        assertEquals(Arrays.asList(new ByteRange(0, 4)),
+                     ByteRange.parse("bytes=0-4", 10));
+        assertEquals(Arrays.asList(new ByteRange(5, 9)),
+                     ByteRange.parse("bytes=5-", 10));
+        assertEquals(Arrays.asList(new ByteRange(7, 9)),
+                     ByteRange.parse("bytes=-3", 10));
+        assertEquals(Arrays.asList(new ByteRange(0, 9)),
+                     ByteRange.parse("bytes=-30", 10));
+        assertEquals(Arrays.asList(new ByteRange(8, 9)),
+                     ByteRange.parse("bytes=8-100", 10));
+        assertEquals(Arrays.asList(new ByteRange(0, 0), new ByteRange(2, 3)),
+                     ByteRange.parse("Bytes=0-0 , ,2-3", 10));
+    }
+
+    @Test
+    public void testParseUnsatisfiable() {
+        List<ByteRange> none = Collections.emptyList();
+        assertEquals(none, ByteRange.parse("bytes=10-", 10));
+        assertEquals(none, ByteRange.parse("bytes=-0", 10));
+        assertEquals(none, ByteRange.parse("bytes=0-", 0));
+        // satisfiable ranges are kept
+        assertEquals(Arrays.asList(new ByteRange(1, 1)),
+                     ByteRange.parse("bytes=20-30,1-1", 10));
+    }
+
+    @Test
+    public void testParseInvalid() {
+        assertNull(ByteRange.parse(null, 10));
+        assertNull(ByteRange.parse("items=0-4", 10));
+        assertNull(ByteRange.parse("bytes=", 10));
+        assertNull(ByteRange.parse("bytes=4", 10));
+        assertNull(ByteRange.parse("bytes=4-2", 10));
+        assertNull(ByteRange.parse("bytes=-", 10));
+        assertNull(ByteRange.parse("bytes=--2", 10));
+        assertNull(ByteRange.parse("bytes=0-4,x-", 10));
+    }
+
+    @Test
+    public void testIsAscending() {
+        assertTrue(ByteRange.isAscending(ByteRange.parse("bytes=0-1,3-4,-2", 10)));
+        assertFalse(ByteRange.isAscending(ByteRange.parse("bytes=3-4,0-1", 10)));
+        assertFalse(ByteRange.isAscending(Arrays.asList(new ByteRange(0, 4),
+                                                        new ByteRange(4, 5))));
+    }
+
+    @Test
+    public void testParseMergesRanges() {
+        // overlapping, adjoining, and contained
+        assertEquals(Arrays.asList(new ByteRange(0, 5)),
+                     ByteRange.parse("bytes=0-4,4-5", 10));
+        assertEquals(Arrays.asList(new ByteRange(0, 5)),
+                     ByteRange.parse("bytes=0-2,3-5", 10));
+        assertEquals(Arrays.asList(new ByteRange(0, 9)),
+                     ByteRange.parse("bytes=0-,1-2,-3", 10));
+        // a range joining two takes the place of the first
+        assertEquals(Arrays.asList(new ByteRange(8, 9), new ByteRange(1, 6)),
+                     ByteRange.parse("bytes=8-,5-6,1-2,3-4", 10));
+        assertEquals(Arrays.asList(new ByteRange(1, 7)),
+                     ByteRange.parse("bytes=5-7,1-2,2-5", 10));
+    }
+
+    @Test
+    public void testParseTooManyRanges() {
+        StringBuilder header = new StringBuilder("bytes=0-0");
+        for (int i = 1; i < ByteRange.MAX_RANGES; i++) {
+            header.append(",0-").append(i);
+        }
+        assertEquals(Arrays.asList(new ByteRange(0, 9)),
+                     ByteRange.parse(header.toString(), 10));
+        header.append(",0-0");
+        assertNull(ByteRange.parse(header.toString(), 10));
+    }
+
+    @Test
+    public void testWriteSingleRange() throws Exception {
+        ByteRangeOutput output =
+                new ByteRangeOutput(getStream(new ByteArrayInputStream(CONTENT.getBytes("US-ASCII"))),
+                                    ByteRange.parse("bytes=3-5", 10));
+        assertEquals("text/plain", output.getContentType());
+        assertEquals("bytes 3-5/10", output.getContentRange());
+        assertEquals(3, output.getLength());
+        assertEquals("345", write(output));
+    }
+
+    @Test
+    public void testWriteMultipleRanges() throws Exception {
+        ByteRangeOutput output =
+                new ByteRangeOutput(getStream(new ByteArrayInputStream(CONTENT.getBytes("US-ASCII"))),
+                                    ByteRange.parse("bytes=0-1,-2", 10));
+        assertTrue(output.canWrite());
+        assertNull(output.getContentRange());
+        String contentType = output.getContentType();
+        assertTrue(contentType.startsWith("multipart/byteranges; boundary="));
+        String boundary = contentType.substring(contentType.indexOf('=') + 1);
+
+        String expected =
+                "--" + boundary + "\r\n"
+                + "Content-Type: text/plain\r\n"
+                + "Content-Range: bytes 0-1/10\r\n"
+                + "\r\n"
+                + "01\r\n"
+                + "--" + boundary + "\r\n"
+                + "Content-Type: text/plain\r\n"
+                + "Content-Range: bytes 8-9/10\r\n"
+                + "\r\n"
+                + "89\r\n"
+                + "--" + boundary + "--\r\n";
+        assertEquals(expected.length(), output.getLength());
+        assertEquals(expected, write(output));
+    }
+
+    @Test
+    public void testWriteFromFile() throws Exception {
+        File file = File.createTempFile("ByteRangeTest", null);
+        try {
+            FileOutputStream out = new FileOutputStream(file);
+            out.write(CONTENT.getBytes("US-ASCII"));
+            out.close();
+
+            // a file can be read in any order
+            ByteRangeOutput output =
+                    new ByteRangeOutput(getStream(new FileInputStream(file)),
+                                        ByteRange.parse("bytes=8-,2-3", 10));
+            assertTrue(output.canWrite());
+            String written = write(output);
+            assertTrue(written.contains("Content-Range: bytes 8-9/10\r\n\r\n89\r\n"));
+            assertTrue(written.contains("Content-Range: bytes 2-3/10\r\n\r\n23\r\n"));
+            assertTrue(written.indexOf("89") < written.indexOf("23"));
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testCannotWriteUnorderedRangesOfStream() throws Exception {
+        ByteRangeOutput output =
+                new ByteRangeOutput(getStream(new ByteArrayInputStream(CONTENT.getBytes("US-ASCII"))),
+                                    ByteRange.parse("bytes=8-,2-3", 10));
+        assertFalse(output.canWrite());
+    }
+
+    private static MIMETypedStream getStream(InputStream in) {
+        return new MIMETypedStream("text/plain", in, null, CONTENT.length());
+    }
+
+    private static String write(ByteRangeOutput output) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        output.write(out);
+        return out.toString("US-ASCII");
+    }
+}
@@ -5,9 +5,13 @@
 package org.fcrepo.server.security;
 
 import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.junit.Test;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
 import org.xml.sax.SAXException;
 
 import org.fcrepo.common.Constants;
@@ -133,6 +137,52 @@ public class TestPolicyParser {
         parser.copy().parse(StreamUtility.getStream(POLICY_GOODENOUGH), true);
     }
 
+    @Test
+    public void testValidatorIsReusableAfterFailedValidation()
+            throws IOException, SAXException, ValidationException {
+        PolicyParser parser = new MockPolicyParser();
+        try {
+            parser.parse(StreamUtility.getStream(POLICY_QUESTIONABLE), true);
+            fail("Questionable policy should not validate");
+        } catch (ValidationException expected) {
+        }
+        parser.parse(StreamUtility.getStream(POLICY_GOODENOUGH), true);
+    }
+
+    @Test
+    public void testConcurrentParseWithSharedInstance() throws Exception {
+        final PolicyParser parser = new MockPolicyParser();
+        final AtomicInteger errors = new AtomicInteger();
+        Thread[] threads = new Thread[8];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread() {
+
+                @Override
+                public void run() {
+                    for (int j = 0; j < 50; j++) {
+                        try {
+                            parser.parse(StreamUtility.getStream(POLICY_GOODENOUGH), true);
+                        } catch (Exception e) {
+                            errors.incrementAndGet();
+                        }
+                        try {
+                            parser.parse(StreamUtility.getStream(POLICY_QUESTIONABLE), true);
+                            errors.incrementAndGet();
+                        } catch (ValidationException expected) {
+                        } catch (Exception e) {
+                            errors.incrementAndGet();
+                        }
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(0, errors.get());
+    }
+
     // Supports legacy test runners
     public static junit.framework.Test suite() {
         return new junit.framework.JUnit4TestAdapter(TestPolicyParser.class);
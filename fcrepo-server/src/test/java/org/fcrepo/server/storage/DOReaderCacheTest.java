@@ -0,0 +1,96 @@
+/* The contents of this file are subject to the license and copyright terms
+ * detailed in the license directory at the root of the source tree (also
+ * available online at http://fedora-commons.org/license/).
+ */
+package org.fcrepo.server.storage;
+
+import org.junit.After;
+import org.junit.Test;
+
+import org.fcrepo.server.storage.types.BasicDigitalObject;
+import org.fcrepo.server.storage.types.DigitalObject;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class DOReaderCacheTest {
+
+    private DOReaderCache cache;
+
+    @After
+    public void tearDown() {
+        if (cache != null) {
+            cache.close();
+        }
+    }
+
+    private static DOReader reader(String pid) {
+        DigitalObject obj = new BasicDigitalObject();
+        obj.setPid(pid);
+        return new MockDOReader(obj);
+    }
+
+    @Test
+    public void testGetReturnsPutReader() {
+        cache = new DOReaderCache(10, 60);
+        DOReader reader = reader("demo:1");
+        cache.put(reader);
+
+        assertSame(reader, cache.get("demo:1"));
+        assertNull(cache.get("demo:2"));
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+    }
+
+    @Test
+    public void testRemove() {
+        cache = new DOReaderCache(10, 60);
+        cache.put(reader("demo:1"));
+        cache.remove("demo:1");
+
+        assertNull(cache.get("demo:1"));
+        assertEquals(0, cache.getSize());
+    }
+
+    @Test
+    public void testLeastRecentlyUsedReaderIsEvicted() {
+        // a single reader means a single stripe, so eviction order is exact
+        cache = new DOReaderCache(1, 60);
+        cache.put(reader("demo:1"));
+        cache.put(reader("demo:2"));
+
+        assertNull(cache.get("demo:1"));
+        assertEquals("demo:2", pidOf(cache.get("demo:2")));
+        assertEquals(1, cache.getEvictions());
+    }
+
+    @Test
+    public void testSizeIsBoundedByMaxReaders() {
+        cache = new DOReaderCache(20, 60);
+        for (int i = 0; i < 1000; i++) {
+            cache.put(reader("demo:" + i));
+        }
+        assertEquals(true, cache.getSize() <= 20);
+        assertEquals(1000 - cache.getSize(), cache.getEvictions());
+    }
+
+    @Test
+    public void testExpiredReaderIsNotReturned() throws Exception {
+        cache = new DOReaderCache(10, 1);
+        cache.put(reader("demo:1"));
+        Thread.sleep(1100);
+
+        assertNull(cache.get("demo:1"));
+        assertEquals(1, cache.getExpirations());
+        assertEquals(0, cache.getSize());
+    }
+
+    private static String pidOf(DOReader reader) {
+        try {
+            return reader.GetObjectPID();
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
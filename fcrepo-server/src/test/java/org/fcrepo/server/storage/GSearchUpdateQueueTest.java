@@ -0,0 +1,327 @@
+/* The contents of this file are subject to the license and copyright terms
+ * detailed in the license directory at the root of the source tree (also
+ * available online at http://fedora-commons.org/license/).
+ */
+package org.fcrepo.server.storage;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+
+import java.net.InetSocketAddress;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.fcrepo.common.http.WebClient;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class GSearchUpdateQueueTest {
+
+    private File backlogFile;
+
+    private GSearchUpdateQueue queue;
+
+    @Before
+    public void setUp() throws IOException {
+        backlogFile = File.createTempFile("gsearch-backlog", ".txt");
+        backlogFile.delete();
+    }
+
+    @After
+    public void tearDown() {
+        if (queue != null) {
+            queue.close();
+        }
+        backlogFile.delete();
+    }
+
+    /**
+     * Records the updates sent, optionally failing.
+     */
+    private static class RecordingSender
+            implements GSearchUpdateQueue.Sender {
+
+        final List<String> sent =
+                Collections.synchronizedList(new ArrayList<String>());
+
+        volatile boolean fail;
+
+        public void send(String pid, boolean remove) throws IOException {
+            sent.add((remove ? "delete " : "update ") + pid);
+            if (fail) {
+                throw new IOException("GSearch is down");
+            }
+        }
+    }
+
+    @Test
+    public void testUpdatesAreSentToGSearch() throws Exception {
+        final List<String> queries =
+                Collections.synchronizedList(new ArrayList<String>());
+        HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/fedoragsearch/rest", new HttpHandler() {
+
+            public void handle(HttpExchange exchange) throws IOException {
+                queries.add(exchange.getRequestURI().getRawQuery());
+                exchange.sendResponseHeaders(200, -1);
+                exchange.close();
+            }
+        });
+        server.start();
+        try {
+            String url = "http://localhost:" + server.getAddress().getPort()
+                    + "/fedoragsearch/rest";
+            queue = new GSearchUpdateQueue(new GSearchDOManager.RESTSender(url,
+                                                                           new WebClient(),
+                                                                           null),
+                                           backlogFile, 10, 0, 0);
+            queue.add("demo:1", false);
+            queue.add("demo:2", true);
+
+            assertTrue(queue.awaitEmpty(10000));
+            assertEquals(Arrays.asList("operation=updateIndex&value=demo%3A1&action=fromPid",
+                                       "operation=updateIndex&value=demo%3A2&action=deletePid"),
+                         queries);
+            assertEquals(2, queue.getSent());
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    @Test
+    public void testErrorResponseIsRetried() throws Exception {
+        final List<String> queries =
+                Collections.synchronizedList(new ArrayList<String>());
+        HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/fedoragsearch/rest", new HttpHandler() {
+
+            public void handle(HttpExchange exchange) throws IOException {
+                queries.add(exchange.getRequestURI().getRawQuery());
+                exchange.sendResponseHeaders(queries.size() == 1 ? 500 : 200, -1);
+                exchange.close();
+            }
+        });
+        server.start();
+        try {
+            String url = "http://localhost:" + server.getAddress().getPort()
+                    + "/fedoragsearch/rest";
+            queue = new GSearchUpdateQueue(new GSearchDOManager.RESTSender(url,
+                                                                           new WebClient(),
+                                                                           null),
+                                           backlogFile, 10, 3, 0);
+            queue.add("demo:1", false);
+
+            assertTrue(queue.awaitEmpty(10000));
+            assertEquals(2, queries.size());
+            assertEquals(1, queue.getSent());
+            assertEquals(1, queue.getRetries());
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    @Test
+    public void testUpdatesOfTheSameObjectAreCoalesced() throws Exception {
+        final CountDownLatch sending = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        RecordingSender sender = new RecordingSender() {
+
+            @Override
+            public void send(String pid, boolean remove) throws IOException {
+                sending.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e.getMessage());
+                }
+                super.send(pid, remove);
+            }
+        };
+        queue = new GSearchUpdateQueue(sender, backlogFile, 10, 0, 0);
+
+        // hold the worker while the object changes
+        queue.add("demo:0", false);
+        assertTrue(sending.await(10, TimeUnit.SECONDS));
+        queue.add("demo:1", false);
+        queue.add("demo:1", false);
+        queue.add("demo:1", true);
+        assertEquals(1, queue.getQueueDepth());
+        release.countDown();
+
+        assertTrue(queue.awaitEmpty(10000));
+        assertEquals(Arrays.asList("update demo:0", "delete demo:1"), sender.sent);
+        assertEquals(2, queue.getCoalesced());
+    }
+
+    @Test
+    public void testFailedUpdateIsDroppedAfterMaxRetries() throws Exception {
+        RecordingSender sender = new RecordingSender();
+        sender.fail = true;
+        queue = new GSearchUpdateQueue(sender, backlogFile, 10, 2, 0);
+        queue.add("demo:1", false);
+
+        assertTrue(queue.awaitEmpty(10000));
+        assertEquals(3, sender.sent.size());
+        assertEquals(2, queue.getRetries());
+        assertEquals(1, queue.getDropped());
+        assertEquals(0, queue.getSent());
+    }
+
+    @Test
+    public void testUnsentUpdatesSurviveRestart() throws Exception {
+        RecordingSender sender = new RecordingSender();
+        sender.fail = true;
+        // a long retry delay keeps the updates queued
+        queue = new GSearchUpdateQueue(sender, backlogFile, 1, 5, 60000);
+        queue.add("demo:1", false);
+        queue.add("demo:2", true);
+        queue.close();
+
+        sender = new RecordingSender();
+        queue = new GSearchUpdateQueue(sender, backlogFile, 10, 0, 0);
+
+        assertTrue(queue.awaitEmpty(10000));
+        assertTrue(sender.sent.contains("update demo:1"));
+        assertTrue(sender.sent.contains("delete demo:2"));
+        assertEquals(2, sender.sent.size());
+        assertEquals(0, backlogFile.length());
+    }
+
+    @Test
+    public void testBacklogIsWrittenAgainAfterFailure() throws Exception {
+        RecordingSender sender = new RecordingSender();
+        sender.fail = true;
+        // a file in place of the backlog directory makes writing fail
+        File directory = backlogFile;
+        directory.createNewFile();
+        File backlog = new File(directory, "backlog.txt");
+        try {
+            queue = new GSearchUpdateQueue(sender, backlog, 1, 5, 60000);
+            queue.add("demo:1", false);
+            assertTrue(!backlog.exists());
+
+            directory.delete();
+            directory.mkdir();
+            queue.add("demo:2", true);
+
+            assertTrue(backlog.exists());
+            queue.close();
+            queue = null;
+            sender = new RecordingSender();
+            queue = new GSearchUpdateQueue(sender, backlog, 10, 0, 0);
+            assertTrue(queue.awaitEmpty(10000));
+            assertTrue(sender.sent.contains("update demo:1"));
+            assertTrue(sender.sent.contains("delete demo:2"));
+        } finally {
+            if (queue != null) {
+                queue.close();
+                queue = null;
+            }
+            backlog.delete();
+            directory.delete();
+        }
+    }
+
+    @Test
+    public void testRewrittenBacklogKeepsUpdatesBeingSent() throws Exception {
+        final CountDownLatch sending = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        RecordingSender sender = new RecordingSender() {
+
+            @Override
+            public void send(String pid, boolean remove) throws IOException {
+                sending.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e.getMessage());
+                }
+                super.send(pid, remove);
+            }
+        };
+        // a file in place of the backlog directory makes writing fail
+        File directory = backlogFile;
+        directory.createNewFile();
+        File backlog = new File(directory, "backlog.txt");
+        try {
+            queue = new GSearchUpdateQueue(sender, backlog, 1, 5, 0);
+            queue.add("demo:1", false);
+            assertTrue(sending.await(10, TimeUnit.SECONDS));
+
+            directory.delete();
+            directory.mkdir();
+            queue.add("demo:2", true);
+
+            assertEquals("U demo:1\nD demo:2\n", read(backlog));
+            release.countDown();
+        } finally {
+            release.countDown();
+            if (queue != null) {
+                queue.close();
+                queue = null;
+            }
+            backlog.delete();
+            directory.delete();
+        }
+    }
+
+    @Test
+    public void testCloseInterruptsSendingAndKeepsTheUpdate() throws Exception {
+        final CountDownLatch sending = new CountDownLatch(1);
+        RecordingSender sender = new RecordingSender() {
+
+            @Override
+            public void send(String pid, boolean remove) throws IOException {
+                sending.countDown();
+                try {
+                    // GSearch never answers
+                    new CountDownLatch(1).await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e.getMessage());
+                }
+            }
+        };
+        queue = new GSearchUpdateQueue(sender, backlogFile, 10, 5, 0);
+        queue.add("demo:1", false);
+        assertTrue(sending.await(10, TimeUnit.SECONDS));
+
+        long start = System.currentTimeMillis();
+        queue.close();
+        queue = null;
+        assertTrue(System.currentTimeMillis() - start < 5000);
+        assertEquals("U demo:1\n", read(backlogFile));
+    }
+
+    private static String read(File file) throws IOException {
+        Reader reader =
+                new InputStreamReader(new FileInputStream(file), "UTF-8");
+        try {
+            StringBuilder content = new StringBuilder();
+            char[] buf = new char[1024];
+            int n;
+            while ((n = reader.read(buf)) != -1) {
+                content.append(buf, 0, n);
+            }
+            return content.toString();
+        } finally {
+            reader.close();
+        }
+    }
+}
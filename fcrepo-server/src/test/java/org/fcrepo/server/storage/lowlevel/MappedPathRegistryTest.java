@@ -0,0 +1,294 @@
+/* The contents of this file are subject to the license and copyright terms
+ * detailed in the license directory at the root of the source tree (also
+ * available online at http://fedora-commons.org/license/).
+ */
+package org.fcrepo.server.storage.lowlevel;
+
+import java.io.File;
+import java.io.IOException;
+
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.fcrepo.server.errors.LowlevelStorageException;
+import org.fcrepo.server.errors.ObjectNotInLowlevelStorageException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class MappedPathRegistryTest {
+
+    private File baseDir;
+
+    private File storeDir;
+
+    private File registryDir;
+
+    @Before
+    public void setUp() throws IOException {
+        baseDir = File.createTempFile("mapped-path-registry", "");
+        baseDir.delete();
+        storeDir = new File(baseDir, "store");
+        registryDir = new File(baseDir, "registry");
+        storeDir.mkdirs();
+    }
+
+    @After
+    public void tearDown() {
+        delete(baseDir);
+    }
+
+    private static void delete(File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File child : files) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    private MappedPathRegistry openRegistry() throws LowlevelStorageException {
+        Map<String, Object> configuration = new HashMap<String, Object>();
+        configuration.put(DefaultLowlevelStorage.REGISTRY_NAME,
+                          DefaultLowlevelStorage.OBJECT_REGISTRY_TABLE);
+        configuration.put("storeBases", new String[] {storeDir.getPath()});
+        configuration.put(DefaultLowlevelStorage.PATH_REGISTRY_DIR,
+                          registryDir.getPath());
+        return new MappedPathRegistry(configuration);
+    }
+
+    private static void assertNotInRegistry(PathRegistry registry, String pid)
+            throws LowlevelStorageException {
+        try {
+            registry.get(pid);
+            fail(pid + " should not be in the registry");
+        } catch (ObjectNotInLowlevelStorageException e) {
+        }
+    }
+
+    @Test
+    public void testPutGetRemove() throws Exception {
+        MappedPathRegistry registry = openRegistry();
+        registry.put("demo:1", "/store/a/demo_1");
+        registry.put("demo:2", "/store/b/demo_2");
+        registry.put("demo:1", "/store/c/demo_1");
+
+        assertEquals("/store/c/demo_1", registry.get("demo:1"));
+        assertEquals("/store/b/demo_2", registry.get("demo:2"));
+
+        registry.remove("demo:2");
+        assertNotInRegistry(registry, "demo:2");
+        try {
+            registry.remove("demo:2");
+            fail("Removing a missing pid should fail");
+        } catch (ObjectNotInLowlevelStorageException e) {
+        }
+
+        registry.put("demo:2", "/store/d/demo_2");
+        assertEquals("/store/d/demo_2", registry.get("demo:2"));
+    }
+
+    @Test
+    public void testReopenKeepsEntries() throws Exception {
+        MappedPathRegistry registry = openRegistry();
+        registry.put("demo:1", "/store/a/demo_1");
+        registry.put("demo:æøå", "/store/a/demo_æøå");
+        registry.put("demo:2", "/store/a/demo_2");
+        registry.remove("demo:2");
+
+        registry = openRegistry();
+        assertEquals("/store/a/demo_1", registry.get("demo:1"));
+        assertEquals("/store/a/demo_æøå",
+                     registry.get("demo:æøå"));
+        assertNotInRegistry(registry, "demo:2");
+    }
+
+    @Test
+    public void testGrowthAndCompaction() throws Exception {
+        MappedPathRegistry registry = openRegistry();
+        int count = 100000;
+        for (int i = 0; i < count; i++) {
+            registry.put("demo:" + i, "/store/first/demo_" + i);
+        }
+        // Replacing every path leaves half of the log superseded
+        for (int i = 0; i < count; i++) {
+            registry.put("demo:" + i, "/store/second/demo_" + i);
+        }
+        for (int i = 0; i < count; i += 2) {
+            registry.remove("demo:" + i);
+        }
+
+        registry = openRegistry();
+        for (int i = 0; i < count; i++) {
+            if (i % 2 == 0) {
+                assertNotInRegistry(registry, "demo:" + i);
+            } else {
+                assertEquals("/store/second/demo_" + i, registry.get("demo:"
+                        + i));
+            }
+        }
+
+        Set<String> keys = new HashSet<String>();
+        Enumeration<String> e = registry.keys();
+        while (e.hasMoreElements()) {
+            keys.add(e.nextElement());
+        }
+        assertEquals(count / 2, keys.size());
+
+        // Only the current generation is left
+        assertEquals(2, registryDir.list().length);
+    }
+
+    @Test
+    public void testRebuildFromStore() throws Exception {
+        Set<String> pids = new HashSet<String>();
+        for (int dir = 0; dir < 20; dir++) {
+            File subDir = new File(storeDir, "2012/01" + dir + "/42");
+            subDir.mkdirs();
+            for (int i = 0; i < 50; i++) {
+                String pid = "demo:" + dir + "-" + i;
+                new File(subDir, PathAlgorithm.encode(pid)).createNewFile();
+                pids.add(pid);
+            }
+        }
+        new File(storeDir, "not-a-pid-file").createNewFile();
+
+        MappedPathRegistry registry = openRegistry();
+        for (String pid : pids) {
+            File file = new File(registry.get(pid));
+            assertTrue(file.getPath(), file.exists());
+            assertEquals(PathAlgorithm.encode(pid), file.getName());
+        }
+
+        registry.put("demo:gone", "/store/gone");
+        registry.rebuild();
+        assertNotInRegistry(registry, "demo:gone");
+        assertEquals(storeDir.getCanonicalPath() + "/2012/010/42/"
+                + PathAlgorithm.encode("demo:0-0"), registry.get("demo:0-0"));
+    }
+
+    /**
+     * Fails the puts of a rebuild after the first few, as a crash would.
+     */
+    private static class CrashingRegistry
+            extends MappedPathRegistry {
+
+        // not initialized, as the superclass constructor rebuilds
+        private int m_puts;
+
+        CrashingRegistry(Map<String, ?> configuration)
+                throws LowlevelStorageException {
+            super(configuration);
+        }
+
+        @Override
+        void putRebuilt(String pid, String path)
+                throws LowlevelStorageException {
+            if (++m_puts > 10) {
+                throw new LowlevelStorageException(true, "crashed");
+            }
+            super.putRebuilt(pid, path);
+        }
+    }
+
+    @Test
+    public void testUnfinishedRebuildIsStartedOver() throws Exception {
+        Set<String> pids = new HashSet<String>();
+        for (int dir = 0; dir < 5; dir++) {
+            File subDir = new File(storeDir, "2012/01" + dir + "/42");
+            subDir.mkdirs();
+            for (int i = 0; i < 20; i++) {
+                String pid = "demo:" + dir + "-" + i;
+                new File(subDir, PathAlgorithm.encode(pid)).createNewFile();
+                pids.add(pid);
+            }
+        }
+
+        Map<String, Object> configuration = new HashMap<String, Object>();
+        configuration.put(DefaultLowlevelStorage.REGISTRY_NAME,
+                          DefaultLowlevelStorage.OBJECT_REGISTRY_TABLE);
+        configuration.put("storeBases", new String[] {storeDir.getPath()});
+        configuration.put(DefaultLowlevelStorage.PATH_REGISTRY_DIR,
+                          registryDir.getPath());
+        try {
+            new CrashingRegistry(configuration);
+            fail("The rebuild should have failed");
+        } catch (LowlevelStorageException e) {
+        }
+        assertEquals(2, registryDir.list().length);
+
+        MappedPathRegistry registry = openRegistry();
+        for (String pid : pids) {
+            assertEquals(PathAlgorithm.encode(pid),
+                         new File(registry.get(pid)).getName());
+        }
+    }
+
+    /**
+     * Removes the first object the walk of a rebuild finds before it is
+     * put, and looks up another one.
+     */
+    private static class InterferingRegistry
+            extends MappedPathRegistry {
+
+        String removed;
+
+        String found;
+
+        InterferingRegistry(Map<String, ?> configuration)
+                throws LowlevelStorageException {
+            super(configuration);
+        }
+
+        @Override
+        void putRebuilt(String pid, String path)
+                throws LowlevelStorageException {
+            if (removed == null && found != null) {
+                removed = pid;
+                remove(pid);
+                String other = pid.equals("demo:0") ? "demo:1" : "demo:0";
+                found = get(other);
+            }
+            super.putRebuilt(pid, path);
+        }
+    }
+
+    @Test
+    public void testRegistryAnswersDuringRebuild() throws Exception {
+        for (int i = 0; i < 10; i++) {
+            File subDir = new File(storeDir, "2012/01" + i + "/42");
+            subDir.mkdirs();
+            new File(subDir, PathAlgorithm.encode("demo:" + i)).createNewFile();
+        }
+        Map<String, Object> configuration = new HashMap<String, Object>();
+        configuration.put(DefaultLowlevelStorage.REGISTRY_NAME,
+                          DefaultLowlevelStorage.OBJECT_REGISTRY_TABLE);
+        configuration.put("storeBases", new String[] {storeDir.getPath()});
+        configuration.put(DefaultLowlevelStorage.PATH_REGISTRY_DIR,
+                          registryDir.getPath());
+        InterferingRegistry registry = new InterferingRegistry(configuration);
+        registry.found = "";
+
+        registry.rebuild();
+        String removed = registry.removed;
+        String other = removed.equals("demo:0") ? "demo:1" : "demo:0";
+        assertTrue(registry.found.endsWith("/42/" + PathAlgorithm.encode(other)));
+        assertNotInRegistry(registry, removed);
+        for (int i = 0; i < 10; i++) {
+            if (!removed.equals("demo:" + i)) {
+                registry.get("demo:" + i);
+            }
+        }
+
+        assertNotInRegistry(openRegistry(), removed);
+    }
+}
@@ -6,19 +6,27 @@ package org.fcrepo.server.storage.lowlevel.akubra;
 
 import java.io.BufferedReader;
 import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 
+import java.net.URI;
+
+import java.nio.channels.FileChannel;
+
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
 
+import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
 
 import org.junit.Before;
 import org.junit.Test;
 
+import org.akubraproject.BlobStore;
+import org.akubraproject.map.IdMappingBlobStore;
 import org.akubraproject.mem.MemBlobStore;
 
 import org.fcrepo.common.FaultException;
@@ -26,8 +34,11 @@ import org.fcrepo.common.FaultException;
 import org.fcrepo.server.errors.LowlevelStorageException;
 import org.fcrepo.server.errors.ObjectAlreadyInLowlevelStorageException;
 import org.fcrepo.server.errors.ObjectNotInLowlevelStorageException;
+import org.fcrepo.server.storage.lowlevel.IFileBacked;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 
 /**
  * Unit tests for {@link AkubraLowlevelStorage}
@@ -213,6 +224,65 @@ public class AkubraLowlevelStorageTest {
                      toString(instance.retrieveObject(OBJ_KEY)));
     }
 
+    /**
+     * A datastream retrieved from a file-backed store should give the channel
+     * of its file, at the position of the stream.
+     */
+    @Test
+    public void testRetrieveDatastreamFileChannel() throws Exception {
+        File dir = File.createTempFile("akubra", null);
+        dir.delete();
+        dir.mkdir();
+        try {
+            BlobStore store =
+                    new IdMappingBlobStore(new URI("urn:example:ds"),
+                                           new FileBackedFSBlobStore(new URI("urn:example:fs"), dir),
+                                           new HashPathIdMapper("##"));
+            AkubraLowlevelStorage fsInstance =
+                    new AkubraLowlevelStorage(new MemBlobStore(), store, false, false);
+            fsInstance.addDatastream(DS_KEY, toStream(DS_CONTENT));
+            InputStream stream = fsInstance.retrieveDatastream(DS_KEY);
+            try {
+                stream.skip(3);
+                FileChannel channel = ((IFileBacked) stream).getFileChannel();
+                assertNotNull(channel);
+                assertEquals(3, channel.position());
+                assertEquals(DS_CONTENT.length(), channel.size());
+            } finally {
+                stream.close();
+            }
+        } finally {
+            FileUtils.deleteDirectory(dir);
+        }
+    }
+
+    /** Retrieving a non-existing datastream from files should fail. */
+    @Test (expected=ObjectNotInLowlevelStorageException.class)
+    public void testRetrieveNonExistingDatastreamFile() throws Exception {
+        File dir = File.createTempFile("akubra", null);
+        dir.delete();
+        dir.mkdir();
+        try {
+            BlobStore store =
+                    new IdMappingBlobStore(new URI("urn:example:ds"),
+                                           new FileBackedFSBlobStore(new URI("urn:example:fs"), dir),
+                                           new HashPathIdMapper("##"));
+            new AkubraLowlevelStorage(new MemBlobStore(), store, false, false)
+                    .retrieveDatastream(DS_KEY);
+        } finally {
+            FileUtils.deleteDirectory(dir);
+        }
+    }
+
+    /** A datastream retrieved from memory has no file channel. */
+    @Test
+    public void testRetrieveDatastreamNoFileChannel() throws Exception {
+        instance.addDatastream(DS_KEY, toStream(DS_CONTENT));
+        InputStream stream = instance.retrieveDatastream(DS_KEY);
+        assertNull(((IFileBacked) stream).getFileChannel());
+        stream.close();
+    }
+
     /** Retrieving a non-existing datastream should fail. */
     @Test (expected=ObjectNotInLowlevelStorageException.class)
     public void testRetrieveNonExistingDatastream() throws Exception {
@@ -0,0 +1,43 @@
+/* The contents of this file are subject to the license and copyright terms
+ * detailed in the license directory at the root of the source tree (also
+ * available online at http://fedora-commons.org/license/).
+ */
+package org.fcrepo.server.utilities;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class RetryBackoffTest {
+
+    @Test
+    public void testDelayDoublesUpToMaximum() {
+        RetryBackoff backoff = new RetryBackoff(100, 500);
+
+        assertEquals(100, backoff.failed());
+        assertEquals(200, backoff.failed());
+        assertEquals(400, backoff.failed());
+        assertEquals(500, backoff.failed());
+        assertEquals(500, backoff.failed());
+    }
+
+    @Test
+    public void testSuccessStartsOver() {
+        RetryBackoff backoff = new RetryBackoff(100, 500);
+        backoff.failed();
+        backoff.failed();
+        backoff.succeeded();
+
+        assertEquals(100, backoff.failed());
+    }
+
+    @Test
+    public void testManyFailuresDoNotOverflow() {
+        RetryBackoff backoff = new RetryBackoff(1000, Long.MAX_VALUE);
+        for (int i = 0; i < 100; i++) {
+            backoff.failed();
+        }
+
+        assertEquals(1000L << 16, backoff.failed());
+    }
+}
@@ -0,0 +1,86 @@
+/* The contents of this file are subject to the license and copyright terms
+ * detailed in the license directory at the root of the source tree (also
+ * available online at http://fedora-commons.org/license/).
+ */
+package org.fcrepo.server.utilities;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class StripedLruCacheTest {
+
+    @Test
+    public void testGetReturnsPutValue() {
+        StripedLruCache<String> cache =
+                new StripedLruCache<String>(10, 60000, false);
+        cache.put("a", "1");
+
+        assertEquals("1", cache.get("a"));
+        assertNull(cache.get("b"));
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+    }
+
+    @Test
+    public void testLeastRecentlyUsedEntryIsEvicted() {
+        // a capacity of one means a single stripe, so eviction order is exact
+        StripedLruCache<String> cache =
+                new StripedLruCache<String>(1, 60000, false);
+        cache.put("a", "1");
+        cache.put("b", "2");
+
+        assertNull(cache.get("a"));
+        assertEquals("2", cache.get("b"));
+        assertEquals(1, cache.getEvictions());
+    }
+
+    @Test
+    public void testSizeIsBoundedByCapacity() {
+        StripedLruCache<String> cache =
+                new StripedLruCache<String>(20, 60000, false);
+        for (int i = 0; i < 1000; i++) {
+            cache.put("key" + i, "value" + i);
+        }
+        assertTrue(cache.size() <= 20);
+        assertEquals(1000 - cache.size(), cache.getEvictions());
+    }
+
+    @Test
+    public void testGetRefreshesTimeToLiveIfConfigured() throws Exception {
+        StripedLruCache<String> refreshed =
+                new StripedLruCache<String>(10, 300, true);
+        StripedLruCache<String> fixed =
+                new StripedLruCache<String>(10, 300, false);
+        refreshed.put("a", "1");
+        fixed.put("a", "1");
+        Thread.sleep(200);
+        assertEquals("1", refreshed.get("a"));
+        assertEquals("1", fixed.get("a"));
+        Thread.sleep(200);
+
+        assertEquals("1", refreshed.get("a"));
+        assertNull(fixed.get("a"));
+        assertEquals(1, fixed.getExpirations());
+        assertEquals(0, fixed.size());
+    }
+
+    @Test
+    public void testExpiredEntryIsRemovedBehindUnexpiredOne() throws Exception {
+        StripedLruCache<String> cache =
+                new StripedLruCache<String>(10, 300, false, 1);
+        cache.put("a", "1");
+        Thread.sleep(150);
+        cache.put("b", "2");
+        // "a" is now the most recently used, but still expires first
+        assertEquals("1", cache.get("a"));
+        Thread.sleep(200);
+        cache.put("c", "3");
+
+        assertEquals(1, cache.getExpirations());
+        assertEquals(2, cache.size());
+        assertEquals("2", cache.get("b"));
+    }
+}